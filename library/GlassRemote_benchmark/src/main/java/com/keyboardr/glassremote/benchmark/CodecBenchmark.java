@@ -0,0 +1,174 @@
+package com.keyboardr.glassremote.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.keyboardr.glassremote.common.receiver.BinaryBufferReader;
+import com.keyboardr.glassremote.common.receiver.BinaryMessageReader;
+import com.keyboardr.glassremote.common.receiver.ByteBufferReceiverAdapter;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver.OnReceiveMessageListener;
+import com.keyboardr.glassremote.common.receiver.StringMessageReader;
+import com.keyboardr.glassremote.common.receiver.Utf8LineReader;
+import com.keyboardr.glassremote.common.sender.BinaryBufferSender;
+import com.keyboardr.glassremote.common.sender.BinaryMessageSender;
+import com.keyboardr.glassremote.common.sender.ByteBufferSenderAdapter;
+import com.keyboardr.glassremote.common.sender.StringMessageSender;
+
+/**
+ * Per-message cost of encoding and decoding with the stream codecs. One
+ * operation is one message. Run with <code>-prof gc</code> to see bytes
+ * allocated per message.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+
+	/**
+	 * Number of messages in the replayed decode buffer
+	 */
+	private static final int REPLAY_MESSAGES = 64;
+
+	@Param({ "16", "256", "4096", "65536" })
+	public int payloadSize;
+
+	private String mStringPayload;
+	private byte[] mBinaryPayload;
+	private ByteBuffer mDirectPayload;
+
+	private StringMessageSender mStringSender;
+	private BinaryMessageSender mBinarySender;
+	private ByteBufferSenderAdapter<ByteBuffer> mBufferSender;
+	private CountingOutputStream mSink;
+
+	private StringMessageReader mStringReader;
+	private StringMessageReader mInterningReader;
+	private Utf8LineReader mLineReader;
+	private BinaryMessageReader mBinaryReader;
+	private ByteBufferReceiverAdapter<ByteBuffer> mBufferReader;
+	private OnReceiveMessageListener<Object> mListener;
+
+	@Setup
+	public void setUp(final Blackhole blackhole) {
+		mStringPayload = Payloads.string(payloadSize);
+		mBinaryPayload = Payloads.bytes(payloadSize);
+		mDirectPayload = ByteBuffer.allocateDirect(payloadSize);
+		mDirectPayload.put(mBinaryPayload);
+		mDirectPayload.flip();
+
+		mSink = new CountingOutputStream();
+		mStringSender = new StringMessageSender();
+		mStringSender.setOutputStream(mSink);
+		mBinarySender = new BinaryMessageSender();
+		mBinarySender.setOutputStream(mSink);
+		mBufferSender = new ByteBufferSenderAdapter<ByteBuffer>(
+				new BinaryBufferSender());
+		mBufferSender.setOutputStream(mSink);
+
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		StringMessageSender stringEncoder = new StringMessageSender();
+		stringEncoder.setOutputStream(encoded);
+		for (int i = 0; i < REPLAY_MESSAGES; i++) {
+			stringEncoder.sendMessage(mStringPayload);
+		}
+		mStringReader = new StringMessageReader();
+		mStringReader.setInputStream(new ReplayInputStream(encoded
+				.toByteArray()));
+		mInterningReader = new StringMessageReader(64);
+		mInterningReader.setInputStream(new ReplayInputStream(encoded
+				.toByteArray()));
+		mLineReader = new Utf8LineReader();
+		mLineReader.setInputStream(new ReplayInputStream(encoded
+				.toByteArray()));
+
+		encoded.reset();
+		BinaryMessageSender binaryEncoder = new BinaryMessageSender();
+		binaryEncoder.setOutputStream(encoded);
+		for (int i = 0; i < REPLAY_MESSAGES; i++) {
+			binaryEncoder.sendMessage(mBinaryPayload);
+		}
+		mBinaryReader = new BinaryMessageReader();
+		mBinaryReader.setInputStream(new ReplayInputStream(encoded
+				.toByteArray()));
+		mBufferReader = new ByteBufferReceiverAdapter<ByteBuffer>(
+				new BinaryBufferReader());
+		mBufferReader.setInputStream(new ReplayInputStream(encoded
+				.toByteArray()));
+
+		mListener = new OnReceiveMessageListener<Object>() {
+			@Override
+			public void onReceiveMessage(Object message) {
+				blackhole.consume(message);
+			}
+		};
+	}
+
+	@Benchmark
+	public long encodeString() {
+		mStringSender.sendMessage(mStringPayload);
+		return mSink.bytes;
+	}
+
+	@Benchmark
+	public long encodeBinary() {
+		mBinarySender.sendMessage(mBinaryPayload);
+		return mSink.bytes;
+	}
+
+	@Benchmark
+	public long encodeByteBuffer() {
+		mBufferSender.sendMessage(mDirectPayload);
+		return mSink.bytes;
+	}
+
+	@Benchmark
+	public boolean decodeString() {
+		return mStringReader.read(mListener);
+	}
+
+	/**
+	 * Every replayed message is the same, so payloads up to
+	 * {@link StringMessageReader#MAX_INTERNED_LENGTH} come from the cache
+	 */
+	@Benchmark
+	public boolean decodeStringInterned() {
+		return mInterningReader.read(mListener);
+	}
+
+	@Benchmark
+	public boolean decodeUtf8Line() {
+		return mLineReader.read(mListener);
+	}
+
+	@Benchmark
+	public boolean decodeBinary() {
+		return mBinaryReader.read(mListener);
+	}
+
+	/**
+	 * Unlike the stream readers, one <code>read()</code> here decodes every
+	 * message already in the receive buffer, so one operation may be several
+	 * messages.
+	 */
+	@Benchmark
+	public boolean decodeByteBuffer() {
+		return mBufferReader.read(mListener);
+	}
+}
@@ -0,0 +1,24 @@
+package com.keyboardr.glassremote.benchmark;
+
+import java.io.OutputStream;
+
+/**
+ * An <code>OutputStream</code> that discards its input, keeping only a count
+ * of the bytes and write calls so the JIT cannot eliminate the encoding work.
+ */
+class CountingOutputStream extends OutputStream {
+	long bytes;
+	long writes;
+
+	@Override
+	public void write(int b) {
+		bytes++;
+		writes++;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		bytes += len;
+		writes++;
+	}
+}
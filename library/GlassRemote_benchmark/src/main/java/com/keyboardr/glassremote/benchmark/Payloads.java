@@ -0,0 +1,25 @@
+package com.keyboardr.glassremote.benchmark;
+
+/**
+ * Deterministic message payloads of a given size
+ */
+final class Payloads {
+	private Payloads() {
+	}
+
+	static String string(int size) {
+		char[] chars = new char[size];
+		for (int i = 0; i < size; i++) {
+			chars[i] = (char) ('a' + i % 26);
+		}
+		return new String(chars);
+	}
+
+	static byte[] bytes(int size) {
+		byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		return bytes;
+	}
+}
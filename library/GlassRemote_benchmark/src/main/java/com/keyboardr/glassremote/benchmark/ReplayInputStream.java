@@ -0,0 +1,42 @@
+package com.keyboardr.glassremote.benchmark;
+
+import java.io.InputStream;
+
+/**
+ * An <code>InputStream</code> that endlessly replays the same encoded bytes.
+ * The buffer should hold a whole number of messages so the reader stays
+ * aligned on message boundaries when the stream wraps around.
+ */
+class ReplayInputStream extends InputStream {
+	private final byte[] mData;
+	private int mPosition;
+
+	ReplayInputStream(byte[] data) {
+		mData = data;
+	}
+
+	@Override
+	public int read() {
+		int b = mData[mPosition++] & 0xFF;
+		if (mPosition == mData.length) {
+			mPosition = 0;
+		}
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) {
+		int count = Math.min(len, mData.length - mPosition);
+		System.arraycopy(mData, mPosition, b, off, count);
+		mPosition += count;
+		if (mPosition == mData.length) {
+			mPosition = 0;
+		}
+		return count;
+	}
+
+	@Override
+	public int available() {
+		return mData.length - mPosition;
+	}
+}
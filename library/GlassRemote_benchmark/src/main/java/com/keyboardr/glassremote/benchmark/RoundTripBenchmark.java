@@ -0,0 +1,207 @@
+package com.keyboardr.glassremote.benchmark;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.keyboardr.glassremote.common.MessageConnection;
+import com.keyboardr.glassremote.common.receiver.BinaryMessageReader;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.receiver.StringMessageReader;
+import com.keyboardr.glassremote.common.sender.BinaryMessageSender;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.StringMessageSender;
+import com.keyboardr.glassremote.common.transport.ConnectionAcceptor;
+import com.keyboardr.glassremote.common.transport.PipedTransport;
+
+/**
+ * End-to-end round trip through {@link MessageConnection} over a
+ * {@link PipedTransport}: encode, writer thread, pipe, reader thread, dispatch
+ * hop, echo, and the same path back. The dispatch hop stands in for the
+ * <code>Handler</code> post to the main thread done by
+ * <code>MessageService</code> and <code>RemoteMessengerImpl</code>.
+ * <code>backgroundRate</code> adds a steady stream of other messages per
+ * second so latency can be seen under load. Sends wait for space in the
+ * queue rather than failing, so a probe is never lost to the background
+ * load.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RoundTripBenchmark {
+
+	private static final byte PROBE = 'p';
+	private static final byte BACKGROUND = 'b';
+
+	@Param({ "string", "binary" })
+	public String codec;
+
+	@Param({ "16", "1024", "16384" })
+	public int payloadSize;
+
+	@Param({ "0", "1000", "10000" })
+	public int backgroundRate;
+
+	private ExecutorService mServerDispatch;
+	private ExecutorService mClientDispatch;
+	private ConnectionAcceptor mAcceptor;
+	private MessageConnection<Object, Object> mServer;
+	private MessageConnection<Object, Object> mClient;
+	private final BlockingQueue<Object> mReplies = new ArrayBlockingQueue<Object>(
+			1);
+
+	private Object mProbe;
+	private Object mBackground;
+	private Thread mBackgroundThread;
+	private volatile boolean mRunning;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		mProbe = payload(PROBE);
+		mBackground = payload(BACKGROUND);
+		mServerDispatch = Executors.newSingleThreadExecutor();
+		mClientDispatch = Executors.newSingleThreadExecutor();
+
+		MessageWriter.Config config = new MessageWriter.Config()
+				.setBackpressurePolicy(MessageWriter.BackpressurePolicy.BLOCK);
+		PipedTransport transport = new PipedTransport();
+		mAcceptor = transport.listen();
+		mClient = new MessageConnection<Object, Object>(transport.connect(),
+				newSender(), newReceiver(), config, new ClientListener());
+		mServer = new MessageConnection<Object, Object>(mAcceptor.accept(),
+				newSender(), newReceiver(), config, new EchoListener());
+		mServer.start();
+		mClient.start();
+
+		mRunning = true;
+		if (backgroundRate > 0) {
+			mBackgroundThread = new Thread("Background") {
+				@Override
+				public void run() {
+					long interval = TimeUnit.SECONDS.toNanos(1)
+							/ backgroundRate;
+					long next = System.nanoTime();
+					while (mRunning) {
+						mClient.sendMessage(mBackground);
+						next += interval;
+						long delay = next - System.nanoTime();
+						if (delay > 0) {
+							LockSupport.parkNanos(delay);
+						}
+					}
+				}
+			};
+			mBackgroundThread.start();
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		mRunning = false;
+		if (mBackgroundThread != null) {
+			mBackgroundThread.join();
+		}
+		mClient.close();
+		mServer.close();
+		mAcceptor.close();
+		mServerDispatch.shutdownNow();
+		mClientDispatch.shutdownNow();
+	}
+
+	@Benchmark
+	public Object roundTrip() throws InterruptedException {
+		mClient.sendMessage(mProbe);
+		return mReplies.take();
+	}
+
+	private Object payload(byte kind) {
+		if ("binary".equals(codec)) {
+			byte[] bytes = Payloads.bytes(payloadSize);
+			bytes[0] = kind;
+			return bytes;
+		}
+		return (char) kind + Payloads.string(payloadSize - 1);
+	}
+
+	private static boolean isProbe(Object message) {
+		if (message instanceof byte[]) {
+			return ((byte[]) message)[0] == PROBE;
+		}
+		return ((String) message).charAt(0) == PROBE;
+	}
+
+	@SuppressWarnings("unchecked")
+	private MessageSender<Object> newSender() {
+		Object sender = "binary".equals(codec) ? new BinaryMessageSender()
+				: new StringMessageSender();
+		return (MessageSender<Object>) sender;
+	}
+
+	@SuppressWarnings("unchecked")
+	private MessageReceiver<Object> newReceiver() {
+		Object receiver = "binary".equals(codec) ? new BinaryMessageReader()
+				: new StringMessageReader();
+		return (MessageReceiver<Object>) receiver;
+	}
+
+	private class EchoListener implements
+			MessageConnection.Listener<Object, Object> {
+		@Override
+		public void onReceiveMessage(
+				final MessageConnection<Object, Object> connection,
+				final Object message) {
+			mServerDispatch.execute(new Runnable() {
+				@Override
+				public void run() {
+					connection.sendMessage(message);
+				}
+			});
+		}
+
+		@Override
+		public void onClosed(MessageConnection<Object, Object> connection) {
+		}
+	}
+
+	private class ClientListener implements
+			MessageConnection.Listener<Object, Object> {
+		@Override
+		public void onReceiveMessage(
+				MessageConnection<Object, Object> connection,
+				final Object message) {
+			mClientDispatch.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (isProbe(message)) {
+						mReplies.offer(message);
+					}
+				}
+			});
+		}
+
+		@Override
+		public void onClosed(MessageConnection<Object, Object> connection) {
+		}
+	}
+}
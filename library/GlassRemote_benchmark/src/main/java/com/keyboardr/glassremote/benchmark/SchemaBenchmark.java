@@ -0,0 +1,161 @@
+package com.keyboardr.glassremote.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver.OnReceiveMessageListener;
+import com.keyboardr.glassremote.common.receiver.StringMessageReader;
+import com.keyboardr.glassremote.common.schema.SchemaMessageReader;
+import com.keyboardr.glassremote.common.schema.SchemaMessageSender;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.StringMessageSender;
+
+/**
+ * Per-message cost of exchanging a small typed object with the schema codec,
+ * compared with formatting it as a string and parsing it back. One operation
+ * is one message. Run with <code>-prof gc</code> to see bytes allocated per
+ * message.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SchemaBenchmark {
+
+	private static final int REPLAY_MESSAGES = 64;
+
+	/**
+	 * A typical sensor reading
+	 */
+	public static class Reading {
+		public long timestamp;
+		public int sensor;
+		public float x;
+		public float y;
+		public float z;
+		public boolean calibrated;
+		public String label;
+
+		static Reading parse(String text) {
+			String[] parts = text.split(",", 7);
+			Reading reading = new Reading();
+			reading.timestamp = Long.parseLong(parts[0]);
+			reading.sensor = Integer.parseInt(parts[1]);
+			reading.x = Float.parseFloat(parts[2]);
+			reading.y = Float.parseFloat(parts[3]);
+			reading.z = Float.parseFloat(parts[4]);
+			reading.calibrated = Boolean.parseBoolean(parts[5]);
+			reading.label = parts[6];
+			return reading;
+		}
+
+		String format() {
+			return timestamp + "," + sensor + "," + x + "," + y + "," + z + ","
+					+ calibrated + "," + label;
+		}
+	}
+
+	private Reading mReading;
+
+	private MessageSender<Reading> mSchemaSender;
+	private StringMessageSender mStringSender;
+	private CountingOutputStream mSink;
+
+	private MessageReceiver<Reading> mSchemaReader;
+	private StringMessageReader mStringReader;
+	private OnReceiveMessageListener<Object> mListener;
+	private OnReceiveMessageListener<String> mParsingListener;
+
+	@Setup
+	public void setUp(final Blackhole blackhole) {
+		mReading = new Reading();
+		mReading.timestamp = 1400000000000L;
+		mReading.sensor = 3;
+		mReading.x = 0.125f;
+		mReading.y = -9.81f;
+		mReading.z = 1.5f;
+		mReading.calibrated = true;
+		mReading.label = "accelerometer";
+
+		mSink = new CountingOutputStream();
+		mSchemaSender = SchemaMessageSender.newSender(Reading.class);
+		mSchemaSender.setOutputStream(mSink);
+		mStringSender = new StringMessageSender();
+		mStringSender.setOutputStream(mSink);
+
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		MessageSender<Reading> schemaEncoder = SchemaMessageSender
+				.newSender(Reading.class);
+		schemaEncoder.setOutputStream(encoded);
+		for (int i = 0; i < REPLAY_MESSAGES; i++) {
+			schemaEncoder.sendMessage(mReading);
+		}
+		mSchemaReader = SchemaMessageReader.newReceiver(Reading.class);
+		mSchemaReader.setInputStream(new ReplayInputStream(encoded
+				.toByteArray()));
+
+		encoded.reset();
+		StringMessageSender stringEncoder = new StringMessageSender();
+		stringEncoder.setOutputStream(encoded);
+		for (int i = 0; i < REPLAY_MESSAGES; i++) {
+			stringEncoder.sendMessage(mReading.format());
+		}
+		mStringReader = new StringMessageReader();
+		mStringReader.setInputStream(new ReplayInputStream(encoded
+				.toByteArray()));
+
+		mListener = new OnReceiveMessageListener<Object>() {
+			@Override
+			public void onReceiveMessage(Object message) {
+				blackhole.consume(message);
+			}
+		};
+		mParsingListener = new OnReceiveMessageListener<String>() {
+			@Override
+			public void onReceiveMessage(String message) {
+				blackhole.consume(Reading.parse(message));
+			}
+		};
+	}
+
+	@Benchmark
+	public long encodeSchema() {
+		mSchemaSender.sendMessage(mReading);
+		return mSink.bytes;
+	}
+
+	@Benchmark
+	public long encodeFormattedString() {
+		mStringSender.sendMessage(mReading.format());
+		return mSink.bytes;
+	}
+
+	/**
+	 * One <code>read()</code> decodes every message already in the receive
+	 * buffer, so one operation may be several messages
+	 */
+	@Benchmark
+	public boolean decodeSchema() {
+		return mSchemaReader.read(mListener);
+	}
+
+	@Benchmark
+	public boolean decodeParsedString() {
+		return mStringReader.read(mParsingListener);
+	}
+}
@@ -0,0 +1,106 @@
+package com.keyboardr.glassremote.common.compress;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.receiver.StringMessageReader;
+import com.keyboardr.glassremote.common.sender.StringMessageSender;
+
+public class DeflateMessageTest {
+
+	private static final String JSON = "{\"type\":\"position\",\"x\":12,"
+			+ "\"y\":34,\"label\":\"a label long enough to compress\"}";
+
+	private final DeflateMessageSender<String> mSender = new DeflateMessageSender<String>(
+			new StringMessageSender());
+	private final DeflateMessageReader<String> mReader = new DeflateMessageReader<String>(
+			new StringMessageReader());
+	private final List<String> mReceived = new ArrayList<String>();
+
+	private final MessageReceiver.OnReceiveMessageListener<String> mListener = new MessageReceiver.OnReceiveMessageListener<String>() {
+
+		@Override
+		public void onReceiveMessage(String message) {
+			mReceived.add(message);
+		}
+	};
+
+	@Test
+	public void roundTripsCompressibleMessages() {
+		List<String> messages = new ArrayList<String>();
+		for (int i = 0; i < 50; i++) {
+			messages.add(JSON + i);
+		}
+		messages.add("short");
+		messages.add("");
+
+		assertEquals(messages, transfer(messages, messages.size()));
+		CompressionStats stats = mSender.getStats();
+		assertTrue(stats.getCompressedFrames() > 0);
+		assertTrue(stats.getWireBytes() < stats.getPayloadBytes());
+		assertEquals(stats.getWireBytes(), mReader.getStats().getWireBytes());
+	}
+
+	@Test
+	public void roundTripsIncompressibleMessages() {
+		Random random = new Random(1);
+		List<String> messages = new ArrayList<String>();
+		for (int i = 0; i < 20; i++) {
+			StringBuilder message = new StringBuilder();
+			for (int j = 0; j < 200; j++) {
+				message.append((char) ('!' + random.nextInt(90)));
+			}
+			messages.add(message.toString());
+		}
+
+		assertEquals(messages, transfer(messages, messages.size()));
+	}
+
+	@Test
+	public void startsOverOnReconnect() {
+		List<String> first = new ArrayList<String>();
+		for (int i = 0; i < 5; i++) {
+			first.add(JSON + i);
+		}
+		// The link drops before the receiver reads the last frames, whose
+		// payloads the sender's history already holds
+		assertEquals(first.subList(0, 2), transfer(first, 2));
+
+		mReceived.clear();
+		List<String> second = new ArrayList<String>();
+		for (int i = 0; i < 5; i++) {
+			second.add(JSON + (i + 100));
+		}
+		assertEquals(second, transfer(second, second.size()));
+	}
+
+	/**
+	 * Sends <code>messages</code> over a new link and reads <code>count</code>
+	 * of them
+	 */
+	private List<String> transfer(List<String> messages, int count) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		mSender.setOutputStream(output);
+		for (String message : messages) {
+			mSender.sendMessage(message);
+		}
+		mReader.setInputStream(new ByteArrayInputStream(output.toByteArray()));
+		for (int i = 0; i < count; i++) {
+			assertTrue(mReader.read(mListener));
+		}
+		if (count == messages.size()) {
+			assertFalse(mReader.read(mListener));
+		}
+		return mReceived;
+	}
+}
@@ -0,0 +1,96 @@
+package com.keyboardr.glassremote.common.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class VarintTest {
+
+	private static final long[] VALUES = { 0, 1, 127, 128, 300, 16383, 16384,
+			Integer.MAX_VALUE, 0xFFFFFFFFL, 1L << 35, Long.MAX_VALUE };
+
+	@Test
+	public void roundTripsThroughStreams() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		for (long value : VALUES) {
+			Varint.write(value, output);
+		}
+		ByteArrayInputStream input = new ByteArrayInputStream(
+				output.toByteArray());
+		for (long value : VALUES) {
+			assertEquals(value, Varint.readLong(input));
+		}
+		assertEquals(-1, Varint.readLong(input));
+	}
+
+	@Test
+	public void roundTripsThroughArrays() throws IOException {
+		byte[] buffer = new byte[Varint.MAX_LONG_BYTES];
+		for (long value : VALUES) {
+			int end = Varint.write(value, buffer, 0);
+			assertEquals(Varint.sizeOf(value), end);
+			assertEquals(value, Varint.readLong(new ByteArrayInputStream(
+					buffer, 0, end)));
+		}
+	}
+
+	@Test
+	public void roundTripsThroughBuffers() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		int[] values = { 0, 1, 127, 128, 16384, Integer.MAX_VALUE };
+		for (int value : values) {
+			Varint.write(value, buffer);
+		}
+		buffer.flip();
+		for (int value : values) {
+			assertEquals(value, Varint.readInt(buffer));
+		}
+		assertEquals(-1, Varint.readInt(buffer));
+	}
+
+	@Test
+	public void leavesBufferUnchangedOnPartialValue() throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(Varint.MAX_INT_BYTES);
+		Varint.write(16384, buffer);
+		buffer.flip();
+		buffer.limit(buffer.limit() - 1);
+		assertEquals(-1, Varint.readInt(buffer));
+		assertEquals(0, buffer.position());
+	}
+
+	@Test
+	public void readsIntsAsUnsigned() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Varint.write(300, output);
+		Varint.write(0x80000000L, output);
+		ByteArrayInputStream input = new ByteArrayInputStream(
+				output.toByteArray());
+		assertEquals(300, Varint.readInt(input));
+		assertEquals(0x80000000, Varint.readInt(input));
+		assertEquals(-1, Varint.readInt(input));
+	}
+
+	@Test
+	public void rejectsIntsOverThirtyTwoBits() throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		Varint.write(1L << 32, output);
+		try {
+			Varint.readInt(new ByteArrayInputStream(output.toByteArray()));
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	@Test(expected = EOFException.class)
+	public void failsOnTruncatedValue() throws IOException {
+		Varint.readLong(new ByteArrayInputStream(new byte[] { (byte) 0x80 }));
+	}
+}
@@ -0,0 +1,124 @@
+package com.keyboardr.glassremote.common.receiver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.keyboardr.glassremote.common.sender.BinaryMessageSender;
+
+public class BinaryMessageReaderTest {
+
+	private final List<byte[]> mReceived = new ArrayList<byte[]>();
+
+	private final MessageReceiver.OnReceiveMessageListener<byte[]> mListener = new MessageReceiver.OnReceiveMessageListener<byte[]>() {
+
+		@Override
+		public void onReceiveMessage(byte[] message) {
+			mReceived.add(message);
+		}
+	};
+
+	@Test
+	public void roundTripsMessagesOfEverySize() {
+		Random random = new Random(1);
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int length : new int[] { 0, 1, 127, 128, 8 * 1024 - 1,
+				8 * 1024, 8 * 1024 + 1, 100 * 1024 }) {
+			byte[] message = new byte[length];
+			random.nextBytes(message);
+			messages.add(message);
+		}
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		BinaryMessageSender sender = new BinaryMessageSender();
+		sender.setOutputStream(output);
+		for (byte[] message : messages) {
+			sender.sendMessage(message);
+		}
+
+		BinaryMessageReader reader = new BinaryMessageReader();
+		reader.setInputStream(new ByteArrayInputStream(output.toByteArray()));
+		while (reader.read(mListener)) {
+		}
+		assertEquals(messages.size(), mReceived.size());
+		for (int i = 0; i < messages.size(); i++) {
+			assertArrayEquals(messages.get(i), mReceived.get(i));
+		}
+	}
+
+	@Test
+	public void sendsSlices() {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		BinaryMessageSender sender = new BinaryMessageSender();
+		sender.setOutputStream(output);
+		byte[] buffer = { 1, 2, 3, 4, 5 };
+		sender.sendMessage(buffer, 1, 3);
+
+		BinaryMessageReader reader = new BinaryMessageReader();
+		reader.setInputStream(new ByteArrayInputStream(output.toByteArray()));
+		assertTrue(reader.read(mListener));
+		assertArrayEquals(new byte[] { 2, 3, 4 }, mReceived.get(0));
+	}
+
+	@Test
+	public void stopsOnTruncatedMessage() {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		BinaryMessageSender sender = new BinaryMessageSender();
+		sender.setOutputStream(output);
+		sender.sendMessage(new byte[] { 1, 2 });
+		sender.sendMessage(new byte[100]);
+		byte[] bytes = output.toByteArray();
+
+		BinaryMessageReader reader = new BinaryMessageReader();
+		reader.setInputStream(new ByteArrayInputStream(Arrays.copyOf(bytes,
+				bytes.length - 1)));
+		assertTrue(reader.read(mListener));
+		assertFalse(reader.read(mListener));
+		assertEquals(1, mReceived.size());
+	}
+
+	@Test
+	public void rejectsOversizedMessage() {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		BinaryMessageSender sender = new BinaryMessageSender();
+		sender.setOutputStream(output);
+		sender.sendMessage(new byte[11]);
+
+		BinaryMessageReader reader = new BinaryMessageReader(10);
+		reader.setInputStream(new ByteArrayInputStream(output.toByteArray()));
+		assertFalse(reader.read(mListener));
+		assertTrue(mReceived.isEmpty());
+	}
+
+	@Test
+	public void discardsBufferedBytesOnReconnect() {
+		ByteArrayOutputStream first = new ByteArrayOutputStream();
+		BinaryMessageSender sender = new BinaryMessageSender();
+		sender.setOutputStream(first);
+		sender.sendMessage(new byte[] { 1 });
+		sender.sendMessage(new byte[] { 2 });
+		ByteArrayOutputStream second = new ByteArrayOutputStream();
+		sender.setOutputStream(second);
+		sender.sendMessage(new byte[] { 3 });
+
+		BinaryMessageReader reader = new BinaryMessageReader();
+		reader.setInputStream(new ByteArrayInputStream(first.toByteArray()));
+		assertTrue(reader.read(mListener));
+		// The first link drops with the second message still buffered
+		reader.setInputStream(new ByteArrayInputStream(second.toByteArray()));
+		assertTrue(reader.read(mListener));
+		assertFalse(reader.read(mListener));
+		assertEquals(2, mReceived.size());
+		assertArrayEquals(new byte[] { 1 }, mReceived.get(0));
+		assertArrayEquals(new byte[] { 3 }, mReceived.get(1));
+	}
+}
@@ -0,0 +1,174 @@
+package com.keyboardr.glassremote.common.reliable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.keyboardr.glassremote.common.MessageConnection;
+import com.keyboardr.glassremote.common.receiver.StringMessageReader;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.sender.StringMessageSender;
+import com.keyboardr.glassremote.common.transport.Connection;
+import com.keyboardr.glassremote.common.transport.ConnectionAcceptor;
+import com.keyboardr.glassremote.common.transport.PipedTransport;
+
+public class ReliableChannelTest {
+
+	private static final long TIMEOUT_SECONDS = 5;
+
+	/**
+	 * One end of the link: a channel and whichever connection it is currently
+	 * using
+	 */
+	private static class Side
+			implements
+			ReliableChannel.FrameSink<String>,
+			MessageConnection.Listener<ReliableFrame<String>, ReliableFrame<String>> {
+		final ReliableChannel<String, String> mChannel = new ReliableChannel<String, String>(
+				this);
+		final BlockingQueue<String> mDelivered = new LinkedBlockingQueue<String>();
+		volatile MessageConnection<ReliableFrame<String>, ReliableFrame<String>> mConnection;
+
+		void open(Connection connection) throws IOException {
+			MessageConnection<ReliableFrame<String>, ReliableFrame<String>> messageConnection = new MessageConnection<ReliableFrame<String>, ReliableFrame<String>>(
+					connection, new ReliableFrameSender<String>(
+							new StringMessageSender()),
+					new ReliableFrameReader<String>(new StringMessageReader()),
+					new MessageWriter.Config().setQueueCapacity(16), this);
+			mConnection = messageConnection;
+			messageConnection.start();
+			mChannel.onConnected();
+		}
+
+		void close() throws InterruptedException {
+			MessageConnection<ReliableFrame<String>, ReliableFrame<String>> connection = mConnection;
+			if (connection != null) {
+				connection.close();
+				connection.awaitStopped();
+			}
+		}
+
+		@Override
+		public SendFuture sendFrame(ReliableFrame<String> frame) {
+			MessageConnection<ReliableFrame<String>, ReliableFrame<String>> connection = mConnection;
+			if (connection == null || !connection.isOpen()) {
+				throw new IllegalStateException("Not connected");
+			}
+			return connection.sendMessage(frame);
+		}
+
+		@Override
+		public void onReceiveMessage(
+				MessageConnection<ReliableFrame<String>, ReliableFrame<String>> connection,
+				ReliableFrame<String> frame) {
+			mDelivered.addAll(mChannel.onReceiveFrame(frame));
+		}
+
+		@Override
+		public void onClosed(
+				MessageConnection<ReliableFrame<String>, ReliableFrame<String>> connection) {
+			mChannel.onDisconnected();
+		}
+	}
+
+	private final PipedTransport mTransport = new PipedTransport();
+	private ConnectionAcceptor mAcceptor;
+	private final Side mClient = new Side();
+	private final Side mServer = new Side();
+
+	@Before
+	public void setUp() throws IOException {
+		mAcceptor = mTransport.listen();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		disconnect();
+		mAcceptor.close();
+	}
+
+	private void connect() throws IOException {
+		Connection client = mTransport.connect();
+		mServer.open(mAcceptor.accept());
+		mClient.open(client);
+	}
+
+	private void disconnect() throws InterruptedException {
+		mClient.close();
+		mServer.close();
+	}
+
+	@Test
+	public void deliversInOrderBothWays() throws Exception {
+		connect();
+		List<SendFuture> sent = new ArrayList<SendFuture>();
+		for (int i = 0; i < 200; i++) {
+			sent.add(mClient.mChannel.send("up " + i));
+			sent.add(mServer.mChannel.send("down " + i));
+		}
+		assertReceived(mServer, "up ", 0, 200);
+		assertReceived(mClient, "down ", 0, 200);
+		for (SendFuture future : sent) {
+			future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		}
+		assertEquals(0, mClient.mChannel.getUnackedCount());
+		assertEquals(0, mServer.mChannel.getUnackedCount());
+	}
+
+	@Test
+	public void resendsUnacknowledgedMessagesAfterReconnect() throws Exception {
+		connect();
+		List<SendFuture> sent = new ArrayList<SendFuture>();
+		for (int i = 0; i < 100; i++) {
+			sent.add(mClient.mChannel.send("message " + i));
+		}
+		// Drop the link with messages still queued and in flight
+		disconnect();
+		for (int i = 100; i < 150; i++) {
+			sent.add(mClient.mChannel.send("message " + i));
+		}
+		connect();
+
+		assertReceived(mServer, "message ", 0, 150);
+		for (SendFuture future : sent) {
+			future.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		}
+		assertEquals(0, mClient.mChannel.getUnackedCount());
+	}
+
+	@Test
+	public void sendsWhileDisconnected() throws Exception {
+		SendFuture sent = mClient.mChannel.send("queued 0");
+		connect();
+		assertReceived(mServer, "queued ", 0, 1);
+		sent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	/**
+	 * Checks that <code>side</code> receives exactly <code>count</code>
+	 * messages, each <code>prefix</code> followed by the next number from
+	 * <code>first</code>
+	 */
+	private static void assertReceived(Side side, String prefix, int first,
+			int count) throws InterruptedException {
+		for (int i = 0; i < count; i++) {
+			assertEquals(prefix + (first + i),
+					side.mDelivered.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		}
+		// Duplicates would arrive with the acknowledgements
+		assertNull(side.mDelivered.poll(
+				ReliableChannel.DEFAULT_ACK_DELAY_MILLIS * 5,
+				TimeUnit.MILLISECONDS));
+	}
+}
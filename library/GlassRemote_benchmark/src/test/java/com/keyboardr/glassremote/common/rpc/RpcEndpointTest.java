@@ -0,0 +1,205 @@
+package com.keyboardr.glassremote.common.rpc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.keyboardr.glassremote.common.MessageConnection;
+import com.keyboardr.glassremote.common.receiver.StringMessageReader;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.sender.StringMessageSender;
+import com.keyboardr.glassremote.common.transport.Connection;
+import com.keyboardr.glassremote.common.transport.ConnectionAcceptor;
+import com.keyboardr.glassremote.common.transport.PipedTransport;
+
+public class RpcEndpointTest {
+
+	private static final long TIMEOUT_SECONDS = 5;
+
+	/**
+	 * One end of the link: an endpoint and whichever connection it is
+	 * currently using
+	 */
+	private static class Side implements RpcEndpoint.FrameSink<String>,
+			MessageConnection.Listener<RpcFrame<String>, RpcFrame<String>> {
+		final RpcEndpoint<String, String> mEndpoint = new RpcEndpoint<String, String>(
+				this);
+		final List<String> mMessages = new ArrayList<String>();
+		volatile MessageConnection<RpcFrame<String>, RpcFrame<String>> mConnection;
+
+		void open(Connection connection) throws IOException {
+			MessageConnection<RpcFrame<String>, RpcFrame<String>> messageConnection = new MessageConnection<RpcFrame<String>, RpcFrame<String>>(
+					connection, new RpcFrameSender<String>(
+							new StringMessageSender()),
+					new RpcFrameReader<String>(new StringMessageReader()),
+					new MessageWriter.Config()
+							.setBackpressurePolicy(MessageWriter.BackpressurePolicy.BLOCK),
+					this);
+			mConnection = messageConnection;
+			messageConnection.start();
+		}
+
+		@Override
+		public SendFuture sendFrame(RpcFrame<String> frame) {
+			MessageConnection<RpcFrame<String>, RpcFrame<String>> connection = mConnection;
+			if (connection == null || !connection.isOpen()) {
+				throw new IllegalStateException("Not connected");
+			}
+			return connection.sendMessage(frame);
+		}
+
+		@Override
+		public void onReceiveMessage(
+				MessageConnection<RpcFrame<String>, RpcFrame<String>> connection,
+				RpcFrame<String> frame) {
+			if (!mEndpoint.onReceiveFrame(frame)) {
+				synchronized (mMessages) {
+					mMessages.add(frame.getPayload());
+					mMessages.notifyAll();
+				}
+			}
+		}
+
+		@Override
+		public void onClosed(
+				MessageConnection<RpcFrame<String>, RpcFrame<String>> connection) {
+			mEndpoint.failAll(new IOException("Connection lost"));
+		}
+	}
+
+	private final PipedTransport mTransport = new PipedTransport();
+	private ConnectionAcceptor mAcceptor;
+	private final Side mClient = new Side();
+	private final Side mServer = new Side();
+
+	@Before
+	public void setUp() throws IOException {
+		mAcceptor = mTransport.listen();
+		mServer.mEndpoint
+				.setRequestHandler(new RpcEndpoint.RequestHandler<String, String>() {
+
+					@Override
+					public void onRequest(String request,
+							RpcEndpoint.Responder<String> responder) {
+						if (request.startsWith("fail")) {
+							responder.fail("bad request: " + request);
+						} else if (!request.startsWith("ignore")) {
+							responder.respond(request.toUpperCase());
+						}
+					}
+				});
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		disconnect();
+		mAcceptor.close();
+	}
+
+	private void connect() throws IOException {
+		mClient.open(mTransport.connect());
+		mServer.open(mAcceptor.accept());
+	}
+
+	private void disconnect() {
+		for (Side side : new Side[] { mClient, mServer }) {
+			MessageConnection<RpcFrame<String>, RpcFrame<String>> connection = side.mConnection;
+			if (connection != null) {
+				connection.close();
+				try {
+					connection.awaitStopped();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+
+	@Test
+	public void matchesResponsesToCalls() throws Exception {
+		connect();
+		List<RpcFuture<String>> calls = new ArrayList<RpcFuture<String>>();
+		for (int i = 0; i < 100; i++) {
+			calls.add(mClient.mEndpoint.call("call " + i));
+		}
+		for (int i = 0; i < calls.size(); i++) {
+			assertEquals("CALL " + i,
+					calls.get(i).get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+		}
+		assertEquals(0, mClient.mEndpoint.getPendingCount());
+	}
+
+	@Test
+	public void reportsRemoteErrors() throws Exception {
+		connect();
+		try {
+			mClient.mEndpoint.call("fail 1").get(TIMEOUT_SECONDS,
+					TimeUnit.SECONDS);
+			fail("Expected ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof RpcException);
+			assertEquals("bad request: fail 1", e.getCause().getMessage());
+		}
+	}
+
+	@Test
+	public void deliversOneWayMessages() throws Exception {
+		connect();
+		mClient.mEndpoint.send("one way").get(TIMEOUT_SECONDS,
+				TimeUnit.SECONDS);
+		synchronized (mServer.mMessages) {
+			long deadline = System.currentTimeMillis()
+					+ TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+			while (mServer.mMessages.isEmpty()
+					&& System.currentTimeMillis() < deadline) {
+				mServer.mMessages.wait(100);
+			}
+			assertFalse(mServer.mMessages.isEmpty());
+			assertEquals("one way", mServer.mMessages.get(0));
+		}
+	}
+
+	@Test
+	public void failsCallsWhenDisconnected() throws Exception {
+		RpcFuture<String> notConnected = mClient.mEndpoint.call("call");
+		try {
+			notConnected.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			fail("Expected ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+
+		connect();
+		RpcFuture<String> unanswered = mClient.mEndpoint.call("ignore");
+		disconnect();
+		try {
+			unanswered.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+			fail("Expected ExecutionException");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+		assertEquals(0, mClient.mEndpoint.getPendingCount());
+	}
+
+	@Test
+	public void callsSucceedAfterReconnect() throws Exception {
+		for (int link = 0; link < 3; link++) {
+			connect();
+			assertEquals("LINK " + link, mClient.mEndpoint.call("link " + link)
+					.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+			disconnect();
+		}
+	}
+}
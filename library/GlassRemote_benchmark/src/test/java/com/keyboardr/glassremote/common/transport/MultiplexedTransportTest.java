@@ -0,0 +1,140 @@
+package com.keyboardr.glassremote.common.transport;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultiplexedTransportTest {
+
+	private static final long TIMEOUT_SECONDS = 5;
+
+	private final ExecutorService mExecutor = Executors.newCachedThreadPool();
+	private MultiplexedTransport mClientMux;
+	private ConnectionAcceptor mHighAcceptor;
+	private ConnectionAcceptor mLowAcceptor;
+
+	@Before
+	public void setUp() throws IOException {
+		// Small chunks and windows, so a transfer spans many of both
+		MultiplexedTransport.Config config = new MultiplexedTransport.Config()
+				.setChunkSize(256).setWindowSize(4096)
+				.setSendBufferSize(1024);
+		PipedTransport piped = new PipedTransport();
+		MultiplexedTransport serverMux = new MultiplexedTransport(piped,
+				config);
+		mHighAcceptor = serverMux.getChannel(0,
+				MultiplexedTransport.PRIORITY_HIGH).listen();
+		mLowAcceptor = serverMux.getChannel(1,
+				MultiplexedTransport.PRIORITY_LOW).listen();
+		mClientMux = new MultiplexedTransport(piped, config);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		mHighAcceptor.close();
+		mLowAcceptor.close();
+		mExecutor.shutdownNow();
+	}
+
+	@Test
+	public void carriesChannelsIndependently() throws Exception {
+		exchange();
+	}
+
+	@Test
+	public void reconnectsAfterEveryChannelCloses() throws Exception {
+		for (int link = 0; link < 3; link++) {
+			exchange();
+		}
+	}
+
+	@Test
+	public void refusesChannelsNobodyListensOn() throws Exception {
+		Connection high = mClientMux.getChannel(0,
+				MultiplexedTransport.PRIORITY_HIGH).connect();
+		try {
+			mClientMux.getChannel(2, MultiplexedTransport.PRIORITY_NORMAL)
+					.connect();
+			fail("Expected IOException");
+		} catch (IOException e) {
+			// Expected
+		}
+		high.close();
+	}
+
+	/**
+	 * Opens both channels, sends a large transfer one way on the low priority
+	 * channel while exchanging small messages on the high priority one, then
+	 * closes both
+	 */
+	private void exchange() throws Exception {
+		final Connection clientHigh = mClientMux.getChannel(0,
+				MultiplexedTransport.PRIORITY_HIGH).connect();
+		final Connection clientLow = mClientMux.getChannel(1,
+				MultiplexedTransport.PRIORITY_LOW).connect();
+		Connection serverHigh = mHighAcceptor.accept();
+		final Connection serverLow = mLowAcceptor.accept();
+
+		final byte[] transfer = new byte[256 * 1024];
+		new Random(1).nextBytes(transfer);
+		Future<?> sent = mExecutor.submit(new Callable<Void>() {
+
+			@Override
+			public Void call() throws IOException {
+				OutputStream output = clientLow.getOutputStream();
+				output.write(transfer);
+				output.flush();
+				return null;
+			}
+		});
+		Future<byte[]> received = mExecutor
+				.submit(new Callable<byte[]>() {
+
+					@Override
+					public byte[] call() throws IOException {
+						byte[] bytes = new byte[transfer.length];
+						new DataInputStream(serverLow.getInputStream())
+								.readFully(bytes);
+						return bytes;
+					}
+				});
+
+		DataInputStream clientInput = new DataInputStream(
+				clientHigh.getInputStream());
+		DataInputStream serverInput = new DataInputStream(
+				serverHigh.getInputStream());
+		for (int i = 0; i < 100; i++) {
+			clientHigh.getOutputStream().write(i);
+			clientHigh.getOutputStream().flush();
+			assertEquals(i, serverInput.readUnsignedByte());
+			serverHigh.getOutputStream().write(i + 1);
+			serverHigh.getOutputStream().flush();
+			assertEquals(i + 1, clientInput.readUnsignedByte());
+		}
+
+		sent.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		assertArrayEquals(transfer,
+				received.get(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+		clientHigh.close();
+		clientLow.close();
+		assertEquals(-1, serverInput.read());
+		assertEquals(-1, serverLow.getInputStream().read());
+		serverHigh.close();
+		serverLow.close();
+	}
+}
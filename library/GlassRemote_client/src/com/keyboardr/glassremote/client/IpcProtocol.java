@@ -0,0 +1,109 @@
+package com.keyboardr.glassremote.client;
+
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+
+/**
+ * Constants shared by {@link RemoteMessengerService} and
+ * {@link RemoteMessengerProxy} for talking across processes over a
+ * <code>Messenger</code>. Messages are encoded with the same
+ * <code>MessageSender</code> and <code>MessageReceiver</code> as on the
+ * Bluetooth link, several to one <code>Message</code>.
+ * 
+ * @author Joshua Brown
+ */
+final class IpcProtocol {
+
+	/**
+	 * Client to service: registers <code>replyTo</code> as a client
+	 */
+	static final int MSG_REGISTER = 1;
+
+	/**
+	 * Client to service: closes the client
+	 */
+	static final int MSG_UNREGISTER = 2;
+
+	/**
+	 * Client to service: the client wants the link open
+	 */
+	static final int MSG_CONNECT = 3;
+
+	/**
+	 * Client to service: the client no longer wants the link open
+	 */
+	static final int MSG_DISCONNECT = 4;
+
+	/**
+	 * Client to service: messages to send, with the batch id in
+	 * <code>arg1</code>
+	 */
+	static final int MSG_SEND = 5;
+
+	/**
+	 * Service to client: the link is open
+	 */
+	static final int MSG_CONNECTED = 10;
+
+	/**
+	 * Service to client: the link could not be opened
+	 */
+	static final int MSG_CONNECTION_FAILED = 11;
+
+	/**
+	 * Service to client: the link has closed
+	 */
+	static final int MSG_DISCONNECTED = 12;
+
+	/**
+	 * Service to client: received messages
+	 */
+	static final int MSG_RECEIVE = 13;
+
+	/**
+	 * Service to client: a batch from {@link #MSG_SEND} has been written, or
+	 * has failed if <code>arg2</code> is <code>0</code>
+	 */
+	static final int MSG_SEND_RESULT = 14;
+
+	/**
+	 * <code>Bundle</code> key of encoded messages
+	 */
+	static final String KEY_DATA = "data";
+
+	/**
+	 * <code>Bundle</code> key of the remote <code>BluetoothDevice</code>
+	 */
+	static final String KEY_DEVICE = "device";
+
+	private IpcProtocol() {
+	}
+
+	/**
+	 * Decodes the messages of a {@link #MSG_SEND} or {@link #MSG_RECEIVE}
+	 * 
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> to decode with. It is left
+	 *            reading from <code>data</code>.
+	 * @param data
+	 *            the encoded messages
+	 * @return the messages, oldest first
+	 */
+	static <M> List<M> decode(MessageReceiver<M> receiver, byte[] data) {
+		final List<M> messages = new ArrayList<M>();
+		receiver.setInputStream(new ByteArrayInputStream(data));
+		MessageReceiver.OnReceiveMessageListener<M> listener = new MessageReceiver.OnReceiveMessageListener<M>() {
+
+			@Override
+			public void onReceiveMessage(M message) {
+				messages.add(message);
+			}
+		};
+		while (receiver.read(listener)) {
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,169 @@
+package com.keyboardr.glassremote.client;
+
+import java.util.Random;
+
+/**
+ * Tuning parameters for a {@link RemoteMessenger} that reconnects on its own
+ * when the link drops. While disconnected, messages passed to
+ * {@link RemoteMessenger#sendMessage(Object)} are held in a bounded queue and
+ * sent in order once the connection is back. Delays between attempts grow
+ * exponentially, with random jitter so several clients do not retry in
+ * lockstep.<br/>
+ * <br/>
+ * Delivery is at least once: a message whose write was interrupted by the
+ * drop may have reached the remote server and is sent again.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class ReconnectPolicy {
+	private long mInitialDelayMillis = 250;
+	private long mMaxDelayMillis = 30000;
+	private double mMultiplier = 2;
+	private double mJitter = 0.2;
+	private int mMaxAttempts = 0;
+	private int mPendingCapacity = 256;
+
+	private final Random mRandom = new Random();
+
+	/**
+	 * Class constructor. Creates a policy with the default values.
+	 */
+	public ReconnectPolicy() {
+	}
+
+	/**
+	 * Sets the delay after the first failed reconnect attempt. The first
+	 * attempt after the link drops is made at once. Defaults to 250ms.
+	 * 
+	 * @param initialDelayMillis
+	 *            the first delay in milliseconds
+	 * @return this <code>ReconnectPolicy</code>
+	 */
+	public ReconnectPolicy setInitialDelayMillis(long initialDelayMillis) {
+		if (initialDelayMillis < 0) {
+			throw new IllegalArgumentException("initialDelayMillis < 0");
+		}
+		mInitialDelayMillis = initialDelayMillis;
+		return this;
+	}
+
+	/**
+	 * Sets the longest delay between attempts. Defaults to 30 seconds.
+	 * 
+	 * @param maxDelayMillis
+	 *            the delay cap in milliseconds
+	 * @return this <code>ReconnectPolicy</code>
+	 */
+	public ReconnectPolicy setMaxDelayMillis(long maxDelayMillis) {
+		mMaxDelayMillis = maxDelayMillis;
+		return this;
+	}
+
+	/**
+	 * Sets the factor the delay grows by after each failed attempt. Defaults
+	 * to 2.
+	 * 
+	 * @param multiplier
+	 *            the backoff multiplier, at least 1
+	 * @return this <code>ReconnectPolicy</code>
+	 */
+	public ReconnectPolicy setMultiplier(double multiplier) {
+		if (multiplier < 1) {
+			throw new IllegalArgumentException("multiplier < 1");
+		}
+		mMultiplier = multiplier;
+		return this;
+	}
+
+	/**
+	 * Sets how far each delay may randomly deviate from the nominal value, as
+	 * a fraction of it. Defaults to 0.2, meaning &plusmn;20%.
+	 * 
+	 * @param jitter
+	 *            the jitter fraction between 0 and 1
+	 * @return this <code>ReconnectPolicy</code>
+	 */
+	public ReconnectPolicy setJitter(double jitter) {
+		if (jitter < 0 || jitter > 1) {
+			throw new IllegalArgumentException("jitter out of range");
+		}
+		mJitter = jitter;
+		return this;
+	}
+
+	/**
+	 * Sets the number of consecutive failed attempts after which the
+	 * <code>RemoteMessenger</code> gives up and calls
+	 * {@link RemoteMessenger.Callback#onConnectionFailed()}. Defaults to 0,
+	 * meaning it never gives up until {@link RemoteMessenger#disconnect()} is
+	 * called.
+	 * 
+	 * @param maxAttempts
+	 *            the attempt limit, or 0 for no limit
+	 * @return this <code>ReconnectPolicy</code>
+	 */
+	public ReconnectPolicy setMaxAttempts(int maxAttempts) {
+		mMaxAttempts = maxAttempts;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of messages held while disconnected. Messages
+	 * sent while the queue is full fail with a
+	 * {@link com.keyboardr.glassremote.common.sender.MessageWriter.SendQueueFullException
+	 * SendQueueFullException}. Defaults to 256.
+	 * 
+	 * @param pendingCapacity
+	 *            the capacity of the pending queue, or 0 to fail sends while
+	 *            disconnected
+	 * @return this <code>ReconnectPolicy</code>
+	 */
+	public ReconnectPolicy setPendingCapacity(int pendingCapacity) {
+		mPendingCapacity = pendingCapacity;
+		return this;
+	}
+
+	public long getInitialDelayMillis() {
+		return mInitialDelayMillis;
+	}
+
+	public long getMaxDelayMillis() {
+		return mMaxDelayMillis;
+	}
+
+	public double getMultiplier() {
+		return mMultiplier;
+	}
+
+	public double getJitter() {
+		return mJitter;
+	}
+
+	public int getMaxAttempts() {
+		return mMaxAttempts;
+	}
+
+	public int getPendingCapacity() {
+		return mPendingCapacity;
+	}
+
+	/**
+	 * Gets the delay before the next reconnect attempt
+	 * 
+	 * @param attempt
+	 *            the number of attempts that have already failed since the
+	 *            link was last up
+	 * @return the delay in milliseconds, including jitter
+	 */
+	public long getDelayMillis(int attempt) {
+		double delay = mInitialDelayMillis
+				* Math.pow(mMultiplier, Math.min(attempt, 62));
+		delay = Math.min(delay, mMaxDelayMillis);
+		double jitter;
+		synchronized (mRandom) {
+			jitter = (mRandom.nextDouble() * 2 - 1) * mJitter;
+		}
+		return Math.max(0, (long) (delay * (1 + jitter)));
+	}
+}
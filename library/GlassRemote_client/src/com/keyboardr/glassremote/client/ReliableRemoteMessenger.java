@@ -0,0 +1,66 @@
+package com.keyboardr.glassremote.client;
+
+import com.keyboardr.glassremote.common.reliable.ReliableChannel;
+
+/**
+ * A {@link RemoteMessenger} that delivers every message once and in order
+ * even when the link drops. Messages are numbered and kept until the remote
+ * server acknowledges them; those still unacknowledged when the link drops
+ * are sent again after reconnecting, and duplicates are discarded on receipt.
+ * There should be a <code>ReliableMessageService&lt;R, S></code> running on
+ * the remote server.<br/>
+ * <br/>
+ * {@link #sendMessage(Object)} may be called while disconnected. Its
+ * <code>SendFuture</code> succeeds once the remote server has acknowledged the
+ * message rather than when it is written. Messages that are never
+ * acknowledged, because {@link #disconnect()} was called first, fail. If
+ * either side restarts, messages it had received but not yet acknowledged
+ * may be delivered again, so delivery across restarts is at least once; see
+ * {@link ReliableChannel}.<br/>
+ * <br/>
+ * Received messages are always delivered one at a time and in order, so a
+ * key selector passed to
+ * {@link #setCallbackExecutor(java.util.concurrent.Executor, com.keyboardr.glassremote.common.KeyedExecutor.KeySelector)
+ * setCallbackExecutor()} is ignored.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            the type of messages this <code>ReliableRemoteMessenger</code>
+ *            will send to the remote server
+ * @param <R>
+ *            the type of messages this <code>ReliableRemoteMessenger</code>
+ *            will receive from the remote server
+ */
+public interface ReliableRemoteMessenger<S, R> extends RemoteMessenger<S, R> {
+
+	/**
+	 * Gets the number of messages sent but not yet acknowledged by the remote
+	 * server, including those waiting for the link to come back
+	 * 
+	 * @return the number of unacknowledged messages
+	 */
+	public int getUnackedCount();
+
+	/**
+	 * Sets how many messages may be in flight without being acknowledged. The
+	 * remote server should use the same window. Defaults to
+	 * {@link ReliableChannel#DEFAULT_WINDOW_SIZE}.
+	 * 
+	 * @param windowSize
+	 *            the window size in messages
+	 */
+	public void setWindowSize(int windowSize);
+
+	/**
+	 * Sets how many unacknowledged messages are held before
+	 * {@link #sendMessage(Object)} fails with a
+	 * {@link com.keyboardr.glassremote.common.sender.MessageWriter.SendQueueFullException
+	 * SendQueueFullException}. Defaults to
+	 * {@link ReliableChannel#DEFAULT_MAX_PENDING}.
+	 * 
+	 * @param maxPending
+	 *            the maximum number of unacknowledged messages
+	 */
+	public void setMaxPending(int maxPending);
+}
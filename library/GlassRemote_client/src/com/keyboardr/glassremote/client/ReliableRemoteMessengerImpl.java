@@ -0,0 +1,225 @@
+package com.keyboardr.glassremote.client;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.metrics.MetricsReporter;
+import com.keyboardr.glassremote.common.metrics.MetricsSnapshot;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.reliable.ReliableChannel;
+import com.keyboardr.glassremote.common.reliable.ReliableFrame;
+import com.keyboardr.glassremote.common.reliable.ReliableFrameReader;
+import com.keyboardr.glassremote.common.reliable.ReliableFrameSender;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.transport.Transport;
+
+/**
+ * Concrete implementation of {@link ReliableRemoteMessenger}. Wraps a
+ * {@link RemoteMessengerImpl} that exchanges {@link ReliableFrame
+ * ReliableFrames}. Acknowledgements are handled on the reader thread; hellos
+ * and data frames are handled on the callback thread so they stay in order.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            the type of messages sent to the remote server
+ * @param <R>
+ *            the type of messages received from the remote server
+ */
+class ReliableRemoteMessengerImpl<S, R> implements
+		ReliableRemoteMessenger<S, R>,
+		RemoteMessengerImpl.Interceptor<ReliableFrame<R>>,
+		ReliableChannel.FrameSink<S> {
+
+	private final RemoteMessengerImpl<ReliableFrame<S>, ReliableFrame<R>> mMessenger;
+	private final ReliableChannel<S, R> mChannel;
+
+	private WeakReference<Callback<? super R>> mCallback = new WeakReference<Callback<? super R>>(
+			null);
+
+	private final BatchCallback<ReliableFrame<R>> mFrameCallback = new BatchCallback<ReliableFrame<R>>() {
+
+		@Override
+		public void onConnected(BluetoothDevice remoteDevice) {
+			mChannel.onConnected();
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				callback.onConnected(remoteDevice);
+			}
+		}
+
+		@Override
+		public void onConnectionFailed() {
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				callback.onConnectionFailed();
+			}
+		}
+
+		@Override
+		public void onDisconnected(BluetoothDevice remoteDevice) {
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				callback.onDisconnected(remoteDevice);
+			}
+		}
+
+		@Override
+		public void onReceiveMessage(ReliableFrame<R> frame) {
+			deliver(mChannel.onReceiveFrame(frame));
+		}
+
+		@Override
+		public void onReceiveMessages(List<? extends ReliableFrame<R>> frames) {
+			List<R> messages = new ArrayList<R>(frames.size());
+			for (ReliableFrame<R> frame : frames) {
+				messages.addAll(mChannel.onReceiveFrame(frame));
+			}
+			deliver(messages);
+		}
+
+		private void deliver(List<R> messages) {
+			Callback<? super R> callback = mCallback.get();
+			if (callback == null || messages.isEmpty()) {
+				return;
+			}
+			if (messages.size() == 1) {
+				callback.onReceiveMessage(messages.get(0));
+			} else {
+				RemoteMessengerImpl.deliverBatch(callback, messages);
+			}
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> used to reach the remote server
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> payloads
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> payloads
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing frames, or
+	 *            <code>null</code> for the defaults
+	 * @param reconnectPolicy
+	 *            how to reconnect when the link drops, or <code>null</code> to
+	 *            stay disconnected until {@link #requestConnect()} is called
+	 */
+	public ReliableRemoteMessengerImpl(Transport transport,
+			MessageSender<S> sender, MessageReceiver<R> receiver,
+			MessageWriter.Config writerConfig, ReconnectPolicy reconnectPolicy) {
+		mMessenger = new RemoteMessengerImpl<ReliableFrame<S>, ReliableFrame<R>>(
+				transport, new ReliableFrameSender<S>(sender),
+				new ReliableFrameReader<R>(receiver), writerConfig,
+				reconnectPolicy);
+		mChannel = new ReliableChannel<S, R>(this);
+		mMessenger.setInterceptor(this);
+		mMessenger.setCallback(mFrameCallback);
+	}
+
+	@Override
+	public void setCallback(Callback<? super R> callback) {
+		mCallback = new WeakReference<Callback<? super R>>(callback);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return mMessenger.isConnected();
+	}
+
+	@Override
+	public void requestConnect() {
+		mMessenger.requestConnect();
+	}
+
+	@Override
+	public void disconnect() {
+		mMessenger.disconnect();
+		mChannel.failAll(new IOException("Disconnected"));
+	}
+
+	@Override
+	public SendFuture sendMessage(S message) {
+		return mChannel.send(message);
+	}
+
+	@Override
+	public int getUnackedCount() {
+		return mChannel.getUnackedCount();
+	}
+
+	@Override
+	public void setWindowSize(int windowSize) {
+		mChannel.setWindowSize(windowSize);
+	}
+
+	@Override
+	public void setMaxPending(int maxPending) {
+		mChannel.setMaxPending(maxPending);
+	}
+
+	@Override
+	public void setDeliveryWindow(long windowMillis) {
+		mMessenger.setDeliveryWindow(windowMillis);
+	}
+
+	@Override
+	public MetricsSnapshot getMetrics() {
+		return mMessenger.getMetrics();
+	}
+
+	@Override
+	public void setMetricsListener(MetricsReporter.Listener listener,
+			long intervalMillis) {
+		mMessenger.setMetricsListener(listener, intervalMillis);
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor executor) {
+		mMessenger.setCallbackExecutor(executor);
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor executor,
+			KeyedExecutor.KeySelector<? super R> keySelector) {
+		// Frames must reach the channel in order, so they are never keyed
+		mMessenger.setCallbackExecutor(executor);
+	}
+
+	@Override
+	public SendFuture sendFrame(ReliableFrame<S> frame) {
+		// Frames are not queued while disconnected; the channel sends them
+		// again once it reconnects
+		if (!mMessenger.isConnected()) {
+			throw new IllegalStateException("Not connected");
+		}
+		return mMessenger.sendMessage(frame);
+	}
+
+	@Override
+	public boolean onInterceptMessage(ReliableFrame<R> frame) {
+		if (!frame.isControl()) {
+			return false;
+		}
+		mChannel.onReceiveFrame(frame);
+		return true;
+	}
+
+	@Override
+	public void onClosed() {
+		mChannel.onDisconnected();
+	}
+
+}
@@ -1,14 +1,28 @@
 package com.keyboardr.glassremote.client;
 
 import java.lang.ref.WeakReference;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 
+import com.keyboardr.glassremote.common.HandlerExecutor;
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.metrics.MetricsReporter;
+import com.keyboardr.glassremote.common.metrics.MetricsSnapshot;
 import com.keyboardr.glassremote.common.receiver.MessageReceiver;
 import com.keyboardr.glassremote.common.receiver.StringMessageReader;
+import com.keyboardr.glassremote.common.receiver.Utf8LineReader;
+import com.keyboardr.glassremote.common.sender.CoalescingSender;
 import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
 import com.keyboardr.glassremote.common.sender.StringMessageSender;
+import com.keyboardr.glassremote.common.topic.TextSubscriptions;
+import com.keyboardr.glassremote.common.transport.RfcommTransport;
+import com.keyboardr.glassremote.common.transport.Transport;
 
 /**
  * Interface for communicating with the remote server. There should be a
@@ -31,7 +45,8 @@ public interface RemoteMessenger<S, R> {
 
 	/**
 	 * Callback interface for <code>RemoteMessenger</code>. All callbacks will
-	 * be called on the main thread.
+	 * be called on the main thread unless another thread is chosen with
+	 * {@link RemoteMessenger#setCallbackExecutor(Executor)}.
 	 * 
 	 * @param <M>
 	 *            message type to receive
@@ -73,6 +88,28 @@ public interface RemoteMessenger<S, R> {
 		public void onReceiveMessage(M message);
 	}
 
+	/**
+	 * A {@link Callback} that can take received messages in batches. When
+	 * {@link RemoteMessenger#setDeliveryWindow(long) batched delivery} is on,
+	 * {@link #onReceiveMessages(List)} is called in place of
+	 * {@link #onReceiveMessage(Object)}. Otherwise messages still arrive one
+	 * at a time.
+	 * 
+	 * @param <M>
+	 *            message type to receive
+	 */
+	public static interface BatchCallback<M> extends Callback<M> {
+		/**
+		 * The <code>RemoteMessenger</code> has received one or more messages
+		 * from the remote server
+		 * 
+		 * @param messages
+		 *            the <code>M</code> messages received from the remote
+		 *            server, oldest first
+		 */
+		public void onReceiveMessages(List<? extends M> messages);
+	}
+
 	/**
 	 * Sets callback destination. Implementations should use
 	 * {@link WeakReference WeakReferences} to ensure the
@@ -103,20 +140,98 @@ public interface RemoteMessenger<S, R> {
 	/**
 	 * Disconnects from the remote server. Calls
 	 * {@link Callback#onDisconnected(BluetoothDevice) onDisconnected()} when
-	 * finished
+	 * finished. Over Bluetooth this also stops
+	 * {@link RfcommTransport#prewarm() prewarming} and closes the sockets it
+	 * prepared.
 	 */
 	public void disconnect();
 
 	/**
 	 * Sends a <code>S</code> message to the remote server. May be called from
-	 * the main thread
+	 * the main thread. The message is queued and written on a background
+	 * thread, so this method returns without waiting for the write.
 	 * 
 	 * @param message
 	 *            the <code>S</code> message to send
+	 * @return a <code>SendFuture</code> that completes once the message has
+	 *         been written to the remote server
 	 * @throws IllegalStateException
 	 *             If the <code>RemoteMessenger</code> is not connected
 	 */
-	public void sendMessage(S message) throws IllegalStateException;
+	public SendFuture sendMessage(S message) throws IllegalStateException;
+
+	/**
+	 * Sets how received messages are delivered to the callback thread. By
+	 * default each message is posted on its own. With batched delivery,
+	 * messages are queued on the reader thread and delivered together in one
+	 * dispatch, to a {@link BatchCallback} as a list or to any other
+	 * {@link Callback} one by one. Messages queued before a disconnect are
+	 * delivered before {@link Callback#onDisconnected(BluetoothDevice)
+	 * onDisconnected()}.
+	 * 
+	 * @param windowMillis
+	 *            how long to collect messages after the first of a batch
+	 *            arrives; <code>0</code> to deliver them on the next turn of
+	 *            the looper, or a negative value to deliver each message
+	 *            on its own
+	 */
+	public void setDeliveryWindow(long windowMillis);
+
+	/**
+	 * Sets where callbacks run. By default they run on the main thread.
+	 * Callbacks still run one at a time and in order, so a thread pool moves
+	 * message handling off the main thread without making the
+	 * <code>Callback</code> concurrent. Pass
+	 * {@link KeyedExecutor#DIRECT} to run callbacks on the connection's reader
+	 * thread, or a {@link HandlerExecutor} to run them on another
+	 * <code>Looper</code>. Batched delivery only applies when callbacks run on
+	 * a <code>Looper</code>.
+	 * 
+	 * @param executor
+	 *            the <code>Executor</code> to run callbacks on, or
+	 *            <code>null</code> for the main thread
+	 */
+	public void setCallbackExecutor(Executor executor);
+
+	/**
+	 * Sets where callbacks run, processing received messages in parallel.
+	 * Messages whose keys are equal are delivered one at a time in the order
+	 * they arrived; messages with different keys may be delivered
+	 * concurrently, so the <code>Callback</code> must be thread-safe.
+	 * Connection events use the default key and are therefore ordered only
+	 * against messages keyed <code>null</code>.
+	 * 
+	 * @param executor
+	 *            the <code>Executor</code> to run callbacks on, or
+	 *            <code>null</code> for the main thread
+	 * @param keySelector
+	 *            chooses the ordering key of each received message, or
+	 *            <code>null</code> to deliver every callback in order
+	 */
+	public void setCallbackExecutor(Executor executor,
+			KeyedExecutor.KeySelector<? super R> keySelector);
+
+	/**
+	 * Gets the traffic, latency and connection counters of this
+	 * <code>RemoteMessenger</code> since it was created
+	 * 
+	 * @return a <code>MetricsSnapshot</code>
+	 */
+	public MetricsSnapshot getMetrics();
+
+	/**
+	 * Starts or stops passing a {@link #getMetrics() snapshot} to
+	 * <code>listener</code> at a fixed interval, on a background thread. Use
+	 * {@link MetricsReporter#LOG} to write them to the log.
+	 * 
+	 * @param listener
+	 *            the <code>Listener</code> to report to, or <code>null</code>
+	 *            to stop reporting
+	 * @param intervalMillis
+	 *            the time between reports in milliseconds
+	 */
+	public void setMetricsListener(MetricsReporter.Listener listener,
+			long intervalMillis);
 
 	public static class Factory {
 
@@ -140,8 +255,35 @@ public interface RemoteMessenger<S, R> {
 		 */
 		public static RemoteMessenger<String, String> getStringRemoteMessenger(
 				UUID uuid) {
-			return new RemoteMessengerImpl<String, String>(uuid,
-					new StringMessageSender(), new StringMessageReader());
+			return getRemoteMessenger(uuid, new StringMessageSender(),
+					new StringMessageReader());
+		}
+
+		/**
+		 * Gets an instance of <code>RemoteMessenger</code> that sends and
+		 * receives <code>String</code> messages, and only delivers received
+		 * messages that <code>subscriptions</code> matches. Matching happens
+		 * on the reader thread, and most unwanted messages are dropped
+		 * before they are decoded.
+		 * 
+		 * @param uuid
+		 *            a <code>UUID</code> shared between the remote server and
+		 *            this client. UUIDs can be obtained at <a
+		 *            href="http://www.uuidgenerator.net/">http
+		 *            ://www.uuidgenerator.net/</a> and instantiated using
+		 *            {@link UUID#fromString(String)}.
+		 * @param subscriptions
+		 *            the topics to receive. May be changed at any time.
+		 * @return a <code>RemoteMessenger</code> that sends and receives
+		 *         <code>String</code> messages
+		 */
+		public static RemoteMessenger<String, String> getStringRemoteMessenger(
+				UUID uuid, TextSubscriptions subscriptions) {
+			return getRemoteMessenger(uuid, new StringMessageSender(),
+					new StringMessageReader(
+							StringMessageReader.DEFAULT_INTERN_CACHE_SIZE,
+							Utf8LineReader.DEFAULT_MAX_LINE_LENGTH,
+							subscriptions));
 		}
 
 		/**
@@ -163,7 +305,376 @@ public interface RemoteMessenger<S, R> {
 		 */
 		public static <S, R> RemoteMessenger<S, R> getRemoteMessenger(
 				UUID uuid, MessageSender<S> sender, MessageReceiver<R> receiver) {
-			return new RemoteMessengerImpl<S, R>(uuid, sender, receiver);
+			return getRemoteMessenger(uuid, sender, receiver, null);
+		}
+
+		/**
+		 * Get an instance of <code>RemoteMessenger</code> that sends
+		 * <code>S</code> and receives <code>R</code> messages
+		 * 
+		 * @param uuid
+		 *            a <code>UUID</code> shared between the remote server and
+		 *            this client. UUIDs can be obtained at <a
+		 *            href="http://www.uuidgenerator.net/">http
+		 *            ://www.uuidgenerator.net/</a> and instantiated using
+		 *            {@link UUID#fromString(String)}.
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>S</code> messages
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>R</code> messages
+		 * @param writerConfig
+		 *            queueing and batching parameters for outgoing messages,
+		 *            or <code>null</code> for the defaults
+		 */
+		public static <S, R> RemoteMessenger<S, R> getRemoteMessenger(
+				UUID uuid, MessageSender<S> sender,
+				MessageReceiver<R> receiver, MessageWriter.Config writerConfig) {
+			return getRemoteMessenger(
+					new RfcommTransport(BluetoothAdapter.getDefaultAdapter(),
+							null, uuid), sender, receiver, writerConfig);
+		}
+
+		/**
+		 * Get an instance of <code>RemoteMessenger</code> that sends
+		 * <code>S</code> and receives <code>R</code> messages over an
+		 * arbitrary {@link Transport}. The {@link BluetoothDevice} passed to
+		 * callbacks is <code>null</code> unless the <code>Transport</code> is
+		 * an {@link RfcommTransport}.
+		 * 
+		 * @param transport
+		 *            the <code>Transport</code> used to reach the remote
+		 *            server
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>S</code> messages
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>R</code> messages
+		 * @param writerConfig
+		 *            queueing and batching parameters for outgoing messages,
+		 *            or <code>null</code> for the defaults
+		 */
+		public static <S, R> RemoteMessenger<S, R> getRemoteMessenger(
+				Transport transport, MessageSender<S> sender,
+				MessageReceiver<R> receiver, MessageWriter.Config writerConfig) {
+			return getRemoteMessenger(transport, sender, receiver,
+					writerConfig, null);
+		}
+
+		/**
+		 * Get an instance of <code>RemoteMessenger</code> that sends
+		 * <code>S</code> and receives <code>R</code> messages and, if
+		 * <code>reconnectPolicy</code> is given, reconnects by itself when the
+		 * link drops. In that mode messages sent while the link is down are
+		 * queued rather than rejected, and
+		 * {@link Callback#onConnectionFailed() onConnectionFailed()} is only
+		 * called once the policy gives up.
+		 * 
+		 * @param transport
+		 *            the <code>Transport</code> used to reach the remote
+		 *            server
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>S</code> messages
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>R</code> messages
+		 * @param writerConfig
+		 *            queueing and batching parameters for outgoing messages,
+		 *            or <code>null</code> for the defaults
+		 * @param reconnectPolicy
+		 *            how to reconnect when the link drops, or
+		 *            <code>null</code> to stay disconnected until
+		 *            {@link RemoteMessenger#requestConnect()} is called
+		 */
+		public static <S, R> RemoteMessenger<S, R> getRemoteMessenger(
+				Transport transport, MessageSender<S> sender,
+				MessageReceiver<R> receiver, MessageWriter.Config writerConfig,
+				ReconnectPolicy reconnectPolicy) {
+			return new RemoteMessengerImpl<S, R>(transport, sender, receiver,
+					writerConfig, reconnectPolicy);
+		}
+
+		/**
+		 * Get an instance of <code>RpcRemoteMessenger</code> that sends
+		 * <code>S</code> requests and receives <code>R</code> responses. The
+		 * remote server should be an <code>RpcMessageService</code>.
+		 * 
+		 * @param uuid
+		 *            a <code>UUID</code> shared between the remote server and
+		 *            this client. UUIDs can be obtained at <a
+		 *            href="http://www.uuidgenerator.net/">http
+		 *            ://www.uuidgenerator.net/</a> and instantiated using
+		 *            {@link UUID#fromString(String)}.
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>S</code> payloads
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>R</code> payloads
+		 */
+		public static <S, R> RpcRemoteMessenger<S, R> getRpcRemoteMessenger(
+				UUID uuid, MessageSender<S> sender, MessageReceiver<R> receiver) {
+			return getRpcRemoteMessenger(
+					new RfcommTransport(BluetoothAdapter.getDefaultAdapter(),
+							null, uuid), sender, receiver, null);
+		}
+
+		/**
+		 * Get an instance of <code>RpcRemoteMessenger</code> that sends
+		 * <code>S</code> requests and receives <code>R</code> responses over
+		 * an arbitrary {@link Transport}
+		 * 
+		 * @param transport
+		 *            the <code>Transport</code> used to reach the remote
+		 *            server
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>S</code> payloads
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>R</code> payloads
+		 * @param writerConfig
+		 *            queueing and batching parameters for outgoing messages,
+		 *            or <code>null</code> for the defaults
+		 */
+		public static <S, R> RpcRemoteMessenger<S, R> getRpcRemoteMessenger(
+				Transport transport, MessageSender<S> sender,
+				MessageReceiver<R> receiver, MessageWriter.Config writerConfig) {
+			return getRpcRemoteMessenger(transport, sender, receiver,
+					writerConfig, null);
+		}
+
+		/**
+		 * Get an instance of <code>RpcRemoteMessenger</code> that sends
+		 * <code>S</code> requests and receives <code>R</code> responses over
+		 * an arbitrary {@link Transport}, reconnecting by itself when the link
+		 * drops. Calls in flight when the link drops fail; one-way messages
+		 * are queued and sent after reconnecting.
+		 * 
+		 * @param transport
+		 *            the <code>Transport</code> used to reach the remote
+		 *            server
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>S</code> payloads
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>R</code> payloads
+		 * @param writerConfig
+		 *            queueing and batching parameters for outgoing messages,
+		 *            or <code>null</code> for the defaults
+		 * @param reconnectPolicy
+		 *            how to reconnect when the link drops, or
+		 *            <code>null</code> to stay disconnected until
+		 *            {@link RemoteMessenger#requestConnect()} is called
+		 */
+		public static <S, R> RpcRemoteMessenger<S, R> getRpcRemoteMessenger(
+				Transport transport, MessageSender<S> sender,
+				MessageReceiver<R> receiver, MessageWriter.Config writerConfig,
+				ReconnectPolicy reconnectPolicy) {
+			return new RpcRemoteMessengerImpl<S, R>(transport, sender,
+					receiver, writerConfig, reconnectPolicy);
+		}
+
+		/**
+		 * Get an instance of <code>StateRemoteMessenger</code> that keeps a
+		 * map of <code>V</code> values in sync with the remote server. The
+		 * remote server should be a <code>StateMessageService</code>.
+		 * 
+		 * @param uuid
+		 *            a <code>UUID</code> shared between the remote server and
+		 *            this client. UUIDs can be obtained at <a
+		 *            href="http://www.uuidgenerator.net/">http
+		 *            ://www.uuidgenerator.net/</a> and instantiated using
+		 *            {@link UUID#fromString(String)}.
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>V</code> values
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>V</code> values
+		 */
+		public static <V> StateRemoteMessenger<V> getStateRemoteMessenger(
+				UUID uuid, MessageSender<V> sender, MessageReceiver<V> receiver) {
+			return getStateRemoteMessenger(
+					new RfcommTransport(BluetoothAdapter.getDefaultAdapter(),
+							null, uuid), sender, receiver, null, null);
+		}
+
+		/**
+		 * Get an instance of <code>StateRemoteMessenger</code> that keeps a
+		 * map of <code>V</code> values in sync with the remote server over an
+		 * arbitrary {@link Transport}. With a <code>reconnectPolicy</code>
+		 * both sides catch up with a snapshot each time the link is
+		 * re-established.
+		 * 
+		 * @param transport
+		 *            the <code>Transport</code> used to reach the remote
+		 *            server
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>V</code> values
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>V</code> values
+		 * @param writerConfig
+		 *            queueing and batching parameters for outgoing frames, or
+		 *            <code>null</code> for the defaults
+		 * @param reconnectPolicy
+		 *            how to reconnect when the link drops, or
+		 *            <code>null</code> to stay disconnected until
+		 *            {@link RemoteMessenger#requestConnect()} is called
+		 */
+		public static <V> StateRemoteMessenger<V> getStateRemoteMessenger(
+				Transport transport, MessageSender<V> sender,
+				MessageReceiver<V> receiver, MessageWriter.Config writerConfig,
+				ReconnectPolicy reconnectPolicy) {
+			return new StateRemoteMessengerImpl<V>(transport, sender,
+					receiver, writerConfig, reconnectPolicy);
+		}
+
+		/**
+		 * Get an instance of <code>ReliableRemoteMessenger</code> that
+		 * delivers <code>S</code> and <code>R</code> messages once and in
+		 * order across dropped links. The remote server should be a
+		 * <code>ReliableMessageService</code>.
+		 * 
+		 * @param uuid
+		 *            a <code>UUID</code> shared between the remote server and
+		 *            this client. UUIDs can be obtained at <a
+		 *            href="http://www.uuidgenerator.net/">http
+		 *            ://www.uuidgenerator.net/</a> and instantiated using
+		 *            {@link UUID#fromString(String)}.
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>S</code> messages
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>R</code> messages
+		 */
+		public static <S, R> ReliableRemoteMessenger<S, R> getReliableRemoteMessenger(
+				UUID uuid, MessageSender<S> sender, MessageReceiver<R> receiver) {
+			return getReliableRemoteMessenger(
+					new RfcommTransport(BluetoothAdapter.getDefaultAdapter(),
+							null, uuid), sender, receiver, null, null);
+		}
+
+		/**
+		 * Get an instance of <code>ReliableRemoteMessenger</code> that
+		 * delivers <code>S</code> and <code>R</code> messages once and in
+		 * order across dropped links, over an arbitrary {@link Transport}.
+		 * Without a <code>reconnectPolicy</code>, unacknowledged messages are
+		 * only sent again once {@link RemoteMessenger#requestConnect()} is
+		 * called.
+		 * 
+		 * @param transport
+		 *            the <code>Transport</code> used to reach the remote
+		 *            server
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>S</code> messages
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>R</code> messages
+		 * @param writerConfig
+		 *            queueing and batching parameters for outgoing frames, or
+		 *            <code>null</code> for the defaults
+		 * @param reconnectPolicy
+		 *            how to reconnect when the link drops, or
+		 *            <code>null</code> to stay disconnected until
+		 *            {@link RemoteMessenger#requestConnect()} is called
+		 */
+		public static <S, R> ReliableRemoteMessenger<S, R> getReliableRemoteMessenger(
+				Transport transport, MessageSender<S> sender,
+				MessageReceiver<R> receiver, MessageWriter.Config writerConfig,
+				ReconnectPolicy reconnectPolicy) {
+			return new ReliableRemoteMessengerImpl<S, R>(transport, sender,
+					receiver, writerConfig, reconnectPolicy);
+		}
+
+		/**
+		 * Get an instance of <code>TransferRemoteMessenger</code> that sends
+		 * <code>S</code> messages and receives <code>R</code> messages, and
+		 * streams files and other bulk data alongside them. The remote server
+		 * should be a <code>TransferMessageService</code>.
+		 * 
+		 * @param uuid
+		 *            a <code>UUID</code> shared between the remote server and
+		 *            this client. UUIDs can be obtained at <a
+		 *            href="http://www.uuidgenerator.net/">http
+		 *            ://www.uuidgenerator.net/</a> and instantiated using
+		 *            {@link UUID#fromString(String)}.
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>S</code> messages
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>R</code> messages
+		 */
+		public static <S, R> TransferRemoteMessenger<S, R> getTransferRemoteMessenger(
+				UUID uuid, MessageSender<S> sender, MessageReceiver<R> receiver) {
+			return getTransferRemoteMessenger(
+					new RfcommTransport(BluetoothAdapter.getDefaultAdapter(),
+							null, uuid), sender, receiver, null, null);
+		}
+
+		/**
+		 * Get an instance of <code>TransferRemoteMessenger</code> that sends
+		 * <code>S</code> messages and receives <code>R</code> messages, and
+		 * streams files and other bulk data alongside them, over an arbitrary
+		 * {@link Transport}. Interrupted transfers resume once the link is
+		 * back.
+		 * 
+		 * @param transport
+		 *            the <code>Transport</code> used to reach the remote
+		 *            server
+		 * @param sender
+		 *            the <code>MessageSender</code> providing the
+		 *            implementation for sending <code>S</code> messages
+		 * @param receiver
+		 *            the <code>MessageReceiver</code> providing the
+		 *            implementation for receiving <code>R</code> messages
+		 * @param writerConfig
+		 *            queueing and batching parameters for outgoing frames, or
+		 *            <code>null</code> for the defaults
+		 * @param reconnectPolicy
+		 *            how to reconnect when the link drops, or
+		 *            <code>null</code> to stay disconnected until
+		 *            {@link RemoteMessenger#requestConnect()} is called
+		 */
+		public static <S, R> TransferRemoteMessenger<S, R> getTransferRemoteMessenger(
+				Transport transport, MessageSender<S> sender,
+				MessageReceiver<R> receiver, MessageWriter.Config writerConfig,
+				ReconnectPolicy reconnectPolicy) {
+			return new TransferRemoteMessengerImpl<S, R>(transport, sender,
+					receiver, writerConfig, reconnectPolicy);
+		}
+
+		/**
+		 * Get a {@link CoalescingSender} that sends through
+		 * <code>messenger</code>, keeping only the newest pending message of
+		 * each key. Use it for high-frequency updates, such as head motion,
+		 * where only the latest value matters.
+		 * 
+		 * @param messenger
+		 *            the <code>RemoteMessenger</code> to send through
+		 * @param keySelector
+		 *            picks the key of each message. Messages with equal keys
+		 *            replace each other.
+		 */
+		public static <S> CoalescingSender<S> getCoalescingSender(
+				final RemoteMessenger<S, ?> messenger,
+				KeyedExecutor.KeySelector<? super S> keySelector) {
+			return new CoalescingSender<S>(new CoalescingSender.Sink<S>() {
+
+				@Override
+				public SendFuture send(S message) {
+					return messenger.sendMessage(message);
+				}
+			}, keySelector);
 		}
 
 	}
@@ -1,24 +1,33 @@
 package com.keyboardr.glassremote.client;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.lang.ref.WeakReference;
-import java.util.Set;
-import java.util.UUID;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
-import android.os.ParcelUuid;
 
+import com.keyboardr.glassremote.common.HandlerExecutor;
+import com.keyboardr.glassremote.common.IoEngine;
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.MessageBatcher;
+import com.keyboardr.glassremote.common.MessageConnection;
+import com.keyboardr.glassremote.common.metrics.MessageMetrics;
+import com.keyboardr.glassremote.common.metrics.MetricsReporter;
+import com.keyboardr.glassremote.common.metrics.MetricsSnapshot;
 import com.keyboardr.glassremote.common.receiver.MessageReceiver;
-import com.keyboardr.glassremote.common.receiver.MessageReceiver.OnReceiveMessageListener;
 import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.transport.Connection;
+import com.keyboardr.glassremote.common.transport.RfcommTransport;
+import com.keyboardr.glassremote.common.transport.Transport;
 
 /**
  * Concrete implementation of {@link RemoteMessenger}. May be used directly if
@@ -36,7 +45,50 @@ import com.keyboardr.glassremote.common.sender.MessageSender;
  *            receive from the remote server
  */
 class RemoteMessengerImpl<S, R> implements RemoteMessenger<S, R>,
-		OnReceiveMessageListener<R> {
+		MessageConnection.Listener<S, R> {
+
+	/**
+	 * Sees connection events before anything is posted to the main thread:
+	 * messages on the connection's reader thread, and closes on the reader
+	 * thread or on the thread that closed the connection. Used by layers
+	 * built on top of a <code>RemoteMessengerImpl</code> that must not wait
+	 * for the main thread.
+	 * 
+	 * @param <R>
+	 *            type of messages received from the remote server
+	 */
+	static interface Interceptor<R> {
+		/**
+		 * A message has been received
+		 * 
+		 * @param message
+		 *            the received message
+		 * @return <code>true</code> if the message has been handled and
+		 *         should not be passed to the <code>Callback</code>
+		 */
+		public boolean onInterceptMessage(R message);
+
+		/**
+		 * The connection has been closed
+		 */
+		public void onClosed();
+	}
+
+	private volatile Interceptor<? super R> mInterceptor;
+
+	/**
+	 * Collects received messages for the main thread when batched delivery is
+	 * on, otherwise <code>null</code>
+	 */
+	private volatile MessageBatcher<R> mBatcher;
+
+	private final MessageBatcher.Sink<R> mBatchSink = new MessageBatcher.Sink<R>() {
+
+		@Override
+		public void onDeliver(List<R> messages) {
+			deliverBatch(getCallback(), messages);
+		}
+	};
 
 	private WeakReference<Callback<? super R>> mCallback = new WeakReference<Callback<? super R>>(
 			STUB_CALLBACK);
@@ -52,59 +104,366 @@ class RemoteMessengerImpl<S, R> implements RemoteMessenger<S, R>,
 
 	@Override
 	public boolean isConnected() {
-		return mConnectedThread != null && mConnectedThread.isAlive();
+		return mConnection != null && mConnection.isOpen();
 	}
 
 	@Override
 	public void requestConnect() {
+		mWantConnected = true;
 		mWorkerHandler.obtainMessage(DO_CONNECT).sendToTarget();
 	}
 
-	private void connect(BluetoothDevice connectedDevice, boolean retry) {
+	private void connect(boolean retry) {
 		if (isConnected()) {
-			mMainHandler.obtainMessage(DO_ON_CONNECTED, connectedDevice)
-					.sendToTarget();
+			dispatch(DO_ON_CONNECTED,
+					RfcommTransport.getRemoteDevice(mConnection.getConnection()));
 			return;
 		}
-		BluetoothSocket socket = null;
+		Connection connection;
+		MessageConnection<S, R> messageConnection;
+		long start = System.nanoTime();
 		try {
-			mBluetoothAdapter.cancelDiscovery();
-			socket = connectedDevice.createRfcommSocketToServiceRecord(MY_UUID);
-			socket.connect();
-			mConnectedThread = new ConnectedThread(socket);
-			mConnectedThread.start();
-			mMainHandler.obtainMessage(DO_ON_CONNECTED,
-					socket.getRemoteDevice()).sendToTarget();
-		} catch (IOException e) {
-			if (socket != null) {
-				try {
-					socket.close();
-				} catch (IOException e2) {
-					e2.printStackTrace();
+			connection = mTransport.connect();
+			// Checked under the lock so disconnect() sees either no
+			// connection or the attached one
+			synchronized (mPending) {
+				if (!mWantConnected) {
+					// disconnect() was called while connecting
+					closeQuietly(connection);
+					return;
 				}
+				messageConnection = new MessageConnection<S, R>(connection,
+						mSender, mReceiver, mWriterConfig, this, mMetrics);
+				messageConnection.start();
+				mConnection = messageConnection;
 			}
+		} catch (IOException e) {
+			mMetrics.onConnectFailed();
 			if (retry) {
-				connect(connectedDevice, false);
-			} else {
-				mMainHandler.obtainMessage(DO_CONNECTION_FAILED).sendToTarget();
+				connect(false);
+			} else if (!scheduleReconnect()) {
+				failPending(e);
+				dispatch(DO_CONNECTION_FAILED, null);
 				e.printStackTrace();
 			}
+			return;
+		}
+		mMetrics.onConnected(System.nanoTime() - start);
+		mReconnectAttempts = 0;
+		flushPending();
+		dispatch(DO_ON_CONNECTED, RfcommTransport.getRemoteDevice(connection));
+	}
+
+	/**
+	 * Schedules the next reconnect attempt. Called by connect tasks.
+	 * 
+	 * @return <code>false</code> if the messenger is not reconnecting or has
+	 *         run out of attempts
+	 */
+	private boolean scheduleReconnect() {
+		if (mReconnectPolicy == null || !mWantConnected) {
+			return false;
+		}
+		int maxAttempts = mReconnectPolicy.getMaxAttempts();
+		if (maxAttempts > 0 && mReconnectAttempts >= maxAttempts) {
+			mWantConnected = false;
+			return false;
+		}
+		mWorkerHandler.sendEmptyMessageDelayed(DO_RECONNECT,
+				mReconnectPolicy.getDelayMillis(mReconnectAttempts++));
+		return true;
+	}
+
+	private static void closeQuietly(Connection connection) {
+		try {
+			connection.close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	/**
+	 * Sends held messages on the current connection, oldest first. One
+	 * thread sends at a time, without holding <code>mPending</code>, since a
+	 * send may wait for space in the connection's queue. Messages still in
+	 * flight on an earlier connection are waited for, so one that fails late
+	 * is still sent ahead of newer ones.
+	 */
+	private void flushPending() {
+		synchronized (mFlushLock) {
+			while (true) {
+				MessageConnection<S, R> connection;
+				PendingMessage<S> pending;
+				synchronized (mPending) {
+					connection = mConnection;
+					if (connection == null || !connection.isOpen()
+							|| mPending.isEmpty()) {
+						return;
+					}
+					if (connection != mSendingConnection) {
+						if (mUnsettled > 0) {
+							// Flushed again once they settle
+							return;
+						}
+						mSendingConnection = connection;
+					}
+					pending = mPending.pollFirstEntry().getValue();
+					if (pending.future.isDone()) {
+						continue;
+					}
+					mUnsettled++;
+				}
+				sendTracked(connection, pending);
+			}
 		}
 	}
 
 	@Override
 	public void disconnect() {
-		if (mConnectedThread != null) {
-			mConnectedThread.cancel();
+		MessageConnection<S, R> connection;
+		synchronized (mPending) {
+			mWantConnected = false;
+			connection = mConnection;
+		}
+		mWorkerHandler.removeMessages(DO_RECONNECT);
+		failPending(new IOException("Disconnected"));
+		if (connection != null) {
+			connection.close();
+		}
+		if (mTransport instanceof RfcommTransport) {
+			// After the prewarm task, which may not have run yet
+			mConnectExecutor.execute(mStopPrewarming);
+		}
+	}
+
+	@Override
+	public SendFuture sendMessage(S message) throws IllegalStateException {
+		if (mReconnectPolicy == null) {
+			MessageConnection<S, R> connection = mConnection;
+			if (connection == null || !connection.isOpen()) {
+				throw new IllegalStateException("Not connected");
+			}
+			return connection.sendMessage(message);
+		}
+		PendingMessage<S> pending;
+		synchronized (mPending) {
+			MessageConnection<S, R> connection = mConnection;
+			if (!mWantConnected
+					&& (connection == null || !connection.isOpen())) {
+				throw new IllegalStateException("Not connected");
+			}
+			pending = new PendingMessage<S>(message, mNextSequence++);
+			if (!hold(pending)) {
+				return pending.future;
+			}
+		}
+		flushPending();
+		return pending.future;
+	}
+
+	/**
+	 * A message sent in resilient mode. Its future is the one returned to the
+	 * caller, and outlives any one connection.
+	 */
+	private static class PendingMessage<S> {
+		final S message;
+		final long sequence;
+		final SendFuture future = new SendFuture();
+
+		PendingMessage(S message, long sequence) {
+			this.message = message;
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Sends a held message on <code>connection</code>. It is held again if
+	 * the connection is lost before it is written.
+	 */
+	private void sendTracked(MessageConnection<S, R> connection,
+			final PendingMessage<S> pending) {
+		SendFuture sent = connection.sendMessage(pending.message);
+		sent.addListener(new SendFuture.Listener() {
+
+			@Override
+			public void onComplete(SendFuture future) {
+				Throwable failure = future.getFailure();
+				boolean retry = failure instanceof IOException
+						&& !(failure instanceof MessageWriter.SendQueueFullException);
+				boolean flush;
+				synchronized (mPending) {
+					// Lost with the connection; send it again later
+					retry = retry && mWantConnected && hold(pending);
+					mUnsettled--;
+					flush = mUnsettled == 0 && mConnection != mSendingConnection
+							&& !mPending.isEmpty();
+				}
+				if (future.isSuccessful()) {
+					pending.future.setSucceeded();
+				} else if (!retry) {
+					pending.future.setFailed(failure);
+				}
+				if (flush) {
+					mConnectExecutor.execute(mFlushPending);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Queues a message until it can be sent, in the order it was first sent.
+	 * Must hold the lock on <code>mPending</code>.
+	 * 
+	 * @return <code>false</code> if the queue was full and the message failed
+	 */
+	private boolean hold(PendingMessage<S> pending) {
+		if (mPending.size() >= mReconnectPolicy.getPendingCapacity()) {
+			mMetrics.onSendFailed(1);
+			pending.future.setFailed(new MessageWriter.SendQueueFullException());
+			return false;
+		}
+		mPending.put(pending.sequence, pending);
+		return true;
+	}
+
+	private void failPending(Throwable failure) {
+		List<PendingMessage<S>> pending;
+		synchronized (mPending) {
+			pending = new ArrayList<PendingMessage<S>>(mPending.values());
+			mPending.clear();
+		}
+		for (PendingMessage<S> message : pending) {
+			if (message.future.setFailed(failure)) {
+				mMetrics.onSendFailed(1);
+			}
+		}
+	}
+
+	@Override
+	public void setDeliveryWindow(long windowMillis) {
+		mDeliveryWindowMillis = windowMillis;
+		MessageBatcher<R> old = mBatcher;
+		mBatcher = windowMillis < 0 || mCallbackExecutor != null ? null
+				: new MessageBatcher<R>(mCallbackHandler, windowMillis,
+						mBatchSink, mMetrics);
+		if (old != null) {
+			old.flush();
+		}
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor executor) {
+		setCallbackExecutor(executor, null);
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor executor,
+			KeyedExecutor.KeySelector<? super R> keySelector) {
+		if (executor == null
+				|| (executor instanceof HandlerExecutor && keySelector == null)) {
+			// Post to the Looper directly; cheaper, and batching still works
+			mCallbackHandler = new CallbackHandler(
+					executor == null ? Looper.getMainLooper()
+							: ((HandlerExecutor) executor).getLooper());
+			mCallbackExecutor = null;
+			mKeySelector = null;
+		} else {
+			mKeySelector = keySelector;
+			mCallbackExecutor = new KeyedExecutor(executor);
 		}
+		setDeliveryWindow(mDeliveryWindowMillis);
 	}
 
 	@Override
-	public void sendMessage(S message) throws IllegalStateException {
-		if (!isConnected()) {
-			throw new IllegalStateException("Not connected");
+	public MetricsSnapshot getMetrics() {
+		MessageConnection<S, R> connection = mConnection;
+		int depth = connection == null ? 0 : connection.getSendQueueDepth();
+		synchronized (mPending) {
+			depth += mPending.size();
 		}
-		mSender.sendMessage(message);
+		return mMetrics.snapshot(depth);
+	}
+
+	@Override
+	public void setMetricsListener(MetricsReporter.Listener listener,
+			long intervalMillis) {
+		mMetricsReporter.setListener(listener, intervalMillis);
+	}
+
+	private void dispatch(int what, Object obj) {
+		dispatch(what, obj, 0);
+	}
+
+	/**
+	 * Passes a callback to the callback thread. Messages are keyed by the
+	 * <code>KeySelector</code>, if any; connection events use the default key.
+	 * 
+	 * @param receivedNanos
+	 *            when a received message was read, for the dispatch latency
+	 *            metric
+	 */
+	private void dispatch(final int what, final Object obj,
+			final long receivedNanos) {
+		KeyedExecutor executor = mCallbackExecutor;
+		if (executor == null) {
+			// The Message carries the timestamp split across its two args
+			mCallbackHandler.obtainMessage(what, (int) (receivedNanos >>> 32),
+					(int) receivedNanos, obj).sendToTarget();
+			return;
+		}
+		Object key = null;
+		KeyedExecutor.KeySelector<? super R> keySelector = mKeySelector;
+		if (what == DO_ON_RECEIVE_MESSAGE && keySelector != null) {
+			@SuppressWarnings("unchecked")
+			R message = (R) obj;
+			key = keySelector.getKey(message);
+		}
+		executor.execute(key, new Runnable() {
+
+			@Override
+			public void run() {
+				handleCallback(what, obj, receivedNanos);
+			}
+		});
+	}
+
+	@SuppressWarnings("unchecked")
+	private void handleCallback(int what, Object obj, long receivedNanos) {
+		if (what == DO_ON_RECEIVE_MESSAGE) {
+			mMetrics.onDispatched(receivedNanos);
+		}
+		switch (what) {
+		case DO_ON_CONNECTED:
+			getCallback().onConnected((BluetoothDevice) obj);
+			break;
+		case DO_CONNECTION_FAILED:
+			getCallback().onConnectionFailed();
+			break;
+		case DO_DISCONNECTED:
+			getCallback().onDisconnected((BluetoothDevice) obj);
+			break;
+		case DO_ON_RECEIVE_MESSAGE:
+			getCallback().onReceiveMessage((R) obj);
+			break;
+		}
+	}
+
+	/**
+	 * Passes a batch of messages to <code>callback</code>, as a list if it is
+	 * a {@link RemoteMessenger.BatchCallback BatchCallback}
+	 */
+	static <M> void deliverBatch(Callback<? super M> callback,
+			List<M> messages) {
+		if (callback instanceof BatchCallback) {
+			((BatchCallback<? super M>) callback).onReceiveMessages(messages);
+			return;
+		}
+		for (M message : messages) {
+			callback.onReceiveMessage(message);
+		}
+	}
+
+	void setInterceptor(Interceptor<? super R> interceptor) {
+		mInterceptor = interceptor;
 	}
 
 	private Callback<? super R> getCallback() {
@@ -121,8 +480,6 @@ class RemoteMessengerImpl<S, R> implements RemoteMessenger<S, R>,
 		}
 	}
 
-	private final UUID MY_UUID;
-
 	private static final Callback<Object> STUB_CALLBACK = new Callback<Object>() {
 
 		@Override
@@ -143,100 +500,131 @@ class RemoteMessengerImpl<S, R> implements RemoteMessenger<S, R>,
 
 	};
 
-	private class ConnectedThread extends Thread {
-		private final BluetoothSocket mSocket;
-		private final InputStream mInputStream;
-		private final OutputStream mOutputStream;
+	private final Transport mTransport;
 
-		public ConnectedThread(BluetoothSocket socket) {
-			mSocket = socket;
-			InputStream tmpIn = null;
-			OutputStream tmpOut = null;
+	private volatile MessageConnection<S, R> mConnection;
 
-			try {
-				tmpIn = mSocket.getInputStream();
-				tmpOut = mSocket.getOutputStream();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	private final MessageSender<S> mSender;
+	private final MessageReceiver<R> mReceiver;
+	private final MessageWriter.Config mWriterConfig;
+	private final ReconnectPolicy mReconnectPolicy;
 
-			mInputStream = tmpIn;
-			mOutputStream = tmpOut;
-			mSender.setOutputStream(mOutputStream);
-		}
+	/**
+	 * Messages in resilient mode waiting to be sent, by sequence number. Also
+	 * the lock for the fields that order them against connections.
+	 */
+	private final TreeMap<Long, PendingMessage<S>> mPending = new TreeMap<Long, PendingMessage<S>>();
+	private long mNextSequence;
+
+	/**
+	 * The connection held messages were last sent on, and how many sent on it
+	 * have not completed. Guarded by <code>mPending</code>.
+	 */
+	private MessageConnection<S, R> mSendingConnection;
+	private int mUnsettled;
+
+	/**
+	 * Held by the one thread moving messages from <code>mPending</code> to a
+	 * connection
+	 */
+	private final Object mFlushLock = new Object();
+
+	private final Runnable mFlushPending = new Runnable() {
 
 		@Override
 		public void run() {
-			mReceiver.setInputStream(mInputStream);
-
-			while (mReceiver.read(RemoteMessengerImpl.this)) {
-			}
-			try {
-				mSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			mMainHandler.obtainMessage(DO_DISCONNECTED,
-					mSocket.getRemoteDevice()).sendToTarget();
+			flushPending();
 		}
+	};
 
-		public void cancel() {
-			try {
-				mSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
+	private final Runnable mStopPrewarming = new Runnable() {
+
+		@Override
+		public void run() {
+			((RfcommTransport) mTransport).stopPrewarming();
 		}
-	}
+	};
 
-	private BluetoothAdapter mBluetoothAdapter;
+	/**
+	 * Whether the link should be up: set by {@link #requestConnect()} and
+	 * cleared by {@link #disconnect()}. A connection that completes after
+	 * it is cleared is closed. Only resilient mode reconnects on it.
+	 */
+	private volatile boolean mWantConnected;
 
-	private ConnectedThread mConnectedThread;
+	/**
+	 * Consecutive failed reconnect attempts. Only used by connect tasks.
+	 */
+	private int mReconnectAttempts;
 
-	private final MessageSender<S> mSender;
-	private final MessageReceiver<R> mReceiver;
+	private final MessageMetrics mMetrics = new MessageMetrics();
+	private final MetricsReporter mMetricsReporter;
 
 	/**
 	 * Class constructor
 	 * 
-	 * @param uuid
-	 *            a <code>UUID</code> shared between the remote server and this
-	 *            client. UUIDs can be obtained at <a
-	 *            href="http://www.uuidgenerator.net/">http
-	 *            ://www.uuidgenerator.net/</a> and instantiated using
-	 *            {@link UUID#fromString(String)}.
+	 * @param transport
+	 *            the <code>Transport</code> used to reach the remote server
 	 * @param sender
 	 *            the <code>MessageSender</code> providing the implementation
 	 *            for sending <code>S</code> messages
 	 * @param receiver
 	 *            the <code>MessageReceiver</code> providing the implementation
 	 *            for receiving <code>R</code> messages
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
 	 */
-	public RemoteMessengerImpl(UUID uuid, MessageSender<S> sender,
-			MessageReceiver<R> receiver) {
+	public RemoteMessengerImpl(Transport transport, MessageSender<S> sender,
+			MessageReceiver<R> receiver, MessageWriter.Config writerConfig) {
+		this(transport, sender, receiver, writerConfig, null);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> used to reach the remote server
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> messages
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> messages
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 * @param reconnectPolicy
+	 *            how to reconnect when the link drops, or <code>null</code> to
+	 *            stay disconnected until {@link #requestConnect()} is called
+	 */
+	public RemoteMessengerImpl(Transport transport, MessageSender<S> sender,
+			MessageReceiver<R> receiver, MessageWriter.Config writerConfig,
+			ReconnectPolicy reconnectPolicy) {
 		mSender = sender;
 		mReceiver = receiver;
-		mWorkerThread.start();
-		mWorkerHandler = new WorkerHandler(mWorkerThread.getLooper());
-		MY_UUID = uuid;
-		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-		for (BluetoothDevice device : mBluetoothAdapter.getBondedDevices()) {
-			device.fetchUuidsWithSdp();
-		}
-	}
-
-	private BluetoothDevice getConnectedDevice() {
-		Set<BluetoothDevice> pairedDevices = mBluetoothAdapter
-				.getBondedDevices();
-		for (BluetoothDevice device : pairedDevices) {
-			device.fetchUuidsWithSdp();
-			for (ParcelUuid id : device.getUuids()) {
-				if (id.getUuid().equals(MY_UUID)) {
-					return device;
+		mWriterConfig = writerConfig;
+		mReconnectPolicy = reconnectPolicy;
+		mWorkerHandler = new WorkerHandler(getWorkerLooper());
+		mMetricsReporter = new MetricsReporter(mWorkerHandler,
+				new MetricsReporter.Source() {
+
+					@Override
+					public MetricsSnapshot getMetrics() {
+						return RemoteMessengerImpl.this.getMetrics();
+					}
+				});
+		mTransport = transport;
+		if (mTransport instanceof RfcommTransport) {
+			// Ahead of the first connect task, which waits for it
+			mConnectExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					((RfcommTransport) mTransport).prewarm();
 				}
-			}
+			});
 		}
-		return null;
 	}
 
 	private static final int DO_ON_CONNECTED = 0;
@@ -244,34 +632,60 @@ class RemoteMessengerImpl<S, R> implements RemoteMessenger<S, R>,
 	private static final int DO_DISCONNECTED = 2;
 	private static final int DO_ON_RECEIVE_MESSAGE = 3;
 
-	private final Handler mMainHandler = new Handler(Looper.getMainLooper()) {
-		@SuppressWarnings("unchecked")
+	private class CallbackHandler extends Handler {
+
+		public CallbackHandler(Looper looper) {
+			super(looper);
+		}
+
 		@Override
 		public void handleMessage(Message msg) {
-			switch (msg.what) {
-			case DO_ON_CONNECTED:
-				getCallback().onConnected((BluetoothDevice) msg.obj);
-				break;
-			case DO_CONNECTION_FAILED:
-				getCallback().onConnectionFailed();
-				break;
-			case DO_DISCONNECTED:
-				getCallback().onDisconnected((BluetoothDevice) msg.obj);
-				break;
-			case DO_ON_RECEIVE_MESSAGE:
-				getCallback().onReceiveMessage((R) msg.obj);
-				break;
-			}
+			handleCallback(msg.what, msg.obj, ((long) msg.arg1 << 32)
+					| (msg.arg2 & 0xFFFFFFFFL));
 		}
-	};
+	}
+
+	/**
+	 * Runs callbacks when no other <code>Executor</code> is set
+	 */
+	private volatile Handler mCallbackHandler = new CallbackHandler(
+			Looper.getMainLooper());
+
+	/**
+	 * Runs callbacks when set through {@link #setCallbackExecutor}, otherwise
+	 * <code>null</code>
+	 */
+	private volatile KeyedExecutor mCallbackExecutor;
+	private volatile KeyedExecutor.KeySelector<? super R> mKeySelector;
+	private volatile long mDeliveryWindowMillis = -1;
 
 	private static final int DO_CONNECT = 4;
+	private static final int DO_RECONNECT = 5;
+	private static final int DO_CONNECTION_LOST = 6;
 
-	private final HandlerThread mWorkerThread = new HandlerThread(
-			"RemoteManagerWorker");
+	/**
+	 * Schedules connection work and metrics reports for every messenger in
+	 * the process. Never blocks; connecting runs on {@link #mConnectExecutor}.
+	 */
+	private static HandlerThread sWorkerThread;
 
 	private final Handler mWorkerHandler;
 
+	/**
+	 * Runs this messenger's connection attempts one at a time on the blocking
+	 * executor of the shared {@link IoEngine}
+	 */
+	private final Executor mConnectExecutor = new KeyedExecutor(IoEngine
+			.getDefault().getBlockingExecutor());
+
+	private static synchronized Looper getWorkerLooper() {
+		if (sWorkerThread == null) {
+			sWorkerThread = new HandlerThread("RemoteManagerWorker");
+			sWorkerThread.start();
+		}
+		return sWorkerThread.getLooper();
+	}
+
 	private class WorkerHandler extends Handler {
 
 		public WorkerHandler(Looper looper) {
@@ -280,26 +694,70 @@ class RemoteMessengerImpl<S, R> implements RemoteMessenger<S, R>,
 
 		@Override
 		public void handleMessage(Message msg) {
-			switch (msg.what) {
-			case DO_CONNECT:
-				BluetoothDevice connectedDevice = getConnectedDevice();
-				if (connectedDevice == null) {
-					mMainHandler.obtainMessage(DO_CONNECTION_FAILED)
-							.sendToTarget();
-					return;
-				}
-
-				connect(connectedDevice, true);
-				break;
+			final int what = msg.what;
+			if (what == DO_CONNECT) {
+				removeMessages(DO_RECONNECT);
+			} else if (what == DO_CONNECTION_LOST
+					&& (!mWantConnected || hasMessages(DO_RECONNECT))) {
+				return;
 			}
+			mConnectExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					switch (what) {
+					case DO_CONNECT:
+						mReconnectAttempts = 0;
+						connect(true);
+						break;
+					case DO_RECONNECT:
+						mMetrics.onReconnect();
+						connect(false);
+						break;
+					case DO_CONNECTION_LOST:
+						// Try at once; most drops are brief
+						mMetrics.onReconnect();
+						connect(false);
+						break;
+					}
+				}
+			});
 		}
 
 	}
 
 	@Override
-	public void onReceiveMessage(R message) {
-		mMainHandler.obtainMessage(DO_ON_RECEIVE_MESSAGE, message)
-				.sendToTarget();
+	public void onReceiveMessage(MessageConnection<S, R> connection, R message) {
+		Interceptor<? super R> interceptor = mInterceptor;
+		if (interceptor != null && interceptor.onInterceptMessage(message)) {
+			return;
+		}
+		long receivedNanos = connection.getReceiveTimestamp();
+		MessageBatcher<R> batcher = mBatcher;
+		if (batcher != null) {
+			batcher.add(message, receivedNanos);
+			return;
+		}
+		dispatch(DO_ON_RECEIVE_MESSAGE, message, receivedNanos);
+	}
+
+	@Override
+	public void onClosed(MessageConnection<S, R> connection) {
+		mMetrics.onDisconnected();
+		Interceptor<? super R> interceptor = mInterceptor;
+		if (interceptor != null) {
+			interceptor.onClosed();
+		}
+		MessageBatcher<R> batcher = mBatcher;
+		if (batcher != null) {
+			batcher.flush();
+		}
+		dispatch(DO_DISCONNECTED,
+				RfcommTransport.getRemoteDevice(connection.getConnection()));
+		if (mReconnectPolicy != null && mWantConnected
+				&& connection == mConnection) {
+			mWorkerHandler.obtainMessage(DO_CONNECTION_LOST).sendToTarget();
+		}
 	}
 
 }
@@ -0,0 +1,433 @@
+package com.keyboardr.glassremote.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.bluetooth.BluetoothDevice;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
+
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.metrics.MessageMetrics;
+import com.keyboardr.glassremote.common.metrics.MetricsReporter;
+import com.keyboardr.glassremote.common.metrics.MetricsSnapshot;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+
+/**
+ * A {@link RemoteMessenger} for components in a different process from the
+ * {@link RemoteMessengerService} that owns the connection. Messages are
+ * passed to and from the service over a <code>Messenger</code>, encoded by
+ * the same <code>MessageSender</code> and <code>MessageReceiver</code> as
+ * on the Bluetooth link. Messages sent or received in one turn of the main
+ * thread's <code>Looper</code> travel together in a single IPC call.<br/>
+ * <br/>
+ * The service is bound by {@link #requestConnect()} and unbound by
+ * {@link #disconnect()}. The link itself stays open while any other client
+ * of the service wants it.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            the type of messages sent to the remote server
+ * @param <R>
+ *            the type of messages received from the remote server
+ */
+public class RemoteMessengerProxy<S, R> implements RemoteMessenger<S, R>,
+		MetricsReporter.Source {
+
+	private final Context mContext;
+	private final Intent mIntent;
+	private final MessageSender<S> mSender;
+	private final MessageReceiver<R> mReceiver;
+
+	private final Handler mHandler = new IncomingHandler();
+	private final Messenger mReplyTo = new Messenger(mHandler);
+
+	private final MessageMetrics mMetrics = new MessageMetrics();
+	private MetricsReporter mMetricsReporter;
+
+	private WeakReference<Callback<? super R>> mCallback = new WeakReference<Callback<? super R>>(
+			null);
+	private volatile Executor mCallbackExecutor;
+
+	private Messenger mService;
+	private boolean mBound;
+	private boolean mWantConnected;
+	private volatile boolean mConnected;
+
+	/**
+	 * When the link was last asked for or lost, for timing the connect, or
+	 * <code>0</code> if no connect is being timed
+	 */
+	private volatile long mConnectStartNanos;
+
+	/**
+	 * Messages encoded since the last IPC call. Guarded by <code>this</code>.
+	 */
+	private final ByteArrayOutputStream mOutgoing = new ByteArrayOutputStream();
+	private int mOutgoingCount;
+	private SendFuture mOutgoingFuture;
+	private int mNextBatch;
+
+	/**
+	 * Batches sent to the service and not yet reported written, by id
+	 */
+	private final HashMap<Integer, SendFuture> mInFlight = new HashMap<Integer, SendFuture>();
+
+	private final Runnable mFlush = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private final ServiceConnection mConnection = new ServiceConnection() {
+
+		@Override
+		public void onServiceConnected(ComponentName name, IBinder binder) {
+			synchronized (RemoteMessengerProxy.this) {
+				mService = new Messenger(binder);
+				sendToService(IpcProtocol.MSG_REGISTER);
+				if (mWantConnected) {
+					sendToService(IpcProtocol.MSG_CONNECT);
+				}
+			}
+		}
+
+		@Override
+		public void onServiceDisconnected(ComponentName name) {
+			synchronized (RemoteMessengerProxy.this) {
+				mService = null;
+				failSends(new IOException("Service died"));
+			}
+			if (mConnected) {
+				onLinkClosed(null);
+			}
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param context
+	 *            a <code>Context</code> to bind with. Its application context
+	 *            is used.
+	 * @param service
+	 *            an <code>Intent</code> naming the
+	 *            <code>RemoteMessengerService</code> to bind to. Its action is
+	 *            replaced with {@link RemoteMessengerService#ACTION_BIND_IPC}.
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> messages to the service
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> messages from the service
+	 */
+	public RemoteMessengerProxy(Context context, Intent service,
+			MessageSender<S> sender, MessageReceiver<R> receiver) {
+		mContext = context.getApplicationContext();
+		mIntent = new Intent(service)
+				.setAction(RemoteMessengerService.ACTION_BIND_IPC);
+		mSender = sender;
+		mReceiver = receiver;
+		mSender.setOutputStream(mOutgoing);
+	}
+
+	@Override
+	public void setCallback(Callback<? super R> callback) {
+		mCallback = new WeakReference<Callback<? super R>>(callback);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return mConnected;
+	}
+
+	@Override
+	public synchronized void requestConnect() {
+		mWantConnected = true;
+		if (!mConnected) {
+			mConnectStartNanos = System.nanoTime();
+		}
+		if (mService != null) {
+			sendToService(IpcProtocol.MSG_CONNECT);
+			return;
+		}
+		if (!mBound) {
+			mBound = mContext.bindService(mIntent, mConnection,
+					Context.BIND_AUTO_CREATE);
+			if (!mBound) {
+				mHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						Callback<? super R> callback = mCallback.get();
+						if (callback != null) {
+							callback.onConnectionFailed();
+						}
+					}
+				});
+			}
+		}
+	}
+
+	@Override
+	public void disconnect() {
+		synchronized (this) {
+			mWantConnected = false;
+			flush();
+			if (mService != null) {
+				sendToService(IpcProtocol.MSG_DISCONNECT);
+				sendToService(IpcProtocol.MSG_UNREGISTER);
+				mService = null;
+			}
+			if (mBound) {
+				mContext.unbindService(mConnection);
+				mBound = false;
+			}
+			failSends(new IOException("Disconnected"));
+		}
+		if (mConnected) {
+			onLinkClosed(null);
+		}
+	}
+
+	@Override
+	public synchronized SendFuture sendMessage(S message)
+			throws IllegalStateException {
+		if (!mConnected || mService == null) {
+			throw new IllegalStateException("Not connected");
+		}
+		mSender.sendMessage(message);
+		mOutgoingCount++;
+		if (mOutgoingFuture == null) {
+			mOutgoingFuture = new SendFuture();
+			mHandler.post(mFlush);
+		}
+		return mOutgoingFuture;
+	}
+
+	/**
+	 * Messages already cross the process boundary in batches, and the
+	 * service's delivery window applies to every client, so this does
+	 * nothing.
+	 */
+	@Override
+	public void setDeliveryWindow(long windowMillis) {
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor executor) {
+		mCallbackExecutor = executor;
+	}
+
+	/**
+	 * Sets the <code>Executor</code> callbacks run on. Each batch of messages
+	 * arriving from the service is delivered as one task, in order, so
+	 * <code>keySelector</code> is ignored.
+	 */
+	@Override
+	public void setCallbackExecutor(Executor executor,
+			KeyedExecutor.KeySelector<? super R> keySelector) {
+		mCallbackExecutor = executor;
+	}
+
+	@Override
+	public synchronized MetricsSnapshot getMetrics() {
+		return mMetrics.snapshot(mOutgoingCount);
+	}
+
+	@Override
+	public synchronized void setMetricsListener(
+			MetricsReporter.Listener listener, long intervalMillis) {
+		if (mMetricsReporter == null) {
+			mMetricsReporter = new MetricsReporter(mHandler, this);
+		}
+		mMetricsReporter.setListener(listener, intervalMillis);
+	}
+
+	/**
+	 * Sends the messages encoded since the last call to the service
+	 */
+	private synchronized void flush() {
+		SendFuture future = mOutgoingFuture;
+		if (future == null) {
+			return;
+		}
+		int count = mOutgoingCount;
+		byte[] data = mOutgoing.toByteArray();
+		mOutgoing.reset();
+		mOutgoingCount = 0;
+		mOutgoingFuture = null;
+		if (mService == null) {
+			mMetrics.onSendFailed(count);
+			future.setFailed(new IOException("Disconnected"));
+			return;
+		}
+		int batch = mNextBatch++;
+		mInFlight.put(batch, future);
+		Message msg = Message.obtain(null, IpcProtocol.MSG_SEND);
+		msg.arg1 = batch;
+		Bundle bundle = new Bundle();
+		bundle.putByteArray(IpcProtocol.KEY_DATA, data);
+		msg.setData(bundle);
+		msg.replyTo = mReplyTo;
+		try {
+			mService.send(msg);
+		} catch (RemoteException e) {
+			mInFlight.remove(batch);
+			mMetrics.onSendFailed(count);
+			future.setFailed(e);
+			return;
+		}
+		mMetrics.onWritten(count, data.length);
+	}
+
+	/**
+	 * Must hold <code>this</code>
+	 */
+	private void sendToService(int what) {
+		Message msg = Message.obtain(null, what);
+		msg.replyTo = mReplyTo;
+		try {
+			mService.send(msg);
+		} catch (RemoteException e) {
+			// onServiceDisconnected() follows
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Must hold <code>this</code>
+	 */
+	private void failSends(Throwable failure) {
+		for (SendFuture future : mInFlight.values()) {
+			future.setFailed(failure);
+		}
+		mInFlight.clear();
+	}
+
+	private void onLinkClosed(BluetoothDevice remoteDevice) {
+		mConnected = false;
+		mMetrics.onDisconnected();
+		// The service reconnects while anything holds the link
+		mConnectStartNanos = System.nanoTime();
+		deliver(IpcProtocol.MSG_DISCONNECTED, remoteDevice, null);
+	}
+
+	private void deliver(final int what, final BluetoothDevice remoteDevice,
+			final List<R> messages) {
+		Runnable delivery = new Runnable() {
+
+			@Override
+			public void run() {
+				Callback<? super R> callback = mCallback.get();
+				if (callback == null) {
+					return;
+				}
+				switch (what) {
+				case IpcProtocol.MSG_CONNECTED:
+					callback.onConnected(remoteDevice);
+					break;
+				case IpcProtocol.MSG_CONNECTION_FAILED:
+					callback.onConnectionFailed();
+					break;
+				case IpcProtocol.MSG_DISCONNECTED:
+					callback.onDisconnected(remoteDevice);
+					break;
+				case IpcProtocol.MSG_RECEIVE:
+					RemoteMessengerImpl.deliverBatch(callback, messages);
+					break;
+				}
+			}
+		};
+		Executor executor = mCallbackExecutor;
+		if (executor != null) {
+			executor.execute(delivery);
+		} else {
+			delivery.run();
+		}
+	}
+
+	/**
+	 * Handles messages from the service on the main thread
+	 */
+	private class IncomingHandler extends Handler {
+
+		public IncomingHandler() {
+			super(Looper.getMainLooper());
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			switch (msg.what) {
+			case IpcProtocol.MSG_CONNECTED:
+				if (!mConnected) {
+					mConnected = true;
+					long start = mConnectStartNanos;
+					mConnectStartNanos = 0;
+					if (start != 0) {
+						mMetrics.onConnected(System.nanoTime() - start);
+					}
+				}
+				deliver(msg.what, getDevice(msg), null);
+				break;
+			case IpcProtocol.MSG_CONNECTION_FAILED:
+				mConnected = false;
+				mConnectStartNanos = 0;
+				mMetrics.onConnectFailed();
+				deliver(msg.what, null, null);
+				break;
+			case IpcProtocol.MSG_DISCONNECTED:
+				onLinkClosed(getDevice(msg));
+				break;
+			case IpcProtocol.MSG_RECEIVE:
+				long start = System.nanoTime();
+				byte[] data = msg.getData().getByteArray(IpcProtocol.KEY_DATA);
+				mMetrics.onBytesRead(data.length);
+				List<R> messages = IpcProtocol.decode(mReceiver, data);
+				mMetrics.onDecoded(System.nanoTime() - start);
+				if (!messages.isEmpty()) {
+					deliver(msg.what, null, messages);
+				}
+				break;
+			case IpcProtocol.MSG_SEND_RESULT:
+				SendFuture future;
+				synchronized (RemoteMessengerProxy.this) {
+					future = mInFlight.remove(msg.arg1);
+				}
+				if (future == null) {
+					break;
+				}
+				if (msg.arg2 != 0) {
+					future.setSucceeded();
+				} else {
+					future.setFailed(new IOException("Send failed"));
+				}
+				break;
+			}
+		}
+
+		private BluetoothDevice getDevice(Message msg) {
+			Bundle data = msg.peekData();
+			return data == null ? null : (BluetoothDevice) data
+					.getParcelable(IpcProtocol.KEY_DEVICE);
+		}
+	}
+}
@@ -1,21 +1,54 @@
 package com.keyboardr.glassremote.client;
 
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
 import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.content.Intent;
 import android.os.Binder;
+import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Messenger;
+import android.os.RemoteException;
 
+import com.keyboardr.glassremote.client.SharedRemoteMessenger.MessageFilter;
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.metrics.MetricsReporter;
+import com.keyboardr.glassremote.common.metrics.MetricsSnapshot;
 import com.keyboardr.glassremote.common.receiver.MessageReceiver;
 import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.transport.DeviceDiscoveryCache;
+import com.keyboardr.glassremote.common.transport.RfcommTransport;
 
 /**
- * A <code>Service</code> that helps manage the state of a
- * {@link RemoteMessenger} when accessed from multiple <code>Contexts</code>.
- * Components can bind to subclasses of this <code>Service</code> and get a
- * {@link RemoteMessenger} instance as a <code>Binder</code> implementation.
- * This class does not yet support IPC, although future implementations might.
+ * A <code>Service</code> that shares one {@link RemoteMessenger} connection
+ * between every component that binds to it. Components can bind to
+ * subclasses of this <code>Service</code> and get a
+ * {@link SharedRemoteMessenger} as a <code>Binder</code> implementation.
+ * Each component should open its own client with
+ * {@link SharedRemoteMessenger#openClient()}, so that it has its own
+ * <code>Callback</code> and can filter the messages it receives. The link is
+ * closed only once no client wants it, or when every component has unbound.<br/>
+ * <br/>
+ * Components in other processes can use a {@link RemoteMessengerProxy},
+ * which binds with {@link #ACTION_BIND_IPC} and exchanges messages with this
+ * <code>Service</code> over a <code>Messenger</code>, several to each IPC
+ * call. Subclasses enable this by overriding {@link #onCreateIpcSender()}
+ * and {@link #onCreateIpcReceiver()}.
  * 
  * @author Joshua Brown
  * 
@@ -32,16 +65,145 @@ import com.keyboardr.glassremote.common.sender.MessageSender;
  */
 public abstract class RemoteMessengerService<S, R> extends Service {
 
-	private final RemoteConnectionBinder mBinder = new RemoteConnectionBinder();
+	/**
+	 * Action of an <code>Intent</code> that binds to the cross-process
+	 * <code>Messenger</code> interface rather than the local
+	 * <code>Binder</code>
+	 */
+	public static final String ACTION_BIND_IPC = "com.keyboardr.glassremote.client.action.BIND_IPC";
 
 	private final RemoteMessenger<S, R> mMessenger;
 
-	private class RemoteConnectionBinder extends Binder implements
-			RemoteMessenger<S, R> {
+	/**
+	 * Clients in this process, opened through the <code>Binder</code>
+	 */
+	private final CopyOnWriteArrayList<Client> mClients = new CopyOnWriteArrayList<Client>();
+
+	/**
+	 * Clients in other processes, by the <code>Binder</code> of their
+	 * <code>Messenger</code>. Only used on the main thread.
+	 */
+	private final HashMap<IBinder, Client> mIpcClients = new HashMap<IBinder, Client>();
+
+	private final Client mDefaultClient = new Client(null, null);
+
+	private final RemoteConnectionBinder mBinder = new RemoteConnectionBinder();
+
+	private final Handler mIpcHandler = new IpcHandler();
+
+	private final Messenger mIpcMessenger = new Messenger(mIpcHandler);
+
+	private MessageSender<R> mIpcSender;
+	private MessageReceiver<S> mIpcReceiver;
+
+	/**
+	 * Whether the clients have been told the link is up, and the device it
+	 * is up to. Set on the callback thread.
+	 */
+	private volatile boolean mLinkUp;
+	private volatile BluetoothDevice mLinkDevice;
+
+	/**
+	 * Fans events and messages from the shared connection out to every
+	 * client. Called on the callback thread.
+	 */
+	private final RemoteMessenger.BatchCallback<R> mDispatcher = new RemoteMessenger.BatchCallback<R>() {
+
+		@Override
+		public void onConnected(BluetoothDevice remoteDevice) {
+			mLinkDevice = remoteDevice;
+			mLinkUp = true;
+			mDefaultClient.onConnected(remoteDevice);
+			for (Client client : mClients) {
+				client.onConnected(remoteDevice);
+			}
+		}
+
+		@Override
+		public void onConnectionFailed() {
+			mLinkUp = false;
+			mDefaultClient.onConnectionFailed();
+			for (Client client : mClients) {
+				client.onConnectionFailed();
+			}
+		}
+
+		@Override
+		public void onDisconnected(BluetoothDevice remoteDevice) {
+			mLinkUp = false;
+			mDefaultClient.onDisconnected(remoteDevice);
+			for (Client client : mClients) {
+				client.onDisconnected(remoteDevice);
+			}
+		}
+
+		@Override
+		public void onReceiveMessage(R message) {
+			mDefaultClient.onReceiveMessage(message);
+			for (Client client : mClients) {
+				client.onReceiveMessage(message);
+			}
+		}
+
+		@Override
+		public void onReceiveMessages(List<? extends R> messages) {
+			mDefaultClient.onReceiveMessages(messages);
+			for (Client client : mClients) {
+				client.onReceiveMessages(messages);
+			}
+		}
+	};
+
+	/**
+	 * One component's view of the shared connection. The callback, filter,
+	 * callback executor and metrics listener of a client opened through
+	 * {@link SharedRemoteMessenger#openClient()} are its own; only the
+	 * default client configures the connection itself.
+	 */
+	private class Client implements RemoteMessenger<S, R> {
+
+		private final MessageFilter<? super R> mFilter;
+
+		/**
+		 * The callback of a client in another process, held strongly since no
+		 * component keeps it alive, or <code>null</code>
+		 */
+		private final IpcCallback mIpcCallback;
+
+		private volatile WeakReference<Callback<? super R>> mCallback = new WeakReference<Callback<? super R>>(
+				null);
+
+		/**
+		 * Whether this client wants the link open. Guarded by the service.
+		 */
+		private boolean mHolding;
+
+		private volatile boolean mClosed;
+
+		/**
+		 * Runs this client's callbacks, or <code>null</code> to run them on
+		 * the connection's callback thread
+		 */
+		private volatile KeyedExecutor mExecutor;
+		private volatile KeyedExecutor.KeySelector<? super R> mKeySelector;
+
+		private MetricsReporter mMetricsReporter;
+
+		Client(MessageFilter<? super R> filter, IpcCallback ipcCallback) {
+			mFilter = filter;
+			mIpcCallback = ipcCallback;
+		}
+
+		private Callback<? super R> getCallback() {
+			if (mIpcCallback != null) {
+				return mIpcCallback;
+			}
+			return mCallback.get();
+		}
 
 		@Override
 		public void setCallback(Callback<? super R> callback) {
-			mMessenger.setCallback(callback);
+			mCallback = new WeakReference<Callback<? super R>>(callback);
 		}
 
 		@Override
@@ -51,17 +213,298 @@ public abstract class RemoteMessengerService<S, R> extends Service {
 
 		@Override
 		public void requestConnect() {
+			if (mClosed) {
+				throw new IllegalStateException("Client closed");
+			}
+			hold(this);
+			if (mLinkUp && mMessenger.isConnected()) {
+				// The other clients were told when the link came up
+				final BluetoothDevice remoteDevice = mLinkDevice;
+				mIpcHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						onConnected(remoteDevice);
+					}
+				});
+				return;
+			}
 			mMessenger.requestConnect();
 		}
 
 		@Override
 		public void disconnect() {
-			mMessenger.disconnect();
+			release(this);
+		}
+
+		@Override
+		public SendFuture sendMessage(S message) throws IllegalStateException {
+			return mMessenger.sendMessage(message);
+		}
+
+		/**
+		 * Batching is done once for the shared connection, so only the
+		 * default client may change the window
+		 * 
+		 * @throws UnsupportedOperationException
+		 *             if this client was opened through
+		 *             {@link SharedRemoteMessenger#openClient()}
+		 */
+		@Override
+		public void setDeliveryWindow(long windowMillis) {
+			if (this != mDefaultClient) {
+				throw new UnsupportedOperationException(
+						"The delivery window is shared; set it on the service");
+			}
+			mMessenger.setDeliveryWindow(windowMillis);
+		}
+
+		@Override
+		public void setCallbackExecutor(Executor executor) {
+			setCallbackExecutor(executor, null);
 		}
 
 		@Override
-		public void sendMessage(S message) throws IllegalStateException {
-			mMessenger.sendMessage(message);
+		public void setCallbackExecutor(Executor executor,
+				KeyedExecutor.KeySelector<? super R> keySelector) {
+			if (this == mDefaultClient) {
+				mMessenger.setCallbackExecutor(executor, keySelector);
+				return;
+			}
+			// Applied as messages are fanned out, so other clients keep theirs
+			mKeySelector = keySelector;
+			mExecutor = executor == null ? null : new KeyedExecutor(executor);
+		}
+
+		@Override
+		public MetricsSnapshot getMetrics() {
+			return mMessenger.getMetrics();
+		}
+
+		@Override
+		public void setMetricsListener(MetricsReporter.Listener listener,
+				long intervalMillis) {
+			if (this == mDefaultClient) {
+				mMessenger.setMetricsListener(listener, intervalMillis);
+				return;
+			}
+			synchronized (this) {
+				if (mMetricsReporter == null) {
+					mMetricsReporter = new MetricsReporter(new Handler(
+							Looper.getMainLooper()),
+							new MetricsReporter.Source() {
+
+								@Override
+								public MetricsSnapshot getMetrics() {
+									return mMessenger.getMetrics();
+								}
+							});
+				}
+				mMetricsReporter.setListener(listener, intervalMillis);
+			}
+		}
+
+		void close() {
+			mClosed = true;
+			mCallback = new WeakReference<Callback<? super R>>(null);
+			synchronized (this) {
+				if (mMetricsReporter != null) {
+					mMetricsReporter.setListener(null, 0);
+				}
+			}
+			release(this);
+		}
+
+		/**
+		 * Runs a callback on this client's executor, if it has one, in order
+		 * with the others of the same key
+		 */
+		private void run(Object key, Runnable callback) {
+			KeyedExecutor executor = mExecutor;
+			if (executor == null) {
+				callback.run();
+			} else {
+				executor.execute(key, callback);
+			}
+		}
+
+		void onConnected(final BluetoothDevice remoteDevice) {
+			run(this, new Runnable() {
+
+				@Override
+				public void run() {
+					Callback<? super R> callback = getCallback();
+					if (callback != null && !mClosed) {
+						callback.onConnected(remoteDevice);
+					}
+				}
+			});
+		}
+
+		void onConnectionFailed() {
+			run(this, new Runnable() {
+
+				@Override
+				public void run() {
+					Callback<? super R> callback = getCallback();
+					if (callback != null && !mClosed) {
+						callback.onConnectionFailed();
+					}
+				}
+			});
+		}
+
+		void onDisconnected(final BluetoothDevice remoteDevice) {
+			run(this, new Runnable() {
+
+				@Override
+				public void run() {
+					Callback<? super R> callback = getCallback();
+					if (callback != null && !mClosed) {
+						callback.onDisconnected(remoteDevice);
+					}
+				}
+			});
+		}
+
+		void onReceiveMessage(R message) {
+			if (mFilter == null || mFilter.accept(message)) {
+				deliver(message);
+			}
+		}
+
+		private void deliver(final R message) {
+			run(getKey(message), new Runnable() {
+
+				@Override
+				public void run() {
+					Callback<? super R> callback = getCallback();
+					if (callback != null && !mClosed) {
+						callback.onReceiveMessage(message);
+					}
+				}
+			});
+		}
+
+		void onReceiveMessages(List<? extends R> messages) {
+			final List<R> accepted = new ArrayList<R>(messages.size());
+			for (R message : messages) {
+				if (mFilter == null || mFilter.accept(message)) {
+					accepted.add(message);
+				}
+			}
+			if (accepted.isEmpty()) {
+				return;
+			}
+			if (mExecutor != null && mKeySelector != null) {
+				// Keyed messages may run in parallel, so deliver them singly
+				for (R message : accepted) {
+					deliver(message);
+				}
+				return;
+			}
+			run(this, new Runnable() {
+
+				@Override
+				public void run() {
+					Callback<? super R> callback = getCallback();
+					if (callback != null && !mClosed) {
+						RemoteMessengerImpl.deliverBatch(callback, accepted);
+					}
+				}
+			});
+		}
+
+		/**
+		 * Gets the ordering key of a message. Unkeyed messages share the
+		 * client's key and stay ordered with its connection events.
+		 */
+		private Object getKey(R message) {
+			KeyedExecutor.KeySelector<? super R> keySelector = mKeySelector;
+			Object key = keySelector == null ? null : keySelector
+					.getKey(message);
+			return key == null ? this : key;
+		}
+	}
+
+	private class RemoteConnectionBinder extends Binder implements
+			SharedRemoteMessenger<S, R> {
+
+		@Override
+		public RemoteMessenger<S, R> openClient() {
+			return openClient(null);
+		}
+
+		@Override
+		public RemoteMessenger<S, R> openClient(MessageFilter<? super R> filter) {
+			Client client = new Client(filter, null);
+			mClients.add(client);
+			return client;
+		}
+
+		@Override
+		public void closeClient(RemoteMessenger<S, R> client) {
+			if (client instanceof RemoteMessengerService.Client
+					&& mClients.remove(client)) {
+				((Client) client).close();
+			}
+		}
+
+		@Override
+		public int getClientCount() {
+			return mClients.size();
+		}
+
+		@Override
+		public void setCallback(Callback<? super R> callback) {
+			mDefaultClient.setCallback(callback);
+		}
+
+		@Override
+		public boolean isConnected() {
+			return mDefaultClient.isConnected();
+		}
+
+		@Override
+		public void requestConnect() {
+			mDefaultClient.requestConnect();
+		}
+
+		@Override
+		public void disconnect() {
+			mDefaultClient.disconnect();
+		}
+
+		@Override
+		public SendFuture sendMessage(S message) throws IllegalStateException {
+			return mDefaultClient.sendMessage(message);
+		}
+
+		@Override
+		public void setDeliveryWindow(long windowMillis) {
+			mDefaultClient.setDeliveryWindow(windowMillis);
+		}
+
+		@Override
+		public void setCallbackExecutor(Executor executor) {
+			mDefaultClient.setCallbackExecutor(executor);
+		}
+
+		@Override
+		public void setCallbackExecutor(Executor executor,
+				KeyedExecutor.KeySelector<? super R> keySelector) {
+			mDefaultClient.setCallbackExecutor(executor, keySelector);
+		}
+
+		@Override
+		public MetricsSnapshot getMetrics() {
+			return mDefaultClient.getMetrics();
+		}
+
+		@Override
+		public void setMetricsListener(MetricsReporter.Listener listener,
+				long intervalMillis) {
+			mDefaultClient.setMetricsListener(listener, intervalMillis);
 		}
 
 	}
@@ -85,7 +528,72 @@ public abstract class RemoteMessengerService<S, R> extends Service {
 	 */
 	protected RemoteMessengerService(UUID uuid, MessageSender<S> sender,
 			MessageReceiver<R> receiver) {
-		mMessenger = new RemoteMessengerImpl<S, R>(uuid, sender, receiver);
+		this(uuid, sender, receiver, null);
+	}
+
+	/**
+	 * Class constructor. Concrete implementations must have a zero-argument
+	 * constructor.
+	 * 
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote server and this
+	 *            client. UUIDs can be obtained at <a
+	 *            href="http://www.uuidgenerator.net/">http
+	 *            ://www.uuidgenerator.net/</a> and instantiated using
+	 *            {@link UUID#fromString(String)}.
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> messages
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> messages
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected RemoteMessengerService(UUID uuid, MessageSender<S> sender,
+			MessageReceiver<R> receiver, MessageWriter.Config writerConfig) {
+		this(uuid, sender, receiver, writerConfig, null);
+	}
+
+	/**
+	 * Class constructor. Concrete implementations must have a zero-argument
+	 * constructor.
+	 * 
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote server and this
+	 *            client. UUIDs can be obtained at <a
+	 *            href="http://www.uuidgenerator.net/">http
+	 *            ://www.uuidgenerator.net/</a> and instantiated using
+	 *            {@link UUID#fromString(String)}.
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> messages
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> messages
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 * @param reconnectPolicy
+	 *            how to reconnect when the link drops, or <code>null</code> to
+	 *            stay disconnected until a client requests a connection
+	 */
+	protected RemoteMessengerService(UUID uuid, MessageSender<S> sender,
+			MessageReceiver<R> receiver, MessageWriter.Config writerConfig,
+			ReconnectPolicy reconnectPolicy) {
+		mMessenger = RemoteMessenger.Factory.getRemoteMessenger(
+				new RfcommTransport(BluetoothAdapter.getDefaultAdapter(), null,
+						uuid), sender, receiver, writerConfig, reconnectPolicy);
+		mMessenger.setCallback(mDispatcher);
+	}
+
+	@Override
+	public void onCreate() {
+		super.onCreate();
+		// Registered on the application context, so SDP results keep the
+		// shared cache warm for as long as the process lives
+		DeviceDiscoveryCache.getInstance().register(this);
 	}
 
 	@Override
@@ -96,15 +604,266 @@ public abstract class RemoteMessengerService<S, R> extends Service {
 
 	@Override
 	public IBinder onBind(Intent intent) {
-		mMessenger.setCallback(null);
-		return mBinder;
+		if (!ACTION_BIND_IPC.equals(intent.getAction())) {
+			return mBinder;
+		}
+		if (mIpcSender == null || mIpcReceiver == null) {
+			mIpcSender = onCreateIpcSender();
+			mIpcReceiver = onCreateIpcReceiver();
+			if (mIpcSender == null || mIpcReceiver == null) {
+				// Cross-process clients are not supported
+				return null;
+			}
+		}
+		return mIpcMessenger.getBinder();
 	}
 
 	@Override
 	public boolean onUnbind(Intent intent) {
-		mMessenger.setCallback(null);
-		mMessenger.disconnect();
+		if (ACTION_BIND_IPC.equals(intent.getAction())) {
+			for (Client client : mIpcClients.values()) {
+				mClients.remove(client);
+				client.close();
+			}
+			mIpcClients.clear();
+		} else {
+			for (Client client : mClients) {
+				if (client.mIpcCallback == null) {
+					mClients.remove(client);
+					client.close();
+				}
+			}
+			mDefaultClient.setCallback(null);
+			release(mDefaultClient);
+		}
 		return super.onUnbind(intent);
 	}
 
+	/**
+	 * Creates the <code>MessageSender</code> that encodes received
+	 * <code>R</code> messages for clients in other processes. Called on the
+	 * main thread the first time such a client binds. The default
+	 * implementation returns <code>null</code>, which refuses cross-process
+	 * clients.
+	 * 
+	 * @return a <code>MessageSender</code> matching the
+	 *         <code>MessageReceiver</code> passed to
+	 *         {@link RemoteMessengerProxy}, or <code>null</code>
+	 */
+	protected MessageSender<R> onCreateIpcSender() {
+		return null;
+	}
+
+	/**
+	 * Creates the <code>MessageReceiver</code> that decodes <code>S</code>
+	 * messages sent by clients in other processes. Called on the main thread
+	 * the first time such a client binds. The default implementation returns
+	 * <code>null</code>, which refuses cross-process clients.
+	 * 
+	 * @return a <code>MessageReceiver</code> matching the
+	 *         <code>MessageSender</code> passed to
+	 *         {@link RemoteMessengerProxy}, or <code>null</code>
+	 */
+	protected MessageReceiver<S> onCreateIpcReceiver() {
+		return null;
+	}
+
+	private synchronized void hold(Client client) {
+		client.mHolding = true;
+	}
+
+	/**
+	 * Releases <code>client</code>'s hold on the link, and closes the link if
+	 * no other client holds it
+	 */
+	private void release(Client client) {
+		synchronized (this) {
+			client.mHolding = false;
+			if (mDefaultClient.mHolding) {
+				return;
+			}
+			for (Client other : mClients) {
+				if (other.mHolding) {
+					return;
+				}
+			}
+		}
+		mMessenger.disconnect();
+	}
+
+	/**
+	 * Forwards events and messages to a client in another process. Messages
+	 * received in one turn of the main thread's <code>Looper</code> are
+	 * encoded together and sent as one <code>Message</code>.
+	 */
+	private class IpcCallback implements RemoteMessenger.BatchCallback<R> {
+
+		private final Messenger mReplyTo;
+		private final ByteArrayOutputStream mPending = new ByteArrayOutputStream();
+		private boolean mFlushScheduled;
+
+		private final Runnable mFlush = new Runnable() {
+
+			@Override
+			public void run() {
+				flush();
+			}
+		};
+
+		IpcCallback(Messenger replyTo) {
+			mReplyTo = replyTo;
+		}
+
+		@Override
+		public void onConnected(BluetoothDevice remoteDevice) {
+			sendEvent(IpcProtocol.MSG_CONNECTED, remoteDevice);
+		}
+
+		@Override
+		public void onConnectionFailed() {
+			sendEvent(IpcProtocol.MSG_CONNECTION_FAILED, null);
+		}
+
+		@Override
+		public void onDisconnected(BluetoothDevice remoteDevice) {
+			sendEvent(IpcProtocol.MSG_DISCONNECTED, remoteDevice);
+		}
+
+		@Override
+		public void onReceiveMessage(R message) {
+			onReceiveMessages(Collections.singletonList(message));
+		}
+
+		@Override
+		public synchronized void onReceiveMessages(List<? extends R> messages) {
+			// The sender is shared by every cross-process client
+			synchronized (mIpcSender) {
+				mIpcSender.setOutputStream(mPending);
+				for (R message : messages) {
+					mIpcSender.sendMessage(message);
+				}
+			}
+			if (!mFlushScheduled) {
+				mFlushScheduled = true;
+				mIpcHandler.post(mFlush);
+			}
+		}
+
+		synchronized void flush() {
+			mFlushScheduled = false;
+			if (mPending.size() == 0) {
+				return;
+			}
+			Bundle data = new Bundle();
+			data.putByteArray(IpcProtocol.KEY_DATA, mPending.toByteArray());
+			mPending.reset();
+			Message msg = Message.obtain(null, IpcProtocol.MSG_RECEIVE);
+			msg.setData(data);
+			send(msg);
+		}
+
+		private void sendEvent(int what, BluetoothDevice remoteDevice) {
+			// Messages received before the event go first
+			flush();
+			Message msg = Message.obtain(null, what);
+			if (remoteDevice != null) {
+				Bundle data = new Bundle();
+				data.putParcelable(IpcProtocol.KEY_DEVICE, remoteDevice);
+				msg.setData(data);
+			}
+			send(msg);
+		}
+
+		void send(Message msg) {
+			try {
+				mReplyTo.send(msg);
+			} catch (RemoteException e) {
+				// The client's process has died
+				mIpcHandler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						closeIpcClient(mReplyTo.getBinder());
+					}
+				});
+			}
+		}
+	}
+
+	private void closeIpcClient(IBinder key) {
+		Client client = mIpcClients.remove(key);
+		if (client != null) {
+			mClients.remove(client);
+			client.close();
+		}
+	}
+
+	/**
+	 * Sends the messages of a {@link IpcProtocol#MSG_SEND} and reports back
+	 * once they have all been written
+	 */
+	private void sendIpcMessages(final Client client, final int batch,
+			byte[] data) {
+		List<SendFuture> futures = new ArrayList<SendFuture>();
+		for (S message : IpcProtocol.decode(mIpcReceiver, data)) {
+			try {
+				futures.add(mMessenger.sendMessage(message));
+			} catch (IllegalStateException e) {
+				futures.add(SendFuture.failed(e));
+			}
+		}
+		SendFuture.allOf(futures).addListener(new SendFuture.Listener() {
+
+			@Override
+			public void onComplete(SendFuture future) {
+				Message msg = Message.obtain(null, IpcProtocol.MSG_SEND_RESULT);
+				msg.arg1 = batch;
+				msg.arg2 = future.isSuccessful() ? 1 : 0;
+				client.mIpcCallback.send(msg);
+			}
+		});
+	}
+
+	/**
+	 * Handles requests from clients in other processes on the main thread
+	 */
+	private class IpcHandler extends Handler {
+
+		public IpcHandler() {
+			super(Looper.getMainLooper());
+		}
+
+		@Override
+		public void handleMessage(Message msg) {
+			if (msg.replyTo == null) {
+				return;
+			}
+			IBinder key = msg.replyTo.getBinder();
+			Client client = mIpcClients.get(key);
+			if (client == null) {
+				if (msg.what == IpcProtocol.MSG_REGISTER) {
+					client = new Client(null, new IpcCallback(msg.replyTo));
+					mIpcClients.put(key, client);
+					mClients.add(client);
+				}
+				return;
+			}
+			switch (msg.what) {
+			case IpcProtocol.MSG_UNREGISTER:
+				closeIpcClient(key);
+				break;
+			case IpcProtocol.MSG_CONNECT:
+				client.requestConnect();
+				break;
+			case IpcProtocol.MSG_DISCONNECT:
+				client.disconnect();
+				break;
+			case IpcProtocol.MSG_SEND:
+				sendIpcMessages(client, msg.arg1,
+						msg.getData().getByteArray(IpcProtocol.KEY_DATA));
+				break;
+			}
+		}
+	}
+
 }
@@ -0,0 +1,78 @@
+package com.keyboardr.glassremote.client;
+
+import com.keyboardr.glassremote.common.rpc.RpcEndpoint;
+import com.keyboardr.glassremote.common.rpc.RpcFuture;
+
+/**
+ * A {@link RemoteMessenger} that can also make request/response calls to the
+ * remote server. Any number of calls may be in flight at once over the one
+ * connection; each response is matched to its call by a correlation id.
+ * There should be an <code>RpcMessageService&lt;R, S></code> running on the
+ * remote server.<br/>
+ * <br/>
+ * {@link #sendMessage(Object)} and
+ * {@link RemoteMessenger.Callback#onReceiveMessage(Object)} still carry
+ * one-way messages alongside the calls. Responses complete their
+ * {@link RpcFuture} on the connection's reader thread without waiting for the
+ * callback thread. Requests from the remote server are passed to the
+ * {@link RpcEndpoint.RequestHandler} on the callback thread, which is the main
+ * thread unless {@link #setCallbackExecutor(java.util.concurrent.Executor)
+ * setCallbackExecutor()} chose another.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            the type of requests and messages this
+ *            <code>RpcRemoteMessenger</code> will send to the remote server
+ * @param <R>
+ *            the type of responses and messages this
+ *            <code>RpcRemoteMessenger</code> will receive from the remote
+ *            server
+ */
+public interface RpcRemoteMessenger<S, R> extends RemoteMessenger<S, R> {
+
+	/**
+	 * Sends a request to the remote server with a timeout of
+	 * {@link RpcEndpoint#DEFAULT_TIMEOUT_MILLIS}. May be called from the main
+	 * thread; returns without waiting for the response.
+	 * 
+	 * @param request
+	 *            the <code>S</code> request to send
+	 * @return an <code>RpcFuture</code> for the response. It fails with an
+	 *         <code>IOException</code> if the <code>RpcRemoteMessenger</code>
+	 *         is not connected.
+	 */
+	public RpcFuture<R> call(S request);
+
+	/**
+	 * Sends a request to the remote server. May be called from the main
+	 * thread; returns without waiting for the response.
+	 * 
+	 * @param request
+	 *            the <code>S</code> request to send
+	 * @param timeoutMillis
+	 *            how long to wait for the response, or <code>0</code> to wait
+	 *            until the connection is lost
+	 * @return an <code>RpcFuture</code> for the response. It fails with an
+	 *         <code>IOException</code> if the <code>RpcRemoteMessenger</code>
+	 *         is not connected.
+	 */
+	public RpcFuture<R> call(S request, long timeoutMillis);
+
+	/**
+	 * Sets the handler for requests made by the remote server. The handler is
+	 * called on the callback thread.
+	 * 
+	 * @param handler
+	 *            the <code>RequestHandler</code>, or <code>null</code> to
+	 *            answer every request with an error
+	 */
+	public void setRequestHandler(RpcEndpoint.RequestHandler<S, R> handler);
+
+	/**
+	 * Gets the number of calls waiting for a response
+	 * 
+	 * @return the number of calls in flight
+	 */
+	public int getPendingCallCount();
+}
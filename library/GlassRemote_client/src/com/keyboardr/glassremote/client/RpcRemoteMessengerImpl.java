@@ -0,0 +1,233 @@
+package com.keyboardr.glassremote.client;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.metrics.MetricsReporter;
+import com.keyboardr.glassremote.common.metrics.MetricsSnapshot;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.rpc.RpcEndpoint;
+import com.keyboardr.glassremote.common.rpc.RpcFrame;
+import com.keyboardr.glassremote.common.rpc.RpcFrameReader;
+import com.keyboardr.glassremote.common.rpc.RpcFrameSender;
+import com.keyboardr.glassremote.common.rpc.RpcFuture;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.transport.Transport;
+
+/**
+ * Concrete implementation of {@link RpcRemoteMessenger}. Wraps a
+ * {@link RemoteMessengerImpl} that exchanges {@link RpcFrame RpcFrames} and
+ * completes calls from its reader thread.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            the type of requests and messages sent to the remote server
+ * @param <R>
+ *            the type of responses and messages received from the remote
+ *            server
+ */
+class RpcRemoteMessengerImpl<S, R> implements RpcRemoteMessenger<S, R>,
+		RemoteMessengerImpl.Interceptor<RpcFrame<R>>, RpcEndpoint.FrameSink<S> {
+
+	private final RemoteMessengerImpl<RpcFrame<S>, RpcFrame<R>> mMessenger;
+	private final RpcEndpoint<S, R> mEndpoint;
+
+	private WeakReference<Callback<? super R>> mCallback = new WeakReference<Callback<? super R>>(
+			null);
+
+	private final BatchCallback<RpcFrame<R>> mFrameCallback = new BatchCallback<RpcFrame<R>>() {
+
+		@Override
+		public void onConnected(BluetoothDevice remoteDevice) {
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				callback.onConnected(remoteDevice);
+			}
+		}
+
+		@Override
+		public void onConnectionFailed() {
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				callback.onConnectionFailed();
+			}
+		}
+
+		@Override
+		public void onDisconnected(BluetoothDevice remoteDevice) {
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				callback.onDisconnected(remoteDevice);
+			}
+		}
+
+		@Override
+		public void onReceiveMessage(RpcFrame<R> frame) {
+			if (mEndpoint.onReceiveFrame(frame)) {
+				return;
+			}
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				callback.onReceiveMessage(frame.getPayload());
+			}
+		}
+
+		@Override
+		public void onReceiveMessages(List<? extends RpcFrame<R>> frames) {
+			List<R> messages = new ArrayList<R>(frames.size());
+			for (RpcFrame<R> frame : frames) {
+				if (!mEndpoint.onReceiveFrame(frame)) {
+					messages.add(frame.getPayload());
+				}
+			}
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null && !messages.isEmpty()) {
+				RemoteMessengerImpl.deliverBatch(callback, messages);
+			}
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> used to reach the remote server
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> payloads
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> payloads
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 * @param reconnectPolicy
+	 *            how to reconnect when the link drops, or <code>null</code> to
+	 *            stay disconnected until {@link #requestConnect()} is called
+	 */
+	public RpcRemoteMessengerImpl(Transport transport, MessageSender<S> sender,
+			MessageReceiver<R> receiver, MessageWriter.Config writerConfig,
+			ReconnectPolicy reconnectPolicy) {
+		mMessenger = new RemoteMessengerImpl<RpcFrame<S>, RpcFrame<R>>(
+				transport, new RpcFrameSender<S>(sender),
+				new RpcFrameReader<R>(receiver), writerConfig, reconnectPolicy);
+		mEndpoint = new RpcEndpoint<S, R>(this);
+		mMessenger.setInterceptor(this);
+		mMessenger.setCallback(mFrameCallback);
+	}
+
+	@Override
+	public void setCallback(Callback<? super R> callback) {
+		mCallback = new WeakReference<Callback<? super R>>(callback);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return mMessenger.isConnected();
+	}
+
+	@Override
+	public void requestConnect() {
+		mMessenger.requestConnect();
+	}
+
+	@Override
+	public void disconnect() {
+		mMessenger.disconnect();
+	}
+
+	@Override
+	public SendFuture sendMessage(S message) throws IllegalStateException {
+		return mEndpoint.send(message);
+	}
+
+	@Override
+	public void setDeliveryWindow(long windowMillis) {
+		mMessenger.setDeliveryWindow(windowMillis);
+	}
+
+	@Override
+	public MetricsSnapshot getMetrics() {
+		return mMessenger.getMetrics();
+	}
+
+	@Override
+	public void setMetricsListener(MetricsReporter.Listener listener,
+			long intervalMillis) {
+		mMessenger.setMetricsListener(listener, intervalMillis);
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor executor) {
+		mMessenger.setCallbackExecutor(executor);
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor executor,
+			final KeyedExecutor.KeySelector<? super R> keySelector) {
+		if (keySelector == null) {
+			mMessenger.setCallbackExecutor(executor);
+			return;
+		}
+		mMessenger.setCallbackExecutor(executor,
+				new KeyedExecutor.KeySelector<RpcFrame<R>>() {
+
+					@Override
+					public Object getKey(RpcFrame<R> frame) {
+						R payload = frame.getPayload();
+						return payload == null ? null : keySelector
+								.getKey(payload);
+					}
+				});
+	}
+
+	@Override
+	public RpcFuture<R> call(S request) {
+		return mEndpoint.call(request);
+	}
+
+	@Override
+	public RpcFuture<R> call(S request, long timeoutMillis) {
+		return mEndpoint.call(request, timeoutMillis);
+	}
+
+	@Override
+	public void setRequestHandler(RpcEndpoint.RequestHandler<S, R> handler) {
+		mEndpoint.setRequestHandler(handler);
+	}
+
+	@Override
+	public int getPendingCallCount() {
+		return mEndpoint.getPendingCount();
+	}
+
+	@Override
+	public SendFuture sendFrame(RpcFrame<S> frame) {
+		return mMessenger.sendMessage(frame);
+	}
+
+	@Override
+	public boolean onInterceptMessage(RpcFrame<R> frame) {
+		if (!frame.isControl()) {
+			// Requests and messages run application code on the callback thread
+			return false;
+		}
+		mEndpoint.onReceiveFrame(frame);
+		return true;
+	}
+
+	@Override
+	public void onClosed() {
+		mEndpoint.failAll(new IOException("Connection closed"));
+	}
+
+}
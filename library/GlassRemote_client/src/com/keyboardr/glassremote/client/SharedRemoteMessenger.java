@@ -0,0 +1,134 @@
+package com.keyboardr.glassremote.client;
+
+import com.keyboardr.glassremote.common.KeyedExecutor;
+
+/**
+ * A {@link RemoteMessenger} whose single connection to the remote server is
+ * shared by several clients, such as the components bound to a
+ * {@link RemoteMessengerService}. Each client opens its own
+ * <code>RemoteMessenger</code> with {@link #openClient()}, which has its own
+ * <code>Callback</code> and only receives the messages its
+ * {@link MessageFilter} accepts. The link is opened when any client requests
+ * a connection and closed once none still wants it.<br/>
+ * <br/>
+ * The methods of the <code>SharedRemoteMessenger</code> itself act on a
+ * default client, so code written for a plain <code>RemoteMessenger</code>
+ * keeps working. The default client's callback executor, delivery window and
+ * metrics listener configure the connection; those of other clients only
+ * affect that client, and they cannot change the delivery window.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            the type of messages sent to the remote server
+ * @param <R>
+ *            the type of messages received from the remote server
+ */
+public interface SharedRemoteMessenger<S, R> extends RemoteMessenger<S, R> {
+
+	/**
+	 * Selects the messages a client of a <code>SharedRemoteMessenger</code>
+	 * receives. Called on the callback thread.
+	 * 
+	 * @param <M>
+	 *            message type to filter
+	 */
+	public static interface MessageFilter<M> {
+		/**
+		 * Checks if a message should be delivered to the client
+		 * 
+		 * @param message
+		 *            the received message
+		 * @return <code>true</code> to deliver the message
+		 */
+		public boolean accept(M message);
+	}
+
+	/**
+	 * Common {@link MessageFilter MessageFilters}
+	 */
+	public static class Filters {
+
+		private Filters() {
+		}
+
+		/**
+		 * Accepts messages that are instances of <code>type</code>
+		 * 
+		 * @param type
+		 *            the class of messages to accept
+		 */
+		public static <M> MessageFilter<M> ofType(final Class<?> type) {
+			return new MessageFilter<M>() {
+
+				@Override
+				public boolean accept(M message) {
+					return type.isInstance(message);
+				}
+			};
+		}
+
+		/**
+		 * Accepts messages whose key, as chosen by <code>keySelector</code>,
+		 * equals <code>key</code>
+		 * 
+		 * @param keySelector
+		 *            picks the key of each message
+		 * @param key
+		 *            the key of messages to accept, which may be
+		 *            <code>null</code>
+		 */
+		public static <M> MessageFilter<M> withKey(
+				final KeyedExecutor.KeySelector<? super M> keySelector,
+				final Object key) {
+			return new MessageFilter<M>() {
+
+				@Override
+				public boolean accept(M message) {
+					Object messageKey = keySelector.getKey(message);
+					return key == null ? messageKey == null : key
+							.equals(messageKey);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Opens a client that receives every message
+	 * 
+	 * @return a <code>RemoteMessenger</code> sharing this connection. Its
+	 *         {@link RemoteMessenger#disconnect()} only closes the link if no
+	 *         other client wants it. Its callback executor and metrics
+	 *         listener are its own, and its
+	 *         {@link RemoteMessenger#setDeliveryWindow(long)} throws
+	 *         <code>UnsupportedOperationException</code>.
+	 */
+	public RemoteMessenger<S, R> openClient();
+
+	/**
+	 * Opens a client that receives the messages <code>filter</code> accepts.
+	 * Connection events are delivered to every client.
+	 * 
+	 * @param filter
+	 *            the <code>MessageFilter</code>, or <code>null</code> to
+	 *            receive every message
+	 * @return a <code>RemoteMessenger</code> sharing this connection
+	 */
+	public RemoteMessenger<S, R> openClient(MessageFilter<? super R> filter);
+
+	/**
+	 * Closes a client opened by {@link #openClient()}. It releases its hold on
+	 * the link and receives no further callbacks.
+	 * 
+	 * @param client
+	 *            the client to close
+	 */
+	public void closeClient(RemoteMessenger<S, R> client);
+
+	/**
+	 * Gets the number of open clients, including those in other processes
+	 * 
+	 * @return the number of clients
+	 */
+	public int getClientCount();
+}
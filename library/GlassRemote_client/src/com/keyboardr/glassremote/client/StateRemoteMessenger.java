@@ -0,0 +1,98 @@
+package com.keyboardr.glassremote.client;
+
+import java.util.Map;
+
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.sync.StatePublisher;
+
+/**
+ * A {@link RemoteMessenger} that keeps a keyed state map in sync with the
+ * remote server rather than exchanging individual messages. There should be a
+ * <code>StateMessageService&lt;V></code> running on the remote server.<br/>
+ * <br/>
+ * Each side publishes its own state and holds a copy of the other side's.
+ * Only keys whose value changed are sent, changes made within the
+ * {@link #setCoalesceWindow(long) coalescing window} are sent together, and
+ * the whole state is sent again whenever the connection is (re)established,
+ * so both copies catch up after the link drops.<br/>
+ * <br/>
+ * {@link #sendMessage(Object)} applies a map of changes to the local state,
+ * where a <code>null</code> value removes the key, and may be called while
+ * disconnected. {@link RemoteMessenger.Callback#onReceiveMessage(Object)
+ * onReceiveMessage()} receives the keys of the remote state that changed,
+ * with <code>null</code> for removed keys; changes that arrive together are
+ * merged into one call.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <V>
+ *            the type of the state values. Values should be immutable and
+ *            implement <code>equals()</code>.
+ */
+public interface StateRemoteMessenger<V> extends
+		RemoteMessenger<Map<String, V>, Map<String, V>> {
+
+	/**
+	 * Sets the value of a key in the local state. May be called from the main
+	 * thread, and while disconnected.
+	 * 
+	 * @param key
+	 *            the key to set
+	 * @param value
+	 *            the new value, not <code>null</code>
+	 * @return a <code>SendFuture</code> for the delta carrying the change. It
+	 *         fails if the <code>StateRemoteMessenger</code> was not connected
+	 *         when the delta was due; the change is then sent once it
+	 *         connects.
+	 */
+	public SendFuture put(String key, V value);
+
+	/**
+	 * Removes a key from the local state
+	 * 
+	 * @param key
+	 *            the key to remove
+	 * @return a <code>SendFuture</code> for the delta carrying the change
+	 */
+	public SendFuture remove(String key);
+
+	/**
+	 * Gets a copy of the local state
+	 * 
+	 * @return a new map of keys to values
+	 */
+	public Map<String, V> getLocalState();
+
+	/**
+	 * Gets the value of a key in the remote state
+	 * 
+	 * @param key
+	 *            the key to look up
+	 * @return the last value received, or <code>null</code> if the key is not
+	 *         set
+	 */
+	public V getRemote(String key);
+
+	/**
+	 * Gets a copy of the remote state. After a disconnect it holds the last
+	 * state received until a new snapshot arrives.
+	 * 
+	 * @return a new map of keys to values
+	 */
+	public Map<String, V> getRemoteState();
+
+	/**
+	 * Sets how long local changes are collected before being sent. Defaults
+	 * to {@link StatePublisher#DEFAULT_COALESCE_MILLIS}.
+	 * 
+	 * @param windowMillis
+	 *            the coalescing window in milliseconds, or <code>0</code> to
+	 *            send every change immediately
+	 */
+	public void setCoalesceWindow(long windowMillis);
+
+	/**
+	 * Sends local changes waiting for the coalescing window to close
+	 */
+	public void flush();
+}
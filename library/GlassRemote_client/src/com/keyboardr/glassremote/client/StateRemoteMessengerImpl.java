@@ -0,0 +1,233 @@
+package com.keyboardr.glassremote.client;
+
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.metrics.MetricsReporter;
+import com.keyboardr.glassremote.common.metrics.MetricsSnapshot;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.sync.StateFrame;
+import com.keyboardr.glassremote.common.sync.StateFrameReader;
+import com.keyboardr.glassremote.common.sync.StateFrameSender;
+import com.keyboardr.glassremote.common.sync.StatePublisher;
+import com.keyboardr.glassremote.common.sync.StateReplica;
+import com.keyboardr.glassremote.common.transport.Transport;
+
+/**
+ * Concrete implementation of {@link StateRemoteMessenger}. Wraps a
+ * {@link RemoteMessengerImpl} that exchanges {@link StateFrame StateFrames},
+ * publishing the local state through a {@link StatePublisher} and applying
+ * received frames to a {@link StateReplica} on the callback thread.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <V>
+ *            the type of the state values
+ */
+class StateRemoteMessengerImpl<V> implements StateRemoteMessenger<V>,
+		StatePublisher.FrameSink<V> {
+
+	private final RemoteMessengerImpl<StateFrame<V>, StateFrame<V>> mMessenger;
+	private final StatePublisher<V> mPublisher;
+	private final StateReplica<V> mReplica = new StateReplica<V>();
+
+	private WeakReference<Callback<? super Map<String, V>>> mCallback = new WeakReference<Callback<? super Map<String, V>>>(
+			null);
+
+	private final BatchCallback<StateFrame<V>> mFrameCallback = new BatchCallback<StateFrame<V>>() {
+
+		@Override
+		public void onConnected(BluetoothDevice remoteDevice) {
+			// Bring the server up to date before anything else is sent
+			mPublisher.sendSnapshot();
+			Callback<? super Map<String, V>> callback = mCallback.get();
+			if (callback != null) {
+				callback.onConnected(remoteDevice);
+			}
+		}
+
+		@Override
+		public void onConnectionFailed() {
+			Callback<? super Map<String, V>> callback = mCallback.get();
+			if (callback != null) {
+				callback.onConnectionFailed();
+			}
+		}
+
+		@Override
+		public void onDisconnected(BluetoothDevice remoteDevice) {
+			Callback<? super Map<String, V>> callback = mCallback.get();
+			if (callback != null) {
+				callback.onDisconnected(remoteDevice);
+			}
+		}
+
+		@Override
+		public void onReceiveMessage(StateFrame<V> frame) {
+			deliver(mReplica.apply(frame));
+		}
+
+		@Override
+		public void onReceiveMessages(List<? extends StateFrame<V>> frames) {
+			Map<String, V> changes = new LinkedHashMap<String, V>();
+			for (StateFrame<V> frame : frames) {
+				changes.putAll(mReplica.apply(frame));
+			}
+			deliver(changes);
+		}
+
+		private void deliver(Map<String, V> changes) {
+			Callback<? super Map<String, V>> callback = mCallback.get();
+			if (callback != null && !changes.isEmpty()) {
+				callback.onReceiveMessage(changes);
+			}
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> used to reach the remote server
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>V</code> values
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>V</code> values
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing frames, or
+	 *            <code>null</code> for the defaults
+	 * @param reconnectPolicy
+	 *            how to reconnect when the link drops, or <code>null</code> to
+	 *            stay disconnected until {@link #requestConnect()} is called
+	 */
+	public StateRemoteMessengerImpl(Transport transport,
+			MessageSender<V> sender, MessageReceiver<V> receiver,
+			MessageWriter.Config writerConfig, ReconnectPolicy reconnectPolicy) {
+		mMessenger = new RemoteMessengerImpl<StateFrame<V>, StateFrame<V>>(
+				transport, new StateFrameSender<V>(sender),
+				new StateFrameReader<V>(receiver), writerConfig,
+				reconnectPolicy);
+		mPublisher = new StatePublisher<V>(this);
+		mMessenger.setCallback(mFrameCallback);
+	}
+
+	@Override
+	public void setCallback(Callback<? super Map<String, V>> callback) {
+		mCallback = new WeakReference<Callback<? super Map<String, V>>>(
+				callback);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return mMessenger.isConnected();
+	}
+
+	@Override
+	public void requestConnect() {
+		mMessenger.requestConnect();
+	}
+
+	@Override
+	public void disconnect() {
+		mMessenger.disconnect();
+	}
+
+	@Override
+	public SendFuture sendMessage(Map<String, V> changes) {
+		return mPublisher.putAll(changes);
+	}
+
+	@Override
+	public SendFuture put(String key, V value) {
+		return mPublisher.put(key, value);
+	}
+
+	@Override
+	public SendFuture remove(String key) {
+		return mPublisher.remove(key);
+	}
+
+	@Override
+	public Map<String, V> getLocalState() {
+		return mPublisher.getState();
+	}
+
+	@Override
+	public V getRemote(String key) {
+		return mReplica.get(key);
+	}
+
+	@Override
+	public Map<String, V> getRemoteState() {
+		return mReplica.getState();
+	}
+
+	@Override
+	public void setCoalesceWindow(long windowMillis) {
+		mPublisher.setCoalesceWindow(windowMillis);
+	}
+
+	@Override
+	public void flush() {
+		mPublisher.flush();
+	}
+
+	@Override
+	public void setDeliveryWindow(long windowMillis) {
+		mMessenger.setDeliveryWindow(windowMillis);
+	}
+
+	@Override
+	public MetricsSnapshot getMetrics() {
+		return mMessenger.getMetrics();
+	}
+
+	@Override
+	public void setMetricsListener(MetricsReporter.Listener listener,
+			long intervalMillis) {
+		mMessenger.setMetricsListener(listener, intervalMillis);
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor executor) {
+		mMessenger.setCallbackExecutor(executor);
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor executor,
+			final KeyedExecutor.KeySelector<? super Map<String, V>> keySelector) {
+		if (keySelector == null) {
+			mMessenger.setCallbackExecutor(executor);
+			return;
+		}
+		mMessenger.setCallbackExecutor(executor,
+				new KeyedExecutor.KeySelector<StateFrame<V>>() {
+
+					@Override
+					public Object getKey(StateFrame<V> frame) {
+						return keySelector.getKey(frame.getEntries());
+					}
+				});
+	}
+
+	@Override
+	public SendFuture sendFrame(StateFrame<V> frame) {
+		// Deltas are not queued while disconnected; the snapshot sent on
+		// connecting supersedes them
+		if (!mMessenger.isConnected()) {
+			throw new IllegalStateException("Not connected");
+		}
+		return mMessenger.sendMessage(frame);
+	}
+}
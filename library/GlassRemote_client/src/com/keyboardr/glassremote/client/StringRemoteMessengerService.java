@@ -2,14 +2,17 @@ package com.keyboardr.glassremote.client;
 
 import java.util.UUID;
 
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
 import com.keyboardr.glassremote.common.receiver.StringMessageReader;
+import com.keyboardr.glassremote.common.sender.MessageSender;
 import com.keyboardr.glassremote.common.sender.StringMessageSender;
 
 /**
  * A version of {@link RemoteMessengerService} that sends and receives
  * <code>String</code> messages<br/>
  * <br/>
- * <b>Note:</b> Messages are separated by <code>'\n'</code> characters
+ * <b>Note:</b> Messages are separated by <code>'\n'</code> characters. The
+ * same encoding is used for clients in other processes.
  * 
  * @author Joshua Brown
  * 
@@ -32,4 +35,14 @@ public abstract class StringRemoteMessengerService extends
 		super(uuid, new StringMessageSender(), new StringMessageReader());
 	}
 
+	@Override
+	protected MessageSender<String> onCreateIpcSender() {
+		return new StringMessageSender();
+	}
+
+	@Override
+	protected MessageReceiver<String> onCreateIpcReceiver() {
+		return new StringMessageReader();
+	}
+
 }
@@ -0,0 +1,91 @@
+package com.keyboardr.glassremote.client;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+
+import com.keyboardr.glassremote.common.transfer.Transfer;
+import com.keyboardr.glassremote.common.transfer.TransferEndpoint;
+import com.keyboardr.glassremote.common.transfer.TransferSource;
+
+/**
+ * A {@link RemoteMessenger} that can also stream files and other bulk data
+ * to and from the remote server without encoding them as messages. Data is
+ * sent in checksummed chunks under credit-based flow control, interleaved
+ * with ordinary messages on the same connection, and a transfer interrupted
+ * by a dropped link resumes from the last acknowledged offset once the link
+ * is back. There should be a <code>TransferMessageService&lt;R, S></code>
+ * running on the remote server.<br/>
+ * <br/>
+ * {@link #sendMessage(Object)} and
+ * {@link RemoteMessenger.Callback#onReceiveMessage(Object)} still carry
+ * ordinary messages. Transfers offered by the remote server are passed to
+ * the {@link TransferEndpoint.TransferHandler} on the connection's reader
+ * thread, which stores their data as it arrives.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            the type of messages this <code>TransferRemoteMessenger</code>
+ *            will send to the remote server
+ * @param <R>
+ *            the type of messages this <code>TransferRemoteMessenger</code>
+ *            will receive from the remote server
+ */
+public interface TransferRemoteMessenger<S, R> extends RemoteMessenger<S, R> {
+
+	/**
+	 * Sends a file to the remote server. May be called from the main thread,
+	 * and while disconnected.
+	 * 
+	 * @param file
+	 *            the file to send. Its name is used as the transfer name.
+	 * @return the outgoing <code>Transfer</code>
+	 * @throws FileNotFoundException
+	 *             if the file could not be opened
+	 */
+	public Transfer sendFile(File file) throws FileNotFoundException;
+
+	/**
+	 * Sends the contents of a stream to the remote server. The stream is read
+	 * as the transfer proceeds and closed when it finishes.
+	 * 
+	 * @param name
+	 *            the name to give the transfer
+	 * @param input
+	 *            the data to send
+	 * @param length
+	 *            the number of bytes to send, or <code>-1</code> to send until
+	 *            the stream ends
+	 * @return the outgoing <code>Transfer</code>
+	 */
+	public Transfer sendStream(String name, InputStream input, long length);
+
+	/**
+	 * Sends data from any <code>TransferSource</code> to the remote server
+	 * 
+	 * @param name
+	 *            the name to give the transfer
+	 * @param source
+	 *            the data to send. It is closed when the transfer finishes.
+	 * @return the outgoing <code>Transfer</code>
+	 */
+	public Transfer sendTransfer(String name, TransferSource source);
+
+	/**
+	 * Sets the handler for transfers offered by the remote server. Offers are
+	 * refused while no handler is set.
+	 * 
+	 * @param handler
+	 *            the <code>TransferHandler</code>, or <code>null</code>
+	 */
+	public void setTransferHandler(TransferEndpoint.TransferHandler handler);
+
+	/**
+	 * Gets the number of transfers in progress in either direction,
+	 * including those waiting for the link to come back
+	 * 
+	 * @return the number of unfinished transfers
+	 */
+	public int getActiveTransferCount();
+}
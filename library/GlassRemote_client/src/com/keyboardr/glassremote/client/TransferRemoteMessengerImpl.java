@@ -0,0 +1,244 @@
+package com.keyboardr.glassremote.client;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.metrics.MetricsReporter;
+import com.keyboardr.glassremote.common.metrics.MetricsSnapshot;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.transfer.FileTransferSource;
+import com.keyboardr.glassremote.common.transfer.StreamTransferSource;
+import com.keyboardr.glassremote.common.transfer.Transfer;
+import com.keyboardr.glassremote.common.transfer.TransferEndpoint;
+import com.keyboardr.glassremote.common.transfer.TransferFrame;
+import com.keyboardr.glassremote.common.transfer.TransferFrameReader;
+import com.keyboardr.glassremote.common.transfer.TransferFrameSender;
+import com.keyboardr.glassremote.common.transfer.TransferSource;
+import com.keyboardr.glassremote.common.transport.Transport;
+
+/**
+ * Concrete implementation of {@link TransferRemoteMessenger}. Wraps a
+ * {@link RemoteMessengerImpl} that exchanges {@link TransferFrame
+ * TransferFrames}, handling transfer frames on its reader thread and passing
+ * ordinary messages to the callback thread.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            the type of messages sent to the remote server
+ * @param <R>
+ *            the type of messages received from the remote server
+ */
+class TransferRemoteMessengerImpl<S, R> implements
+		TransferRemoteMessenger<S, R>,
+		RemoteMessengerImpl.Interceptor<TransferFrame<R>>,
+		TransferEndpoint.FrameSink<S> {
+
+	private final RemoteMessengerImpl<TransferFrame<S>, TransferFrame<R>> mMessenger;
+	private final TransferEndpoint<S> mEndpoint;
+
+	private WeakReference<Callback<? super R>> mCallback = new WeakReference<Callback<? super R>>(
+			null);
+
+	private final BatchCallback<TransferFrame<R>> mFrameCallback = new BatchCallback<TransferFrame<R>>() {
+
+		@Override
+		public void onConnected(BluetoothDevice remoteDevice) {
+			mEndpoint.onConnected();
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				callback.onConnected(remoteDevice);
+			}
+		}
+
+		@Override
+		public void onConnectionFailed() {
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				callback.onConnectionFailed();
+			}
+		}
+
+		@Override
+		public void onDisconnected(BluetoothDevice remoteDevice) {
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				callback.onDisconnected(remoteDevice);
+			}
+		}
+
+		@Override
+		public void onReceiveMessage(TransferFrame<R> frame) {
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				callback.onReceiveMessage(frame.getPayload());
+			}
+		}
+
+		@Override
+		public void onReceiveMessages(List<? extends TransferFrame<R>> frames) {
+			List<R> messages = new ArrayList<R>(frames.size());
+			for (TransferFrame<R> frame : frames) {
+				messages.add(frame.getPayload());
+			}
+			Callback<? super R> callback = mCallback.get();
+			if (callback != null) {
+				RemoteMessengerImpl.deliverBatch(callback, messages);
+			}
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> used to reach the remote server
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> messages
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> messages
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing frames, or
+	 *            <code>null</code> for the defaults
+	 * @param reconnectPolicy
+	 *            how to reconnect when the link drops, or <code>null</code> to
+	 *            stay disconnected until {@link #requestConnect()} is called
+	 */
+	public TransferRemoteMessengerImpl(Transport transport,
+			MessageSender<S> sender, MessageReceiver<R> receiver,
+			MessageWriter.Config writerConfig, ReconnectPolicy reconnectPolicy) {
+		mMessenger = new RemoteMessengerImpl<TransferFrame<S>, TransferFrame<R>>(
+				transport, new TransferFrameSender<S>(sender),
+				new TransferFrameReader<R>(receiver), writerConfig,
+				reconnectPolicy);
+		mEndpoint = new TransferEndpoint<S>(this);
+		mMessenger.setInterceptor(this);
+		mMessenger.setCallback(mFrameCallback);
+	}
+
+	@Override
+	public void setCallback(Callback<? super R> callback) {
+		mCallback = new WeakReference<Callback<? super R>>(callback);
+	}
+
+	@Override
+	public boolean isConnected() {
+		return mMessenger.isConnected();
+	}
+
+	@Override
+	public void requestConnect() {
+		mMessenger.requestConnect();
+	}
+
+	@Override
+	public void disconnect() {
+		mMessenger.disconnect();
+		mEndpoint.failAll(new IOException("Disconnected"));
+	}
+
+	@Override
+	public SendFuture sendMessage(S message) {
+		return mMessenger.sendMessage(TransferFrame.message(message));
+	}
+
+	@Override
+	public Transfer sendFile(File file) throws FileNotFoundException {
+		return mEndpoint.send(file.getName(), new FileTransferSource(file));
+	}
+
+	@Override
+	public Transfer sendStream(String name, InputStream input, long length) {
+		return mEndpoint.send(name, new StreamTransferSource(input, length));
+	}
+
+	@Override
+	public Transfer sendTransfer(String name, TransferSource source) {
+		return mEndpoint.send(name, source);
+	}
+
+	@Override
+	public void setTransferHandler(TransferEndpoint.TransferHandler handler) {
+		mEndpoint.setTransferHandler(handler);
+	}
+
+	@Override
+	public int getActiveTransferCount() {
+		return mEndpoint.getActiveCount();
+	}
+
+	@Override
+	public void setDeliveryWindow(long windowMillis) {
+		mMessenger.setDeliveryWindow(windowMillis);
+	}
+
+	@Override
+	public MetricsSnapshot getMetrics() {
+		return mMessenger.getMetrics();
+	}
+
+	@Override
+	public void setMetricsListener(MetricsReporter.Listener listener,
+			long intervalMillis) {
+		mMessenger.setMetricsListener(listener, intervalMillis);
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor executor) {
+		mMessenger.setCallbackExecutor(executor);
+	}
+
+	@Override
+	public void setCallbackExecutor(Executor executor,
+			final KeyedExecutor.KeySelector<? super R> keySelector) {
+		if (keySelector == null) {
+			mMessenger.setCallbackExecutor(executor);
+			return;
+		}
+		mMessenger.setCallbackExecutor(executor,
+				new KeyedExecutor.KeySelector<TransferFrame<R>>() {
+
+					@Override
+					public Object getKey(TransferFrame<R> frame) {
+						R payload = frame.getPayload();
+						return payload == null ? null : keySelector
+								.getKey(payload);
+					}
+				});
+	}
+
+	@Override
+	public SendFuture sendFrame(TransferFrame<S> frame) {
+		// Transfer frames are not queued while disconnected; transfers are
+		// offered again once the link is back
+		if (!mMessenger.isConnected()) {
+			throw new IllegalStateException("Not connected");
+		}
+		return mMessenger.sendMessage(frame);
+	}
+
+	@Override
+	public boolean onInterceptMessage(TransferFrame<R> frame) {
+		return mEndpoint.onReceiveFrame(frame);
+	}
+
+	@Override
+	public void onClosed() {
+		mEndpoint.onDisconnected();
+	}
+
+}
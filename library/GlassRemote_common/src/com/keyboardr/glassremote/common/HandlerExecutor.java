@@ -0,0 +1,46 @@
+package com.keyboardr.glassremote.common;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * An <code>Executor</code> that posts tasks to a <code>Looper</code>. Clients
+ * and services recognize it and dispatch to the <code>Looper</code> directly,
+ * which keeps batched delivery available.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class HandlerExecutor implements Executor {
+
+	private final Handler mHandler;
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param looper
+	 *            the <code>Looper</code> tasks run on
+	 */
+	public HandlerExecutor(Looper looper) {
+		mHandler = new Handler(looper);
+	}
+
+	/**
+	 * Gets the <code>Looper</code> tasks run on
+	 * 
+	 * @return the <code>Looper</code>
+	 */
+	public Looper getLooper() {
+		return mHandler.getLooper();
+	}
+
+	@Override
+	public void execute(Runnable command) {
+		if (!mHandler.post(command)) {
+			throw new RejectedExecutionException("Looper has quit");
+		}
+	}
+}
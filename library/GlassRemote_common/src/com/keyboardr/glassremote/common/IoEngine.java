@@ -0,0 +1,189 @@
+package com.keyboardr.glassremote.common;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads shared by every connection in the process. Connections and
+ * transports run their blocking loops here instead of each starting threads
+ * of their own, and all timers share one small scheduler.<br/>
+ * <br/>
+ * Streams such as a <code>BluetoothSocket</code>'s only offer blocking reads,
+ * so reading stays one loop per connection, and each running loop occupies a
+ * thread while it waits. Where the runtime
+ * has virtual threads (Java 21 and later) each loop gets a virtual thread,
+ * which costs little while blocked. Otherwise loops run on a pool of daemon
+ * threads that are reused as connections come and go and retired after
+ * {@link #IDLE_TIMEOUT_SECONDS} unused, so reconnecting does not create
+ * threads and an idle process holds none.<br/>
+ * <br/>
+ * Writing does not need a loop of its own: a connection only needs a thread
+ * while it has messages queued, so writers submit a drain task to the
+ * {@link #getBlockingExecutor() blocking executor} when a message is queued.
+ * A write blocks for as long as its link is stalled, so drains are not
+ * limited to a small shared pool where a few stalled links would hold up
+ * every other connection.<br/>
+ * <br/>
+ * Tasks on the {@link #getScheduler() scheduler} must be short and must not
+ * block; blocking work belongs on the {@link #getBlockingExecutor() blocking
+ * executor}.
+ *
+ * @author Joshua Brown
+ *
+ */
+public final class IoEngine {
+
+	/**
+	 * How long a pooled thread is kept once it has nothing to run
+	 */
+	public static final int IDLE_TIMEOUT_SECONDS = 60;
+
+	private static IoEngine sDefault;
+
+	private final ExecutorService mLoopExecutor;
+	private final ScheduledExecutorService mScheduler;
+	private final boolean mVirtual;
+	private final AtomicInteger mActiveLoops = new AtomicInteger();
+
+	private IoEngine() {
+		ExecutorService virtual = newVirtualThreadExecutor();
+		mVirtual = virtual != null;
+		if (mVirtual) {
+			mLoopExecutor = virtual;
+		} else {
+			mLoopExecutor = new ThreadPoolExecutor(0, Integer.MAX_VALUE,
+					IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(),
+					daemonThreads("GlassRemoteIo"));
+		}
+		int schedulerThreads = Math.max(1,
+				Math.min(2, Runtime.getRuntime().availableProcessors()));
+		mScheduler = new ScheduledThreadPoolExecutor(schedulerThreads,
+				daemonThreads("GlassRemoteTimer"));
+	}
+
+	/**
+	 * Gets the engine shared by the whole process, starting it on first use
+	 *
+	 * @return the default <code>IoEngine</code>
+	 */
+	public static synchronized IoEngine getDefault() {
+		if (sDefault == null) {
+			sDefault = new IoEngine();
+		}
+		return sDefault;
+	}
+
+	/**
+	 * Creates an executor that starts a virtual thread per task, if the
+	 * runtime has them. Looked up reflectively so the library still builds
+	 * and runs on Android.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, name + "-"
+						+ count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/**
+	 * Runs a loop that blocks for as long as a connection is open, such as a
+	 * reader or writer loop. The thread running it is named
+	 * <code>name</code> until the loop returns.
+	 *
+	 * @param name
+	 *            the thread name to use while the loop runs
+	 * @param loop
+	 *            the loop to run
+	 */
+	public void startLoop(final String name, final Runnable loop) {
+		mActiveLoops.incrementAndGet();
+		try {
+			mLoopExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					Thread thread = Thread.currentThread();
+					String previousName = thread.getName();
+					thread.setName(name);
+					try {
+						loop.run();
+					} finally {
+						thread.setName(previousName);
+						mActiveLoops.decrementAndGet();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			mActiveLoops.decrementAndGet();
+			throw e;
+		}
+	}
+
+	/**
+	 * Gets an <code>Executor</code> for one-off tasks that may block, such as
+	 * establishing a connection or draining a connection's queued messages.
+	 * Every task gets a thread of its own, so one that blocks never delays
+	 * another. Wrap it in a {@link KeyedExecutor} to run a component's tasks
+	 * one at a time.
+	 *
+	 * @return the blocking <code>Executor</code>
+	 */
+	public Executor getBlockingExecutor() {
+		return mLoopExecutor;
+	}
+
+	/**
+	 * Gets the scheduler shared by every timer in the process. It has at most
+	 * two threads, so its tasks must be short and must not block.
+	 *
+	 * @return the shared <code>ScheduledExecutorService</code>
+	 */
+	public ScheduledExecutorService getScheduler() {
+		return mScheduler;
+	}
+
+	/**
+	 * Checks if loops run on virtual threads
+	 *
+	 * @return <code>true</code> iff the runtime has virtual threads
+	 */
+	public boolean usesVirtualThreads() {
+		return mVirtual;
+	}
+
+	/**
+	 * Gets the number of loops currently running
+	 *
+	 * @return the running loop count
+	 */
+	public int getActiveLoopCount() {
+		return mActiveLoops.get();
+	}
+}
@@ -0,0 +1,173 @@
+package com.keyboardr.glassremote.common;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs tasks on another <code>Executor</code> so that tasks with the same key
+ * run one at a time in the order they were submitted, while tasks with
+ * different keys may run in parallel. Tasks submitted without a key share one
+ * default key, so an <code>Executor</code> used only through
+ * {@link #execute(Runnable)} runs everything serially.<br/>
+ * <br/>
+ * A key's tasks run one after another in a single task of the underlying
+ * <code>Executor</code>, which returns once the key has nothing queued, so
+ * {@link #DIRECT} runs them in a loop rather than recursing. If the
+ * underlying <code>Executor</code> rejects a key's task, the tasks queued
+ * under that key are dropped.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class KeyedExecutor implements Executor {
+
+	/**
+	 * Chooses the key a message is processed under
+	 * 
+	 * @param <M>
+	 *            type of the messages
+	 */
+	public static interface KeySelector<M> {
+		/**
+		 * Gets the key for <code>message</code>. Messages with equal keys are
+		 * processed in order; others may be processed in parallel.
+		 * 
+		 * @param message
+		 *            the message about to be processed
+		 * @return the key, or <code>null</code> for the default key
+		 */
+		public Object getKey(M message);
+	}
+
+	/**
+	 * An <code>Executor</code> that runs each task at once on the calling
+	 * thread
+	 */
+	public static final Executor DIRECT = new Executor() {
+
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	private static final Object DEFAULT_KEY = new Object();
+
+	private final Executor mExecutor;
+
+	/**
+	 * Tasks waiting behind the running one, by key. A key is present exactly
+	 * while one of its tasks is submitted or running. Also the lock.
+	 */
+	private final Map<Object, ArrayDeque<Runnable>> mQueues = new HashMap<Object, ArrayDeque<Runnable>>();
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param executor
+	 *            the <code>Executor</code> tasks are run on
+	 */
+	public KeyedExecutor(Executor executor) {
+		mExecutor = executor;
+	}
+
+	/**
+	 * Runs <code>command</code> under the default key
+	 */
+	@Override
+	public void execute(Runnable command) {
+		execute(null, command);
+	}
+
+	/**
+	 * Runs <code>command</code> after every task previously submitted with an
+	 * equal key has run
+	 * 
+	 * @param key
+	 *            the key, or <code>null</code> for the default key
+	 * @param command
+	 *            the task to run
+	 * @throws RejectedExecutionException
+	 *             if the underlying <code>Executor</code> rejected the task.
+	 *             Tasks queued behind it under the same key are dropped.
+	 */
+	public void execute(Object key, Runnable command) {
+		if (key == null) {
+			key = DEFAULT_KEY;
+		}
+		synchronized (mQueues) {
+			ArrayDeque<Runnable> queue = mQueues.get(key);
+			if (queue != null) {
+				queue.addLast(command);
+				return;
+			}
+			mQueues.put(key, new ArrayDeque<Runnable>());
+		}
+		submit(key, command);
+	}
+
+	/**
+	 * Starts a lane for <code>key</code>, or clears the key if the underlying
+	 * <code>Executor</code> refuses it, so later tasks are not left waiting
+	 * on a lane that never runs
+	 */
+	private void submit(Object key, Runnable first) {
+		try {
+			mExecutor.execute(new Lane(key, first));
+		} catch (RejectedExecutionException e) {
+			synchronized (mQueues) {
+				mQueues.remove(key);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Takes the next task queued for <code>key</code>, or clears the key if
+	 * there is none
+	 */
+	private Runnable next(Object key) {
+		synchronized (mQueues) {
+			Runnable task = mQueues.get(key).pollFirst();
+			if (task == null) {
+				mQueues.remove(key);
+			}
+			return task;
+		}
+	}
+
+	/**
+	 * Runs a key's tasks until its queue is empty
+	 */
+	private class Lane implements Runnable {
+		private final Object mKey;
+		private final Runnable mFirst;
+
+		Lane(Object key, Runnable first) {
+			mKey = key;
+			mFirst = first;
+		}
+
+		@Override
+		public void run() {
+			Runnable task = mFirst;
+			while (task != null) {
+				boolean finished = false;
+				try {
+					task.run();
+					finished = true;
+				} finally {
+					task = next(mKey);
+					if (!finished && task != null) {
+						// The task threw; the rest of the key's tasks go on
+						// in a new lane while the exception propagates
+						submit(mKey, task);
+					}
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,179 @@
+package com.keyboardr.glassremote.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.os.Handler;
+
+import com.keyboardr.glassremote.common.metrics.MessageMetrics;
+
+/**
+ * Collects messages on a reader thread and delivers them to a
+ * <code>Handler</code>'s thread in batches. Instead of one
+ * <code>Message</code> or <code>Runnable</code> per received message, at most
+ * one dispatch is pending at a time, and it delivers everything that arrived
+ * in the meantime. Adding a message does not lock or allocate beyond the
+ * queue's node.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of the messages
+ */
+public class MessageBatcher<T> {
+
+	/**
+	 * Receives batches on the <code>Handler</code>'s thread
+	 * 
+	 * @param <T>
+	 *            type of the messages
+	 */
+	public static interface Sink<T> {
+		/**
+		 * A batch of messages is ready
+		 * 
+		 * @param messages
+		 *            the messages in the order they were added. The list
+		 *            belongs to the sink.
+		 */
+		public void onDeliver(List<T> messages);
+	}
+
+	/**
+	 * Largest number of messages delivered in one dispatch. Any more are left
+	 * for a following dispatch so the looper can run other work in between.
+	 */
+	public static final int MAX_BATCH_SIZE = 256;
+
+	private final ConcurrentLinkedQueue<T> mQueue = new ConcurrentLinkedQueue<T>();
+	private final AtomicBoolean mScheduled = new AtomicBoolean();
+	private final Handler mHandler;
+	private final long mWindowMillis;
+	private final Sink<T> mSink;
+	private final MessageMetrics mMetrics;
+
+	/**
+	 * When the first message of the pending batch was received. Written
+	 * before the drain is posted, read when it runs.
+	 */
+	private volatile long mBatchReceivedNanos;
+
+	private final Runnable mDrain = new Runnable() {
+
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param handler
+	 *            the <code>Handler</code> whose thread batches are delivered on
+	 * @param windowMillis
+	 *            how long to wait after the first message of a batch for more
+	 *            to arrive. With <code>0</code> the batch is delivered on the
+	 *            next turn of the looper; a value around 16 delivers about
+	 *            once per display frame.
+	 * @param sink
+	 *            the <code>Sink</code> batches are delivered to
+	 */
+	public MessageBatcher(Handler handler, long windowMillis, Sink<T> sink) {
+		this(handler, windowMillis, sink, null);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param handler
+	 *            the <code>Handler</code> whose thread batches are delivered on
+	 * @param windowMillis
+	 *            how long to wait after the first message of a batch for more
+	 *            to arrive
+	 * @param sink
+	 *            the <code>Sink</code> batches are delivered to
+	 * @param metrics
+	 *            the <code>MessageMetrics</code> to record the dispatch
+	 *            latency of the first message of each batch in, or
+	 *            <code>null</code>
+	 */
+	public MessageBatcher(Handler handler, long windowMillis, Sink<T> sink,
+			MessageMetrics metrics) {
+		if (windowMillis < 0) {
+			throw new IllegalArgumentException("windowMillis < 0");
+		}
+		mHandler = handler;
+		mWindowMillis = windowMillis;
+		mSink = sink;
+		mMetrics = metrics;
+	}
+
+	/**
+	 * Adds a message to the next batch. May be called from any thread.
+	 * 
+	 * @param message
+	 *            the message to deliver
+	 */
+	public void add(T message) {
+		add(message, mMetrics == null ? 0 : System.nanoTime());
+	}
+
+	/**
+	 * Adds a message to the next batch. May be called from any thread.
+	 * 
+	 * @param message
+	 *            the message to deliver
+	 * @param receivedNanos
+	 *            the <code>System.nanoTime()</code> at which the message was
+	 *            read, for the dispatch latency metric
+	 */
+	public void add(T message, long receivedNanos) {
+		mQueue.offer(message);
+		if (mScheduled.compareAndSet(false, true)) {
+			mBatchReceivedNanos = receivedNanos;
+			if (mWindowMillis == 0) {
+				mHandler.post(mDrain);
+			} else {
+				mHandler.postDelayed(mDrain, mWindowMillis);
+			}
+		}
+	}
+
+	/**
+	 * Delivers queued messages on the next turn of the looper without waiting
+	 * for the window to end. Anything posted to the <code>Handler</code>
+	 * afterwards, such as a disconnect notification, runs after them.
+	 */
+	public void flush() {
+		if (!mQueue.isEmpty()) {
+			mHandler.post(mDrain);
+		}
+	}
+
+	private void drain() {
+		long receivedNanos = mBatchReceivedNanos;
+		// Clear first so messages added while draining schedule another pass
+		mScheduled.set(false);
+		List<T> batch = null;
+		T message;
+		while ((batch == null || batch.size() < MAX_BATCH_SIZE)
+				&& (message = mQueue.poll()) != null) {
+			if (batch == null) {
+				batch = new ArrayList<T>();
+			}
+			batch.add(message);
+		}
+		if (!mQueue.isEmpty() && mScheduled.compareAndSet(false, true)) {
+			mHandler.post(mDrain);
+		}
+		if (batch != null) {
+			if (mMetrics != null) {
+				mMetrics.onDispatched(receivedNanos);
+			}
+			mSink.onDeliver(batch);
+		}
+	}
+}
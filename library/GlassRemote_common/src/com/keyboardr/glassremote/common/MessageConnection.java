@@ -0,0 +1,331 @@
+package com.keyboardr.glassremote.common;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import com.keyboardr.glassremote.common.metrics.MessageMetrics;
+
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver.OnReceiveMessageListener;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.transport.Connection;
+
+/**
+ * Exchanges messages over a single {@link Connection}. Incoming messages are
+ * read by a loop on the shared {@link IoEngine} and passed to the
+ * {@link Listener}; outgoing messages are queued on a {@link MessageWriter}.
+ * This is the part of a client or server that is independent of both the
+ * platform and the
+ * {@link com.keyboardr.glassremote.common.transport.Transport Transport}.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            type of messages to send to the remote peer
+ * @param <R>
+ *            type of messages to receive from the remote peer
+ */
+public class MessageConnection<S, R> implements OnReceiveMessageListener<R> {
+
+	/**
+	 * Callback interface for a <code>MessageConnection</code>. Messages are
+	 * delivered on the reader thread; see
+	 * {@link #onClosed(MessageConnection)} for where closes are reported.
+	 * 
+	 * @param <S>
+	 *            type of messages sent to the remote peer
+	 * @param <R>
+	 *            type of messages received from the remote peer
+	 */
+	public static interface Listener<S, R> {
+		/**
+		 * A message has been received from the remote peer
+		 * 
+		 * @param connection
+		 *            the <code>MessageConnection</code> the message arrived on
+		 * @param message
+		 *            the <code>R</code> message received
+		 */
+		public void onReceiveMessage(MessageConnection<S, R> connection,
+				R message);
+
+		/**
+		 * The connection has been closed, either locally or by the remote peer,
+		 * and can no longer send or receive messages. Called exactly once:
+		 * on the reader thread if the peer closed the connection or reading
+		 * failed, otherwise on the thread that called
+		 * {@link MessageConnection#close()}.
+		 * 
+		 * @param connection
+		 *            the closed <code>MessageConnection</code>
+		 */
+		public void onClosed(MessageConnection<S, R> connection);
+	}
+
+	private final Connection mConnection;
+	private final MessageReceiver<R> mReceiver;
+	private final MessageWriter<S> mWriter;
+	private final Listener<S, R> mListener;
+	private final MessageMetrics mMetrics;
+
+	private volatile boolean mOpen;
+	private boolean mClosedReported;
+	private volatile boolean mReading;
+	private final CountDownLatch mReaderStopped = new CountDownLatch(1);
+
+	/**
+	 * When the first bytes of the message being decoded were read, or
+	 * <code>0</code> if none have been read since the last message. Only used
+	 * on the reader thread.
+	 */
+	private long mMessageStartNanos;
+	private long mLastDeliveredNanos;
+	private long mReceiveNanos;
+
+	/**
+	 * Counts the bytes read and notes when each message's first bytes arrive
+	 */
+	private class MeteredInputStream extends FilterInputStream {
+		MeteredInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				onRead(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int read = super.read(b, off, len);
+			if (read > 0) {
+				onRead(read);
+			}
+			return read;
+		}
+
+		private void onRead(int bytes) {
+			if (mMessageStartNanos == 0) {
+				mMessageStartNanos = System.nanoTime();
+			}
+			mMetrics.onBytesRead(bytes);
+		}
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param connection
+	 *            the established <code>Connection</code> to exchange messages
+	 *            over
+	 * @param sender
+	 *            the <code>MessageSender</code> for outgoing messages. It must
+	 *            not be shared with another open connection.
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> for incoming messages. It
+	 *            must not be shared with another open connection.
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 * @param listener
+	 *            the <code>Listener</code> to notify of incoming messages
+	 */
+	public MessageConnection(Connection connection, MessageSender<S> sender,
+			MessageReceiver<R> receiver, MessageWriter.Config writerConfig,
+			Listener<S, R> listener) {
+		this(connection, sender, receiver, writerConfig, listener, null);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param connection
+	 *            the established <code>Connection</code> to exchange messages
+	 *            over
+	 * @param sender
+	 *            the <code>MessageSender</code> for outgoing messages. It must
+	 *            not be shared with another open connection.
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> for incoming messages. It
+	 *            must not be shared with another open connection.
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 * @param listener
+	 *            the <code>Listener</code> to notify of incoming messages
+	 * @param metrics
+	 *            the <code>MessageMetrics</code> to record traffic in, or
+	 *            <code>null</code>. May be shared between connections.
+	 */
+	public MessageConnection(Connection connection, MessageSender<S> sender,
+			MessageReceiver<R> receiver, MessageWriter.Config writerConfig,
+			Listener<S, R> listener, MessageMetrics metrics) {
+		mConnection = connection;
+		mReceiver = receiver;
+		mWriter = new MessageWriter<S>(sender, writerConfig, metrics);
+		mListener = listener;
+		mMetrics = metrics;
+	}
+
+	/**
+	 * Starts reading and writing messages
+	 * 
+	 * @throws IOException
+	 *             if the <code>Connection</code>'s streams could not be
+	 *             obtained. The <code>Connection</code> is closed in this case.
+	 */
+	public void start() throws IOException {
+		InputStream input;
+		OutputStream output;
+		try {
+			input = mConnection.getInputStream();
+			output = mConnection.getOutputStream();
+		} catch (IOException e) {
+			closeQuietly();
+			throw e;
+		}
+		mReceiver.setInputStream(mMetrics == null ? input
+				: new MeteredInputStream(input));
+		mWriter.start(output);
+		mOpen = true;
+		mReading = true;
+		IoEngine.getDefault().startLoop("MessageConnection", new Runnable() {
+
+			@Override
+			public void run() {
+				readLoop();
+			}
+		});
+	}
+
+	private void readLoop() {
+		try {
+			while (mOpen && mReceiver.read(this)) {
+			}
+			close();
+		} finally {
+			mReaderStopped.countDown();
+		}
+	}
+
+	@Override
+	public void onReceiveMessage(R message) {
+		if (mMetrics == null) {
+			mListener.onReceiveMessage(this, message);
+			return;
+		}
+		// Bytes read before the previous message was delivered only start
+		// being decoded once it has been
+		mReceiveNanos = mMessageStartNanos != 0 ? mMessageStartNanos
+				: mLastDeliveredNanos;
+		mMessageStartNanos = 0;
+		mMetrics.onDecoded(System.nanoTime() - mReceiveNanos);
+		mListener.onReceiveMessage(this, message);
+		mLastDeliveredNanos = System.nanoTime();
+	}
+
+	/**
+	 * Gets when the first bytes of the message being delivered were read, for
+	 * measuring how long it takes to reach its callback. Only valid on the
+	 * reader thread during
+	 * {@link Listener#onReceiveMessage(MessageConnection, Object)}, and only if
+	 * this connection records metrics.
+	 * 
+	 * @return the <code>System.nanoTime()</code> of the read
+	 */
+	public long getReceiveTimestamp() {
+		return mReceiveNanos;
+	}
+
+	/**
+	 * Checks if this <code>MessageConnection</code> can still send and receive
+	 * messages
+	 * 
+	 * @return <code>true</code> iff the connection has been started and not
+	 *         closed
+	 */
+	public boolean isOpen() {
+		return mOpen;
+	}
+
+	/**
+	 * Queues a message to be sent to the remote peer
+	 * 
+	 * @param message
+	 *            the <code>S</code> message to send
+	 * @return a <code>SendFuture</code> that completes once the message has
+	 *         been written
+	 */
+	public SendFuture sendMessage(S message) {
+		return mWriter.enqueue(message);
+	}
+
+	/**
+	 * Gets the number of outgoing messages waiting to be written
+	 * 
+	 * @return the current send queue depth
+	 */
+	public int getSendQueueDepth() {
+		return mWriter.getQueueDepth();
+	}
+
+	/**
+	 * Gets the underlying <code>Connection</code>
+	 * 
+	 * @return the <code>Connection</code> messages are exchanged over
+	 */
+	public Connection getConnection() {
+		return mConnection;
+	}
+
+	/**
+	 * Closes the connection. Queued messages that have not been written fail.
+	 * {@link Listener#onClosed(MessageConnection)} is called on the calling
+	 * thread if it has not been already.
+	 */
+	public void close() {
+		mOpen = false;
+		mWriter.close();
+		closeQuietly();
+		synchronized (this) {
+			if (mClosedReported) {
+				return;
+			}
+			mClosedReported = true;
+		}
+		mListener.onClosed(this);
+	}
+
+	/**
+	 * Waits until the reader loop has returned and the writer is idle, after
+	 * which the <code>MessageSender</code> and <code>MessageReceiver</code>
+	 * are no longer in use and may be given to another connection. Only
+	 * returns once this connection has been closed.
+	 * 
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public void awaitStopped() throws InterruptedException {
+		if (mReading) {
+			mReaderStopped.await();
+		}
+		mWriter.awaitIdle();
+	}
+
+	private void closeQuietly() {
+		try {
+			mConnection.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+package com.keyboardr.glassremote.common.compress;
+
+/**
+ * Running totals for a {@link DeflateMessageSender} or
+ * {@link DeflateMessageReader}. Updated by the thread doing the coding and
+ * safe to read from any other thread, though the totals may be read in the
+ * middle of an update.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class CompressionStats {
+	private volatile long mCompressedFrames;
+	private volatile long mRawFrames;
+	private volatile long mPayloadBytes;
+	private volatile long mWireBytes;
+
+	void onFrame(boolean compressed, int payloadBytes, int wireBytes) {
+		if (compressed) {
+			mCompressedFrames++;
+		} else {
+			mRawFrames++;
+		}
+		mPayloadBytes += payloadBytes;
+		mWireBytes += wireBytes;
+	}
+
+	/**
+	 * Gets the number of frames sent or received compressed
+	 * 
+	 * @return the number of compressed frames
+	 */
+	public long getCompressedFrames() {
+		return mCompressedFrames;
+	}
+
+	/**
+	 * Gets the number of frames sent or received uncompressed, because they
+	 * were below the threshold or did not compress well
+	 * 
+	 * @return the number of uncompressed frames
+	 */
+	public long getRawFrames() {
+		return mRawFrames;
+	}
+
+	/**
+	 * Gets the total size of the payloads before compression
+	 * 
+	 * @return the number of payload bytes
+	 */
+	public long getPayloadBytes() {
+		return mPayloadBytes;
+	}
+
+	/**
+	 * Gets the total size of the frames on the wire, excluding the length
+	 * prefix
+	 * 
+	 * @return the number of frame bytes
+	 */
+	public long getWireBytes() {
+		return mWireBytes;
+	}
+
+	/**
+	 * Gets the overall compression ratio
+	 * 
+	 * @return wire bytes divided by payload bytes, or 1 if nothing has been
+	 *         coded yet. Lower is better.
+	 */
+	public double getRatio() {
+		long payloadBytes = mPayloadBytes;
+		return payloadBytes == 0 ? 1 : (double) mWireBytes / payloadBytes;
+	}
+
+	@Override
+	public String toString() {
+		return "CompressionStats[compressed=" + mCompressedFrames + ", raw="
+				+ mRawFrames + ", payload=" + mPayloadBytes + ", wire="
+				+ mWireBytes + ", ratio=" + String.format("%.3f", getRatio())
+				+ "]";
+	}
+}
@@ -0,0 +1,76 @@
+package com.keyboardr.glassremote.common.compress;
+
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The most recent payload bytes exchanged on a link, used as the preset
+ * dictionary for the next frame. Both ends append every payload in the same
+ * order, so their histories agree for as long as the link lasts; both ends
+ * {@link #reset()} theirs when a new link starts. This gives each frame the
+ * benefit of the ones before it without a flushed deflate stream, which is
+ * not available before API level 19.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+final class DeflateHistory {
+
+	/**
+	 * Number of payload bytes remembered. Part of the wire format: both ends
+	 * must use the same value.
+	 */
+	static final int SIZE = 8 * 1024;
+
+	private final byte[] mBuffer = new byte[SIZE];
+	private final byte[] mPresetDictionary;
+	private int mLength;
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param presetDictionary
+	 *            bytes expected to be common in payloads, or <code>null</code>
+	 */
+	DeflateHistory(byte[] presetDictionary) {
+		mPresetDictionary = presetDictionary;
+		reset();
+	}
+
+	/**
+	 * Forgets every payload, leaving only the preset dictionary
+	 */
+	void reset() {
+		mLength = 0;
+		if (mPresetDictionary != null) {
+			append(mPresetDictionary, 0, mPresetDictionary.length);
+		}
+	}
+
+	void append(byte[] bytes, int offset, int length) {
+		if (length >= SIZE) {
+			System.arraycopy(bytes, offset + length - SIZE, mBuffer, 0, SIZE);
+			mLength = SIZE;
+			return;
+		}
+		int overflow = mLength + length - SIZE;
+		if (overflow > 0) {
+			System.arraycopy(mBuffer, overflow, mBuffer, 0, mLength - overflow);
+			mLength -= overflow;
+		}
+		System.arraycopy(bytes, offset, mBuffer, mLength, length);
+		mLength += length;
+	}
+
+	void apply(Deflater deflater) {
+		if (mLength > 0) {
+			deflater.setDictionary(mBuffer, 0, mLength);
+		}
+	}
+
+	void apply(Inflater inflater) {
+		if (mLength > 0) {
+			inflater.setDictionary(mBuffer, 0, mLength);
+		}
+	}
+}
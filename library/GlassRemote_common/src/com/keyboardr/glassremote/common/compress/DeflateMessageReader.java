@@ -0,0 +1,237 @@
+package com.keyboardr.glassremote.common.compress;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import com.keyboardr.glassremote.common.io.Varint;
+import com.keyboardr.glassremote.common.receiver.BinaryMessageReader;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+
+/**
+ * Reads messages written by {@link DeflateMessageSender}. The wrapped
+ * <code>MessageReceiver</code> decodes each payload from the bytes of its
+ * frame, and must read exactly one message per call to
+ * {@link MessageReceiver#read(OnReceiveMessageListener) read()}.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of messages to receive
+ */
+public class DeflateMessageReader<T> implements MessageReceiver<T> {
+
+	/**
+	 * Presents the current payload to the payload receiver. The same instance
+	 * is refilled for every frame so receivers that buffer their input keep
+	 * working.
+	 */
+	private static class PayloadStream extends ByteArrayInputStream {
+		PayloadStream() {
+			super(new byte[0]);
+		}
+
+		void setPayload(byte[] payload, int offset, int length) {
+			buf = payload;
+			pos = offset;
+			count = offset + length;
+			mark = offset;
+		}
+	}
+
+	private final MessageReceiver<T> mPayloadReceiver;
+	private final BinaryMessageReader mFrameReader;
+	private final PayloadStream mPayloadStream = new PayloadStream();
+	private final Inflater mInflater = new Inflater(true);
+	private final DeflateHistory mHistory;
+	private final int mMaxPayloadSize;
+	private final CompressionStats mStats = new CompressionStats();
+
+	private byte[] mInflated = new byte[256];
+	private OnReceiveMessageListener<? super T> mListener;
+	private boolean mCorrupt;
+	private boolean mHasPayload;
+
+	private final OnReceiveMessageListener<T> mPayloadListener = new OnReceiveMessageListener<T>() {
+
+		@Override
+		public void onReceiveMessage(T message) {
+			mHasPayload = true;
+			mListener.onReceiveMessage(message);
+		}
+	};
+
+	private final OnReceiveMessageListener<byte[]> mFrameListener = new OnReceiveMessageListener<byte[]>() {
+
+		@Override
+		public void onReceiveMessage(byte[] message) {
+			try {
+				onReceiveFrame(message);
+			} catch (IOException e) {
+				e.printStackTrace();
+				mCorrupt = true;
+			}
+		}
+	};
+
+	/**
+	 * Class constructor. Uses no preset dictionary.
+	 * 
+	 * @param payloadReceiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for decoding <code>T</code> messages. It must not be used
+	 *            elsewhere.
+	 */
+	public DeflateMessageReader(MessageReceiver<T> payloadReceiver) {
+		this(payloadReceiver, null,
+				BinaryMessageReader.DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param payloadReceiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for decoding <code>T</code> messages. It must not be used
+	 *            elsewhere.
+	 * @param presetDictionary
+	 *            the preset dictionary the sender was given, or
+	 *            <code>null</code>
+	 * @param maxPayloadSize
+	 *            the largest payload, in bytes, that will be accepted before
+	 *            or after decompression
+	 */
+	public DeflateMessageReader(MessageReceiver<T> payloadReceiver,
+			byte[] presetDictionary, int maxPayloadSize) {
+		mPayloadReceiver = payloadReceiver;
+		mHistory = new DeflateHistory(presetDictionary);
+		mMaxPayloadSize = maxPayloadSize;
+		mFrameReader = new BinaryMessageReader(maxPayloadSize + 1);
+		mPayloadReceiver.setInputStream(mPayloadStream);
+	}
+
+	/**
+	 * Creates a <code>MessageReceiver.Factory</code> that wraps each receiver
+	 * created by <code>payloadFactory</code> in a new
+	 * <code>DeflateMessageReader</code>
+	 * 
+	 * @param payloadFactory
+	 *            creates the payload <code>MessageReceivers</code>
+	 * @param presetDictionary
+	 *            the preset dictionary the senders were given, or
+	 *            <code>null</code>. Shared by every receiver; not modified.
+	 * @return a <code>MessageReceiver.Factory</code> for
+	 *         <code>DeflateMessageReaders</code>
+	 */
+	public static <T> MessageReceiver.Factory<T> factory(
+			final MessageReceiver.Factory<T> payloadFactory,
+			final byte[] presetDictionary) {
+		return new MessageReceiver.Factory<T>() {
+
+			@Override
+			public MessageReceiver<T> newReceiver() {
+				return new DeflateMessageReader<T>(
+						payloadFactory.newReceiver(), presetDictionary,
+						BinaryMessageReader.DEFAULT_MAX_MESSAGE_SIZE);
+			}
+		};
+	}
+
+	/**
+	 * Gets the compression totals for this receiver
+	 * 
+	 * @return the <code>CompressionStats</code>
+	 */
+	public CompressionStats getStats() {
+		return mStats;
+	}
+
+	/**
+	 * Starts reading a new link. The payload history starts over, as the
+	 * sender's does when given a new stream, and an earlier corrupt frame no
+	 * longer stops reading.
+	 */
+	@Override
+	public void setInputStream(InputStream input) {
+		mFrameReader.setInputStream(input);
+		mPayloadReceiver.setInputStream(mPayloadStream);
+		mHistory.reset();
+		mCorrupt = false;
+	}
+
+	@Override
+	public boolean read(OnReceiveMessageListener<? super T> listener) {
+		mListener = listener;
+		try {
+			return mFrameReader.read(mFrameListener) && !mCorrupt;
+		} finally {
+			mListener = null;
+		}
+	}
+
+	private void onReceiveFrame(byte[] frame) throws IOException {
+		if (frame.length == 0) {
+			throw new IOException("Empty compressed frame");
+		}
+		byte[] payload;
+		int offset;
+		int length;
+		switch (frame[0]) {
+		case DeflateMessageSender.FLAG_RAW:
+			payload = frame;
+			offset = 1;
+			length = frame.length - 1;
+			mStats.onFrame(false, length, frame.length);
+			break;
+		case DeflateMessageSender.FLAG_DEFLATED:
+			ByteBuffer header = ByteBuffer.wrap(frame, 1, frame.length - 1);
+			length = Varint.readInt(header);
+			if (length < 0 || length > mMaxPayloadSize) {
+				throw new IOException("Bad compressed payload length "
+						+ length);
+			}
+			inflate(frame, header.position(), length);
+			payload = mInflated;
+			offset = 0;
+			mStats.onFrame(true, length, frame.length);
+			break;
+		default:
+			throw new IOException("Unknown compression flag " + frame[0]);
+		}
+		mHistory.append(payload, offset, length);
+		mPayloadStream.setPayload(payload, offset, length);
+		mHasPayload = false;
+		if (!mPayloadReceiver.read(mPayloadListener) || !mHasPayload) {
+			throw new IOException("Could not decode compressed payload");
+		}
+	}
+
+	private void inflate(byte[] frame, int offset, int length)
+			throws IOException {
+		if (mInflated.length < length) {
+			mInflated = new byte[Math.max(length, mInflated.length * 2)];
+		}
+		mInflater.reset();
+		mHistory.apply(mInflater);
+		mInflater.setInput(frame, offset, frame.length - offset);
+		int position = 0;
+		try {
+			while (position < length) {
+				int inflated = mInflater.inflate(mInflated, position, length
+						- position);
+				if (inflated == 0) {
+					break;
+				}
+				position += inflated;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed payload", e);
+		}
+		if (position != length) {
+			throw new IOException("Compressed payload truncated");
+		}
+	}
+}
@@ -0,0 +1,226 @@
+package com.keyboardr.glassremote.common.compress;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+import com.keyboardr.glassremote.common.io.Varint;
+import com.keyboardr.glassremote.common.sender.BinaryMessageSender;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+
+/**
+ * Compresses the messages of another <code>MessageSender</code>. Each message
+ * is encoded by the wrapped sender and written as a {@link BinaryMessageSender}
+ * frame starting with a flag byte: raw frames carry the payload as is,
+ * deflated frames carry the payload length as a {@link Varint} followed by the
+ * deflated payload. Must be read by a {@link DeflateMessageReader} given the
+ * same preset dictionary.<br/>
+ * <br/>
+ * Each frame is deflated with the last few kilobytes of earlier payloads as
+ * its dictionary, so repetitive traffic such as JSON compresses well even when
+ * messages are small. Payloads below the threshold are sent raw. When
+ * payloads stop compressing well, compression is suspended for a number of
+ * frames before it is tried again.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of messages to send
+ */
+public class DeflateMessageSender<T> implements MessageSender<T> {
+
+	static final int FLAG_RAW = 0;
+	static final int FLAG_DEFLATED = 1;
+
+	/**
+	 * Default size, in bytes, below which payloads are sent raw
+	 */
+	public static final int DEFAULT_THRESHOLD = 64;
+
+	/**
+	 * A frame that shrinks to more than this fraction of its payload counts
+	 * as compressing poorly
+	 */
+	private static final double POOR_RATIO = 0.9;
+
+	/**
+	 * Number of frames sent raw after one compresses poorly
+	 */
+	private static final int BACKOFF_FRAMES = 16;
+
+	/**
+	 * A <code>ByteArrayOutputStream</code> whose contents can be read without
+	 * copying them out first
+	 */
+	private static class PayloadBuffer extends ByteArrayOutputStream {
+		PayloadBuffer() {
+			super(256);
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	private final MessageSender<T> mPayloadSender;
+	private final BinaryMessageSender mFrameSender = new BinaryMessageSender();
+	private final PayloadBuffer mPayload = new PayloadBuffer();
+	private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION,
+			true);
+	private final DeflateHistory mHistory;
+	private final int mThreshold;
+	private final CompressionStats mStats = new CompressionStats();
+
+	private byte[] mFrame = new byte[256];
+	private int mBackoff;
+
+	/**
+	 * Class constructor. Uses {@link #DEFAULT_THRESHOLD} and no preset
+	 * dictionary.
+	 * 
+	 * @param payloadSender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for encoding <code>T</code> messages. It must not be used
+	 *            elsewhere.
+	 */
+	public DeflateMessageSender(MessageSender<T> payloadSender) {
+		this(payloadSender, DEFAULT_THRESHOLD, null);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param payloadSender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for encoding <code>T</code> messages. It must not be used
+	 *            elsewhere.
+	 * @param threshold
+	 *            size in bytes below which payloads are sent raw
+	 * @param presetDictionary
+	 *            bytes expected to be common in payloads, such as frequent
+	 *            JSON keys, or <code>null</code>. The receiver must be given
+	 *            the same bytes.
+	 */
+	public DeflateMessageSender(MessageSender<T> payloadSender, int threshold,
+			byte[] presetDictionary) {
+		mPayloadSender = payloadSender;
+		mThreshold = threshold;
+		mHistory = new DeflateHistory(presetDictionary);
+		mPayloadSender.setOutputStream(mPayload);
+	}
+
+	/**
+	 * Creates a <code>MessageSender.Factory</code> that wraps each sender
+	 * created by <code>payloadFactory</code> in a new
+	 * <code>DeflateMessageSender</code>
+	 * 
+	 * @param payloadFactory
+	 *            creates the payload <code>MessageSenders</code>
+	 * @param threshold
+	 *            size in bytes below which payloads are sent raw
+	 * @param presetDictionary
+	 *            bytes expected to be common in payloads, or
+	 *            <code>null</code>. Shared by every sender; not modified.
+	 * @return a <code>MessageSender.Factory</code> for
+	 *         <code>DeflateMessageSenders</code>
+	 */
+	public static <T> MessageSender.Factory<T> factory(
+			final MessageSender.Factory<T> payloadFactory, final int threshold,
+			final byte[] presetDictionary) {
+		return new MessageSender.Factory<T>() {
+
+			@Override
+			public MessageSender<T> newSender() {
+				return new DeflateMessageSender<T>(payloadFactory.newSender(),
+						threshold, presetDictionary);
+			}
+		};
+	}
+
+	/**
+	 * Gets the compression totals for this sender
+	 * 
+	 * @return the <code>CompressionStats</code>
+	 */
+	public CompressionStats getStats() {
+		return mStats;
+	}
+
+	/**
+	 * Starts writing a new link. The payload history starts over, as the
+	 * receiver's does when given a new stream.
+	 */
+	@Override
+	public void setOutputStream(OutputStream output) {
+		mFrameSender.setOutputStream(output);
+		mPayloadSender.setOutputStream(mPayload);
+		mHistory.reset();
+		mBackoff = 0;
+	}
+
+	@Override
+	public void sendMessage(T message) {
+		mPayload.reset();
+		mPayloadSender.sendMessage(message);
+		byte[] payload = mPayload.getBuffer();
+		int length = mPayload.size();
+		int frameLength = -1;
+		if (length >= mThreshold) {
+			if (mBackoff > 0) {
+				mBackoff--;
+			} else {
+				frameLength = deflate(payload, length);
+				if (frameLength > length * POOR_RATIO) {
+					mBackoff = BACKOFF_FRAMES;
+				}
+				if (frameLength > length) {
+					frameLength = -1;
+				}
+			}
+		}
+		if (frameLength < 0) {
+			ensureCapacity(1 + length);
+			mFrame[0] = FLAG_RAW;
+			System.arraycopy(payload, 0, mFrame, 1, length);
+			frameLength = 1 + length;
+			mStats.onFrame(false, length, frameLength);
+		} else {
+			mStats.onFrame(true, length, frameLength);
+		}
+		mHistory.append(payload, 0, length);
+		mFrameSender.sendMessage(mFrame, 0, frameLength);
+	}
+
+	/**
+	 * Deflates <code>payload</code> into <code>mFrame</code>
+	 * 
+	 * @return the length of the frame
+	 */
+	private int deflate(byte[] payload, int length) {
+		ensureCapacity(1 + Varint.MAX_INT_BYTES + length / 2 + 64);
+		mFrame[0] = FLAG_DEFLATED;
+		int position = Varint.write(length, mFrame, 1);
+		mDeflater.reset();
+		mHistory.apply(mDeflater);
+		mDeflater.setInput(payload, 0, length);
+		mDeflater.finish();
+		while (true) {
+			position += mDeflater.deflate(mFrame, position, mFrame.length
+					- position);
+			if (mDeflater.finished()) {
+				return position;
+			}
+			if (position == mFrame.length) {
+				byte[] frame = new byte[mFrame.length * 2];
+				System.arraycopy(mFrame, 0, frame, 0, position);
+				mFrame = frame;
+			}
+		}
+	}
+
+	private void ensureCapacity(int capacity) {
+		if (mFrame.length < capacity) {
+			mFrame = new byte[Math.max(capacity, mFrame.length * 2)];
+		}
+	}
+}
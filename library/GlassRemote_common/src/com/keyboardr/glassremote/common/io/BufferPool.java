@@ -0,0 +1,89 @@
+package com.keyboardr.glassremote.common.io;
+
+/**
+ * A process-wide pool of <code>byte[]</code> scratch buffers. Buffers are
+ * grouped into power-of-two size classes and a bounded number of each class is
+ * retained, so steady-state encoding does not allocate. Buffers larger than
+ * {@link #MAX_POOLED_SIZE} are allocated on demand and never retained.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public final class BufferPool {
+
+	/**
+	 * The smallest buffer handed out by {@link #acquire(int)}
+	 */
+	public static final int MIN_POOLED_SIZE = 256;
+
+	/**
+	 * The largest buffer that will be retained by {@link #release(byte[])}
+	 */
+	public static final int MAX_POOLED_SIZE = 1 << 20;
+
+	private static final int MIN_SHIFT = 8;
+	private static final int CLASS_COUNT = 13;
+	private static final int MAX_PER_CLASS = 8;
+
+	private static final byte[][][] sPool = new byte[CLASS_COUNT][MAX_PER_CLASS][];
+	private static final int[] sCounts = new int[CLASS_COUNT];
+
+	private BufferPool() {
+	}
+
+	/**
+	 * Gets a buffer that is at least <code>minSize</code> bytes long. The
+	 * contents of the buffer are undefined.
+	 * 
+	 * @param minSize
+	 *            the minimum length of the returned buffer
+	 * @return a buffer that should be returned with {@link #release(byte[])}
+	 *         once it is no longer needed
+	 */
+	public static byte[] acquire(int minSize) {
+		if (minSize > MAX_POOLED_SIZE) {
+			return new byte[minSize];
+		}
+		int sizeClass = sizeClass(minSize);
+		synchronized (sPool) {
+			int count = sCounts[sizeClass];
+			if (count > 0) {
+				byte[] buffer = sPool[sizeClass][--count];
+				sPool[sizeClass][count] = null;
+				sCounts[sizeClass] = count;
+				return buffer;
+			}
+		}
+		return new byte[MIN_POOLED_SIZE << sizeClass];
+	}
+
+	/**
+	 * Returns a buffer obtained from {@link #acquire(int)} to the pool. The
+	 * caller must not use <code>buffer</code> after this call.
+	 * 
+	 * @param buffer
+	 *            the buffer to return, may be <code>null</code>
+	 */
+	public static void release(byte[] buffer) {
+		if (buffer == null || buffer.length > MAX_POOLED_SIZE
+				|| buffer.length < MIN_POOLED_SIZE
+				|| Integer.bitCount(buffer.length) != 1) {
+			return;
+		}
+		int sizeClass = sizeClass(buffer.length);
+		synchronized (sPool) {
+			int count = sCounts[sizeClass];
+			if (count < MAX_PER_CLASS) {
+				sPool[sizeClass][count] = buffer;
+				sCounts[sizeClass] = count + 1;
+			}
+		}
+	}
+
+	private static int sizeClass(int size) {
+		if (size <= MIN_POOLED_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+}
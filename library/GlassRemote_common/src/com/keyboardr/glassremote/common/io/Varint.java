@@ -0,0 +1,231 @@
+package com.keyboardr.glassremote.common.io;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes and decodes unsigned variable-length integers. Each byte carries
+ * seven bits of the value, least significant group first, with the high bit
+ * set on every byte except the last.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public final class Varint {
+
+	/**
+	 * The maximum number of bytes needed to encode an <code>int</code>
+	 */
+	public static final int MAX_INT_BYTES = 5;
+
+	/**
+	 * The maximum number of bytes needed to encode a <code>long</code>
+	 */
+	public static final int MAX_LONG_BYTES = 10;
+
+	private Varint() {
+	}
+
+	/**
+	 * Gets the number of bytes needed to encode <code>value</code>
+	 * 
+	 * @param value
+	 *            the value to measure, treated as unsigned
+	 * @return the encoded size of <code>value</code> in bytes
+	 */
+	public static int sizeOf(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Gets the number of bytes needed to encode <code>value</code>
+	 * 
+	 * @param value
+	 *            the value to measure, treated as unsigned
+	 * @return the encoded size of <code>value</code> in bytes
+	 */
+	public static int sizeOf(long value) {
+		int size = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes <code>value</code> into <code>buffer</code>
+	 * 
+	 * @param value
+	 *            the value to write, treated as unsigned
+	 * @param buffer
+	 *            the destination array
+	 * @param offset
+	 *            the index in <code>buffer</code> to start writing at
+	 * @return the index in <code>buffer</code> following the last byte written
+	 */
+	public static int write(int value, byte[] buffer, int offset) {
+		while ((value & ~0x7F) != 0) {
+			buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Writes <code>value</code> into <code>buffer</code>
+	 * 
+	 * @param value
+	 *            the value to write, treated as unsigned
+	 * @param buffer
+	 *            the destination array
+	 * @param offset
+	 *            the index in <code>buffer</code> to start writing at
+	 * @return the index in <code>buffer</code> following the last byte written
+	 */
+	public static int write(long value, byte[] buffer, int offset) {
+		while ((value & ~0x7FL) != 0) {
+			buffer[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		buffer[offset++] = (byte) value;
+		return offset;
+	}
+
+	/**
+	 * Writes <code>value</code> to <code>output</code>
+	 * 
+	 * @param value
+	 *            the value to write, treated as unsigned
+	 * @param output
+	 *            the destination stream
+	 * @throws IOException
+	 *             if <code>output</code> could not be written to
+	 */
+	public static void write(long value, OutputStream output)
+			throws IOException {
+		while ((value & ~0x7FL) != 0) {
+			output.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		output.write((int) value);
+	}
+
+	/**
+	 * Reads a value from <code>input</code> as {@link #readLong(InputStream)}
+	 * does, and so of up to {@link #MAX_LONG_BYTES} bytes, then checks that it
+	 * fits in 32 bits
+	 * 
+	 * @param input
+	 *            the stream to read from
+	 * @return the decoded value as an unsigned <code>int</code>, so values
+	 *         over <code>Integer.MAX_VALUE</code> are negative. Returns
+	 *         <code>-1</code> if <code>input</code> was at end of stream before
+	 *         the first byte, which an encoded <code>0xFFFFFFFF</code> cannot
+	 *         be told apart from. A value that <code>readLong()</code> returns
+	 *         as negative is not rejected but cut to its low 32 bits.
+	 * @throws IOException
+	 *             if <code>input</code> ended partway through the value, the
+	 *             value is longer than {@link #MAX_LONG_BYTES} bytes, or it is
+	 *             positive and over <code>0xFFFFFFFF</code>
+	 */
+	public static int readInt(InputStream input) throws IOException {
+		long value = readLong(input);
+		if (value > 0xFFFFFFFFL) {
+			throw new IOException("Varint too long for int");
+		}
+		return (int) value;
+	}
+
+	/**
+	 * Reads a value of at most {@link #MAX_LONG_BYTES} bytes from
+	 * <code>input</code>
+	 * 
+	 * @param input
+	 *            the stream to read from
+	 * @return the decoded value, or <code>-1</code> if <code>input</code> was
+	 *         at end of stream before the first byte
+	 * @throws IOException
+	 *             if <code>input</code> ended partway through the value or the
+	 *             value is malformed
+	 */
+	public static long readLong(InputStream input) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			int b = input.read();
+			if (b < 0) {
+				if (shift == 0) {
+					return -1;
+				}
+				throw new EOFException("Stream ended inside varint");
+			}
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Writes <code>value</code> at the position of <code>buffer</code>,
+	 * advancing the position past the encoded bytes
+	 * 
+	 * @param value
+	 *            the value to write, treated as unsigned
+	 * @param buffer
+	 *            the destination buffer
+	 * @throws java.nio.BufferOverflowException
+	 *             if <code>buffer</code> does not have room for the value
+	 */
+	public static void write(long value, ByteBuffer buffer) {
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	/**
+	 * Reads a value of at most {@link #MAX_INT_BYTES} bytes from the position
+	 * of <code>buffer</code>. If the value is complete the position is advanced
+	 * past it; otherwise the position is left unchanged.
+	 * 
+	 * @param buffer
+	 *            the buffer to read from
+	 * @return the decoded value, or <code>-1</code> if <code>buffer</code>
+	 *         ends before the value does
+	 * @throws IOException
+	 *             if the value is malformed or does not fit in a non-negative
+	 *             <code>int</code>
+	 */
+	public static int readInt(ByteBuffer buffer) throws IOException {
+		int position = buffer.position();
+		int limit = buffer.limit();
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (position == limit) {
+				return -1;
+			}
+			int b = buffer.get(position++);
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					throw new IOException("Varint too long for int");
+				}
+				buffer.position(position);
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+}
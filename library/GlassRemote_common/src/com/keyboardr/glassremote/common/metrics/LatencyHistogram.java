@@ -0,0 +1,144 @@
+package com.keyboardr.glassremote.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records durations into power-of-two buckets of microseconds. Recording
+ * takes a few uncontended atomic increments and never locks or allocates, so
+ * it is cheap enough for every message. Percentiles are accurate to within a
+ * factor of two.<br/>
+ * <br/>
+ * This class is thread-safe.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class LatencyHistogram {
+
+	/**
+	 * Number of buckets. Bucket <code>0</code> counts durations under one
+	 * microsecond and bucket <code>i</code> durations of
+	 * <code>2<sup>i-1</sup></code> to <code>2<sup>i</sup> - 1</code>
+	 * microseconds; the last bucket also takes anything longer.
+	 */
+	public static final int BUCKET_COUNT = 32;
+
+	/**
+	 * An immutable copy of a <code>LatencyHistogram</code>
+	 */
+	public static class Snapshot {
+		private final long[] mBuckets;
+		private final long mCount;
+		private final long mTotalMicros;
+		private final long mMaxMicros;
+
+		Snapshot(long[] buckets, long count, long totalMicros, long maxMicros) {
+			mBuckets = buckets;
+			mCount = count;
+			mTotalMicros = totalMicros;
+			mMaxMicros = maxMicros;
+		}
+
+		/**
+		 * Gets the number of durations recorded
+		 * 
+		 * @return the sample count
+		 */
+		public long getCount() {
+			return mCount;
+		}
+
+		/**
+		 * Gets the mean duration
+		 * 
+		 * @return the mean in microseconds, or <code>0</code> if nothing was
+		 *         recorded
+		 */
+		public long getMeanMicros() {
+			return mCount == 0 ? 0 : mTotalMicros / mCount;
+		}
+
+		/**
+		 * Gets the longest duration recorded
+		 * 
+		 * @return the maximum in microseconds
+		 */
+		public long getMaxMicros() {
+			return mMaxMicros;
+		}
+
+		/**
+		 * Gets an upper bound on the given percentile
+		 * 
+		 * @param percentile
+		 *            the percentile, from <code>0</code> to <code>100</code>
+		 * @return the upper bound of the bucket holding the percentile, in
+		 *         microseconds, and never more than {@link #getMaxMicros()}
+		 */
+		public long getPercentileMicros(double percentile) {
+			long total = 0;
+			for (long count : mBuckets) {
+				total += count;
+			}
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < mBuckets.length; i++) {
+				seen += mBuckets[i];
+				if (seen >= rank && seen > 0) {
+					return Math.min((1L << i) - 1, mMaxMicros);
+				}
+			}
+			return mMaxMicros;
+		}
+
+		@Override
+		public String toString() {
+			return "n=" + mCount + " mean=" + getMeanMicros() + "us p50="
+					+ getPercentileMicros(50) + "us p99="
+					+ getPercentileMicros(99) + "us max=" + mMaxMicros + "us";
+		}
+	}
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mCount = new AtomicLong();
+	private final AtomicLong mTotalMicros = new AtomicLong();
+	private final AtomicLong mMaxMicros = new AtomicLong();
+
+	/**
+	 * Records a duration
+	 * 
+	 * @param nanos
+	 *            the duration in nanoseconds. Negative values count as zero.
+	 */
+	public void record(long nanos) {
+		long micros = nanos <= 0 ? 0 : nanos / 1000;
+		int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros),
+				BUCKET_COUNT - 1);
+		mBuckets.incrementAndGet(bucket);
+		mCount.incrementAndGet();
+		mTotalMicros.addAndGet(micros);
+		long max = mMaxMicros.get();
+		while (micros > max && !mMaxMicros.compareAndSet(max, micros)) {
+			max = mMaxMicros.get();
+		}
+	}
+
+	/**
+	 * Copies the current state. Durations recorded while copying may be
+	 * partly included.
+	 * 
+	 * @return a <code>Snapshot</code> of this histogram
+	 */
+	public Snapshot snapshot() {
+		long[] buckets = new long[BUCKET_COUNT];
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets[i] = mBuckets.get(i);
+		}
+		return new Snapshot(buckets, mCount.get(), mTotalMicros.get(),
+				mMaxMicros.get());
+	}
+}
@@ -0,0 +1,175 @@
+package com.keyboardr.glassremote.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latency histograms for one messaging endpoint, such as a
+ * <code>RemoteMessenger</code> or a <code>MessageService</code>, summed over
+ * all of its connections. The connection code records into it as messages
+ * flow; {@link #snapshot(int)} reads it.<br/>
+ * <br/>
+ * This class is thread-safe. Recording never locks or allocates.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class MessageMetrics {
+
+	private final AtomicLong mMessagesSent = new AtomicLong();
+	private final AtomicLong mBytesSent = new AtomicLong();
+	private final AtomicLong mSendFailures = new AtomicLong();
+	private final AtomicLong mMessagesReceived = new AtomicLong();
+	private final AtomicLong mBytesReceived = new AtomicLong();
+	private final AtomicLong mConnects = new AtomicLong();
+	private final AtomicLong mConnectFailures = new AtomicLong();
+	private final AtomicLong mReconnects = new AtomicLong();
+	private final AtomicLong mDisconnects = new AtomicLong();
+	private final AtomicLong mMaxQueueDepth = new AtomicLong();
+
+	private final LatencyHistogram mEncodeTime = new LatencyHistogram();
+	private final LatencyHistogram mDecodeTime = new LatencyHistogram();
+	private final LatencyHistogram mDispatchLatency = new LatencyHistogram();
+	private final LatencyHistogram mConnectTime = new LatencyHistogram();
+
+	private final long mCreatedMillis = System.currentTimeMillis();
+
+	/**
+	 * A message was encoded for sending
+	 * 
+	 * @param nanos
+	 *            how long the <code>MessageSender</code> took
+	 */
+	public void onEncoded(long nanos) {
+		mEncodeTime.record(nanos);
+	}
+
+	/**
+	 * A batch of messages was written to the connection
+	 * 
+	 * @param messages
+	 *            the number of messages in the batch
+	 * @param bytes
+	 *            the number of bytes written
+	 */
+	public void onWritten(int messages, int bytes) {
+		mMessagesSent.addAndGet(messages);
+		mBytesSent.addAndGet(bytes);
+	}
+
+	/**
+	 * Messages failed to send, whether rejected, dropped or lost with the
+	 * connection
+	 * 
+	 * @param messages
+	 *            the number of messages that failed
+	 */
+	public void onSendFailed(int messages) {
+		mSendFailures.addAndGet(messages);
+	}
+
+	/**
+	 * A message was queued for sending
+	 * 
+	 * @param depth
+	 *            the depth of the send queue including the new message
+	 */
+	public void onQueued(int depth) {
+		long max = mMaxQueueDepth.get();
+		while (depth > max && !mMaxQueueDepth.compareAndSet(max, depth)) {
+			max = mMaxQueueDepth.get();
+		}
+	}
+
+	/**
+	 * Bytes were read from the connection
+	 * 
+	 * @param bytes
+	 *            the number of bytes read
+	 */
+	public void onBytesRead(int bytes) {
+		mBytesReceived.addAndGet(bytes);
+	}
+
+	/**
+	 * A message was decoded
+	 * 
+	 * @param nanos
+	 *            how long the <code>MessageReceiver</code> took from the
+	 *            message's first bytes arriving
+	 */
+	public void onDecoded(long nanos) {
+		mMessagesReceived.incrementAndGet();
+		mDecodeTime.record(nanos);
+	}
+
+	/**
+	 * A received message reached its callback
+	 * 
+	 * @param receivedNanos
+	 *            the <code>System.nanoTime()</code> at which the message's
+	 *            first bytes were read
+	 */
+	public void onDispatched(long receivedNanos) {
+		mDispatchLatency.record(System.nanoTime() - receivedNanos);
+	}
+
+	/**
+	 * A connection was established
+	 * 
+	 * @param nanos
+	 *            how long connecting took
+	 */
+	public void onConnected(long nanos) {
+		mConnects.incrementAndGet();
+		mConnectTime.record(nanos);
+	}
+
+	/**
+	 * A server accepted a connection from a client. Counted as a connect,
+	 * with no connect time since the client did the connecting.
+	 */
+	public void onAccepted() {
+		mConnects.incrementAndGet();
+	}
+
+	/**
+	 * An attempt to connect failed
+	 */
+	public void onConnectFailed() {
+		mConnectFailures.incrementAndGet();
+	}
+
+	/**
+	 * A reconnect attempt was started after the link dropped or a previous
+	 * attempt failed
+	 */
+	public void onReconnect() {
+		mReconnects.incrementAndGet();
+	}
+
+	/**
+	 * A connection closed
+	 */
+	public void onDisconnected() {
+		mDisconnects.incrementAndGet();
+	}
+
+	/**
+	 * Copies the current values
+	 * 
+	 * @param queueDepth
+	 *            the current number of messages waiting to be sent, over all
+	 *            connections
+	 * @return a <code>MetricsSnapshot</code>
+	 */
+	public MetricsSnapshot snapshot(int queueDepth) {
+		long now = System.currentTimeMillis();
+		return new MetricsSnapshot(now, now - mCreatedMillis,
+				mMessagesSent.get(), mBytesSent.get(), mSendFailures.get(),
+				mMessagesReceived.get(), mBytesReceived.get(), queueDepth,
+				mMaxQueueDepth.get(), mConnects.get(), mConnectFailures.get(),
+				mReconnects.get(), mDisconnects.get(), mEncodeTime.snapshot(),
+				mDecodeTime.snapshot(), mDispatchLatency.snapshot(),
+				mConnectTime.snapshot());
+	}
+}
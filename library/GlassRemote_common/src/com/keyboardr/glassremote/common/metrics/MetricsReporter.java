@@ -0,0 +1,106 @@
+package com.keyboardr.glassremote.common.metrics;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Periodically passes a {@link MetricsSnapshot} to a {@link Listener} on a
+ * <code>Handler</code>'s thread.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class MetricsReporter {
+
+	/**
+	 * Provides the snapshots to report
+	 */
+	public static interface Source {
+		/**
+		 * Takes a snapshot
+		 * 
+		 * @return the current <code>MetricsSnapshot</code>
+		 */
+		public MetricsSnapshot getMetrics();
+	}
+
+	/**
+	 * Receives periodic snapshots
+	 */
+	public static interface Listener {
+		/**
+		 * A snapshot was taken
+		 * 
+		 * @param snapshot
+		 *            the <code>MetricsSnapshot</code>
+		 */
+		public void onMetrics(MetricsSnapshot snapshot);
+	}
+
+	/**
+	 * A <code>Listener</code> that writes each snapshot to the log
+	 */
+	public static final Listener LOG = new Listener() {
+
+		@Override
+		public void onMetrics(MetricsSnapshot snapshot) {
+			Log.i("GlassRemoteMetrics", snapshot.toString());
+		}
+	};
+
+	private final Handler mHandler;
+	private final Source mSource;
+
+	private Listener mListener;
+	private long mIntervalMillis;
+
+	private final Runnable mReport = new Runnable() {
+
+		@Override
+		public void run() {
+			Listener listener;
+			synchronized (MetricsReporter.this) {
+				listener = mListener;
+				if (listener == null) {
+					return;
+				}
+				mHandler.postDelayed(this, mIntervalMillis);
+			}
+			listener.onMetrics(mSource.getMetrics());
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param handler
+	 *            the <code>Handler</code> whose thread reports run on
+	 * @param source
+	 *            the <code>Source</code> of the snapshots
+	 */
+	public MetricsReporter(Handler handler, Source source) {
+		mHandler = handler;
+		mSource = source;
+	}
+
+	/**
+	 * Starts, restarts or stops reporting
+	 * 
+	 * @param listener
+	 *            the <code>Listener</code> to report to, or <code>null</code>
+	 *            to stop
+	 * @param intervalMillis
+	 *            the time between reports in milliseconds
+	 */
+	public synchronized void setListener(Listener listener, long intervalMillis) {
+		if (listener != null && intervalMillis <= 0) {
+			throw new IllegalArgumentException("intervalMillis <= 0");
+		}
+		mHandler.removeCallbacks(mReport);
+		mListener = listener;
+		mIntervalMillis = intervalMillis;
+		if (listener != null) {
+			mHandler.postDelayed(mReport, intervalMillis);
+		}
+	}
+}
@@ -0,0 +1,227 @@
+package com.keyboardr.glassremote.common.metrics;
+
+/**
+ * The values of a {@link MessageMetrics} at one point in time. Counters are
+ * totals since the endpoint was created; take two snapshots and subtract to
+ * get rates.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class MetricsSnapshot {
+	private final long mTimestampMillis;
+	private final long mUptimeMillis;
+	private final long mMessagesSent;
+	private final long mBytesSent;
+	private final long mSendFailures;
+	private final long mMessagesReceived;
+	private final long mBytesReceived;
+	private final int mQueueDepth;
+	private final long mMaxQueueDepth;
+	private final long mConnects;
+	private final long mConnectFailures;
+	private final long mReconnects;
+	private final long mDisconnects;
+	private final LatencyHistogram.Snapshot mEncodeTime;
+	private final LatencyHistogram.Snapshot mDecodeTime;
+	private final LatencyHistogram.Snapshot mDispatchLatency;
+	private final LatencyHistogram.Snapshot mConnectTime;
+
+	MetricsSnapshot(long timestampMillis, long uptimeMillis,
+			long messagesSent, long bytesSent, long sendFailures,
+			long messagesReceived, long bytesReceived, int queueDepth,
+			long maxQueueDepth, long connects, long connectFailures,
+			long reconnects, long disconnects,
+			LatencyHistogram.Snapshot encodeTime,
+			LatencyHistogram.Snapshot decodeTime,
+			LatencyHistogram.Snapshot dispatchLatency,
+			LatencyHistogram.Snapshot connectTime) {
+		mTimestampMillis = timestampMillis;
+		mUptimeMillis = uptimeMillis;
+		mMessagesSent = messagesSent;
+		mBytesSent = bytesSent;
+		mSendFailures = sendFailures;
+		mMessagesReceived = messagesReceived;
+		mBytesReceived = bytesReceived;
+		mQueueDepth = queueDepth;
+		mMaxQueueDepth = maxQueueDepth;
+		mConnects = connects;
+		mConnectFailures = connectFailures;
+		mReconnects = reconnects;
+		mDisconnects = disconnects;
+		mEncodeTime = encodeTime;
+		mDecodeTime = decodeTime;
+		mDispatchLatency = dispatchLatency;
+		mConnectTime = connectTime;
+	}
+
+	/**
+	 * Gets when this snapshot was taken
+	 * 
+	 * @return the wall clock time in milliseconds
+	 */
+	public long getTimestampMillis() {
+		return mTimestampMillis;
+	}
+
+	/**
+	 * Gets how long the endpoint had existed when this snapshot was taken
+	 * 
+	 * @return the age of the endpoint in milliseconds
+	 */
+	public long getUptimeMillis() {
+		return mUptimeMillis;
+	}
+
+	/**
+	 * Gets the number of messages written to a connection
+	 * 
+	 * @return the total messages sent
+	 */
+	public long getMessagesSent() {
+		return mMessagesSent;
+	}
+
+	/**
+	 * Gets the number of encoded bytes written to a connection
+	 * 
+	 * @return the total bytes sent
+	 */
+	public long getBytesSent() {
+		return mBytesSent;
+	}
+
+	/**
+	 * Gets the number of messages that could not be sent
+	 * 
+	 * @return the total send failures
+	 */
+	public long getSendFailures() {
+		return mSendFailures;
+	}
+
+	/**
+	 * Gets the number of messages decoded
+	 * 
+	 * @return the total messages received
+	 */
+	public long getMessagesReceived() {
+		return mMessagesReceived;
+	}
+
+	/**
+	 * Gets the number of bytes read from a connection
+	 * 
+	 * @return the total bytes received
+	 */
+	public long getBytesReceived() {
+		return mBytesReceived;
+	}
+
+	/**
+	 * Gets the number of messages waiting to be sent when this snapshot was
+	 * taken
+	 * 
+	 * @return the current send queue depth
+	 */
+	public int getQueueDepth() {
+		return mQueueDepth;
+	}
+
+	/**
+	 * Gets the deepest any send queue has been
+	 * 
+	 * @return the maximum send queue depth
+	 */
+	public long getMaxQueueDepth() {
+		return mMaxQueueDepth;
+	}
+
+	/**
+	 * Gets the number of connections established or accepted
+	 * 
+	 * @return the total connects
+	 */
+	public long getConnects() {
+		return mConnects;
+	}
+
+	/**
+	 * Gets the number of failed connection attempts
+	 * 
+	 * @return the total connect failures
+	 */
+	public long getConnectFailures() {
+		return mConnectFailures;
+	}
+
+	/**
+	 * Gets the number of reconnect attempts made after the link dropped
+	 * 
+	 * @return the total reconnects
+	 */
+	public long getReconnects() {
+		return mReconnects;
+	}
+
+	/**
+	 * Gets the number of connections that closed
+	 * 
+	 * @return the total disconnects
+	 */
+	public long getDisconnects() {
+		return mDisconnects;
+	}
+
+	/**
+	 * Gets the time taken to encode each outgoing message
+	 * 
+	 * @return the encode time histogram
+	 */
+	public LatencyHistogram.Snapshot getEncodeTime() {
+		return mEncodeTime;
+	}
+
+	/**
+	 * Gets the time from the first bytes of each incoming message being read
+	 * to the message being decoded
+	 * 
+	 * @return the decode time histogram
+	 */
+	public LatencyHistogram.Snapshot getDecodeTime() {
+		return mDecodeTime;
+	}
+
+	/**
+	 * Gets the time from the first bytes of each incoming message being read
+	 * to its callback starting. With batched delivery only the first message
+	 * of each batch is counted.
+	 * 
+	 * @return the dispatch latency histogram
+	 */
+	public LatencyHistogram.Snapshot getDispatchLatency() {
+		return mDispatchLatency;
+	}
+
+	/**
+	 * Gets the time taken by each successful outgoing connect
+	 * 
+	 * @return the connect time histogram
+	 */
+	public LatencyHistogram.Snapshot getConnectTime() {
+		return mConnectTime;
+	}
+
+	@Override
+	public String toString() {
+		return "uptime=" + mUptimeMillis + "ms sent=" + mMessagesSent + "/"
+				+ mBytesSent + "B failed=" + mSendFailures + " received="
+				+ mMessagesReceived + "/" + mBytesReceived + "B queue="
+				+ mQueueDepth + " maxQueue=" + mMaxQueueDepth + " connects="
+				+ mConnects + " connectFailures=" + mConnectFailures
+				+ " reconnects=" + mReconnects + " disconnects="
+				+ mDisconnects + " encode[" + mEncodeTime + "] decode["
+				+ mDecodeTime + "] dispatch[" + mDispatchLatency
+				+ "] connect[" + mConnectTime + "]";
+	}
+}
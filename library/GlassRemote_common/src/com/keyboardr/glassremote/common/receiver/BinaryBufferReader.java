@@ -0,0 +1,79 @@
+package com.keyboardr.glassremote.common.receiver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.keyboardr.glassremote.common.io.Varint;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver.OnReceiveMessageListener;
+
+/**
+ * Decodes messages written by
+ * {@link com.keyboardr.glassremote.common.sender.BinaryMessageSender
+ * BinaryMessageSender} or
+ * {@link com.keyboardr.glassremote.common.sender.BinaryBufferSender
+ * BinaryBufferSender} without copying them. Each message is passed to the
+ * listener as a read-only slice of the receive buffer whose position and limit
+ * span the payload.<br/>
+ * <br/>
+ * <b>Note:</b> A slice is only valid until the listener returns, after which
+ * the receive buffer is overwritten. Listeners that keep a message or hand it
+ * to another thread must copy it first, or use {@link BinaryMessageReader}.
+ * <br/>
+ * <br/>
+ * This class is stateless and may be shared between connections.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class BinaryBufferReader implements ByteBufferMessageReceiver<ByteBuffer> {
+
+	private final int mMaxMessageSize;
+
+	/**
+	 * Class constructor
+	 */
+	public BinaryBufferReader() {
+		this(BinaryMessageReader.DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param maxMessageSize
+	 *            the largest message, in bytes, that will be accepted. A
+	 *            larger length prefix is treated as a corrupt stream.
+	 */
+	public BinaryBufferReader(int maxMessageSize) {
+		mMaxMessageSize = maxMessageSize;
+	}
+
+	@Override
+	public int decode(ByteBuffer buffer,
+			OnReceiveMessageListener<? super ByteBuffer> listener)
+			throws IOException {
+		int count = 0;
+		while (buffer.hasRemaining()) {
+			int start = buffer.position();
+			int length = Varint.readInt(buffer);
+			if (length < 0) {
+				break;
+			}
+			if (length > mMaxMessageSize) {
+				throw new IOException("Message of " + length
+						+ " bytes exceeds maximum of " + mMaxMessageSize);
+			}
+			if (buffer.remaining() < length) {
+				// Wait for the rest of the payload
+				buffer.position(start);
+				break;
+			}
+			int payloadStart = buffer.position();
+			ByteBuffer message = buffer.asReadOnlyBuffer();
+			message.limit(payloadStart + length);
+			buffer.position(payloadStart + length);
+			listener.onReceiveMessage(message);
+			count++;
+		}
+		return count;
+	}
+}
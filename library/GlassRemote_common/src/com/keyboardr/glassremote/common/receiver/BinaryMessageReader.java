@@ -0,0 +1,142 @@
+package com.keyboardr.glassremote.common.receiver;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads messages written by
+ * {@link com.keyboardr.glassremote.common.sender.BinaryMessageSender
+ * BinaryMessageSender}. Each message is a {@link
+ * com.keyboardr.glassremote.common.io.Varint Varint} length followed by that
+ * many payload bytes, so the payload is read with exact-length reads and never
+ * scanned for a delimiter.<br/>
+ * <br/>
+ * The read buffer is reused across messages. Each payload is copied into a
+ * newly allocated array of exactly its length, since listeners may hand the
+ * message to another thread.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class BinaryMessageReader implements MessageReceiver<byte[]> {
+
+	/**
+	 * The default value for {@link #BinaryMessageReader(int)}
+	 */
+	public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
+	private static final int BUFFER_SIZE = 8 * 1024;
+
+	private final int mMaxMessageSize;
+	private final byte[] mBuffer = new byte[BUFFER_SIZE];
+	private int mPosition;
+	private int mLimit;
+	private InputStream mInputStream;
+
+	/**
+	 * Class constructor
+	 */
+	public BinaryMessageReader() {
+		this(DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param maxMessageSize
+	 *            the largest message, in bytes, that will be accepted. A
+	 *            larger length prefix is treated as a corrupt stream.
+	 */
+	public BinaryMessageReader(int maxMessageSize) {
+		mMaxMessageSize = maxMessageSize;
+	}
+
+	@Override
+	public void setInputStream(InputStream input) {
+		mInputStream = input;
+		mPosition = 0;
+		mLimit = 0;
+	}
+
+	@Override
+	public boolean read(OnReceiveMessageListener<? super byte[]> listener) {
+		if (mInputStream == null) {
+			throw new IllegalStateException(
+					"read() called with no InputStream set");
+		}
+		final byte[] message;
+		try {
+			int length = readLength();
+			if (length < 0) {
+				return false;
+			}
+			if (length > mMaxMessageSize) {
+				throw new IOException("Message of " + length
+						+ " bytes exceeds maximum of " + mMaxMessageSize);
+			}
+			message = new byte[length];
+			readFully(message, length);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		listener.onReceiveMessage(message);
+		return true;
+	}
+
+	private int readLength() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			if (mPosition == mLimit && !fill()) {
+				if (shift == 0) {
+					return -1;
+				}
+				throw new EOFException("Stream ended inside length prefix");
+			}
+			int b = mBuffer[mPosition++];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				if (value < 0) {
+					throw new IOException("Negative message length");
+				}
+				return value;
+			}
+		}
+		throw new IOException("Malformed length prefix");
+	}
+
+	/**
+	 * Fills <code>destination</code> with the next <code>length</code> bytes.
+	 * Returns only once all of them have been read, and throws
+	 * <code>EOFException</code> if the stream ends first.
+	 */
+	private void readFully(byte[] destination, int length) throws IOException {
+		int copied = Math.min(length, mLimit - mPosition);
+		System.arraycopy(mBuffer, mPosition, destination, 0, copied);
+		mPosition += copied;
+		while (copied < length) {
+			// Whatever the buffer did not hold is read straight into the
+			// message, however little that is
+			int count = mInputStream.read(destination, copied, length - copied);
+			if (count < 0) {
+				throw new EOFException("Stream ended inside message");
+			}
+			copied += count;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		int count;
+		do {
+			count = mInputStream.read(mBuffer, 0, mBuffer.length);
+		} while (count == 0);
+		if (count < 0) {
+			return false;
+		}
+		mPosition = 0;
+		mLimit = count;
+		return true;
+	}
+
+}
@@ -0,0 +1,46 @@
+package com.keyboardr.glassremote.common.receiver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.keyboardr.glassremote.common.receiver.MessageReceiver.OnReceiveMessageListener;
+
+/**
+ * Decodes messages of type <code>R</code> from a <code>ByteBuffer</code>
+ * holding bytes received from the remote peer. Implementations do not read
+ * from the connection themselves, so the caller controls the buffer and may
+ * hand decoded messages that are views of it rather than copies.<br/>
+ * <br/>
+ * Use {@link ByteBufferReceiverAdapter} to receive with a
+ * <code>ByteBufferMessageReceiver</code> wherever a
+ * <code>MessageReceiver</code> is expected.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <R>
+ *            type of messages to be decoded
+ */
+public interface ByteBufferMessageReceiver<R> {
+
+	/**
+	 * Decodes every complete message between the position and limit of
+	 * <code>buffer</code>, calling
+	 * {@link OnReceiveMessageListener#onReceiveMessage(Object)} for each and
+	 * advancing the position past it. A trailing partial message is left in
+	 * place for the next call, once more bytes have arrived.<br/>
+	 * <br/>
+	 * Messages passed to <code>listener</code> may share content with
+	 * <code>buffer</code>. Whether they remain valid after the listener returns
+	 * is up to the implementation and must be documented by it.
+	 * 
+	 * @param buffer
+	 *            the received bytes
+	 * @param listener
+	 *            the callback to send messages to
+	 * @return the number of messages decoded
+	 * @throws IOException
+	 *             if the bytes are not a valid encoding
+	 */
+	public int decode(ByteBuffer buffer,
+			OnReceiveMessageListener<? super R> listener) throws IOException;
+}
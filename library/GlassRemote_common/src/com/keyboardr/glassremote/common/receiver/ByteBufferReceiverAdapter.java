@@ -0,0 +1,154 @@
+package com.keyboardr.glassremote.common.receiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads messages from an <code>InputStream</code> using a
+ * {@link ByteBufferMessageReceiver}. Bytes are read straight into a buffer
+ * that is reused across calls and decoded in place, so the decoder may hand
+ * out views of the buffer instead of copies. Such views are only valid until
+ * the listener returns.<br/>
+ * <br/>
+ * The buffer grows to hold the largest message seen, up to a maximum size.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <R>
+ *            type of messages to be generated from the <code>InputStream</code>
+ */
+public class ByteBufferReceiverAdapter<R> implements MessageReceiver<R> {
+
+	/**
+	 * The default value for {@link #ByteBufferReceiverAdapter(
+	 * ByteBufferMessageReceiver, int)}
+	 */
+	public static final int DEFAULT_MAX_BUFFER_SIZE = 16 * 1024 * 1024 + 16;
+
+	private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+
+	private final ByteBufferMessageReceiver<R> mDecoder;
+	private final int mMaxBufferSize;
+	private ByteBuffer mBuffer;
+	private InputStream mInputStream;
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param decoder
+	 *            the <code>ByteBufferMessageReceiver</code> providing the
+	 *            implementation for decoding <code>R</code> messages
+	 */
+	public ByteBufferReceiverAdapter(ByteBufferMessageReceiver<R> decoder) {
+		this(decoder, DEFAULT_MAX_BUFFER_SIZE);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param decoder
+	 *            the <code>ByteBufferMessageReceiver</code> providing the
+	 *            implementation for decoding <code>R</code> messages
+	 * @param maxBufferSize
+	 *            the largest the read buffer may grow. A message that does not
+	 *            fit is treated as a corrupt stream.
+	 */
+	public ByteBufferReceiverAdapter(ByteBufferMessageReceiver<R> decoder,
+			int maxBufferSize) {
+		mDecoder = decoder;
+		mMaxBufferSize = maxBufferSize;
+		mBuffer = ByteBuffer.allocate(Math.min(INITIAL_BUFFER_SIZE,
+				maxBufferSize));
+		mBuffer.limit(0);
+	}
+
+	/**
+	 * Creates a <code>MessageReceiver.Factory</code> that wraps a new
+	 * <code>ByteBufferReceiverAdapter</code> around <code>decoder</code> for
+	 * each connection. <code>decoder</code> itself must be stateless.
+	 * 
+	 * @param decoder
+	 *            the stateless <code>ByteBufferMessageReceiver</code> to share
+	 * @return a <code>MessageReceiver.Factory</code> for <code>decoder</code>
+	 */
+	public static <R> MessageReceiver.Factory<R> factory(
+			final ByteBufferMessageReceiver<R> decoder) {
+		return new MessageReceiver.Factory<R>() {
+
+			@Override
+			public MessageReceiver<R> newReceiver() {
+				return new ByteBufferReceiverAdapter<R>(decoder);
+			}
+		};
+	}
+
+	@Override
+	public void setInputStream(InputStream input) {
+		mInputStream = input;
+		mBuffer.clear();
+		mBuffer.limit(0);
+	}
+
+	@Override
+	public boolean read(OnReceiveMessageListener<? super R> listener) {
+		if (mInputStream == null) {
+			throw new IllegalStateException(
+					"read() called with no InputStream set");
+		}
+		try {
+			while (true) {
+				if (mBuffer.hasRemaining()
+						&& mDecoder.decode(mBuffer, listener) > 0) {
+					return true;
+				}
+				if (!fill()) {
+					return false;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	private boolean fill() throws IOException {
+		if (!mBuffer.hasRemaining()) {
+			mBuffer.clear();
+			mBuffer.limit(0);
+		} else if (mBuffer.limit() == mBuffer.capacity()) {
+			if (mBuffer.position() > 0) {
+				// Move the partial message to the front
+				mBuffer.compact();
+				mBuffer.flip();
+			} else {
+				grow();
+			}
+		}
+		byte[] array = mBuffer.array();
+		int limit = mBuffer.limit();
+		int count;
+		do {
+			count = mInputStream.read(array, limit, mBuffer.capacity() - limit);
+		} while (count == 0);
+		if (count < 0) {
+			return false;
+		}
+		mBuffer.limit(limit + count);
+		return true;
+	}
+
+	private void grow() throws IOException {
+		int capacity = mBuffer.capacity();
+		if (capacity >= mMaxBufferSize) {
+			throw new IOException("Message exceeds maximum of "
+					+ mMaxBufferSize + " bytes");
+		}
+		ByteBuffer grown = ByteBuffer.allocate((int) Math.min(
+				(long) capacity * 2, mMaxBufferSize));
+		grown.put(mBuffer);
+		grown.flip();
+		mBuffer = grown;
+	}
+
+}
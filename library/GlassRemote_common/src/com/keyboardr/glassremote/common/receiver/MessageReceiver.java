@@ -29,6 +29,24 @@ public interface MessageReceiver<R> {
 		public void onReceiveMessage(M message);
 	}
 
+	/**
+	 * Creates <code>MessageReceivers</code>. Used when each connection needs
+	 * its own receiver, such as a server talking to several clients at once.
+	 * 
+	 * @param <R>
+	 *            type of messages to be generated from the
+	 *            <code>InputStream</code>
+	 */
+	public static interface Factory<R> {
+		/**
+		 * Creates a new <code>MessageReceiver</code> that does not share state
+		 * with any other instance
+		 * 
+		 * @return a new <code>MessageReceiver</code>
+		 */
+		public MessageReceiver<R> newReceiver();
+	}
+
 	/**
 	 * Sets the <code>InputStream</code> this <code>MessageReceiver</code> will
 	 * read from.
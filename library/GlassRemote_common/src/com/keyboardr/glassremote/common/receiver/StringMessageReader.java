@@ -4,31 +4,137 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+
+import com.keyboardr.glassremote.common.topic.Subscriptions;
+import com.keyboardr.glassremote.common.topic.TextSubscriptions;
 
 /**
  * Reads messages and converts them to <code>Strings</code>. Messages are
- * separated by <code>'\n'</code> characters.
+ * UTF-8, as written by <code>StringMessageSender</code>, and separated by
+ * <code>'\n'</code> characters.<br/>
+ * <br/>
+ * Readers created with an intern cache decode with a
+ * {@link Utf8LineReader} and reuse the <code>String</code> for any short
+ * message seen recently, so a steady stream of repeated messages is read
+ * without allocating.
  * 
  * @author Joshua Brown
  * 
  */
 public class StringMessageReader implements MessageReceiver<String> {
 
+	/**
+	 * Longest message, in chars, that is kept in the intern cache
+	 */
+	public static final int MAX_INTERNED_LENGTH = 64;
+
+	/**
+	 * A reasonable intern cache size for a small set of repeated messages
+	 */
+	public static final int DEFAULT_INTERN_CACHE_SIZE = 64;
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
 	private BufferedReader r;
 
+	private final Utf8LineReader mLineReader;
+	private final String[] mCache;
+	private final Subscriptions<? super CharSequence> mSubscriptions;
+	private OnReceiveMessageListener<? super String> mListener;
+
+	private final OnReceiveMessageListener<CharSequence> mLineListener = new OnReceiveMessageListener<CharSequence>() {
+
+		@Override
+		public void onReceiveMessage(CharSequence line) {
+			if (mSubscriptions != null && !mSubscriptions.matches(line)) {
+				return;
+			}
+			mListener.onReceiveMessage(intern(line));
+		}
+	};
+
 	/**
 	 * Class constructor
 	 */
 	public StringMessageReader() {
+		mLineReader = null;
+		mCache = null;
+		mSubscriptions = null;
+	}
+
+	/**
+	 * Class constructor for a reader with an intern cache
+	 * 
+	 * @param internCacheSize
+	 *            the number of distinct short messages remembered. Rounded up
+	 *            to a power of two.
+	 */
+	public StringMessageReader(int internCacheSize) {
+		this(internCacheSize, Utf8LineReader.DEFAULT_MAX_LINE_LENGTH);
+	}
+
+	/**
+	 * Class constructor for a reader with an intern cache
+	 * 
+	 * @param internCacheSize
+	 *            the number of distinct short messages remembered. Rounded up
+	 *            to a power of two.
+	 * @param maxMessageLength
+	 *            the longest message, in bytes, that will be accepted
+	 */
+	public StringMessageReader(int internCacheSize, int maxMessageLength) {
+		this(internCacheSize, maxMessageLength, null);
+	}
+
+	/**
+	 * Class constructor for a reader with an intern cache that only delivers
+	 * subscribed messages. Messages are matched on the reader thread, and
+	 * with {@link TextSubscriptions} most unwanted messages are skipped
+	 * before they are decoded.
+	 * 
+	 * @param internCacheSize
+	 *            the number of distinct short messages remembered. Rounded up
+	 *            to a power of two.
+	 * @param maxMessageLength
+	 *            the longest message, in bytes, that will be accepted
+	 * @param subscriptions
+	 *            the messages to deliver, or <code>null</code> for all. May be
+	 *            shared between readers.
+	 */
+	public StringMessageReader(int internCacheSize, int maxMessageLength,
+			Subscriptions<? super CharSequence> subscriptions) {
+		int size = 1;
+		while (size < internCacheSize) {
+			size <<= 1;
+		}
+		mLineReader = new Utf8LineReader(maxMessageLength);
+		mCache = new String[size];
+		mSubscriptions = subscriptions;
+		if (subscriptions instanceof Utf8LineReader.LineFilter) {
+			mLineReader.setLineFilter((Utf8LineReader.LineFilter) subscriptions);
+		}
 	}
 
 	@Override
 	public void setInputStream(InputStream input) {
-		r = new BufferedReader(new InputStreamReader(input));
+		if (mLineReader != null) {
+			mLineReader.setInputStream(input);
+		} else {
+			r = new BufferedReader(new InputStreamReader(input, UTF_8));
+		}
 	}
 
 	@Override
 	public boolean read(final OnReceiveMessageListener<? super String> listener) {
+		if (mLineReader != null) {
+			mListener = listener;
+			try {
+				return mLineReader.read(mLineListener);
+			} finally {
+				mListener = null;
+			}
+		}
 		if (r == null) {
 			throw new IllegalStateException(
 					"read() called with no InputStream set");
@@ -40,11 +146,38 @@ public class StringMessageReader implements MessageReceiver<String> {
 			e.printStackTrace();
 			return false;
 		}
-		if (string != null) {
-			listener.onReceiveMessage(string);
+		if (string == null) {
+			// End of stream
+			return false;
 		}
+		listener.onReceiveMessage(string);
 		return true;
 
 	}
 
+	/**
+	 * Gets a <code>String</code> equal to <code>line</code>, from the cache if
+	 * it is short and was seen recently. The cache is direct-mapped: a new
+	 * message replaces whatever shared its slot.
+	 */
+	private String intern(CharSequence line) {
+		int length = line.length();
+		if (length > MAX_INTERNED_LENGTH) {
+			return line.toString();
+		}
+		int hash = 0;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + line.charAt(i);
+		}
+		int slot = (hash ^ (hash >>> 16)) & (mCache.length - 1);
+		String cached = mCache[slot];
+		if (cached != null && cached.length() == length
+				&& cached.contentEquals(line)) {
+			return cached;
+		}
+		cached = line.toString();
+		mCache[slot] = cached;
+		return cached;
+	}
+
 }
\ No newline at end of file
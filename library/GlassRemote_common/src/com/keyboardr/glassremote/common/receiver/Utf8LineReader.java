@@ -0,0 +1,293 @@
+package com.keyboardr.glassremote.common.receiver;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads <code>'\n'</code>-separated UTF-8 messages without allocating per
+ * message. Bytes are read into a reusable buffer, scanned for the delimiter
+ * and decoded into a reusable <code>char</code> array, which the listener
+ * sees through a <code>CharSequence</code> view. The view is only valid during
+ * the call to
+ * {@link OnReceiveMessageListener#onReceiveMessage(Object) onReceiveMessage()}
+ * ; call <code>toString()</code> on it to keep the message.<br/>
+ * <br/>
+ * A <code>'\r'</code> before the delimiter is dropped, as
+ * <code>BufferedReader.readLine()</code> does. Malformed UTF-8 is decoded as
+ * U+FFFD.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class Utf8LineReader implements MessageReceiver<CharSequence> {
+
+	/**
+	 * Default maximum length of a message, in bytes
+	 */
+	public static final int DEFAULT_MAX_LINE_LENGTH = 1024 * 1024;
+
+	private static final char REPLACEMENT = '\uFFFD';
+
+	/**
+	 * Decides whether a line is worth decoding, given its raw bytes
+	 */
+	public static interface LineFilter {
+		/**
+		 * Checks a line before it is decoded. Called on the reader thread.
+		 * 
+		 * @param line
+		 *            the read buffer. Must not be modified.
+		 * @param start
+		 *            the offset of the line's first byte
+		 * @param end
+		 *            the offset after the line's last byte, excluding the
+		 *            delimiter
+		 * @return <code>false</code> to skip the line without decoding it
+		 */
+		public boolean accept(byte[] line, int start, int end);
+	}
+
+	/**
+	 * A reusable view of the current message
+	 */
+	private class LineView implements CharSequence {
+		int mLength;
+
+		@Override
+		public int length() {
+			return mLength;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= mLength) {
+				throw new IndexOutOfBoundsException("index " + index
+						+ ", length " + mLength);
+			}
+			return mChars[index];
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			if (start < 0 || end > mLength || start > end) {
+				throw new IndexOutOfBoundsException("start " + start + ", end "
+						+ end + ", length " + mLength);
+			}
+			return new String(mChars, start, end - start);
+		}
+
+		@Override
+		public String toString() {
+			return new String(mChars, 0, mLength);
+		}
+	}
+
+	private final int mMaxLineLength;
+	private final LineView mView = new LineView();
+
+	private LineFilter mLineFilter;
+
+	private InputStream mInput;
+	private byte[] mBuffer = new byte[4096];
+	private char[] mChars = new char[256];
+
+	/**
+	 * Start of the unread bytes in <code>mBuffer</code>
+	 */
+	private int mStart;
+
+	/**
+	 * End of the bytes read into <code>mBuffer</code>
+	 */
+	private int mEnd;
+
+	/**
+	 * Where to resume looking for the delimiter
+	 */
+	private int mScan;
+
+	/**
+	 * Class constructor
+	 */
+	public Utf8LineReader() {
+		this(DEFAULT_MAX_LINE_LENGTH);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param maxLineLength
+	 *            the longest message, in bytes, that will be accepted
+	 */
+	public Utf8LineReader(int maxLineLength) {
+		mMaxLineLength = maxLineLength;
+	}
+
+	/**
+	 * Sets a filter that can skip lines before they are decoded. Skipped lines
+	 * are consumed without reaching the listener. Must be called before
+	 * reading starts.
+	 * 
+	 * @param filter
+	 *            the <code>LineFilter</code>, or <code>null</code> to decode
+	 *            every line
+	 */
+	public void setLineFilter(LineFilter filter) {
+		mLineFilter = filter;
+	}
+
+	@Override
+	public void setInputStream(InputStream input) {
+		mInput = input;
+		mStart = mEnd = mScan = 0;
+	}
+
+	@Override
+	public boolean read(OnReceiveMessageListener<? super CharSequence> listener) {
+		if (mInput == null) {
+			throw new IllegalStateException(
+					"read() called with no InputStream set");
+		}
+		try {
+			while (true) {
+				byte[] buffer = mBuffer;
+				for (int i = mScan; i < mEnd; i++) {
+					if (buffer[i] == '\n') {
+						int end = i > mStart && buffer[i - 1] == '\r' ? i - 1
+								: i;
+						deliver(mStart, end, listener);
+						mStart = mScan = i + 1;
+						return true;
+					}
+				}
+				mScan = mEnd;
+				if (!fill()) {
+					if (mEnd == mStart) {
+						// End of stream
+						return false;
+					}
+					// Last message without a delimiter
+					deliver(mStart, mEnd, listener);
+					mStart = mScan = mEnd;
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+	}
+
+	/**
+	 * Reads more bytes, compacting or growing the buffer first if needed
+	 * 
+	 * @return <code>false</code> at the end of the stream
+	 */
+	private boolean fill() throws IOException {
+		if (mStart == mEnd) {
+			mStart = mEnd = mScan = 0;
+		} else if (mEnd == mBuffer.length) {
+			int pending = mEnd - mStart;
+			if (pending >= mMaxLineLength) {
+				throw new IOException("Message longer than " + mMaxLineLength
+						+ " bytes");
+			}
+			if (mStart > 0) {
+				System.arraycopy(mBuffer, mStart, mBuffer, 0, pending);
+			} else {
+				byte[] buffer = new byte[Math.min(mBuffer.length * 2,
+						mMaxLineLength + 1)];
+				System.arraycopy(mBuffer, 0, buffer, 0, pending);
+				mBuffer = buffer;
+			}
+			mScan -= mStart;
+			mStart = 0;
+			mEnd = pending;
+		}
+		int read = mInput.read(mBuffer, mEnd, mBuffer.length - mEnd);
+		if (read < 0) {
+			return false;
+		}
+		mEnd += read;
+		return true;
+	}
+
+	private void deliver(int start, int end,
+			OnReceiveMessageListener<? super CharSequence> listener) {
+		if (mLineFilter != null && !mLineFilter.accept(mBuffer, start, end)) {
+			return;
+		}
+		mView.mLength = decode(mBuffer, start, end);
+		listener.onReceiveMessage(mView);
+	}
+
+	/**
+	 * Decodes UTF-8 into <code>mChars</code>
+	 * 
+	 * @return the number of chars decoded
+	 */
+	private int decode(byte[] bytes, int offset, int end) {
+		if (mChars.length < end - offset) {
+			// A UTF-8 byte never decodes to more than one char
+			mChars = new char[Math.max(end - offset, mChars.length * 2)];
+		}
+		char[] chars = mChars;
+		int count = 0;
+		while (offset < end) {
+			int b = bytes[offset++];
+			if (b >= 0) {
+				chars[count++] = (char) b;
+				continue;
+			}
+			int extra;
+			int codePoint;
+			if ((b & 0xE0) == 0xC0) {
+				extra = 1;
+				codePoint = b & 0x1F;
+			} else if ((b & 0xF0) == 0xE0) {
+				extra = 2;
+				codePoint = b & 0x0F;
+			} else if ((b & 0xF8) == 0xF0) {
+				extra = 3;
+				codePoint = b & 0x07;
+			} else {
+				chars[count++] = REPLACEMENT;
+				continue;
+			}
+			if (end - offset < extra) {
+				chars[count++] = REPLACEMENT;
+				break;
+			}
+			boolean valid = true;
+			for (int i = 0; i < extra; i++) {
+				int next = bytes[offset];
+				if ((next & 0xC0) != 0x80) {
+					valid = false;
+					break;
+				}
+				codePoint = (codePoint << 6) | (next & 0x3F);
+				offset++;
+			}
+			if (!valid || codePoint < MIN_CODE_POINT[extra]
+					|| (codePoint >= 0xD800 && codePoint <= 0xDFFF)
+					|| codePoint > Character.MAX_CODE_POINT) {
+				chars[count++] = REPLACEMENT;
+			} else if (codePoint >= Character.MIN_SUPPLEMENTARY_CODE_POINT) {
+				codePoint -= Character.MIN_SUPPLEMENTARY_CODE_POINT;
+				chars[count++] = (char) (Character.MIN_HIGH_SURROGATE
+						+ (codePoint >>> 10));
+				chars[count++] = (char) (Character.MIN_LOW_SURROGATE
+						+ (codePoint & 0x3FF));
+			} else {
+				chars[count++] = (char) codePoint;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Smallest code point that may be encoded with the given number of
+	 * continuation bytes; anything smaller is an overlong encoding
+	 */
+	private static final int[] MIN_CODE_POINT = { 0, 0x80, 0x800, 0x10000 };
+}
@@ -0,0 +1,618 @@
+package com.keyboardr.glassremote.common.reliable;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.keyboardr.glassremote.common.IoEngine;
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.sender.MessageWriter.SendQueueFullException;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+
+/**
+ * Sequenced, acknowledged delivery over a link that may drop and be
+ * re-established. Every message sent is numbered and kept until the remote
+ * channel acknowledges it, so messages that were queued or in flight when the
+ * link dropped are sent again once it is back, and the remote channel
+ * delivers each of them once and in order.<br/>
+ * <br/>
+ * Up to {@link #setWindowSize(int) the window size} messages are in flight at
+ * once without waiting for their acknowledgements. The receiving channel
+ * acknowledges cumulatively, after a short {@link #setAckDelay(long) delay}
+ * or every quarter window, and reports messages it holds beyond a gap
+ * selectively, so only the missing messages are sent again. Gaps within a
+ * connection only occur if a frame could not be written, such as when the
+ * send queue drops messages.<br/>
+ * <br/>
+ * Each channel picks a random session id when it is created and announces it
+ * in a {@link ReliableFrame#TYPE_HELLO hello} on every connection. A new
+ * session tells the remote channel that its peer has restarted, so it resets
+ * its receive state rather than discarding the new messages as duplicates.
+ * Messages still unacknowledged when a channel is discarded are lost with it,
+ * and messages delivered but not yet acknowledged when the receiving side
+ * restarts are delivered again, so delivery across restarts is at least
+ * once.<br/>
+ * <br/>
+ * The owner calls {@link #onConnected()} and {@link #onDisconnected()} as
+ * the link comes and goes, and passes every received frame to
+ * {@link #onReceiveFrame(ReliableFrame)}. Frames are written from the
+ * blocking executor of the shared {@link IoEngine}, one at a time and in
+ * order. This class is thread-safe.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            type of messages sent to the remote channel
+ * @param <R>
+ *            type of messages received from the remote channel
+ */
+public class ReliableChannel<S, R> {
+
+	/**
+	 * The number of messages in flight used until
+	 * {@link #setWindowSize(int)} is called
+	 */
+	public static final int DEFAULT_WINDOW_SIZE = 64;
+
+	/**
+	 * The number of unacknowledged messages held used until
+	 * {@link #setMaxPending(int)} is called
+	 */
+	public static final int DEFAULT_MAX_PENDING = 1024;
+
+	/**
+	 * The acknowledgement delay used until {@link #setAckDelay(long)} is
+	 * called
+	 */
+	public static final long DEFAULT_ACK_DELAY_MILLIS = 20;
+
+	/**
+	 * How long to wait for the remote channel's acknowledgement of a hello
+	 * before sending the unacknowledged messages anyway
+	 */
+	public static final long RESYNC_TIMEOUT_MILLIS = 2000;
+
+	/**
+	 * Sends frames on behalf of a <code>ReliableChannel</code>
+	 * 
+	 * @param <S>
+	 *            type of messages sent to the remote channel
+	 */
+	public static interface FrameSink<S> {
+		/**
+		 * Sends a frame to the remote channel
+		 * 
+		 * @param frame
+		 *            the frame to send
+		 * @return a <code>SendFuture</code> that completes once the frame has
+		 *         been written
+		 * @throws IllegalStateException
+		 *             if the connection is not open
+		 */
+		public SendFuture sendFrame(ReliableFrame<S> frame);
+	}
+
+	/**
+	 * A message that has not been acknowledged yet
+	 */
+	private static final class Entry<S> {
+		final long mSequence;
+		final S mMessage;
+		final SendFuture mFuture = new SendFuture();
+
+		/**
+		 * Written, or queued to be written, on the current connection
+		 */
+		boolean mSent;
+
+		/**
+		 * Reported received by a selective acknowledgement
+		 */
+		boolean mSacked;
+
+		/**
+		 * Already sent again on the current connection to fill a gap
+		 */
+		boolean mRetransmitted;
+
+		Entry(long sequence, S message) {
+			mSequence = sequence;
+			mMessage = message;
+		}
+	}
+
+	private final FrameSink<S> mSink;
+	private final long mSession;
+	private final ScheduledExecutorService mScheduler;
+	private final KeyedExecutor mSendExecutor;
+
+	// Guarded by this
+	private int mWindowSize = DEFAULT_WINDOW_SIZE;
+	private int mMaxPending = DEFAULT_MAX_PENDING;
+	private long mAckDelayMillis = DEFAULT_ACK_DELAY_MILLIS;
+
+	// Sending side, guarded by this
+	private final ArrayDeque<Entry<S>> mUnacked = new ArrayDeque<Entry<S>>();
+	private long mNextSequence = 1;
+	private boolean mConnected;
+	private int mEpoch;
+	private boolean mResynced;
+	private boolean mHelloPending;
+	private boolean mRetryScheduled;
+	private long mRetransmits;
+
+	// Receiving side, guarded by this
+	private long mPeerSession;
+	private long mExpected;
+	private final TreeMap<Long, R> mOutOfOrder = new TreeMap<Long, R>();
+	private int mDeliveredSinceAck;
+	private boolean mAckPending;
+	private boolean mAckScheduled;
+	private long mDuplicates;
+
+	private boolean mPumpScheduled;
+
+	private final Runnable mPump = new Runnable() {
+
+		@Override
+		public void run() {
+			pump();
+		}
+	};
+
+	private final Runnable mAckTimeout = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (ReliableChannel.this) {
+				mAckScheduled = false;
+				mAckPending = true;
+				schedulePump();
+			}
+		}
+	};
+
+	private final Runnable mRetry = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (ReliableChannel.this) {
+				mRetryScheduled = false;
+				schedulePump();
+			}
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param sink
+	 *            the <code>FrameSink</code> frames are sent through
+	 */
+	public ReliableChannel(FrameSink<S> sink) {
+		mSink = sink;
+		SecureRandom random = new SecureRandom();
+		long session;
+		do {
+			session = random.nextLong();
+		} while (session == 0);
+		mSession = session;
+		IoEngine engine = IoEngine.getDefault();
+		mScheduler = engine.getScheduler();
+		mSendExecutor = new KeyedExecutor(engine.getBlockingExecutor());
+	}
+
+	/**
+	 * Sets how many messages may be in flight without being acknowledged.
+	 * Both channels should use the same window, since the receiving side only
+	 * holds this many messages beyond a gap. Defaults to
+	 * {@link #DEFAULT_WINDOW_SIZE}.
+	 * 
+	 * @param windowSize
+	 *            the window size in messages
+	 */
+	public synchronized void setWindowSize(int windowSize) {
+		if (windowSize < 1) {
+			throw new IllegalArgumentException("windowSize < 1");
+		}
+		mWindowSize = windowSize;
+		schedulePump();
+	}
+
+	/**
+	 * Sets how many unacknowledged messages are held, including those waiting
+	 * for room in the window or for the link to come back. Sending more fails
+	 * with a {@link SendQueueFullException}. Defaults to
+	 * {@link #DEFAULT_MAX_PENDING}.
+	 * 
+	 * @param maxPending
+	 *            the maximum number of unacknowledged messages
+	 */
+	public synchronized void setMaxPending(int maxPending) {
+		if (maxPending < 1) {
+			throw new IllegalArgumentException("maxPending < 1");
+		}
+		mMaxPending = maxPending;
+	}
+
+	/**
+	 * Sets how long an acknowledgement is held so it can cover messages that
+	 * arrive soon after. Out-of-order and duplicate messages are always
+	 * acknowledged immediately. Defaults to
+	 * {@link #DEFAULT_ACK_DELAY_MILLIS}.
+	 * 
+	 * @param delayMillis
+	 *            the acknowledgement delay in milliseconds, or <code>0</code>
+	 *            to acknowledge every message
+	 */
+	public synchronized void setAckDelay(long delayMillis) {
+		mAckDelayMillis = delayMillis;
+	}
+
+	/**
+	 * Sends a message. May be called while disconnected, in which case the
+	 * message is sent once the link is back.
+	 * 
+	 * @param message
+	 *            the <code>S</code> message to send
+	 * @return a <code>SendFuture</code> that succeeds once the remote channel
+	 *         has acknowledged the message, or fails with a
+	 *         {@link SendQueueFullException} if
+	 *         {@link #setMaxPending(int) too many} messages are
+	 *         unacknowledged
+	 */
+	public SendFuture send(S message) {
+		synchronized (this) {
+			if (mUnacked.size() < mMaxPending) {
+				Entry<S> entry = new Entry<S>(mNextSequence++, message);
+				mUnacked.add(entry);
+				schedulePump();
+				return entry.mFuture;
+			}
+		}
+		return SendFuture.failed(new SendQueueFullException());
+	}
+
+	/**
+	 * The link to the remote channel has been (re)established. Sends a hello,
+	 * then every unacknowledged message the remote channel does not report
+	 * holding.
+	 */
+	public synchronized void onConnected() {
+		mConnected = true;
+		final int epoch = ++mEpoch;
+		mResynced = false;
+		mHelloPending = true;
+		mAckPending = true;
+		for (Entry<S> entry : mUnacked) {
+			entry.mSent = false;
+			entry.mRetransmitted = false;
+		}
+		mScheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (ReliableChannel.this) {
+					if (mEpoch == epoch && mConnected && !mResynced) {
+						mResynced = true;
+						schedulePump();
+					}
+				}
+			}
+		}, RESYNC_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		schedulePump();
+	}
+
+	/**
+	 * The link to the remote channel has dropped. Unacknowledged messages are
+	 * kept and sent again after {@link #onConnected()}.
+	 */
+	public synchronized void onDisconnected() {
+		mConnected = false;
+	}
+
+	/**
+	 * Handles a frame received from the remote channel. Must be called in the
+	 * order frames were received, except that
+	 * {@link ReliableFrame#isControl() control} frames may be handled as soon
+	 * as they are read.
+	 * 
+	 * @param frame
+	 *            the received frame
+	 * @return the messages released for delivery by this frame, in order.
+	 *         Empty if the frame was a control frame, a duplicate, or arrived
+	 *         ahead of a gap.
+	 */
+	public List<R> onReceiveFrame(ReliableFrame<R> frame) {
+		switch (frame.getType()) {
+		case ReliableFrame.TYPE_ACK:
+			onAck(frame);
+			return Collections.emptyList();
+		case ReliableFrame.TYPE_HELLO:
+			return onHello(frame);
+		default:
+			return onData(frame);
+		}
+	}
+
+	private synchronized List<R> onHello(ReliableFrame<R> frame) {
+		long first = frame.getSequence();
+		if (frame.getSession() != mPeerSession) {
+			// The remote channel is new; nothing it sends is a duplicate
+			mPeerSession = frame.getSession();
+			mExpected = first;
+			mOutOfOrder.clear();
+		} else if (first > mExpected) {
+			// The remote channel gave up on the messages in between
+			mExpected = first;
+			mOutOfOrder.headMap(Long.valueOf(first)).clear();
+		}
+		List<R> released = new ArrayList<R>();
+		drainOutOfOrder(released);
+		mAckPending = true;
+		schedulePump();
+		return released;
+	}
+
+	private synchronized List<R> onData(ReliableFrame<R> frame) {
+		if (mPeerSession == 0) {
+			// Left over from before the remote channel's hello; it is sent
+			// again once the hello has been acknowledged
+			return Collections.emptyList();
+		}
+		long sequence = frame.getSequence();
+		if (sequence < mExpected
+				|| mOutOfOrder.containsKey(Long.valueOf(sequence))) {
+			mDuplicates++;
+			acknowledgeNow();
+			return Collections.emptyList();
+		}
+		if (sequence != mExpected) {
+			if (sequence - mExpected < Math.max(mWindowSize, 64)) {
+				mOutOfOrder.put(Long.valueOf(sequence), frame.getPayload());
+			}
+			acknowledgeNow();
+			return Collections.emptyList();
+		}
+		List<R> released = new ArrayList<R>();
+		released.add(frame.getPayload());
+		mExpected++;
+		drainOutOfOrder(released);
+		mDeliveredSinceAck += released.size();
+		if (mAckDelayMillis <= 0
+				|| mDeliveredSinceAck >= Math.max(1, mWindowSize / 4)) {
+			acknowledgeNow();
+		} else if (!mAckScheduled) {
+			mAckScheduled = true;
+			mScheduler.schedule(mAckTimeout, mAckDelayMillis,
+					TimeUnit.MILLISECONDS);
+		}
+		return released;
+	}
+
+	private void drainOutOfOrder(List<R> released) {
+		while (!mOutOfOrder.isEmpty()
+				&& mOutOfOrder.firstKey().longValue() == mExpected) {
+			released.add(mOutOfOrder.pollFirstEntry().getValue());
+			mExpected++;
+		}
+	}
+
+	private void acknowledgeNow() {
+		mAckPending = true;
+		schedulePump();
+	}
+
+	private void onAck(ReliableFrame<R> frame) {
+		if (frame.getSession() != mSession) {
+			// Acknowledges a previous incarnation of this side
+			return;
+		}
+		List<Entry<S>> acked = new ArrayList<Entry<S>>();
+		synchronized (this) {
+			long cumulative = frame.getSequence();
+			while (!mUnacked.isEmpty()
+					&& mUnacked.peekFirst().mSequence <= cumulative) {
+				acked.add(mUnacked.pollFirst());
+			}
+			boolean resync = mConnected && !mResynced;
+			mResynced |= mConnected;
+			long selective = frame.getSelectiveAcks();
+			long highestSacked = 0;
+			for (Entry<S> entry : mUnacked) {
+				long offset = entry.mSequence - cumulative - 1;
+				if (offset < 64) {
+					entry.mSacked = (selective & (1L << offset)) != 0;
+				} else if (resync) {
+					// The remote channel may have restarted since reporting it
+					entry.mSacked = false;
+				} else {
+					break;
+				}
+				if (entry.mSacked) {
+					highestSacked = entry.mSequence;
+				}
+			}
+			if (!resync) {
+				// Messages written before one the remote channel holds are
+				// missing, so send them again, once per connection
+				for (Entry<S> entry : mUnacked) {
+					if (entry.mSequence >= highestSacked) {
+						break;
+					}
+					if (entry.mSent && !entry.mSacked && !entry.mRetransmitted) {
+						entry.mSent = false;
+						entry.mRetransmitted = true;
+						mRetransmits++;
+					}
+				}
+			}
+			schedulePump();
+		}
+		for (Entry<S> entry : acked) {
+			entry.mFuture.setSucceeded();
+		}
+	}
+
+	/**
+	 * Fails every unacknowledged message, such as when the channel is being
+	 * discarded. The remote channel skips them when it next receives a hello.
+	 * 
+	 * @param failure
+	 *            the cause to fail the messages with
+	 */
+	public void failAll(Throwable failure) {
+		List<Entry<S>> failed;
+		synchronized (this) {
+			failed = new ArrayList<Entry<S>>(mUnacked);
+			mUnacked.clear();
+		}
+		for (Entry<S> entry : failed) {
+			entry.mFuture.setFailed(failure);
+		}
+	}
+
+	/**
+	 * Gets the number of messages sent but not yet acknowledged
+	 * 
+	 * @return the number of unacknowledged messages
+	 */
+	public synchronized int getUnackedCount() {
+		return mUnacked.size();
+	}
+
+	/**
+	 * Gets the number of messages sent again to fill a gap within a
+	 * connection. Messages sent again after reconnecting are not counted.
+	 * 
+	 * @return the selective retransmit count
+	 */
+	public synchronized long getRetransmitCount() {
+		return mRetransmits;
+	}
+
+	/**
+	 * Gets the number of received messages discarded as duplicates
+	 * 
+	 * @return the duplicate count
+	 */
+	public synchronized long getDuplicateCount() {
+		return mDuplicates;
+	}
+
+	/**
+	 * Gets the session id this channel announces to the remote channel
+	 * 
+	 * @return the nonzero session id
+	 */
+	public long getSession() {
+		return mSession;
+	}
+
+	/**
+	 * Schedules the frames that are due to be written. Must hold the lock.
+	 */
+	private void schedulePump() {
+		if (!mPumpScheduled && mConnected) {
+			mPumpScheduled = true;
+			mSendExecutor.execute(mPump);
+		}
+	}
+
+	private void pump() {
+		List<ReliableFrame<S>> frames = new ArrayList<ReliableFrame<S>>();
+		List<Entry<S>> entries = new ArrayList<Entry<S>>();
+		final int epoch;
+		synchronized (this) {
+			mPumpScheduled = false;
+			if (!mConnected) {
+				return;
+			}
+			epoch = mEpoch;
+			if (mHelloPending) {
+				mHelloPending = false;
+				long first = mUnacked.isEmpty() ? mNextSequence : mUnacked
+						.peekFirst().mSequence;
+				frames.add(ReliableFrame.<S> hello(mSession, first));
+				entries.add(null);
+			}
+			if (mAckPending && mPeerSession != 0) {
+				mAckPending = false;
+				mDeliveredSinceAck = 0;
+				frames.add(buildAck());
+				entries.add(null);
+			}
+			if (mResynced && !mUnacked.isEmpty()) {
+				long limit = mUnacked.peekFirst().mSequence + mWindowSize;
+				for (Entry<S> entry : mUnacked) {
+					if (entry.mSequence >= limit) {
+						break;
+					}
+					if (!entry.mSent && !entry.mSacked) {
+						entry.mSent = true;
+						frames.add(ReliableFrame.data(entry.mSequence,
+								entry.mMessage));
+						entries.add(entry);
+					}
+				}
+			}
+		}
+		for (int i = 0; i < frames.size(); i++) {
+			SendFuture future;
+			try {
+				future = mSink.sendFrame(frames.get(i));
+			} catch (IllegalStateException e) {
+				// Disconnected; everything is sent again after reconnecting
+				return;
+			}
+			final Entry<S> entry = entries.get(i);
+			if (entry != null) {
+				future.addListener(new SendFuture.Listener() {
+
+					@Override
+					public void onComplete(SendFuture future) {
+						if (!future.isSuccessful()) {
+							onSendFailed(entry, epoch);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Builds an acknowledgement of what has been received. Must hold the
+	 * lock.
+	 */
+	private ReliableFrame<S> buildAck() {
+		long selective = 0;
+		Iterator<Long> held = mOutOfOrder.keySet().iterator();
+		while (held.hasNext()) {
+			long offset = held.next().longValue() - mExpected;
+			if (offset >= 64) {
+				break;
+			}
+			selective |= 1L << offset;
+		}
+		return ReliableFrame.ack(mPeerSession, mExpected - 1, selective);
+	}
+
+	private synchronized void onSendFailed(Entry<S> entry, int epoch) {
+		if (epoch != mEpoch || !mConnected || !mUnacked.contains(entry)) {
+			return;
+		}
+		entry.mSent = false;
+		if (!mRetryScheduled) {
+			// Give the send queue a moment to drain before trying again
+			mRetryScheduled = true;
+			mScheduler.schedule(mRetry, Math.max(1, mAckDelayMillis),
+					TimeUnit.MILLISECONDS);
+		}
+	}
+}
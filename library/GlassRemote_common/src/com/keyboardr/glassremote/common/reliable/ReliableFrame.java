@@ -0,0 +1,147 @@
+package com.keyboardr.glassremote.common.reliable;
+
+/**
+ * A single message exchanged by {@link ReliableChannel ReliableChannels}.
+ * Data frames carry a sequence number and a payload; acknowledgement and
+ * hello frames carry the state needed to resume after the link drops.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of the payload
+ */
+public final class ReliableFrame<T> {
+
+	/**
+	 * A payload with its sequence number
+	 */
+	public static final int TYPE_DATA = 0;
+
+	/**
+	 * Acknowledges every data frame up to and including the sequence number,
+	 * and selectively those in the following 64 whose bits are set
+	 */
+	public static final int TYPE_ACK = 1;
+
+	/**
+	 * Sent first on every connection. Identifies the sending channel's
+	 * session and the lowest sequence number it still has unacknowledged.
+	 */
+	public static final int TYPE_HELLO = 2;
+
+	private final int mType;
+	private final long mSequence;
+	private final long mSession;
+	private final long mSelectiveAcks;
+	private final T mPayload;
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param type
+	 *            one of the <code>TYPE_</code> constants
+	 * @param sequence
+	 *            the sequence number of a {@link #TYPE_DATA} frame, the
+	 *            cumulative acknowledgement of a {@link #TYPE_ACK} frame, or
+	 *            the first unacknowledged sequence number of a
+	 *            {@link #TYPE_HELLO} frame
+	 * @param session
+	 *            the session acknowledged by a {@link #TYPE_ACK} frame or
+	 *            announced by a {@link #TYPE_HELLO} frame, ignored for
+	 *            {@link #TYPE_DATA}
+	 * @param selectiveAcks
+	 *            for {@link #TYPE_ACK} frames, a bit mask where bit
+	 *            <code>i</code> acknowledges <code>sequence + 1 + i</code>
+	 * @param payload
+	 *            the payload of a {@link #TYPE_DATA} frame
+	 */
+	public ReliableFrame(int type, long sequence, long session,
+			long selectiveAcks, T payload) {
+		if (type < TYPE_DATA || type > TYPE_HELLO) {
+			throw new IllegalArgumentException("Unknown frame type " + type);
+		}
+		mType = type;
+		mSequence = sequence;
+		mSession = type == TYPE_DATA ? 0 : session;
+		mSelectiveAcks = type == TYPE_ACK ? selectiveAcks : 0;
+		mPayload = type == TYPE_DATA ? payload : null;
+	}
+
+	public static <T> ReliableFrame<T> data(long sequence, T payload) {
+		return new ReliableFrame<T>(TYPE_DATA, sequence, 0, 0, payload);
+	}
+
+	public static <T> ReliableFrame<T> ack(long session, long cumulative,
+			long selectiveAcks) {
+		return new ReliableFrame<T>(TYPE_ACK, cumulative, session,
+				selectiveAcks, null);
+	}
+
+	public static <T> ReliableFrame<T> hello(long session, long firstSequence) {
+		return new ReliableFrame<T>(TYPE_HELLO, firstSequence, session, 0, null);
+	}
+
+	/**
+	 * Gets the type of this frame
+	 * 
+	 * @return one of the <code>TYPE_</code> constants
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	/**
+	 * Gets the sequence number of this frame. Its meaning depends on the
+	 * type; see {@link #ReliableFrame(int, long, long, long, Object)}.
+	 * 
+	 * @return the sequence number
+	 */
+	public long getSequence() {
+		return mSequence;
+	}
+
+	/**
+	 * Gets the session of an acknowledgement or hello frame
+	 * 
+	 * @return the session id, or <code>0</code> for data frames
+	 */
+	public long getSession() {
+		return mSession;
+	}
+
+	/**
+	 * Gets the selective acknowledgements of an acknowledgement frame
+	 * 
+	 * @return a bit mask where bit <code>i</code> acknowledges
+	 *         <code>getSequence() + 1 + i</code>
+	 */
+	public long getSelectiveAcks() {
+		return mSelectiveAcks;
+	}
+
+	/**
+	 * Gets the payload of this frame
+	 * 
+	 * @return the payload, or <code>null</code> for frames other than
+	 *         {@link #TYPE_DATA}
+	 */
+	public T getPayload() {
+		return mPayload;
+	}
+
+	/**
+	 * Checks if this frame only updates the sending side of a channel. Such
+	 * frames need no application code to handle and can be processed as soon
+	 * as they are read.
+	 * 
+	 * @return <code>true</code> for {@link #TYPE_ACK} frames
+	 */
+	public boolean isControl() {
+		return mType == TYPE_ACK;
+	}
+
+	@Override
+	public String toString() {
+		return "ReliableFrame[type=" + mType + ", seq=" + mSequence + "]";
+	}
+}
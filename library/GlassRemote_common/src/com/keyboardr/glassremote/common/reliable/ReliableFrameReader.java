@@ -0,0 +1,204 @@
+package com.keyboardr.glassremote.common.reliable;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.keyboardr.glassremote.common.receiver.BinaryMessageReader;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+
+/**
+ * Reads {@link ReliableFrame ReliableFrames} written by
+ * {@link ReliableFrameSender}. The wrapped <code>MessageReceiver</code>
+ * decodes each payload from the bytes of its frame, and must read exactly one
+ * message per call to {@link MessageReceiver#read(OnReceiveMessageListener)
+ * read()}.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of the frame payloads
+ */
+public class ReliableFrameReader<T> implements
+		MessageReceiver<ReliableFrame<T>> {
+
+	/**
+	 * Presents the payload of the current frame to the payload receiver. The
+	 * same instance is refilled for every frame so receivers that buffer
+	 * their input keep working.
+	 */
+	private static class PayloadStream extends ByteArrayInputStream {
+		PayloadStream() {
+			super(new byte[0]);
+		}
+
+		void setPayload(byte[] frame, int offset, int length) {
+			buf = frame;
+			pos = offset;
+			count = offset + length;
+			mark = offset;
+		}
+	}
+
+	private final MessageReceiver<T> mPayloadReceiver;
+	private final BinaryMessageReader mFrameReader;
+	private final PayloadStream mPayloadStream = new PayloadStream();
+
+	private OnReceiveMessageListener<? super ReliableFrame<T>> mListener;
+	private boolean mCorrupt;
+	private boolean mHasPayload;
+	private T mPayload;
+
+	private final OnReceiveMessageListener<T> mPayloadListener = new OnReceiveMessageListener<T>() {
+
+		@Override
+		public void onReceiveMessage(T message) {
+			mPayload = message;
+			mHasPayload = true;
+		}
+	};
+
+	private final OnReceiveMessageListener<byte[]> mFrameListener = new OnReceiveMessageListener<byte[]>() {
+
+		@Override
+		public void onReceiveMessage(byte[] message) {
+			try {
+				onReceiveFrame(message);
+			} catch (IOException e) {
+				e.printStackTrace();
+				mCorrupt = true;
+			}
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param payloadReceiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for decoding <code>T</code> payloads. It must not be used
+	 *            elsewhere.
+	 */
+	public ReliableFrameReader(MessageReceiver<T> payloadReceiver) {
+		this(payloadReceiver, BinaryMessageReader.DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param payloadReceiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for decoding <code>T</code> payloads. It must not be used
+	 *            elsewhere.
+	 * @param maxFrameSize
+	 *            the largest frame, in bytes, that will be accepted
+	 */
+	public ReliableFrameReader(MessageReceiver<T> payloadReceiver,
+			int maxFrameSize) {
+		mPayloadReceiver = payloadReceiver;
+		mFrameReader = new BinaryMessageReader(maxFrameSize);
+		mPayloadReceiver.setInputStream(mPayloadStream);
+	}
+
+	/**
+	 * Creates a <code>MessageReceiver.Factory</code> that wraps each receiver
+	 * created by <code>payloadFactory</code> in a new
+	 * <code>ReliableFrameReader</code>
+	 * 
+	 * @param payloadFactory
+	 *            creates the payload <code>MessageReceivers</code>
+	 * @return a <code>MessageReceiver.Factory</code> for
+	 *         <code>ReliableFrameReaders</code>
+	 */
+	public static <T> MessageReceiver.Factory<ReliableFrame<T>> factory(
+			final MessageReceiver.Factory<T> payloadFactory) {
+		return new MessageReceiver.Factory<ReliableFrame<T>>() {
+
+			@Override
+			public MessageReceiver<ReliableFrame<T>> newReceiver() {
+				return new ReliableFrameReader<T>(payloadFactory.newReceiver());
+			}
+		};
+	}
+
+	@Override
+	public void setInputStream(InputStream input) {
+		mFrameReader.setInputStream(input);
+	}
+
+	@Override
+	public boolean read(
+			OnReceiveMessageListener<? super ReliableFrame<T>> listener) {
+		mListener = listener;
+		try {
+			return mFrameReader.read(mFrameListener) && !mCorrupt;
+		} finally {
+			mListener = null;
+		}
+	}
+
+	private void onReceiveFrame(byte[] frame) throws IOException {
+		if (frame.length < 2) {
+			throw new IOException("Reliable frame too short");
+		}
+		int type = frame[0];
+		long sequence = 0;
+		int position = 1;
+		for (int shift = 0;; shift += 7) {
+			if (position == frame.length || shift >= 64) {
+				throw new IOException("Malformed reliable frame sequence");
+			}
+			int b = frame[position++];
+			sequence |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		ReliableFrame<T> reliableFrame;
+		switch (type) {
+		case ReliableFrame.TYPE_DATA:
+			int length = frame.length - position;
+			T payload = null;
+			if (length > 0) {
+				mPayloadStream.setPayload(frame, position, length);
+				mHasPayload = false;
+				mPayload = null;
+				if (!mPayloadReceiver.read(mPayloadListener) || !mHasPayload) {
+					throw new IOException("Could not decode reliable payload");
+				}
+				payload = mPayload;
+				mPayload = null;
+			}
+			reliableFrame = ReliableFrame.data(sequence, payload);
+			break;
+		case ReliableFrame.TYPE_ACK:
+			checkLength(frame, position + 16);
+			reliableFrame = ReliableFrame.ack(readLong(frame, position),
+					sequence, readLong(frame, position + 8));
+			break;
+		case ReliableFrame.TYPE_HELLO:
+			checkLength(frame, position + 8);
+			reliableFrame = ReliableFrame.hello(readLong(frame, position),
+					sequence);
+			break;
+		default:
+			throw new IOException("Unknown reliable frame type " + type);
+		}
+		mListener.onReceiveMessage(reliableFrame);
+	}
+
+	private static void checkLength(byte[] frame, int length)
+			throws IOException {
+		if (frame.length != length) {
+			throw new IOException("Reliable control frame has wrong length");
+		}
+	}
+
+	private static long readLong(byte[] frame, int offset) {
+		long value = 0;
+		for (int i = 0; i < 8; i++) {
+			value = (value << 8) | (frame[offset + i] & 0xFF);
+		}
+		return value;
+	}
+}
@@ -0,0 +1,108 @@
+package com.keyboardr.glassremote.common.reliable;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import com.keyboardr.glassremote.common.io.Varint;
+import com.keyboardr.glassremote.common.sender.BinaryMessageSender;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+
+/**
+ * Sends {@link ReliableFrame ReliableFrames}. Each frame is written as a
+ * {@link BinaryMessageSender} message holding the frame type and the
+ * sequence number as a {@link Varint}, followed by the payload encoded by the
+ * wrapped <code>MessageSender</code> for data frames, or by the session id
+ * and selective acknowledgements as 8-byte big-endian values for control
+ * frames.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of the frame payloads
+ */
+public class ReliableFrameSender<T> implements MessageSender<ReliableFrame<T>> {
+
+	/**
+	 * A <code>ByteArrayOutputStream</code> whose contents can be written
+	 * without copying them out first
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer() {
+			super(256);
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	private final MessageSender<T> mPayloadSender;
+	private final BinaryMessageSender mFrameSender = new BinaryMessageSender();
+	private final FrameBuffer mFrame = new FrameBuffer();
+	private final byte[] mHeader = new byte[1 + Varint.MAX_LONG_BYTES + 16];
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param payloadSender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for encoding <code>T</code> payloads. It must not be used
+	 *            elsewhere.
+	 */
+	public ReliableFrameSender(MessageSender<T> payloadSender) {
+		mPayloadSender = payloadSender;
+		mPayloadSender.setOutputStream(mFrame);
+	}
+
+	/**
+	 * Creates a <code>MessageSender.Factory</code> that wraps each sender
+	 * created by <code>payloadFactory</code> in a new
+	 * <code>ReliableFrameSender</code>
+	 * 
+	 * @param payloadFactory
+	 *            creates the payload <code>MessageSenders</code>
+	 * @return a <code>MessageSender.Factory</code> for
+	 *         <code>ReliableFrameSenders</code>
+	 */
+	public static <T> MessageSender.Factory<ReliableFrame<T>> factory(
+			final MessageSender.Factory<T> payloadFactory) {
+		return new MessageSender.Factory<ReliableFrame<T>>() {
+
+			@Override
+			public MessageSender<ReliableFrame<T>> newSender() {
+				return new ReliableFrameSender<T>(payloadFactory.newSender());
+			}
+		};
+	}
+
+	@Override
+	public void setOutputStream(OutputStream output) {
+		mFrameSender.setOutputStream(output);
+	}
+
+	@Override
+	public void sendMessage(ReliableFrame<T> message) {
+		mFrame.reset();
+		int type = message.getType();
+		mHeader[0] = (byte) type;
+		int headerLength = Varint.write(message.getSequence(), mHeader, 1);
+		if (type != ReliableFrame.TYPE_DATA) {
+			headerLength = writeLong(message.getSession(), headerLength);
+		}
+		if (type == ReliableFrame.TYPE_ACK) {
+			headerLength = writeLong(message.getSelectiveAcks(), headerLength);
+		}
+		mFrame.write(mHeader, 0, headerLength);
+		if (type == ReliableFrame.TYPE_DATA && message.getPayload() != null) {
+			mPayloadSender.sendMessage(message.getPayload());
+		}
+		mFrameSender.sendMessage(mFrame.getBuffer(), 0, mFrame.size());
+	}
+
+	private int writeLong(long value, int offset) {
+		for (int shift = 56; shift >= 0; shift -= 8) {
+			mHeader[offset++] = (byte) (value >>> shift);
+		}
+		return offset;
+	}
+}
@@ -0,0 +1,413 @@
+package com.keyboardr.glassremote.common.rpc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.keyboardr.glassremote.common.IoEngine;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+
+/**
+ * Request/response calls over a message connection. Each request is tagged
+ * with a correlation id and its {@link RpcFuture} is kept in a pending-call
+ * table keyed by that id, so any number of requests may be in flight at once
+ * and each response is matched in constant time regardless of the order it
+ * arrives in. Entries leave the table when they are answered, time out, are
+ * cancelled, fail to send, or the connection is lost.<br/>
+ * <br/>
+ * An endpoint is symmetric: it both makes calls and answers the remote peer's
+ * calls with its {@link RequestHandler}. Received frames must be passed to
+ * {@link #onReceiveFrame(RpcFrame)}.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            type of payloads sent to the remote peer, both requests and
+ *            responses
+ * @param <R>
+ *            type of payloads received from the remote peer, both requests
+ *            and responses
+ */
+public class RpcEndpoint<S, R> {
+
+	/**
+	 * The timeout used by {@link #call(Object)}
+	 */
+	public static final long DEFAULT_TIMEOUT_MILLIS = 10000;
+
+	/**
+	 * Sends frames on behalf of an <code>RpcEndpoint</code>
+	 * 
+	 * @param <S>
+	 *            type of payloads sent to the remote peer
+	 */
+	public static interface FrameSink<S> {
+		/**
+		 * Sends a frame to the remote peer
+		 * 
+		 * @param frame
+		 *            the frame to send
+		 * @return a <code>SendFuture</code> that completes once the frame has
+		 *         been written
+		 * @throws IllegalStateException
+		 *             if the connection is not open
+		 */
+		public SendFuture sendFrame(RpcFrame<S> frame);
+	}
+
+	/**
+	 * Answers requests from the remote peer
+	 * 
+	 * @param <S>
+	 *            type of response payloads
+	 * @param <R>
+	 *            type of request payloads
+	 */
+	public static interface RequestHandler<S, R> {
+		/**
+		 * A request has been received. The handler must eventually call
+		 * {@link Responder#respond(Object)} or
+		 * {@link Responder#fail(String)}, either before returning or later
+		 * from any thread.
+		 * 
+		 * @param request
+		 *            the request payload
+		 * @param responder
+		 *            the <code>Responder</code> for this request
+		 */
+		public void onRequest(R request, Responder<S> responder);
+	}
+
+	/**
+	 * Answers a single request from the remote peer
+	 * 
+	 * @param <S>
+	 *            type of response payloads
+	 */
+	public static interface Responder<S> {
+		/**
+		 * Sends a successful response. Only the first answer is sent.
+		 * 
+		 * @param response
+		 *            the response payload
+		 * @return a <code>SendFuture</code> for the response frame
+		 */
+		public SendFuture respond(S response);
+
+		/**
+		 * Sends an error response. Only the first answer is sent.
+		 * 
+		 * @param error
+		 *            a description of the error
+		 * @return a <code>SendFuture</code> for the error frame
+		 */
+		public SendFuture fail(String error);
+
+		/**
+		 * Checks if the remote peer has cancelled the request. Long-running
+		 * handlers may poll this to stop early.
+		 * 
+		 * @return <code>true</code> if the response is no longer wanted
+		 */
+		public boolean isCancelled();
+	}
+
+	private class PendingResponder implements Responder<S> {
+		private final int mId;
+		private volatile boolean mCancelled;
+		private boolean mAnswered;
+
+		PendingResponder(int id) {
+			mId = id;
+		}
+
+		@Override
+		public SendFuture respond(S response) {
+			return answer(RpcFrame.response(mId, response));
+		}
+
+		@Override
+		public SendFuture fail(String error) {
+			return answer(RpcFrame.<S> error(mId, error));
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return mCancelled;
+		}
+
+		private SendFuture answer(RpcFrame<S> frame) {
+			synchronized (this) {
+				if (mAnswered) {
+					return SendFuture.failed(new IllegalStateException(
+							"Already answered"));
+				}
+				mAnswered = true;
+			}
+			synchronized (mResponders) {
+				mResponders.remove(mId);
+			}
+			if (mCancelled) {
+				return SendFuture.failed(new CancellationException());
+			}
+			try {
+				return mSink.sendFrame(frame);
+			} catch (IllegalStateException e) {
+				return SendFuture.failed(e);
+			}
+		}
+	}
+
+	private final FrameSink<S> mSink;
+	private final ScheduledExecutorService mTimer;
+	private final HashMap<Integer, RpcFuture<R>> mPending = new HashMap<Integer, RpcFuture<R>>();
+	private final HashMap<Integer, PendingResponder> mResponders = new HashMap<Integer, PendingResponder>();
+	private volatile RequestHandler<S, R> mRequestHandler;
+	private int mNextId = 1;
+
+	/**
+	 * Class constructor. Timeouts are run on the scheduler of the shared
+	 * {@link IoEngine}.
+	 * 
+	 * @param sink
+	 *            the <code>FrameSink</code> frames are sent through
+	 */
+	public RpcEndpoint(FrameSink<S> sink) {
+		this(sink, IoEngine.getDefault().getScheduler());
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param sink
+	 *            the <code>FrameSink</code> frames are sent through
+	 * @param timer
+	 *            the <code>ScheduledExecutorService</code> used to expire
+	 *            calls. Timeout tasks are short and never block.
+	 */
+	public RpcEndpoint(FrameSink<S> sink, ScheduledExecutorService timer) {
+		mSink = sink;
+		mTimer = timer;
+	}
+
+	/**
+	 * Sets the handler for requests from the remote peer. Requests that
+	 * arrive with no handler set are answered with an error.
+	 * 
+	 * @param handler
+	 *            the <code>RequestHandler</code>, or <code>null</code>
+	 */
+	public void setRequestHandler(RequestHandler<S, R> handler) {
+		mRequestHandler = handler;
+	}
+
+	/**
+	 * Sends a request with the default timeout of
+	 * {@link #DEFAULT_TIMEOUT_MILLIS}. Returns without waiting for the
+	 * response.
+	 * 
+	 * @param request
+	 *            the request payload
+	 * @return an <code>RpcFuture</code> for the response
+	 */
+	public RpcFuture<R> call(S request) {
+		return call(request, DEFAULT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Sends a request. Returns without waiting for the response.
+	 * 
+	 * @param request
+	 *            the request payload
+	 * @param timeoutMillis
+	 *            how long to wait for the response before failing the call
+	 *            with a <code>TimeoutException</code>, or <code>0</code> to
+	 *            wait until the connection is lost
+	 * @return an <code>RpcFuture</code> for the response
+	 */
+	public RpcFuture<R> call(S request, long timeoutMillis) {
+		final RpcFuture<R> future;
+		synchronized (mPending) {
+			int id;
+			do {
+				id = mNextId++;
+				if (mNextId == Integer.MAX_VALUE) {
+					mNextId = 1;
+				}
+			} while (mPending.containsKey(id));
+			future = new RpcFuture<R>(this, id);
+			mPending.put(id, future);
+		}
+		if (timeoutMillis > 0) {
+			final long timeout = timeoutMillis;
+			future.setTimeout(mTimer.schedule(new Runnable() {
+
+				@Override
+				public void run() {
+					if (remove(future)) {
+						future.setFailed(new TimeoutException("No response in "
+								+ timeout + "ms"));
+						sendCancel(future.getId());
+					}
+				}
+			}, timeoutMillis, TimeUnit.MILLISECONDS));
+		}
+		SendFuture sent;
+		try {
+			sent = mSink.sendFrame(RpcFrame.request(future.getId(), request));
+		} catch (IllegalStateException e) {
+			sent = SendFuture.failed(new IOException("Not connected", e));
+		}
+		sent.addListener(new SendFuture.Listener() {
+
+			@Override
+			public void onComplete(SendFuture sendFuture) {
+				if (!sendFuture.isSuccessful() && remove(future)) {
+					Throwable failure = sendFuture.getFailure();
+					future.setFailed(failure != null ? failure
+							: new CancellationException("Request not sent"));
+				}
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Sends a one-way message that is not part of a call
+	 * 
+	 * @param message
+	 *            the message payload
+	 * @return a <code>SendFuture</code> that completes once the message has
+	 *         been written
+	 * @throws IllegalStateException
+	 *             if the connection is not open
+	 */
+	public SendFuture send(S message) {
+		return mSink.sendFrame(RpcFrame.message(message));
+	}
+
+	/**
+	 * Handles a frame received from the remote peer. Responses complete their
+	 * pending calls, cancellations mark the matching {@link Responder}, and
+	 * requests are passed to the {@link RequestHandler} on the calling thread.
+	 * 
+	 * @param frame
+	 *            the received frame
+	 * @return <code>true</code> if the frame was handled, <code>false</code>
+	 *         if it is a {@link RpcFrame#TYPE_MESSAGE} frame that the caller
+	 *         should deliver itself
+	 */
+	public boolean onReceiveFrame(RpcFrame<R> frame) {
+		switch (frame.getType()) {
+		case RpcFrame.TYPE_RESPONSE: {
+			RpcFuture<R> future = remove(frame.getId());
+			if (future != null) {
+				future.setSucceeded(frame.getPayload());
+			}
+			return true;
+		}
+		case RpcFrame.TYPE_ERROR: {
+			RpcFuture<R> future = remove(frame.getId());
+			if (future != null) {
+				future.setFailed(new RpcException(frame.getError()));
+			}
+			return true;
+		}
+		case RpcFrame.TYPE_CANCEL: {
+			PendingResponder responder;
+			synchronized (mResponders) {
+				responder = mResponders.remove(frame.getId());
+			}
+			if (responder != null) {
+				responder.mCancelled = true;
+			}
+			return true;
+		}
+		case RpcFrame.TYPE_REQUEST: {
+			PendingResponder responder = new PendingResponder(frame.getId());
+			RequestHandler<S, R> handler = mRequestHandler;
+			if (handler == null) {
+				responder.fail("No request handler");
+				return true;
+			}
+			synchronized (mResponders) {
+				mResponders.put(frame.getId(), responder);
+			}
+			handler.onRequest(frame.getPayload(), responder);
+			return true;
+		}
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Gets the number of calls waiting for a response
+	 * 
+	 * @return the size of the pending-call table
+	 */
+	public int getPendingCount() {
+		synchronized (mPending) {
+			return mPending.size();
+		}
+	}
+
+	/**
+	 * Fails every pending call and forgets every unanswered request. Call
+	 * this when the connection is lost.
+	 * 
+	 * @param failure
+	 *            the reason the calls failed
+	 */
+	public void failAll(Throwable failure) {
+		List<RpcFuture<R>> pending;
+		synchronized (mPending) {
+			pending = new ArrayList<RpcFuture<R>>(mPending.values());
+			mPending.clear();
+		}
+		synchronized (mResponders) {
+			for (PendingResponder responder : mResponders.values()) {
+				responder.mCancelled = true;
+			}
+			mResponders.clear();
+		}
+		for (RpcFuture<R> future : pending) {
+			future.setFailed(failure);
+		}
+	}
+
+	void onCancelled(RpcFuture<R> future) {
+		if (remove(future)) {
+			sendCancel(future.getId());
+		}
+	}
+
+	private RpcFuture<R> remove(int id) {
+		synchronized (mPending) {
+			return mPending.remove(id);
+		}
+	}
+
+	private boolean remove(RpcFuture<R> future) {
+		synchronized (mPending) {
+			if (mPending.get(future.getId()) != future) {
+				return false;
+			}
+			mPending.remove(future.getId());
+			return true;
+		}
+	}
+
+	private void sendCancel(int id) {
+		try {
+			mSink.sendFrame(RpcFrame.<S> cancel(id));
+		} catch (IllegalStateException e) {
+			// Not connected, so the remote peer has forgotten the call anyway
+		}
+	}
+}
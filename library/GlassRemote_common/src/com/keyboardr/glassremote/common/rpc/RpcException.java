@@ -0,0 +1,18 @@
+package com.keyboardr.glassremote.common.rpc;
+
+import java.io.IOException;
+
+/**
+ * Thrown through an {@link RpcFuture} when the remote peer answers a request
+ * with an error
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class RpcException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public RpcException(String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,144 @@
+package com.keyboardr.glassremote.common.rpc;
+
+/**
+ * A single message exchanged by {@link RpcEndpoint RpcEndpoints}. Every frame
+ * carries a type and, except for plain messages, the correlation id of the
+ * call it belongs to, so responses may arrive in any order and many calls may
+ * be in flight at once.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of the payload
+ */
+public final class RpcFrame<T> {
+
+	/**
+	 * A one-way message that is not part of a call
+	 */
+	public static final int TYPE_MESSAGE = 0;
+
+	/**
+	 * A request expecting a {@link #TYPE_RESPONSE} or {@link #TYPE_ERROR}
+	 * frame with the same id
+	 */
+	public static final int TYPE_REQUEST = 1;
+
+	/**
+	 * A successful response to the request with the same id
+	 */
+	public static final int TYPE_RESPONSE = 2;
+
+	/**
+	 * A failed response to the request with the same id. The frame carries an
+	 * error message rather than a payload.
+	 */
+	public static final int TYPE_ERROR = 3;
+
+	/**
+	 * The caller is no longer interested in the request with the same id
+	 */
+	public static final int TYPE_CANCEL = 4;
+
+	private final int mType;
+	private final int mId;
+	private final T mPayload;
+	private final String mError;
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param type
+	 *            one of the <code>TYPE_</code> constants
+	 * @param id
+	 *            the correlation id of the call, ignored for
+	 *            {@link #TYPE_MESSAGE}
+	 * @param payload
+	 *            the payload, or <code>null</code> for frames without one
+	 * @param error
+	 *            the error message of a {@link #TYPE_ERROR} frame
+	 */
+	public RpcFrame(int type, int id, T payload, String error) {
+		if (type < TYPE_MESSAGE || type > TYPE_CANCEL) {
+			throw new IllegalArgumentException("Unknown frame type " + type);
+		}
+		mType = type;
+		mId = type == TYPE_MESSAGE ? 0 : id;
+		mPayload = payload;
+		mError = error;
+	}
+
+	public static <T> RpcFrame<T> message(T payload) {
+		return new RpcFrame<T>(TYPE_MESSAGE, 0, payload, null);
+	}
+
+	public static <T> RpcFrame<T> request(int id, T payload) {
+		return new RpcFrame<T>(TYPE_REQUEST, id, payload, null);
+	}
+
+	public static <T> RpcFrame<T> response(int id, T payload) {
+		return new RpcFrame<T>(TYPE_RESPONSE, id, payload, null);
+	}
+
+	public static <T> RpcFrame<T> error(int id, String error) {
+		return new RpcFrame<T>(TYPE_ERROR, id, null, error);
+	}
+
+	public static <T> RpcFrame<T> cancel(int id) {
+		return new RpcFrame<T>(TYPE_CANCEL, id, null, null);
+	}
+
+	/**
+	 * Gets the type of this frame
+	 * 
+	 * @return one of the <code>TYPE_</code> constants
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	/**
+	 * Gets the correlation id of the call this frame belongs to
+	 * 
+	 * @return the id, or <code>0</code> for {@link #TYPE_MESSAGE} frames
+	 */
+	public int getId() {
+		return mId;
+	}
+
+	/**
+	 * Gets the payload of this frame
+	 * 
+	 * @return the payload, or <code>null</code> for {@link #TYPE_ERROR} and
+	 *         {@link #TYPE_CANCEL} frames
+	 */
+	public T getPayload() {
+		return mPayload;
+	}
+
+	/**
+	 * Gets the error message of a {@link #TYPE_ERROR} frame
+	 * 
+	 * @return the error message, or <code>null</code> for other frames
+	 */
+	public String getError() {
+		return mError;
+	}
+
+	/**
+	 * Checks if this frame completes or cancels a call rather than carrying
+	 * a request or message. Such frames need no application code to handle
+	 * and can be processed as soon as they are read.
+	 * 
+	 * @return <code>true</code> for {@link #TYPE_RESPONSE},
+	 *         {@link #TYPE_ERROR} and {@link #TYPE_CANCEL} frames
+	 */
+	public boolean isControl() {
+		return mType >= TYPE_RESPONSE;
+	}
+
+	@Override
+	public String toString() {
+		return "RpcFrame[type=" + mType + ", id=" + mId + "]";
+	}
+}
@@ -0,0 +1,179 @@
+package com.keyboardr.glassremote.common.rpc;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.keyboardr.glassremote.common.receiver.BinaryMessageReader;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+
+/**
+ * Reads {@link RpcFrame RpcFrames} written by {@link RpcFrameSender}. The
+ * wrapped <code>MessageReceiver</code> decodes each payload from the bytes of
+ * its frame, and must read exactly one message per call to
+ * {@link MessageReceiver#read(OnReceiveMessageListener) read()}.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of the frame payloads
+ */
+public class RpcFrameReader<T> implements MessageReceiver<RpcFrame<T>> {
+
+	/**
+	 * Presents the payload of the current frame to the payload receiver. The
+	 * same instance is refilled for every frame so receivers that buffer
+	 * their input keep working.
+	 */
+	private static class PayloadStream extends ByteArrayInputStream {
+		PayloadStream() {
+			super(new byte[0]);
+		}
+
+		void setPayload(byte[] frame, int offset, int length) {
+			buf = frame;
+			pos = offset;
+			count = offset + length;
+			mark = offset;
+		}
+	}
+
+	private final MessageReceiver<T> mPayloadReceiver;
+	private final BinaryMessageReader mFrameReader;
+	private final PayloadStream mPayloadStream = new PayloadStream();
+
+	private OnReceiveMessageListener<? super RpcFrame<T>> mListener;
+	private boolean mCorrupt;
+	private boolean mHasPayload;
+	private T mPayload;
+
+	private final OnReceiveMessageListener<T> mPayloadListener = new OnReceiveMessageListener<T>() {
+
+		@Override
+		public void onReceiveMessage(T message) {
+			mPayload = message;
+			mHasPayload = true;
+		}
+	};
+
+	private final OnReceiveMessageListener<byte[]> mFrameListener = new OnReceiveMessageListener<byte[]>() {
+
+		@Override
+		public void onReceiveMessage(byte[] message) {
+			try {
+				onReceiveFrame(message);
+			} catch (IOException e) {
+				e.printStackTrace();
+				mCorrupt = true;
+			}
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param payloadReceiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for decoding <code>T</code> payloads. It must not be used
+	 *            elsewhere.
+	 */
+	public RpcFrameReader(MessageReceiver<T> payloadReceiver) {
+		this(payloadReceiver, BinaryMessageReader.DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param payloadReceiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for decoding <code>T</code> payloads. It must not be used
+	 *            elsewhere.
+	 * @param maxFrameSize
+	 *            the largest frame, in bytes, that will be accepted
+	 */
+	public RpcFrameReader(MessageReceiver<T> payloadReceiver, int maxFrameSize) {
+		mPayloadReceiver = payloadReceiver;
+		mFrameReader = new BinaryMessageReader(maxFrameSize);
+		mPayloadReceiver.setInputStream(mPayloadStream);
+	}
+
+	/**
+	 * Creates a <code>MessageReceiver.Factory</code> that wraps each receiver
+	 * created by <code>payloadFactory</code> in a new
+	 * <code>RpcFrameReader</code>
+	 * 
+	 * @param payloadFactory
+	 *            creates the payload <code>MessageReceivers</code>
+	 * @return a <code>MessageReceiver.Factory</code> for
+	 *         <code>RpcFrameReaders</code>
+	 */
+	public static <T> MessageReceiver.Factory<RpcFrame<T>> factory(
+			final MessageReceiver.Factory<T> payloadFactory) {
+		return new MessageReceiver.Factory<RpcFrame<T>>() {
+
+			@Override
+			public MessageReceiver<RpcFrame<T>> newReceiver() {
+				return new RpcFrameReader<T>(payloadFactory.newReceiver());
+			}
+		};
+	}
+
+	@Override
+	public void setInputStream(InputStream input) {
+		mFrameReader.setInputStream(input);
+	}
+
+	@Override
+	public boolean read(OnReceiveMessageListener<? super RpcFrame<T>> listener) {
+		mListener = listener;
+		try {
+			return mFrameReader.read(mFrameListener) && !mCorrupt;
+		} finally {
+			mListener = null;
+		}
+	}
+
+	private void onReceiveFrame(byte[] frame) throws IOException {
+		if (frame.length < 2) {
+			throw new IOException("RPC frame too short");
+		}
+		int type = frame[0];
+		int id = 0;
+		int position = 1;
+		for (int shift = 0;; shift += 7) {
+			if (position == frame.length || shift >= 32) {
+				throw new IOException("Malformed RPC frame id");
+			}
+			int b = frame[position++];
+			id |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		int length = frame.length - position;
+		RpcFrame<T> rpcFrame;
+		if (type == RpcFrame.TYPE_ERROR) {
+			rpcFrame = RpcFrame.error(id, new String(frame, position, length,
+					RpcFrameSender.UTF_8));
+		} else if (type == RpcFrame.TYPE_CANCEL || length == 0) {
+			rpcFrame = new RpcFrame<T>(checkType(type), id, null, null);
+		} else {
+			mPayloadStream.setPayload(frame, position, length);
+			mHasPayload = false;
+			mPayload = null;
+			if (!mPayloadReceiver.read(mPayloadListener) || !mHasPayload) {
+				throw new IOException("Could not decode RPC payload");
+			}
+			rpcFrame = new RpcFrame<T>(checkType(type), id, mPayload, null);
+			mPayload = null;
+		}
+		mListener.onReceiveMessage(rpcFrame);
+	}
+
+	private static int checkType(int type) throws IOException {
+		if (type < RpcFrame.TYPE_MESSAGE || type > RpcFrame.TYPE_CANCEL) {
+			throw new IOException("Unknown RPC frame type " + type);
+		}
+		return type;
+	}
+}
@@ -0,0 +1,102 @@
+package com.keyboardr.glassremote.common.rpc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import com.keyboardr.glassremote.common.io.Varint;
+import com.keyboardr.glassremote.common.sender.BinaryMessageSender;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+
+/**
+ * Sends {@link RpcFrame RpcFrames}. Each frame is written as a
+ * {@link BinaryMessageSender} message holding the frame type, the correlation
+ * id as a {@link Varint}, and the payload encoded by the wrapped
+ * <code>MessageSender</code>. Because every frame is length-prefixed, any
+ * payload codec may be used, including delimiter-based ones.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of the frame payloads
+ */
+public class RpcFrameSender<T> implements MessageSender<RpcFrame<T>> {
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * A <code>ByteArrayOutputStream</code> whose contents can be written
+	 * without copying them out first
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer() {
+			super(256);
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	private final MessageSender<T> mPayloadSender;
+	private final BinaryMessageSender mFrameSender = new BinaryMessageSender();
+	private final FrameBuffer mFrame = new FrameBuffer();
+	private final byte[] mHeader = new byte[1 + Varint.MAX_INT_BYTES];
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param payloadSender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for encoding <code>T</code> payloads. It must not be used
+	 *            elsewhere.
+	 */
+	public RpcFrameSender(MessageSender<T> payloadSender) {
+		mPayloadSender = payloadSender;
+		mPayloadSender.setOutputStream(mFrame);
+	}
+
+	/**
+	 * Creates a <code>MessageSender.Factory</code> that wraps each sender
+	 * created by <code>payloadFactory</code> in a new
+	 * <code>RpcFrameSender</code>
+	 * 
+	 * @param payloadFactory
+	 *            creates the payload <code>MessageSenders</code>
+	 * @return a <code>MessageSender.Factory</code> for
+	 *         <code>RpcFrameSenders</code>
+	 */
+	public static <T> MessageSender.Factory<RpcFrame<T>> factory(
+			final MessageSender.Factory<T> payloadFactory) {
+		return new MessageSender.Factory<RpcFrame<T>>() {
+
+			@Override
+			public MessageSender<RpcFrame<T>> newSender() {
+				return new RpcFrameSender<T>(payloadFactory.newSender());
+			}
+		};
+	}
+
+	@Override
+	public void setOutputStream(OutputStream output) {
+		mFrameSender.setOutputStream(output);
+	}
+
+	@Override
+	public void sendMessage(RpcFrame<T> message) {
+		mFrame.reset();
+		mHeader[0] = (byte) message.getType();
+		int headerLength = Varint.write(message.getId(), mHeader, 1);
+		mFrame.write(mHeader, 0, headerLength);
+		if (message.getType() == RpcFrame.TYPE_ERROR) {
+			String error = message.getError();
+			if (error != null) {
+				byte[] bytes = error.getBytes(UTF_8);
+				mFrame.write(bytes, 0, bytes.length);
+			}
+		} else if (message.getPayload() != null) {
+			mPayloadSender.sendMessage(message.getPayload());
+		}
+		mFrameSender.sendMessage(mFrame.getBuffer(), 0, mFrame.size());
+	}
+}
@@ -0,0 +1,212 @@
+package com.keyboardr.glassremote.common.rpc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Result of a call made with {@link RpcEndpoint#call(Object)}. The future
+ * succeeds with the response payload, or fails with an {@link RpcException}
+ * if the remote peer answered with an error, a <code>TimeoutException</code>
+ * if no answer arrived in time, or an <code>IOException</code> if the request
+ * could not be sent or the connection was lost. Listeners are called on the
+ * thread that completes the future, which is usually the connection's reader
+ * thread, and must not block.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of the response payload
+ */
+public class RpcFuture<T> implements Future<T> {
+
+	/**
+	 * Callback interface for completion of an <code>RpcFuture</code>
+	 * 
+	 * @param <T>
+	 *            type of the response payload
+	 */
+	public static interface Listener<T> {
+		/**
+		 * The <code>RpcFuture</code> has succeeded, failed or been cancelled
+		 * 
+		 * @param future
+		 *            the completed <code>RpcFuture</code>
+		 */
+		public void onComplete(RpcFuture<T> future);
+	}
+
+	private static final int PENDING = 0;
+	private static final int SUCCEEDED = 1;
+	private static final int FAILED = 2;
+	private static final int CANCELLED = 3;
+
+	private final RpcEndpoint<?, T> mEndpoint;
+	private final int mId;
+
+	private int mState = PENDING;
+	private T mResult;
+	private Throwable mFailure;
+	private List<Listener<T>> mListeners;
+	private Future<?> mTimeout;
+
+	RpcFuture(RpcEndpoint<?, T> endpoint, int id) {
+		mEndpoint = endpoint;
+		mId = id;
+	}
+
+	/**
+	 * Gets the correlation id of the call
+	 * 
+	 * @return the id sent with the request
+	 */
+	public int getId() {
+		return mId;
+	}
+
+	/**
+	 * Adds a listener to be called when this future completes. If it has
+	 * already completed, <code>listener</code> is called immediately on the
+	 * calling thread.
+	 * 
+	 * @param listener
+	 *            the <code>Listener</code> to notify
+	 */
+	public void addListener(Listener<T> listener) {
+		synchronized (this) {
+			if (mState == PENDING) {
+				if (mListeners == null) {
+					mListeners = new ArrayList<Listener<T>>(1);
+				}
+				mListeners.add(listener);
+				return;
+			}
+		}
+		listener.onComplete(this);
+	}
+
+	synchronized void setTimeout(Future<?> timeout) {
+		if (mState == PENDING) {
+			mTimeout = timeout;
+		} else {
+			timeout.cancel(false);
+		}
+	}
+
+	boolean setSucceeded(T result) {
+		return complete(SUCCEEDED, result, null);
+	}
+
+	boolean setFailed(Throwable failure) {
+		return complete(FAILED, null, failure);
+	}
+
+	private boolean complete(int state, T result, Throwable failure) {
+		List<Listener<T>> listeners;
+		Future<?> timeout;
+		synchronized (this) {
+			if (mState != PENDING) {
+				return false;
+			}
+			mState = state;
+			mResult = result;
+			mFailure = failure;
+			listeners = mListeners;
+			mListeners = null;
+			timeout = mTimeout;
+			mTimeout = null;
+			notifyAll();
+		}
+		if (timeout != null) {
+			timeout.cancel(false);
+		}
+		if (listeners != null) {
+			for (Listener<T> listener : listeners) {
+				listener.onComplete(this);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Cancels the call. The pending entry is released at once and the remote
+	 * peer is told the response is no longer wanted.
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		if (!complete(CANCELLED, null, null)) {
+			return false;
+		}
+		mEndpoint.onCancelled(this);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mState == CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mState != PENDING;
+	}
+
+	/**
+	 * Checks if a response was received
+	 * 
+	 * @return <code>true</code> iff the call completed with a response
+	 */
+	public synchronized boolean isSuccessful() {
+		return mState == SUCCEEDED;
+	}
+
+	/**
+	 * Gets the reason this future failed
+	 * 
+	 * @return the failure, or <code>null</code> if this future has not failed
+	 */
+	public synchronized Throwable getFailure() {
+		return mFailure;
+	}
+
+	/**
+	 * Waits for the response. Must not be called on the connection's reader
+	 * thread, since that is the thread that delivers it.
+	 */
+	@Override
+	public synchronized T get() throws InterruptedException,
+			ExecutionException {
+		while (mState == PENDING) {
+			wait();
+		}
+		return report();
+	}
+
+	@Override
+	public synchronized T get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (mState == PENDING) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return report();
+	}
+
+	private T report() throws ExecutionException {
+		if (mState == CANCELLED) {
+			throw new CancellationException();
+		}
+		if (mState == FAILED) {
+			throw new ExecutionException(mFailure);
+		}
+		return mResult;
+	}
+}
@@ -0,0 +1,351 @@
+package com.keyboardr.glassremote.common.schema;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The binary layout of a plain Java class, used by
+ * {@link SchemaMessageSender} and {@link SchemaMessageReader} to exchange
+ * objects without formatting them as text. A <code>Schema</code> is built
+ * once per class by reflection and cached, so encoding an object only reads
+ * and writes its fields.<br/>
+ * <br/>
+ * Every non-static, non-transient field is encoded, superclass fields first
+ * and then in order of field name, with no names or tags on the wire. Both
+ * ends must therefore use the same version of the class. Primitive fields are
+ * read and written without boxing; integers are written as zigzag
+ * {@link com.keyboardr.glassremote.common.io.Varint Varints} and floating
+ * point values in full.<br/>
+ * <br/>
+ * Supported field types are primitives and their boxed types,
+ * <code>String</code>, enums, arrays, <code>List</code>, <code>Set</code>
+ * and <code>Map</code> with concrete type arguments, and other classes that
+ * meet these rules themselves. Reference fields may be <code>null</code>.
+ * Nested objects are encoded by their declared type, so subclass fields are
+ * not sent, and object graphs must not contain cycles.<br/>
+ * <br/>
+ * The class must have a zero-argument constructor, which need not be public.
+ * <br/>
+ * <br/>
+ * This class is thread-safe.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            the class described by this schema
+ */
+public final class Schema<T> {
+
+	private static final ConcurrentHashMap<Class<?>, Schema<?>> sSchemas = new ConcurrentHashMap<Class<?>, Schema<?>>();
+
+	private static final Comparator<Field> FIELD_ORDER = new Comparator<Field>() {
+
+		@Override
+		public int compare(Field lhs, Field rhs) {
+			return lhs.getName().compareTo(rhs.getName());
+		}
+	};
+
+	private final Class<T> mType;
+	private final Constructor<T> mConstructor;
+
+	private volatile FieldCodec[] mFields;
+	private int mPrimitiveSize;
+
+	private Schema(Class<T> type) {
+		if (type.isPrimitive() || type.isArray() || type.isInterface()
+				|| type.isEnum() || Modifier.isAbstract(type.getModifiers())) {
+			throw new IllegalArgumentException("Not a concrete class: " + type);
+		}
+		try {
+			mConstructor = type.getDeclaredConstructor();
+		} catch (NoSuchMethodException e) {
+			throw new IllegalArgumentException(type
+					+ " has no zero-argument constructor");
+		}
+		mConstructor.setAccessible(true);
+		mType = type;
+	}
+
+	/**
+	 * Gets the schema of a class, building it on first use
+	 * 
+	 * @param type
+	 *            the class to describe
+	 * @return the <code>Schema</code> for <code>type</code>
+	 * @throws IllegalArgumentException
+	 *             if <code>type</code> or one of its fields cannot be encoded
+	 */
+	public static <T> Schema<T> of(Class<T> type) {
+		Schema<T> schema = lookup(type);
+		schema.getFields();
+		return schema;
+	}
+
+	/**
+	 * Gets the schema of a class without building its fields, so classes
+	 * that refer to each other do not recurse
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> Schema<T> lookup(Class<T> type) {
+		Schema<T> schema = (Schema<T>) sSchemas.get(type);
+		if (schema == null) {
+			schema = new Schema<T>(type);
+			Schema<T> existing = (Schema<T>) sSchemas.putIfAbsent(type, schema);
+			if (existing != null) {
+				schema = existing;
+			}
+		}
+		return schema;
+	}
+
+	/**
+	 * Gets the class described by this schema
+	 * 
+	 * @return the described class
+	 */
+	public Class<T> getType() {
+		return mType;
+	}
+
+	/**
+	 * Gets an upper bound on the number of bytes {@link #encode(Object,
+	 * ByteBuffer)} will write for <code>value</code>
+	 * 
+	 * @param value
+	 *            the object that will be encoded
+	 * @return the maximum encoded size of <code>value</code> in bytes
+	 */
+	public int getMaxEncodedSize(T value) {
+		return getMaxSize(value);
+	}
+
+	/**
+	 * Encodes the fields of <code>value</code> at the position of
+	 * <code>buffer</code> and advances the position past them
+	 * 
+	 * @param value
+	 *            the object to encode
+	 * @param buffer
+	 *            the destination buffer. It must have at least
+	 *            {@link #getMaxEncodedSize(Object)} bytes remaining.
+	 * @throws java.nio.BufferOverflowException
+	 *             if <code>buffer</code> does not have enough room
+	 */
+	public void encode(T value, ByteBuffer buffer) {
+		writeFields(value, buffer);
+	}
+
+	/**
+	 * Decodes an object from the position of <code>buffer</code> and advances
+	 * the position past it
+	 * 
+	 * @param buffer
+	 *            the buffer to read from
+	 * @return a new instance of the described class
+	 * @throws IOException
+	 *             if the encoded object is truncated or malformed
+	 */
+	public T decode(ByteBuffer buffer) throws IOException {
+		try {
+			return read(buffer);
+		} catch (BufferUnderflowException e) {
+			throw new IOException("Truncated " + mType.getName());
+		}
+	}
+
+	int getMaxSize(Object value) {
+		FieldCodec[] fields = getFields();
+		int size = mPrimitiveSize;
+		for (FieldCodec field : fields) {
+			if (field.mCodec != null) {
+				size += field.maxSize(value);
+			}
+		}
+		return size;
+	}
+
+	void writeFields(Object value, ByteBuffer buffer) {
+		for (FieldCodec field : getFields()) {
+			field.write(value, buffer);
+		}
+	}
+
+	T read(ByteBuffer buffer) throws IOException {
+		FieldCodec[] fields = getFields();
+		T value;
+		try {
+			value = mConstructor.newInstance();
+		} catch (Exception e) {
+			throw new IOException("Cannot instantiate " + mType.getName(), e);
+		}
+		for (FieldCodec field : fields) {
+			field.read(value, buffer);
+		}
+		return value;
+	}
+
+	private FieldCodec[] getFields() {
+		FieldCodec[] fields = mFields;
+		if (fields == null) {
+			synchronized (this) {
+				fields = mFields;
+				if (fields == null) {
+					fields = buildFields();
+					mFields = fields;
+				}
+			}
+		}
+		return fields;
+	}
+
+	private FieldCodec[] buildFields() {
+		ArrayList<Class<?>> hierarchy = new ArrayList<Class<?>>();
+		for (Class<?> cls = mType; cls != Object.class; cls = cls
+				.getSuperclass()) {
+			hierarchy.add(0, cls);
+		}
+		ArrayList<FieldCodec> codecs = new ArrayList<FieldCodec>();
+		int primitiveSize = 0;
+		for (Class<?> cls : hierarchy) {
+			Field[] declared = cls.getDeclaredFields();
+			Arrays.sort(declared, FIELD_ORDER);
+			for (Field field : declared) {
+				int modifiers = field.getModifiers();
+				if (Modifier.isStatic(modifiers)
+						|| Modifier.isTransient(modifiers)
+						|| field.isSynthetic()) {
+					continue;
+				}
+				field.setAccessible(true);
+				int kind = ValueCodec.kindOf(field.getType());
+				if (kind >= 0) {
+					codecs.add(new FieldCodec(field, kind, null));
+					primitiveSize += ValueCodec.maxSizeOf(kind);
+				} else {
+					ValueCodec codec;
+					try {
+						codec = ValueCodec.forType(field.getGenericType());
+					} catch (IllegalArgumentException e) {
+						throw new IllegalArgumentException("Cannot encode "
+								+ cls.getName() + "." + field.getName() + ": "
+								+ e.getMessage());
+					}
+					codecs.add(new FieldCodec(field, -1, codec));
+				}
+			}
+		}
+		mPrimitiveSize = primitiveSize;
+		return codecs.toArray(new FieldCodec[codecs.size()]);
+	}
+
+	/**
+	 * Reads and writes one field. Primitive fields use the typed accessors of
+	 * <code>Field</code> so their values are never boxed; reference fields
+	 * delegate to a {@link ValueCodec}.
+	 */
+	private static final class FieldCodec {
+		final Field mField;
+		final int mKind;
+		final ValueCodec mCodec;
+
+		FieldCodec(Field field, int kind, ValueCodec codec) {
+			mField = field;
+			mKind = kind;
+			mCodec = codec;
+		}
+
+		int maxSize(Object owner) {
+			return ValueCodec.maxSizeNullable(mCodec, get(owner));
+		}
+
+		void write(Object owner, ByteBuffer buffer) {
+			try {
+				switch (mKind) {
+				case ValueCodec.KIND_BOOLEAN:
+					buffer.put((byte) (mField.getBoolean(owner) ? 1 : 0));
+					break;
+				case ValueCodec.KIND_BYTE:
+					buffer.put(mField.getByte(owner));
+					break;
+				case ValueCodec.KIND_SHORT:
+					ValueCodec.writeInt(mField.getShort(owner), buffer);
+					break;
+				case ValueCodec.KIND_CHAR:
+					ValueCodec.writeUnsigned(mField.getChar(owner), buffer);
+					break;
+				case ValueCodec.KIND_INT:
+					ValueCodec.writeInt(mField.getInt(owner), buffer);
+					break;
+				case ValueCodec.KIND_LONG:
+					ValueCodec.writeLong(mField.getLong(owner), buffer);
+					break;
+				case ValueCodec.KIND_FLOAT:
+					buffer.putFloat(mField.getFloat(owner));
+					break;
+				case ValueCodec.KIND_DOUBLE:
+					buffer.putDouble(mField.getDouble(owner));
+					break;
+				default:
+					ValueCodec.writeNullable(mCodec, mField.get(owner), buffer);
+					break;
+				}
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		void read(Object owner, ByteBuffer buffer) throws IOException {
+			try {
+				switch (mKind) {
+				case ValueCodec.KIND_BOOLEAN:
+					mField.setBoolean(owner, ValueCodec.readBoolean(buffer));
+					break;
+				case ValueCodec.KIND_BYTE:
+					mField.setByte(owner, buffer.get());
+					break;
+				case ValueCodec.KIND_SHORT:
+					mField.setShort(owner, (short) ValueCodec.readInt(buffer));
+					break;
+				case ValueCodec.KIND_CHAR:
+					mField.setChar(owner,
+							(char) ValueCodec.readUnsigned(buffer));
+					break;
+				case ValueCodec.KIND_INT:
+					mField.setInt(owner, ValueCodec.readInt(buffer));
+					break;
+				case ValueCodec.KIND_LONG:
+					mField.setLong(owner, ValueCodec.readLong(buffer));
+					break;
+				case ValueCodec.KIND_FLOAT:
+					mField.setFloat(owner, buffer.getFloat());
+					break;
+				case ValueCodec.KIND_DOUBLE:
+					mField.setDouble(owner, buffer.getDouble());
+					break;
+				default:
+					mField.set(owner, ValueCodec.readNullable(mCodec, buffer));
+					break;
+				}
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+
+		private Object get(Object owner) {
+			try {
+				return mField.get(owner);
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,124 @@
+package com.keyboardr.glassremote.common.schema;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.keyboardr.glassremote.common.io.Varint;
+import com.keyboardr.glassremote.common.receiver.BinaryMessageReader;
+import com.keyboardr.glassremote.common.receiver.ByteBufferMessageReceiver;
+import com.keyboardr.glassremote.common.receiver.ByteBufferReceiverAdapter;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver.OnReceiveMessageListener;
+
+/**
+ * Decodes objects written by {@link SchemaMessageSender}. Fields are decoded
+ * in place from the receive buffer into a new instance of the message class,
+ * and a partial message is left in the buffer until the rest arrives.<br/>
+ * <br/>
+ * This class is stateless and may be shared between connections. Use
+ * {@link #newReceiver(Class)} or {@link #factory(Class)} to receive wherever
+ * a <code>MessageReceiver</code> is expected.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <R>
+ *            type of messages to be decoded
+ */
+public class SchemaMessageReader<R> implements ByteBufferMessageReceiver<R> {
+
+	private final Schema<R> mSchema;
+	private final int mMaxMessageSize;
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param type
+	 *            the class of messages to be decoded
+	 * @throws IllegalArgumentException
+	 *             if <code>type</code> cannot be encoded by a {@link Schema}
+	 */
+	public SchemaMessageReader(Class<R> type) {
+		this(type, BinaryMessageReader.DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param type
+	 *            the class of messages to be decoded
+	 * @param maxMessageSize
+	 *            the largest message, in bytes, that will be accepted. A
+	 *            larger length prefix is treated as a corrupt stream.
+	 * @throws IllegalArgumentException
+	 *             if <code>type</code> cannot be encoded by a {@link Schema}
+	 */
+	public SchemaMessageReader(Class<R> type, int maxMessageSize) {
+		mSchema = Schema.of(type);
+		mMaxMessageSize = maxMessageSize;
+	}
+
+	/**
+	 * Creates a <code>MessageReceiver</code> for a class, such as for
+	 * <code>RemoteMessenger.Factory.getRemoteMessenger()</code>
+	 * 
+	 * @param type
+	 *            the class of messages to be received
+	 * @return a new <code>MessageReceiver</code> for <code>type</code>
+	 */
+	public static <R> MessageReceiver<R> newReceiver(Class<R> type) {
+		return new ByteBufferReceiverAdapter<R>(
+				new SchemaMessageReader<R>(type));
+	}
+
+	/**
+	 * Creates a <code>MessageReceiver.Factory</code> for a class, such as for
+	 * a <code>MessageService</code> serving several clients
+	 * 
+	 * @param type
+	 *            the class of messages to be received
+	 * @return a <code>MessageReceiver.Factory</code> for <code>type</code>
+	 */
+	public static <R> MessageReceiver.Factory<R> factory(Class<R> type) {
+		return ByteBufferReceiverAdapter
+				.factory(new SchemaMessageReader<R>(type));
+	}
+
+	@Override
+	public int decode(ByteBuffer buffer,
+			OnReceiveMessageListener<? super R> listener) throws IOException {
+		int count = 0;
+		int limit = buffer.limit();
+		while (buffer.hasRemaining()) {
+			int start = buffer.position();
+			int length = Varint.readInt(buffer);
+			if (length < 0) {
+				break;
+			}
+			if (length > mMaxMessageSize) {
+				throw new IOException("Message of " + length
+						+ " bytes exceeds maximum of " + mMaxMessageSize);
+			}
+			if (buffer.remaining() < length) {
+				// Wait for the rest of the message
+				buffer.position(start);
+				break;
+			}
+			int end = buffer.position() + length;
+			R message;
+			buffer.limit(end);
+			try {
+				message = mSchema.decode(buffer);
+				if (buffer.hasRemaining()) {
+					throw new IOException(buffer.remaining()
+							+ " bytes left over decoding "
+							+ mSchema.getType().getName());
+				}
+			} finally {
+				buffer.limit(limit);
+			}
+			listener.onReceiveMessage(message);
+			count++;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,94 @@
+package com.keyboardr.glassremote.common.schema;
+
+import java.nio.ByteBuffer;
+
+import com.keyboardr.glassremote.common.io.Varint;
+import com.keyboardr.glassremote.common.sender.ByteBufferMessageSender;
+import com.keyboardr.glassremote.common.sender.ByteBufferSenderAdapter;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+
+/**
+ * Encodes objects using their {@link Schema}. Each message is the encoded
+ * fields preceded by their length as a {@link Varint}, so the wire format is
+ * framed the same way as
+ * {@link com.keyboardr.glassremote.common.sender.BinaryMessageSender
+ * BinaryMessageSender}. The fields are encoded straight into the destination
+ * buffer, without formatting them as text or copying them through an
+ * intermediate array.<br/>
+ * <br/>
+ * The length prefix is reserved before the fields are encoded and may be one
+ * byte longer than its value needs.<br/>
+ * <br/>
+ * This class is stateless and may be shared between connections. Use
+ * {@link #newSender(Class)} or {@link #factory(Class)} to send wherever a
+ * <code>MessageSender</code> is expected.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of messages to be encoded
+ */
+public class SchemaMessageSender<T> implements ByteBufferMessageSender<T> {
+
+	private final Schema<T> mSchema;
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param type
+	 *            the class of messages to be encoded
+	 * @throws IllegalArgumentException
+	 *             if <code>type</code> cannot be encoded by a {@link Schema}
+	 */
+	public SchemaMessageSender(Class<T> type) {
+		mSchema = Schema.of(type);
+	}
+
+	/**
+	 * Creates a <code>MessageSender</code> for a class, such as for
+	 * <code>RemoteMessenger.Factory.getRemoteMessenger()</code>
+	 * 
+	 * @param type
+	 *            the class of messages to be sent
+	 * @return a new <code>MessageSender</code> for <code>type</code>
+	 */
+	public static <T> MessageSender<T> newSender(Class<T> type) {
+		return new ByteBufferSenderAdapter<T>(new SchemaMessageSender<T>(type));
+	}
+
+	/**
+	 * Creates a <code>MessageSender.Factory</code> for a class, such as for a
+	 * <code>MessageService</code> serving several clients
+	 * 
+	 * @param type
+	 *            the class of messages to be sent
+	 * @return a <code>MessageSender.Factory</code> for <code>type</code>
+	 */
+	public static <T> MessageSender.Factory<T> factory(Class<T> type) {
+		return ByteBufferSenderAdapter
+				.factory(new SchemaMessageSender<T>(type));
+	}
+
+	@Override
+	public int getMaxEncodedSize(T message) {
+		int length = mSchema.getMaxEncodedSize(message);
+		return Varint.sizeOf(length) + length;
+	}
+
+	@Override
+	public void encode(T message, ByteBuffer buffer) {
+		int maxLength = mSchema.getMaxEncodedSize(message);
+		int prefixSize = Varint.sizeOf(maxLength);
+		int start = buffer.position();
+		buffer.position(start + prefixSize);
+		mSchema.encode(message, buffer);
+		int length = buffer.position() - start - prefixSize;
+		// Pad the prefix out to the reserved size with continuation bytes,
+		// which Varint readers accept
+		for (int i = 0; i < prefixSize - 1; i++) {
+			buffer.put(start + i, (byte) ((length & 0x7F) | 0x80));
+			length >>>= 7;
+		}
+		buffer.put(start + prefixSize - 1, (byte) length);
+	}
+}
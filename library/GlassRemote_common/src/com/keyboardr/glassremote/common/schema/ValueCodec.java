@@ -0,0 +1,782 @@
+package com.keyboardr.glassremote.common.schema;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.GenericArrayType;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+/**
+ * Encodes and decodes values of one declared type for a {@link Schema}. Each
+ * codec is created once per field, so the type checks happen when the schema
+ * is built rather than for every value.<br/>
+ * <br/>
+ * Reference values are written after a one-byte presence flag by
+ * {@link #writeNullable(ValueCodec, Object, ByteBuffer)}; the codecs
+ * themselves never see <code>null</code>.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+abstract class ValueCodec {
+
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	static final int KIND_BOOLEAN = 0;
+	static final int KIND_BYTE = 1;
+	static final int KIND_SHORT = 2;
+	static final int KIND_CHAR = 3;
+	static final int KIND_INT = 4;
+	static final int KIND_LONG = 5;
+	static final int KIND_FLOAT = 6;
+	static final int KIND_DOUBLE = 7;
+
+	/**
+	 * Gets an upper bound on the number of bytes {@link #write(Object,
+	 * ByteBuffer)} will write for <code>value</code>
+	 */
+	abstract int maxSize(Object value);
+
+	abstract void write(Object value, ByteBuffer buffer);
+
+	abstract Object read(ByteBuffer buffer) throws IOException;
+
+	static int maxSizeNullable(ValueCodec codec, Object value) {
+		return value == null ? 1 : 1 + codec.maxSize(value);
+	}
+
+	static void writeNullable(ValueCodec codec, Object value,
+			ByteBuffer buffer) {
+		if (value == null) {
+			buffer.put((byte) 0);
+		} else {
+			buffer.put((byte) 1);
+			codec.write(value, buffer);
+		}
+	}
+
+	static Object readNullable(ValueCodec codec, ByteBuffer buffer)
+			throws IOException {
+		switch (buffer.get()) {
+		case 0:
+			return null;
+		case 1:
+			return codec.read(buffer);
+		default:
+			throw new IOException("Malformed presence flag");
+		}
+	}
+
+	/**
+	 * Gets the primitive kind of <code>type</code>
+	 * 
+	 * @return one of the <code>KIND_</code> constants, or <code>-1</code> if
+	 *         <code>type</code> is not primitive
+	 */
+	static int kindOf(Class<?> type) {
+		if (type == boolean.class) {
+			return KIND_BOOLEAN;
+		} else if (type == byte.class) {
+			return KIND_BYTE;
+		} else if (type == short.class) {
+			return KIND_SHORT;
+		} else if (type == char.class) {
+			return KIND_CHAR;
+		} else if (type == int.class) {
+			return KIND_INT;
+		} else if (type == long.class) {
+			return KIND_LONG;
+		} else if (type == float.class) {
+			return KIND_FLOAT;
+		} else if (type == double.class) {
+			return KIND_DOUBLE;
+		}
+		return -1;
+	}
+
+	/**
+	 * Gets the largest number of bytes a primitive of <code>kind</code> is
+	 * encoded in
+	 */
+	static int maxSizeOf(int kind) {
+		switch (kind) {
+		case KIND_BOOLEAN:
+		case KIND_BYTE:
+			return 1;
+		case KIND_SHORT:
+		case KIND_CHAR:
+			return 3;
+		case KIND_INT:
+		case KIND_FLOAT:
+			return 5;
+		default:
+			return 10;
+		}
+	}
+
+	/**
+	 * Creates a codec for values declared as <code>type</code>
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if <code>type</code> cannot be encoded
+	 */
+	static ValueCodec forType(Type type) {
+		if (type instanceof ParameterizedType) {
+			ParameterizedType parameterized = (ParameterizedType) type;
+			Class<?> raw = (Class<?>) parameterized.getRawType();
+			Type[] arguments = parameterized.getActualTypeArguments();
+			if (Map.class.isAssignableFrom(raw)) {
+				return new MapCodec(raw, forType(arguments[0]),
+						forType(arguments[1]));
+			} else if (Collection.class.isAssignableFrom(raw)) {
+				return new CollectionCodec(raw, forType(arguments[0]));
+			}
+			return forType(raw);
+		} else if (type instanceof GenericArrayType) {
+			throw new IllegalArgumentException(
+					"Generic arrays are not supported: " + type);
+		} else if (!(type instanceof Class)) {
+			throw new IllegalArgumentException("Type must be concrete: "
+					+ type);
+		}
+		Class<?> cls = (Class<?>) type;
+		if (cls == String.class) {
+			return StringCodec.INSTANCE;
+		} else if (cls == Boolean.class) {
+			return new BoxedCodec(KIND_BOOLEAN);
+		} else if (cls == Byte.class) {
+			return new BoxedCodec(KIND_BYTE);
+		} else if (cls == Short.class) {
+			return new BoxedCodec(KIND_SHORT);
+		} else if (cls == Character.class) {
+			return new BoxedCodec(KIND_CHAR);
+		} else if (cls == Integer.class) {
+			return new BoxedCodec(KIND_INT);
+		} else if (cls == Long.class) {
+			return new BoxedCodec(KIND_LONG);
+		} else if (cls == Float.class) {
+			return new BoxedCodec(KIND_FLOAT);
+		} else if (cls == Double.class) {
+			return new BoxedCodec(KIND_DOUBLE);
+		} else if (cls.isEnum()) {
+			return new EnumCodec(cls);
+		} else if (cls.isArray()) {
+			Class<?> component = cls.getComponentType();
+			int kind = kindOf(component);
+			if (kind >= 0) {
+				return new PrimitiveArrayCodec(kind);
+			}
+			return new ObjectArrayCodec(component, forType(component));
+		} else if (Collection.class.isAssignableFrom(cls)
+				|| Map.class.isAssignableFrom(cls)) {
+			throw new IllegalArgumentException(
+					"Collections must declare their element type: " + cls);
+		}
+		return new NestedCodec(Schema.lookup(cls));
+	}
+
+	// Primitive encodings. Integers are zigzag varints so small magnitudes of
+	// either sign stay short; floating point values are written in full.
+
+	static void writeInt(int value, ByteBuffer buffer) {
+		writeUnsigned((value << 1) ^ (value >> 31), buffer);
+	}
+
+	static int readInt(ByteBuffer buffer) throws IOException {
+		int value = readUnsigned(buffer);
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	static void writeLong(long value, ByteBuffer buffer) {
+		long zigzag = (value << 1) ^ (value >> 63);
+		while ((zigzag & ~0x7FL) != 0) {
+			buffer.put((byte) ((zigzag & 0x7F) | 0x80));
+			zigzag >>>= 7;
+		}
+		buffer.put((byte) zigzag);
+	}
+
+	static long readLong(ByteBuffer buffer) throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return (value >>> 1) ^ -(value & 1);
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	static void writeUnsigned(int value, ByteBuffer buffer) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	static int readUnsigned(ByteBuffer buffer) throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	/**
+	 * Reads a count written by {@link #writeUnsigned(int, ByteBuffer)} that
+	 * is followed by at least <code>count * minSize</code> bytes, so a corrupt
+	 * count cannot cause a huge allocation
+	 */
+	static int readCount(ByteBuffer buffer, int minSize) throws IOException {
+		int count = readUnsigned(buffer);
+		if (count < 0 || (long) count * minSize > buffer.remaining()) {
+			throw new IOException("Malformed count " + count);
+		}
+		return count;
+	}
+
+	static boolean readBoolean(ByteBuffer buffer) throws IOException {
+		switch (buffer.get()) {
+		case 0:
+			return false;
+		case 1:
+			return true;
+		default:
+			throw new IOException("Malformed boolean");
+		}
+	}
+
+	/**
+	 * A boxed primitive, encoded like the primitive itself
+	 */
+	private static class BoxedCodec extends ValueCodec {
+		private final int mKind;
+
+		BoxedCodec(int kind) {
+			mKind = kind;
+		}
+
+		@Override
+		int maxSize(Object value) {
+			return maxSizeOf(mKind);
+		}
+
+		@Override
+		void write(Object value, ByteBuffer buffer) {
+			switch (mKind) {
+			case KIND_BOOLEAN:
+				buffer.put((byte) (((Boolean) value) ? 1 : 0));
+				break;
+			case KIND_BYTE:
+				buffer.put((Byte) value);
+				break;
+			case KIND_SHORT:
+				writeInt((Short) value, buffer);
+				break;
+			case KIND_CHAR:
+				writeUnsigned((Character) value, buffer);
+				break;
+			case KIND_INT:
+				writeInt((Integer) value, buffer);
+				break;
+			case KIND_LONG:
+				writeLong((Long) value, buffer);
+				break;
+			case KIND_FLOAT:
+				buffer.putFloat((Float) value);
+				break;
+			default:
+				buffer.putDouble((Double) value);
+				break;
+			}
+		}
+
+		@Override
+		Object read(ByteBuffer buffer) throws IOException {
+			switch (mKind) {
+			case KIND_BOOLEAN:
+				return readBoolean(buffer);
+			case KIND_BYTE:
+				return buffer.get();
+			case KIND_SHORT:
+				return (short) readInt(buffer);
+			case KIND_CHAR:
+				return (char) readUnsigned(buffer);
+			case KIND_INT:
+				return readInt(buffer);
+			case KIND_LONG:
+				return readLong(buffer);
+			case KIND_FLOAT:
+				return buffer.getFloat();
+			default:
+				return buffer.getDouble();
+			}
+		}
+	}
+
+	/**
+	 * A <code>String</code>, written as its UTF-8 length followed by the UTF-8
+	 * bytes. Characters are encoded straight into the buffer rather than
+	 * through an intermediate byte array.
+	 */
+	static class StringCodec extends ValueCodec {
+		static final StringCodec INSTANCE = new StringCodec();
+
+		@Override
+		int maxSize(Object value) {
+			int length = ((String) value).length();
+			return 5 + 3 * length;
+		}
+
+		@Override
+		void write(Object value, ByteBuffer buffer) {
+			String string = (String) value;
+			int length = string.length();
+			writeUnsigned(utf8Length(string, length), buffer);
+			for (int i = 0; i < length; i++) {
+				char c = string.charAt(i);
+				if (c < 0x80) {
+					buffer.put((byte) c);
+				} else if (c < 0x800) {
+					buffer.put((byte) (0xC0 | (c >> 6)));
+					buffer.put((byte) (0x80 | (c & 0x3F)));
+				} else if (Character.isHighSurrogate(c) && i + 1 < length
+						&& Character.isLowSurrogate(string.charAt(i + 1))) {
+					int codePoint = Character.toCodePoint(c,
+							string.charAt(++i));
+					buffer.put((byte) (0xF0 | (codePoint >> 18)));
+					buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+					buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+					buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+				} else if (c >= Character.MIN_SURROGATE
+						&& c <= Character.MAX_SURROGATE) {
+					// Unpaired surrogate; replaced as String.getBytes() does
+					buffer.put((byte) '?');
+				} else {
+					buffer.put((byte) (0xE0 | (c >> 12)));
+					buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+					buffer.put((byte) (0x80 | (c & 0x3F)));
+				}
+			}
+		}
+
+		private static int utf8Length(String string, int length) {
+			int bytes = length;
+			for (int i = 0; i < length; i++) {
+				char c = string.charAt(i);
+				if (c < 0x80) {
+					continue;
+				} else if (c < 0x800) {
+					bytes++;
+				} else if (Character.isHighSurrogate(c) && i + 1 < length
+						&& Character.isLowSurrogate(string.charAt(i + 1))) {
+					// Two chars become four bytes
+					bytes += 2;
+					i++;
+				} else if (c < Character.MIN_SURROGATE
+						|| c > Character.MAX_SURROGATE) {
+					bytes += 2;
+				}
+			}
+			return bytes;
+		}
+
+		@Override
+		Object read(ByteBuffer buffer) throws IOException {
+			int length = readCount(buffer, 1);
+			String value;
+			if (buffer.hasArray()) {
+				value = new String(buffer.array(), buffer.arrayOffset()
+						+ buffer.position(), length, UTF_8);
+				buffer.position(buffer.position() + length);
+			} else {
+				byte[] bytes = new byte[length];
+				buffer.get(bytes);
+				value = new String(bytes, UTF_8);
+			}
+			return value;
+		}
+	}
+
+	/**
+	 * An enum constant, written as its ordinal
+	 */
+	private static class EnumCodec extends ValueCodec {
+		private final Object[] mConstants;
+
+		EnumCodec(Class<?> type) {
+			mConstants = type.getEnumConstants();
+		}
+
+		@Override
+		int maxSize(Object value) {
+			return 5;
+		}
+
+		@Override
+		void write(Object value, ByteBuffer buffer) {
+			writeUnsigned(((Enum<?>) value).ordinal(), buffer);
+		}
+
+		@Override
+		Object read(ByteBuffer buffer) throws IOException {
+			int ordinal = readUnsigned(buffer);
+			if (ordinal < 0 || ordinal >= mConstants.length) {
+				throw new IOException("Unknown enum ordinal " + ordinal);
+			}
+			return mConstants[ordinal];
+		}
+	}
+
+	/**
+	 * An array of primitives, written as its length followed by the elements
+	 */
+	private static class PrimitiveArrayCodec extends ValueCodec {
+		private final int mKind;
+
+		PrimitiveArrayCodec(int kind) {
+			mKind = kind;
+		}
+
+		@Override
+		int maxSize(Object value) {
+			return 5 + Array.getLength(value)
+					* maxSizeOf(mKind);
+		}
+
+		@Override
+		void write(Object value, ByteBuffer buffer) {
+			switch (mKind) {
+			case KIND_BOOLEAN:
+				boolean[] booleans = (boolean[]) value;
+				writeUnsigned(booleans.length, buffer);
+				for (boolean b : booleans) {
+					buffer.put((byte) (b ? 1 : 0));
+				}
+				break;
+			case KIND_BYTE:
+				byte[] bytes = (byte[]) value;
+				writeUnsigned(bytes.length, buffer);
+				buffer.put(bytes);
+				break;
+			case KIND_SHORT:
+				short[] shorts = (short[]) value;
+				writeUnsigned(shorts.length, buffer);
+				for (short s : shorts) {
+					writeInt(s, buffer);
+				}
+				break;
+			case KIND_CHAR:
+				char[] chars = (char[]) value;
+				writeUnsigned(chars.length, buffer);
+				for (char c : chars) {
+					writeUnsigned(c, buffer);
+				}
+				break;
+			case KIND_INT:
+				int[] ints = (int[]) value;
+				writeUnsigned(ints.length, buffer);
+				for (int i : ints) {
+					writeInt(i, buffer);
+				}
+				break;
+			case KIND_LONG:
+				long[] longs = (long[]) value;
+				writeUnsigned(longs.length, buffer);
+				for (long l : longs) {
+					writeLong(l, buffer);
+				}
+				break;
+			case KIND_FLOAT:
+				float[] floats = (float[]) value;
+				writeUnsigned(floats.length, buffer);
+				for (float f : floats) {
+					buffer.putFloat(f);
+				}
+				break;
+			default:
+				double[] doubles = (double[]) value;
+				writeUnsigned(doubles.length, buffer);
+				for (double d : doubles) {
+					buffer.putDouble(d);
+				}
+				break;
+			}
+		}
+
+		@Override
+		Object read(ByteBuffer buffer) throws IOException {
+			int minSize = mKind == KIND_FLOAT ? 4 : mKind == KIND_DOUBLE ? 8
+					: 1;
+			int length = readCount(buffer, minSize);
+			switch (mKind) {
+			case KIND_BOOLEAN:
+				boolean[] booleans = new boolean[length];
+				for (int i = 0; i < length; i++) {
+					booleans[i] = readBoolean(buffer);
+				}
+				return booleans;
+			case KIND_BYTE:
+				byte[] bytes = new byte[length];
+				buffer.get(bytes);
+				return bytes;
+			case KIND_SHORT:
+				short[] shorts = new short[length];
+				for (int i = 0; i < length; i++) {
+					shorts[i] = (short) readInt(buffer);
+				}
+				return shorts;
+			case KIND_CHAR:
+				char[] chars = new char[length];
+				for (int i = 0; i < length; i++) {
+					chars[i] = (char) readUnsigned(buffer);
+				}
+				return chars;
+			case KIND_INT:
+				int[] ints = new int[length];
+				for (int i = 0; i < length; i++) {
+					ints[i] = readInt(buffer);
+				}
+				return ints;
+			case KIND_LONG:
+				long[] longs = new long[length];
+				for (int i = 0; i < length; i++) {
+					longs[i] = readLong(buffer);
+				}
+				return longs;
+			case KIND_FLOAT:
+				float[] floats = new float[length];
+				for (int i = 0; i < length; i++) {
+					floats[i] = buffer.getFloat();
+				}
+				return floats;
+			default:
+				double[] doubles = new double[length];
+				for (int i = 0; i < length; i++) {
+					doubles[i] = buffer.getDouble();
+				}
+				return doubles;
+			}
+		}
+	}
+
+	/**
+	 * An array of references, written as its length followed by each nullable
+	 * element
+	 */
+	private static class ObjectArrayCodec extends ValueCodec {
+		private final Class<?> mComponentType;
+		private final ValueCodec mElementCodec;
+
+		ObjectArrayCodec(Class<?> componentType, ValueCodec elementCodec) {
+			mComponentType = componentType;
+			mElementCodec = elementCodec;
+		}
+
+		@Override
+		int maxSize(Object value) {
+			int size = 5;
+			for (Object element : (Object[]) value) {
+				size += maxSizeNullable(mElementCodec, element);
+			}
+			return size;
+		}
+
+		@Override
+		void write(Object value, ByteBuffer buffer) {
+			Object[] array = (Object[]) value;
+			writeUnsigned(array.length, buffer);
+			for (Object element : array) {
+				writeNullable(mElementCodec, element, buffer);
+			}
+		}
+
+		@Override
+		Object read(ByteBuffer buffer) throws IOException {
+			int length = readCount(buffer, 1);
+			Object[] array = (Object[]) Array.newInstance(
+					mComponentType, length);
+			for (int i = 0; i < length; i++) {
+				array[i] = readNullable(mElementCodec, buffer);
+			}
+			return array;
+		}
+	}
+
+	/**
+	 * A <code>List</code> or <code>Set</code>, written as its size followed by
+	 * each nullable element. Declared interfaces are decoded as an
+	 * <code>ArrayList</code>, <code>LinkedHashSet</code> or
+	 * <code>HashSet</code>; concrete classes are instantiated directly.
+	 */
+	private static class CollectionCodec extends ValueCodec {
+		private final Class<?> mType;
+		private final ValueCodec mElementCodec;
+
+		CollectionCodec(Class<?> type, ValueCodec elementCodec) {
+			if (type.isInterface()
+					&& !type.isAssignableFrom(ArrayList.class)
+					&& !type.isAssignableFrom(LinkedHashSet.class)) {
+				throw new IllegalArgumentException(
+						"Unsupported collection type: " + type);
+			}
+			mType = type;
+			mElementCodec = elementCodec;
+		}
+
+		@Override
+		int maxSize(Object value) {
+			int size = 5;
+			for (Object element : (Collection<?>) value) {
+				size += maxSizeNullable(mElementCodec, element);
+			}
+			return size;
+		}
+
+		@Override
+		void write(Object value, ByteBuffer buffer) {
+			Collection<?> collection = (Collection<?>) value;
+			writeUnsigned(collection.size(), buffer);
+			for (Object element : collection) {
+				writeNullable(mElementCodec, element, buffer);
+			}
+		}
+
+		@Override
+		Object read(ByteBuffer buffer) throws IOException {
+			int size = readCount(buffer, 1);
+			Collection<Object> collection = newCollection(size);
+			for (int i = 0; i < size; i++) {
+				collection.add(readNullable(mElementCodec, buffer));
+			}
+			return collection;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Collection<Object> newCollection(int size) throws IOException {
+			if (mType.isAssignableFrom(ArrayList.class)) {
+				return new ArrayList<Object>(size);
+			} else if (mType == HashSet.class) {
+				return new HashSet<Object>(size * 2);
+			} else if (mType.isAssignableFrom(LinkedHashSet.class)) {
+				return new LinkedHashSet<Object>(size * 2);
+			}
+			try {
+				return (Collection<Object>) mType.getDeclaredConstructor()
+						.newInstance();
+			} catch (Exception e) {
+				throw new IOException("Cannot instantiate " + mType, e);
+			}
+		}
+	}
+
+	/**
+	 * A <code>Map</code>, written as its size followed by each nullable key
+	 * and value. A declared interface is decoded as a
+	 * <code>LinkedHashMap</code>.
+	 */
+	private static class MapCodec extends ValueCodec {
+		private final Class<?> mType;
+		private final ValueCodec mKeyCodec;
+		private final ValueCodec mValueCodec;
+
+		MapCodec(Class<?> type, ValueCodec keyCodec, ValueCodec valueCodec) {
+			if (type.isInterface()
+					&& !type.isAssignableFrom(LinkedHashMap.class)) {
+				throw new IllegalArgumentException("Unsupported map type: "
+						+ type);
+			}
+			mType = type;
+			mKeyCodec = keyCodec;
+			mValueCodec = valueCodec;
+		}
+
+		@Override
+		int maxSize(Object value) {
+			int size = 5;
+			for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				size += maxSizeNullable(mKeyCodec, entry.getKey());
+				size += maxSizeNullable(mValueCodec, entry.getValue());
+			}
+			return size;
+		}
+
+		@Override
+		void write(Object value, ByteBuffer buffer) {
+			Map<?, ?> map = (Map<?, ?>) value;
+			writeUnsigned(map.size(), buffer);
+			for (Map.Entry<?, ?> entry : map.entrySet()) {
+				writeNullable(mKeyCodec, entry.getKey(), buffer);
+				writeNullable(mValueCodec, entry.getValue(), buffer);
+			}
+		}
+
+		@Override
+		Object read(ByteBuffer buffer) throws IOException {
+			int size = readCount(buffer, 2);
+			Map<Object, Object> map = newMap(size);
+			for (int i = 0; i < size; i++) {
+				Object key = readNullable(mKeyCodec, buffer);
+				map.put(key, readNullable(mValueCodec, buffer));
+			}
+			return map;
+		}
+
+		@SuppressWarnings("unchecked")
+		private Map<Object, Object> newMap(int size) throws IOException {
+			if (mType == HashMap.class) {
+				return new HashMap<Object, Object>(size * 2);
+			} else if (mType.isAssignableFrom(LinkedHashMap.class)) {
+				return new LinkedHashMap<Object, Object>(size * 2);
+			}
+			try {
+				return (Map<Object, Object>) mType.getDeclaredConstructor()
+						.newInstance();
+			} catch (Exception e) {
+				throw new IOException("Cannot instantiate " + mType, e);
+			}
+		}
+	}
+
+	/**
+	 * Another class encoded by its own {@link Schema}. Only the fields of the
+	 * declared class are written, whatever the runtime class of the value.
+	 */
+	private static class NestedCodec extends ValueCodec {
+		private final Schema<?> mSchema;
+
+		NestedCodec(Schema<?> schema) {
+			mSchema = schema;
+		}
+
+		@Override
+		int maxSize(Object value) {
+			return mSchema.getMaxSize(value);
+		}
+
+		@Override
+		void write(Object value, ByteBuffer buffer) {
+			mSchema.writeFields(value, buffer);
+		}
+
+		@Override
+		Object read(ByteBuffer buffer) throws IOException {
+			return mSchema.read(buffer);
+		}
+	}
+}
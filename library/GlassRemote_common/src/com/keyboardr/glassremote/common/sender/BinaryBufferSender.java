@@ -0,0 +1,42 @@
+package com.keyboardr.glassremote.common.sender;
+
+import java.nio.ByteBuffer;
+
+import com.keyboardr.glassremote.common.io.Varint;
+
+/**
+ * Encodes the remaining bytes of a <code>ByteBuffer</code> as a single
+ * message, preceded by its length encoded as a {@link Varint}. The wire format
+ * is the same as {@link BinaryMessageSender}, so either side of a connection
+ * may use the stream or the <code>ByteBuffer</code> codec.<br/>
+ * <br/>
+ * The message buffer is read through a duplicate and its position is not
+ * changed, so the same buffer may be sent again. Direct buffers, such as those
+ * filled by a camera or audio pipeline, are copied straight into the
+ * destination without an intermediate array.<br/>
+ * <br/>
+ * This class is stateless and may be shared between connections.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class BinaryBufferSender implements ByteBufferMessageSender<ByteBuffer> {
+
+	/**
+	 * Class constructor
+	 */
+	public BinaryBufferSender() {
+	}
+
+	@Override
+	public int getMaxEncodedSize(ByteBuffer message) {
+		int length = message.remaining();
+		return Varint.sizeOf(length) + length;
+	}
+
+	@Override
+	public void encode(ByteBuffer message, ByteBuffer buffer) {
+		Varint.write(message.remaining(), buffer);
+		buffer.put(message.duplicate());
+	}
+}
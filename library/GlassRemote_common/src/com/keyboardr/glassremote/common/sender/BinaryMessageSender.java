@@ -0,0 +1,90 @@
+package com.keyboardr.glassremote.common.sender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.keyboardr.glassremote.common.io.BufferPool;
+import com.keyboardr.glassremote.common.io.Varint;
+
+/**
+ * Sends messages as raw <code>byte[]</code> payloads. Each message is
+ * preceded by its length encoded as a {@link Varint}, so payloads may contain
+ * any byte values. Small messages are assembled into a pooled buffer and
+ * written with a single call to the <code>OutputStream</code>.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class BinaryMessageSender implements MessageSender<byte[]> {
+
+	/**
+	 * Payloads larger than this are written directly from the caller's array
+	 * rather than being copied behind the header
+	 */
+	private static final int COPY_THRESHOLD = 8 * 1024;
+
+	private OutputStream mOutputStream;
+
+	/**
+	 * Class constructor
+	 */
+	public BinaryMessageSender() {
+	}
+
+	@Override
+	public void setOutputStream(OutputStream output) {
+		mOutputStream = output;
+	}
+
+	@Override
+	public void sendMessage(byte[] message) {
+		sendMessage(message, 0, message.length);
+	}
+
+	/**
+	 * Sends <code>length</code> bytes of <code>message</code> starting at
+	 * <code>offset</code> as a single message.
+	 * 
+	 * @param message
+	 *            the array holding the message
+	 * @param offset
+	 *            the index of the first byte of the message
+	 * @param length
+	 *            the number of bytes in the message
+	 * @throws IllegalStateException
+	 *             if {@link #setOutputStream(OutputStream)} has not been called
+	 *             or was called with <code>null<code> output.
+	 */
+	public void sendMessage(byte[] message, int offset, int length) {
+		if (mOutputStream == null) {
+			throw new IllegalStateException(
+					"sendMessage() called with no OutputStream set");
+		}
+		if (offset < 0 || length < 0 || offset + length > message.length) {
+			throw new IndexOutOfBoundsException();
+		}
+		try {
+			if (length > COPY_THRESHOLD) {
+				byte[] header = BufferPool.acquire(Varint.MAX_INT_BYTES);
+				try {
+					int headerLength = Varint.write(length, header, 0);
+					mOutputStream.write(header, 0, headerLength);
+				} finally {
+					BufferPool.release(header);
+				}
+				mOutputStream.write(message, offset, length);
+			} else {
+				byte[] frame = BufferPool.acquire(Varint.MAX_INT_BYTES + length);
+				try {
+					int position = Varint.write(length, frame, 0);
+					System.arraycopy(message, offset, frame, position, length);
+					mOutputStream.write(frame, 0, position + length);
+				} finally {
+					BufferPool.release(frame);
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package com.keyboardr.glassremote.common.sender;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes messages of type <code>T</code> into a caller-supplied
+ * <code>ByteBuffer</code>. Unlike {@link MessageSender}, an implementation
+ * never owns the destination, so the caller may reuse one buffer (heap or
+ * direct) for every message and no intermediate arrays are needed.<br/>
+ * <br/>
+ * Use {@link ByteBufferSenderAdapter} to send with a
+ * <code>ByteBufferMessageSender</code> wherever a <code>MessageSender</code>
+ * is expected.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of messages to be encoded
+ */
+public interface ByteBufferMessageSender<T> {
+
+	/**
+	 * Gets an upper bound on the number of bytes {@link #encode(Object,
+	 * ByteBuffer)} will write for <code>message</code>, including any framing.
+	 * 
+	 * @param message
+	 *            the message that will be encoded
+	 * @return the maximum encoded size of <code>message</code> in bytes
+	 */
+	public int getMaxEncodedSize(T message);
+
+	/**
+	 * Encodes <code>message</code>, including any framing, at the position of
+	 * <code>buffer</code> and advances the position past it.
+	 * 
+	 * @param message
+	 *            the message to encode
+	 * @param buffer
+	 *            the destination buffer. It must have at least
+	 *            {@link #getMaxEncodedSize(Object)} bytes remaining.
+	 * @throws java.nio.BufferOverflowException
+	 *             if <code>buffer</code> does not have enough room
+	 */
+	public void encode(T message, ByteBuffer buffer);
+}
@@ -0,0 +1,99 @@
+package com.keyboardr.glassremote.common.sender;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import com.keyboardr.glassremote.common.io.BufferPool;
+
+/**
+ * Sends messages to an <code>OutputStream</code> using a
+ * {@link ByteBufferMessageSender}. Each message is encoded into a buffer that
+ * is reused across messages and written with a single call to the
+ * <code>OutputStream</code>, so steady-state sending does not allocate.
+ * Messages too large to keep a buffer around for are encoded into a buffer
+ * borrowed from {@link BufferPool}.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of messages to be sent to the <code>OutputStream</code>
+ */
+public class ByteBufferSenderAdapter<T> implements MessageSender<T> {
+
+	/**
+	 * The largest encode buffer kept between messages
+	 */
+	private static final int MAX_RETAINED_SIZE = 64 * 1024;
+
+	private final ByteBufferMessageSender<T> mEncoder;
+	private ByteBuffer mBuffer;
+	private OutputStream mOutputStream;
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param encoder
+	 *            the <code>ByteBufferMessageSender</code> providing the
+	 *            implementation for encoding <code>T</code> messages
+	 */
+	public ByteBufferSenderAdapter(ByteBufferMessageSender<T> encoder) {
+		mEncoder = encoder;
+		mBuffer = ByteBuffer.allocate(BufferPool.MIN_POOLED_SIZE);
+	}
+
+	/**
+	 * Creates a <code>MessageSender.Factory</code> that wraps a new
+	 * <code>ByteBufferSenderAdapter</code> around <code>encoder</code> for
+	 * each connection. <code>encoder</code> itself must be stateless.
+	 * 
+	 * @param encoder
+	 *            the stateless <code>ByteBufferMessageSender</code> to share
+	 * @return a <code>MessageSender.Factory</code> for <code>encoder</code>
+	 */
+	public static <T> MessageSender.Factory<T> factory(
+			final ByteBufferMessageSender<T> encoder) {
+		return new MessageSender.Factory<T>() {
+
+			@Override
+			public MessageSender<T> newSender() {
+				return new ByteBufferSenderAdapter<T>(encoder);
+			}
+		};
+	}
+
+	@Override
+	public void setOutputStream(OutputStream output) {
+		mOutputStream = output;
+	}
+
+	@Override
+	public void sendMessage(T message) {
+		if (mOutputStream == null) {
+			throw new IllegalStateException(
+					"sendMessage() called with no OutputStream set");
+		}
+		int maxSize = mEncoder.getMaxEncodedSize(message);
+		byte[] borrowed = null;
+		ByteBuffer buffer;
+		if (maxSize <= mBuffer.capacity()) {
+			buffer = mBuffer;
+			buffer.clear();
+		} else if (maxSize <= MAX_RETAINED_SIZE) {
+			mBuffer = ByteBuffer.allocate(Integer.highestOneBit(maxSize - 1) << 1);
+			buffer = mBuffer;
+		} else {
+			borrowed = BufferPool.acquire(maxSize);
+			buffer = ByteBuffer.wrap(borrowed);
+		}
+		try {
+			mEncoder.encode(message, buffer);
+			mOutputStream.write(buffer.array(), buffer.arrayOffset(),
+					buffer.position());
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			BufferPool.release(borrowed);
+		}
+	}
+}
@@ -0,0 +1,470 @@
+package com.keyboardr.glassremote.common.sender;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.keyboardr.glassremote.common.IoEngine;
+import com.keyboardr.glassremote.common.KeyedExecutor;
+
+/**
+ * Sends high-frequency updates, such as head motion or touchpad events, at
+ * a bounded rate by keeping only the newest pending message for each key.
+ * A message sent while an older one with the same key is still waiting
+ * replaces it, so the link carries the latest value rather than every
+ * value.<br/>
+ * <br/>
+ * Each key is sent at most {@link #setMaxRate(double) maxRate} times a
+ * second, and all keys together may be limited by a
+ * {@link #setTokenBucket(double, int) token bucket}. Keys waiting to be sent
+ * take turns in the order they became pending. {@link Stats} report how many
+ * messages were coalesced away.<br/>
+ * <br/>
+ * This class is thread-safe. A key is only tracked while it has a message
+ * pending or its rate limit is running, so keys may come from an open-ended
+ * set.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of messages to send
+ */
+public class CoalescingSender<T> {
+
+	/**
+	 * The per-key rate used until {@link #setMaxRate(double)} is called, in
+	 * messages per second
+	 */
+	public static final double DEFAULT_MAX_RATE = 60;
+
+	/**
+	 * Sends messages on behalf of a <code>CoalescingSender</code>
+	 * 
+	 * @param <T>
+	 *            type of messages
+	 */
+	public static interface Sink<T> {
+		/**
+		 * Sends a message
+		 * 
+		 * @param message
+		 *            the message to send
+		 * @return a <code>SendFuture</code> that completes once the message
+		 *         has been written
+		 * @throws IllegalStateException
+		 *             if nothing is connected
+		 */
+		public SendFuture send(T message);
+	}
+
+	/**
+	 * Counts of what happened to the messages of all keys
+	 */
+	public static class Stats {
+		private final long mSubmitted;
+		private final long mSent;
+		private final long mCoalesced;
+		private final long mFailed;
+
+		Stats(long submitted, long sent, long coalesced, long failed) {
+			mSubmitted = submitted;
+			mSent = sent;
+			mCoalesced = coalesced;
+			mFailed = failed;
+		}
+
+		/**
+		 * Gets the number of messages passed to
+		 * {@link CoalescingSender#send(Object)}
+		 */
+		public long getSubmitted() {
+			return mSubmitted;
+		}
+
+		/**
+		 * Gets the number of messages handed to the <code>Sink</code>
+		 */
+		public long getSent() {
+			return mSent;
+		}
+
+		/**
+		 * Gets the number of messages replaced by a newer one before they
+		 * were sent
+		 */
+		public long getCoalesced() {
+			return mCoalesced;
+		}
+
+		/**
+		 * Gets the number of sent messages that failed
+		 */
+		public long getFailed() {
+			return mFailed;
+		}
+
+		@Override
+		public String toString() {
+			return "Stats[submitted=" + mSubmitted + ", sent=" + mSent
+					+ ", coalesced=" + mCoalesced + ", failed=" + mFailed + "]";
+		}
+	}
+
+	/**
+	 * The state of one key
+	 */
+	private static class Slot<T> {
+		final Object key;
+		T pending;
+		SendFuture future;
+		boolean queued;
+		long nextSendNanos;
+
+		Slot(Object key) {
+			this.key = key;
+		}
+	}
+
+	/**
+	 * Stands in for the <code>null</code> key, which <code>ArrayDeque</code>
+	 * cannot hold
+	 */
+	private static final Object NULL_KEY = new Object();
+
+	private final Sink<T> mSink;
+	private final KeyedExecutor.KeySelector<? super T> mKeySelector;
+	private final ScheduledExecutorService mTimer;
+	private final Executor mSendExecutor;
+
+	// Guarded by this
+	private final HashMap<Object, Slot<T>> mSlots = new HashMap<Object, Slot<T>>();
+	private final ArrayDeque<Object> mReady = new ArrayDeque<Object>();
+	/**
+	 * Slots whose message has been sent, roughly in the order their rate
+	 * limits run out. Removed from <code>mSlots</code> once they have.
+	 */
+	private final ArrayDeque<Slot<T>> mSent = new ArrayDeque<Slot<T>>();
+	private long mSubmitted;
+	private long mSentCount;
+	private long mCoalesced;
+	private long mFailed;
+	private long mMinIntervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / DEFAULT_MAX_RATE);
+	private double mTokensPerNano;
+	private double mBurst;
+	private double mTokens;
+	private long mRefillNanos;
+	private boolean mDrainRunning;
+	private ScheduledFuture<?> mWake;
+	private long mWakeNanos;
+
+	private final Runnable mDrain = new Runnable() {
+
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	private final Runnable mOnWake = new Runnable() {
+
+		@Override
+		public void run() {
+			synchronized (CoalescingSender.this) {
+				mWake = null;
+				if (mDrainRunning) {
+					return;
+				}
+				mDrainRunning = true;
+			}
+			mSendExecutor.execute(mDrain);
+		}
+	};
+
+	/**
+	 * Class constructor. Rate limits are timed by the scheduler of the shared
+	 * {@link IoEngine}, and messages are sent from its blocking executor,
+	 * since sending may wait for room in a send queue.
+	 * 
+	 * @param sink
+	 *            the <code>Sink</code> messages are sent through
+	 * @param keySelector
+	 *            picks the key of each message. Messages with equal keys
+	 *            replace each other.
+	 */
+	public CoalescingSender(Sink<T> sink,
+			KeyedExecutor.KeySelector<? super T> keySelector) {
+		this(sink, keySelector, IoEngine.getDefault().getScheduler(),
+				IoEngine.getDefault().getBlockingExecutor());
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param sink
+	 *            the <code>Sink</code> messages are sent through
+	 * @param keySelector
+	 *            picks the key of each message. Messages with equal keys
+	 *            replace each other.
+	 * @param timer
+	 *            the <code>ScheduledExecutorService</code> messages are sent
+	 *            from
+	 */
+	public CoalescingSender(Sink<T> sink,
+			KeyedExecutor.KeySelector<? super T> keySelector,
+			ScheduledExecutorService timer) {
+		this(sink, keySelector, timer, timer);
+	}
+
+	private CoalescingSender(Sink<T> sink,
+			KeyedExecutor.KeySelector<? super T> keySelector,
+			ScheduledExecutorService timer, Executor sendExecutor) {
+		mSink = sink;
+		mKeySelector = keySelector;
+		mTimer = timer;
+		mSendExecutor = sendExecutor;
+	}
+
+	/**
+	 * Sets how often each key may be sent
+	 * 
+	 * @param messagesPerSecond
+	 *            the most messages sent per second for any one key, or
+	 *            <code>0</code> for no per-key limit
+	 */
+	public void setMaxRate(double messagesPerSecond) {
+		if (messagesPerSecond < 0) {
+			throw new IllegalArgumentException("messagesPerSecond < 0");
+		}
+		synchronized (this) {
+			mMinIntervalNanos = messagesPerSecond == 0 ? 0
+					: (long) (TimeUnit.SECONDS.toNanos(1) / messagesPerSecond);
+		}
+		startDrain();
+	}
+
+	/**
+	 * Limits the messages sent for all keys together. Each message takes a
+	 * token; tokens are added at a steady rate, up to <code>burst</code> of
+	 * them.
+	 * 
+	 * @param tokensPerSecond
+	 *            the sustained rate in messages per second, or <code>0</code>
+	 *            for no limit
+	 * @param burst
+	 *            the most messages sent back to back after a quiet period
+	 */
+	public void setTokenBucket(double tokensPerSecond, int burst) {
+		if (tokensPerSecond < 0) {
+			throw new IllegalArgumentException("tokensPerSecond < 0");
+		}
+		if (burst < 1) {
+			throw new IllegalArgumentException("burst < 1");
+		}
+		synchronized (this) {
+			mTokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+			mBurst = burst;
+			mTokens = burst;
+			mRefillNanos = System.nanoTime();
+		}
+		startDrain();
+	}
+
+	/**
+	 * Sends a message, or replaces the pending message with the same key
+	 * 
+	 * @param message
+	 *            the message to send
+	 * @return a <code>SendFuture</code> that completes once the newest
+	 *         message with this key has been written. Messages that replace
+	 *         each other share the same future.
+	 */
+	public SendFuture send(T message) {
+		Object key = mKeySelector.getKey(message);
+		if (key == null) {
+			key = NULL_KEY;
+		}
+		SendFuture future;
+		synchronized (this) {
+			removeIdle(System.nanoTime());
+			Slot<T> slot = mSlots.get(key);
+			if (slot == null) {
+				slot = new Slot<T>(key);
+				mSlots.put(key, slot);
+			}
+			mSubmitted++;
+			if (slot.future != null) {
+				mCoalesced++;
+				slot.pending = message;
+				return slot.future;
+			}
+			slot.pending = message;
+			slot.future = future = new SendFuture();
+			if (!slot.queued) {
+				slot.queued = true;
+				mReady.add(key);
+			}
+		}
+		startDrain();
+		return future;
+	}
+
+	private void startDrain() {
+		synchronized (this) {
+			if (mDrainRunning || mReady.isEmpty()) {
+				return;
+			}
+			mDrainRunning = true;
+		}
+		mSendExecutor.execute(mDrain);
+	}
+
+	/**
+	 * Sends pending messages until none is allowed to go yet, then schedules
+	 * a wake-up for the next one that will be
+	 */
+	private void drain() {
+		while (true) {
+			T message;
+			SendFuture future;
+			Slot<T> slot;
+			synchronized (this) {
+				long now = System.nanoTime();
+				if (mTokensPerNano > 0) {
+					mTokens = Math.min(mBurst, mTokens + (now - mRefillNanos)
+							* mTokensPerNano);
+					mRefillNanos = now;
+					if (mTokens < 1) {
+						mDrainRunning = false;
+						scheduleWake(now,
+								(long) Math.ceil((1 - mTokens) / mTokensPerNano));
+						return;
+					}
+				}
+				slot = null;
+				long wait = Long.MAX_VALUE;
+				for (Iterator<Object> it = mReady.iterator(); it.hasNext();) {
+					Slot<T> candidate = mSlots.get(it.next());
+					long delay = candidate.nextSendNanos - now;
+					if (delay <= 0) {
+						it.remove();
+						slot = candidate;
+						break;
+					}
+					wait = Math.min(wait, delay);
+				}
+				if (slot == null) {
+					mDrainRunning = false;
+					if (wait != Long.MAX_VALUE) {
+						scheduleWake(now, wait);
+					}
+					return;
+				}
+				if (mTokensPerNano > 0) {
+					mTokens--;
+				}
+				message = slot.pending;
+				future = slot.future;
+				slot.pending = null;
+				slot.future = null;
+				slot.queued = false;
+				slot.nextSendNanos = now + mMinIntervalNanos;
+				mSentCount++;
+				mSent.add(slot);
+				removeIdle(now);
+			}
+			forward(message, future);
+		}
+	}
+
+	/**
+	 * Forgets keys with nothing pending whose rate limit has run out, since
+	 * their next message may go at once like that of a new key. Must hold
+	 * <code>this</code>.
+	 */
+	private void removeIdle(long now) {
+		Slot<T> slot;
+		while ((slot = mSent.peek()) != null && slot.nextSendNanos - now <= 0) {
+			mSent.poll();
+			if (slot.future == null && mSlots.get(slot.key) == slot) {
+				mSlots.remove(slot.key);
+			}
+		}
+	}
+
+	/**
+	 * Must hold <code>this</code>
+	 */
+	private void scheduleWake(long now, long delayNanos) {
+		long wakeNanos = now + delayNanos;
+		if (mWake != null) {
+			if (mWakeNanos - wakeNanos <= 0) {
+				return;
+			}
+			mWake.cancel(false);
+		}
+		mWakeNanos = wakeNanos;
+		mWake = mTimer.schedule(mOnWake, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private void forward(T message, final SendFuture future) {
+		SendFuture sent;
+		try {
+			sent = mSink.send(message);
+		} catch (IllegalStateException e) {
+			onFailed();
+			future.setFailed(e);
+			return;
+		}
+		sent.addListener(new SendFuture.Listener() {
+
+			@Override
+			public void onComplete(SendFuture sent) {
+				if (sent.isSuccessful()) {
+					future.setSucceeded();
+				} else {
+					onFailed();
+					if (sent.isCancelled()) {
+						future.cancel(false);
+					} else {
+						future.setFailed(sent.getFailure());
+					}
+				}
+			}
+		});
+	}
+
+	private synchronized void onFailed() {
+		mFailed++;
+	}
+
+	/**
+	 * Gets the number of keys with a message waiting to be sent
+	 * 
+	 * @return the number of pending keys
+	 */
+	public synchronized int getPendingCount() {
+		return mReady.size();
+	}
+
+	/**
+	 * Gets the statistics of every message sent so far
+	 * 
+	 * @return the <code>Stats</code> totalled over all keys
+	 */
+	public synchronized Stats getStats() {
+		return new Stats(mSubmitted, mSentCount, mCoalesced, mFailed);
+	}
+
+	/**
+	 * Gets the total number of messages replaced before they were sent
+	 * 
+	 * @return the number of coalesced messages across all keys
+	 */
+	public synchronized long getCoalescedCount() {
+		return mCoalesced;
+	}
+}
@@ -11,6 +11,23 @@ import java.io.OutputStream;
  *            type of messages to be sent to the <code>OutputStream</code>
  */
 public interface MessageSender<T> {
+	/**
+	 * Creates <code>MessageSenders</code>. Used when each connection needs its
+	 * own sender, such as a server talking to several clients at once.
+	 * 
+	 * @param <T>
+	 *            type of messages to be sent
+	 */
+	public static interface Factory<T> {
+		/**
+		 * Creates a new <code>MessageSender</code> that does not share state
+		 * with any other instance
+		 * 
+		 * @return a new <code>MessageSender</code>
+		 */
+		public MessageSender<T> newSender();
+	}
+
 	/**
 	 * Sets the <code>OutputStream</code> this <code>MessageSender</code> will
 	 * send to.
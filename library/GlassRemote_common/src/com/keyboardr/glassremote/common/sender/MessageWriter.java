@@ -0,0 +1,456 @@
+package com.keyboardr.glassremote.common.sender;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import com.keyboardr.glassremote.common.IoEngine;
+import com.keyboardr.glassremote.common.metrics.MessageMetrics;
+
+/**
+ * Writes messages to a connection's <code>OutputStream</code> on the
+ * blocking executor of the shared {@link IoEngine}. Messages are queued by
+ * {@link #enqueue(Object)}, which returns without waiting for the write and
+ * submits a drain task if none is pending. The task encodes every message
+ * that is queued into a single buffer using the <code>MessageSender</code>
+ * and writes the buffer with one <code>write()</code> and
+ * <code>flush()</code>, so bursts of small messages cost one system call
+ * rather than one each. It returns once the queue is empty, so an idle
+ * connection holds no thread.
+ *
+ * @author Joshua Brown
+ *
+ * @param <T>
+ *            type of messages to be sent
+ */
+public class MessageWriter<T> {
+
+	/**
+	 * What {@link MessageWriter#enqueue(Object)} does when the queue is full
+	 */
+	public static enum BackpressurePolicy {
+		/**
+		 * Wait for space in the queue. Do not use this policy if messages are
+		 * sent from the main thread and the link may stall.
+		 */
+		BLOCK,
+		/**
+		 * Drop the oldest queued message to make room. Its
+		 * <code>SendFuture</code> fails with a {@link SendQueueFullException}.
+		 */
+		DROP_OLDEST,
+		/**
+		 * Reject the new message. The returned <code>SendFuture</code> fails
+		 * with a {@link SendQueueFullException}.
+		 */
+		FAIL
+	}
+
+	/**
+	 * Thrown through a <code>SendFuture</code> when a message is rejected or
+	 * dropped because the send queue is full
+	 */
+	public static class SendQueueFullException extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public SendQueueFullException() {
+			super("Send queue full");
+		}
+	}
+
+	/**
+	 * Tuning parameters for a <code>MessageWriter</code>
+	 */
+	public static class Config {
+		private int mQueueCapacity = 256;
+		private int mMaxBatchBytes = 16 * 1024;
+		private long mMaxLatencyMillis = 0;
+		private BackpressurePolicy mPolicy = BackpressurePolicy.FAIL;
+
+		/**
+		 * Class constructor. Creates a configuration with the default values.
+		 */
+		public Config() {
+		}
+
+		/**
+		 * Sets the maximum number of messages waiting to be written. Defaults
+		 * to 256.
+		 *
+		 * @param queueCapacity
+		 *            the capacity of the send queue
+		 * @return this <code>Config</code>
+		 */
+		public Config setQueueCapacity(int queueCapacity) {
+			if (queueCapacity < 1) {
+				throw new IllegalArgumentException("queueCapacity < 1");
+			}
+			mQueueCapacity = queueCapacity;
+			return this;
+		}
+
+		/**
+		 * Sets the number of encoded bytes after which a batch is written even
+		 * if more messages are queued. Defaults to 16KB.
+		 *
+		 * @param maxBatchBytes
+		 *            the batch size budget
+		 * @return this <code>Config</code>
+		 */
+		public Config setMaxBatchBytes(int maxBatchBytes) {
+			mMaxBatchBytes = maxBatchBytes;
+			return this;
+		}
+
+		/**
+		 * Sets how long the writer holds the first message queued on an idle
+		 * connection waiting for more messages to arrive. Defaults to 0,
+		 * meaning only messages that are already queued are coalesced and no
+		 * latency is added.
+		 *
+		 * @param maxLatencyMillis
+		 *            the latency budget in milliseconds
+		 * @return this <code>Config</code>
+		 */
+		public Config setMaxLatencyMillis(long maxLatencyMillis) {
+			mMaxLatencyMillis = maxLatencyMillis;
+			return this;
+		}
+
+		/**
+		 * Sets what happens when a message is sent while the queue is full.
+		 * Defaults to {@link BackpressurePolicy#FAIL}, so a stalled link never
+		 * blocks the sender; {@link BackpressurePolicy#BLOCK} must be asked
+		 * for.
+		 *
+		 * @param policy
+		 *            the <code>BackpressurePolicy</code> to apply
+		 * @return this <code>Config</code>
+		 */
+		public Config setBackpressurePolicy(BackpressurePolicy policy) {
+			if (policy == null) {
+				throw new NullPointerException("policy");
+			}
+			mPolicy = policy;
+			return this;
+		}
+
+		public int getQueueCapacity() {
+			return mQueueCapacity;
+		}
+
+		public int getMaxBatchBytes() {
+			return mMaxBatchBytes;
+		}
+
+		public long getMaxLatencyMillis() {
+			return mMaxLatencyMillis;
+		}
+
+		public BackpressurePolicy getBackpressurePolicy() {
+			return mPolicy;
+		}
+	}
+
+	/**
+	 * A <code>ByteArrayOutputStream</code> that can drop what was written
+	 * after a given point
+	 */
+	private static class BatchBuffer extends ByteArrayOutputStream {
+
+		BatchBuffer(int size) {
+			super(size);
+		}
+
+		/**
+		 * Discards everything after the first <code>size</code> bytes
+		 */
+		synchronized void truncate(int size) {
+			count = size;
+		}
+	}
+
+	private static class Entry<T> {
+		final T message;
+		final SendFuture future;
+
+		Entry(T message, SendFuture future) {
+			this.message = message;
+			this.future = future;
+		}
+	}
+
+	private final MessageSender<T> mSender;
+	private final Config mConfig;
+	private final ArrayDeque<Entry<T>> mQueue;
+	private final ArrayDeque<Entry<T>> mBatch;
+	private final BatchBuffer mBatchBuffer;
+	private final MessageMetrics mMetrics;
+
+	private OutputStream mOutputStream;
+	private boolean mStarted;
+	private boolean mClosed;
+
+	/**
+	 * A drain task has been submitted and has not yet found the queue empty
+	 */
+	private boolean mDraining;
+
+	private final Runnable mDrain = new Runnable() {
+
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	private final Runnable mDelayedDrain = new Runnable() {
+
+		@Override
+		public void run() {
+			IoEngine.getDefault().getBlockingExecutor().execute(mDrain);
+		}
+	};
+
+	/**
+	 * Class constructor
+	 *
+	 * @param sender
+	 *            the <code>MessageSender</code> used to encode messages. It
+	 *            will only be called by one writer task at a time.
+	 * @param config
+	 *            the <code>Config</code> to use, or <code>null</code> for the
+	 *            defaults
+	 */
+	public MessageWriter(MessageSender<T> sender, Config config) {
+		this(sender, config, null);
+	}
+
+	/**
+	 * Class constructor
+	 *
+	 * @param sender
+	 *            the <code>MessageSender</code> used to encode messages. It
+	 *            will only be called by one writer task at a time.
+	 * @param config
+	 *            the <code>Config</code> to use, or <code>null</code> for the
+	 *            defaults
+	 * @param metrics
+	 *            the <code>MessageMetrics</code> to record sends in, or
+	 *            <code>null</code>
+	 */
+	public MessageWriter(MessageSender<T> sender, Config config,
+			MessageMetrics metrics) {
+		mSender = sender;
+		mMetrics = metrics;
+		mConfig = config == null ? new Config() : config;
+		mQueue = new ArrayDeque<Entry<T>>(Math.min(mConfig.mQueueCapacity, 64));
+		mBatch = new ArrayDeque<Entry<T>>();
+		mBatchBuffer = new BatchBuffer(Math.max(256,
+				Math.min(mConfig.mMaxBatchBytes, 64 * 1024)));
+	}
+
+	/**
+	 * Starts writing. Messages queued before this are written now.
+	 *
+	 * @param output
+	 *            the <code>OutputStream</code> of the connection
+	 * @throws IllegalStateException
+	 *             if this <code>MessageWriter</code> has already been started
+	 */
+	public synchronized void start(OutputStream output) {
+		if (mStarted) {
+			throw new IllegalStateException("Already started");
+		}
+		mOutputStream = output;
+		mSender.setOutputStream(mBatchBuffer);
+		mStarted = true;
+		scheduleDrain();
+	}
+
+	/**
+	 * Queues a message to be written. Returns without waiting for the write
+	 * unless the queue is full and the policy is
+	 * {@link BackpressurePolicy#BLOCK}.
+	 *
+	 * @param message
+	 *            the message to send
+	 * @return a <code>SendFuture</code> that completes when the message has
+	 *         been written
+	 */
+	public SendFuture enqueue(T message) {
+		SendFuture future = new SendFuture();
+		Entry<T> dropped = null;
+		synchronized (this) {
+			while (!mClosed && mQueue.size() >= mConfig.mQueueCapacity) {
+				if (mConfig.mPolicy == BackpressurePolicy.FAIL) {
+					fail(future, new SendQueueFullException());
+					return future;
+				} else if (mConfig.mPolicy == BackpressurePolicy.DROP_OLDEST) {
+					dropped = mQueue.pollFirst();
+				} else {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						fail(future, e);
+						return future;
+					}
+				}
+			}
+			if (mClosed) {
+				fail(future, new IOException("Connection closed"));
+				return future;
+			}
+			mQueue.addLast(new Entry<T>(message, future));
+			if (mMetrics != null) {
+				mMetrics.onQueued(mQueue.size());
+			}
+			scheduleDrain();
+		}
+		if (dropped != null) {
+			fail(dropped.future, new SendQueueFullException());
+		}
+		return future;
+	}
+
+	/**
+	 * Waits until no drain task is running or pending, and so until the
+	 * <code>MessageSender</code> is no longer in use once this writer has been
+	 * {@link #close() closed}
+	 *
+	 * @throws InterruptedException
+	 *             if interrupted while waiting
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (mDraining) {
+			wait();
+		}
+	}
+
+	/**
+	 * Gets the number of messages waiting to be written
+	 *
+	 * @return the current queue depth
+	 */
+	public synchronized int getQueueDepth() {
+		return mQueue.size();
+	}
+
+	/**
+	 * Stops writing. Messages still queued fail with an
+	 * <code>IOException</code>. Does not close the <code>OutputStream</code>.
+	 */
+	public void close() {
+		ArrayDeque<Entry<T>> remaining;
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			remaining = new ArrayDeque<Entry<T>>(mQueue);
+			mQueue.clear();
+			notifyAll();
+		}
+		failAll(remaining, new IOException("Connection closed"));
+	}
+
+	/**
+	 * Submits a drain task unless one is pending. Must hold <code>this</code>.
+	 */
+	private void scheduleDrain() {
+		if (!mStarted || mClosed || mDraining || mQueue.isEmpty()) {
+			return;
+		}
+		mDraining = true;
+		if (mConfig.mMaxLatencyMillis > 0) {
+			IoEngine.getDefault().getScheduler().schedule(mDelayedDrain,
+					mConfig.mMaxLatencyMillis, TimeUnit.MILLISECONDS);
+		} else {
+			IoEngine.getDefault().getBlockingExecutor().execute(mDrain);
+		}
+	}
+
+	private void drain() {
+		while (true) {
+			synchronized (this) {
+				if (mClosed || mQueue.isEmpty()) {
+					mDraining = false;
+					notifyAll();
+					return;
+				}
+			}
+			try {
+				writeBatch();
+			} catch (IOException e) {
+				e.printStackTrace();
+				failAll(mBatch, e);
+				mBatch.clear();
+				close();
+				synchronized (this) {
+					mDraining = false;
+					notifyAll();
+				}
+				return;
+			}
+		}
+	}
+
+	private void writeBatch() throws IOException {
+		mBatchBuffer.reset();
+		while (mBatchBuffer.size() < mConfig.mMaxBatchBytes) {
+			Entry<T> entry;
+			synchronized (this) {
+				entry = mQueue.pollFirst();
+				if (entry == null) {
+					break;
+				}
+				// Wake any producers blocked on a full queue
+				notifyAll();
+			}
+			if (!entry.future.setWriting()) {
+				continue;
+			}
+			long start = mMetrics == null ? 0 : System.nanoTime();
+			int mark = mBatchBuffer.size();
+			try {
+				mSender.sendMessage(entry.message);
+			} catch (RuntimeException e) {
+				// Drop the partial encoding so it cannot break the framing
+				mBatchBuffer.truncate(mark);
+				fail(entry.future, e);
+				continue;
+			}
+			if (mMetrics != null) {
+				mMetrics.onEncoded(System.nanoTime() - start);
+			}
+			mBatch.addLast(entry);
+		}
+		if (mBatch.isEmpty()) {
+			return;
+		}
+		mBatchBuffer.writeTo(mOutputStream);
+		mOutputStream.flush();
+		if (mMetrics != null) {
+			mMetrics.onWritten(mBatch.size(), mBatchBuffer.size());
+		}
+		for (Entry<T> entry : mBatch) {
+			entry.future.setSucceeded();
+		}
+		mBatch.clear();
+	}
+
+	private void failAll(Iterable<Entry<T>> entries, Throwable failure) {
+		for (Entry<T> entry : entries) {
+			fail(entry.future, failure);
+		}
+	}
+
+	private void fail(SendFuture future, Throwable failure) {
+		if (future.setFailed(failure) && mMetrics != null) {
+			mMetrics.onSendFailed(1);
+		}
+	}
+}
@@ -0,0 +1,267 @@
+package com.keyboardr.glassremote.common.sender;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Completion handle for a message queued on a {@link MessageWriter}. The
+ * future succeeds once the message has been written and flushed to the
+ * <code>OutputStream</code> and fails if the write fails, the message is
+ * dropped, or the connection is closed first. Listeners are called on the
+ * thread that completes the future, usually the one draining the writer,
+ * and must not block.
+ *
+ * @author Joshua Brown
+ *
+ */
+public class SendFuture implements Future<Void> {
+
+	/**
+	 * Callback interface for completion of a <code>SendFuture</code>
+	 */
+	public static interface Listener {
+		/**
+		 * The <code>SendFuture</code> has succeeded, failed or been cancelled
+		 *
+		 * @param future
+		 *            the completed <code>SendFuture</code>
+		 */
+		public void onComplete(SendFuture future);
+	}
+
+	private static final int PENDING = 0;
+	private static final int WRITING = 1;
+	private static final int SUCCEEDED = 2;
+	private static final int FAILED = 3;
+	private static final int CANCELLED = 4;
+
+	private int mState = PENDING;
+	private Throwable mFailure;
+	private List<Listener> mListeners;
+
+	/**
+	 * Class constructor
+	 */
+	public SendFuture() {
+	}
+
+	/**
+	 * Gets a <code>SendFuture</code> that has already succeeded
+	 *
+	 * @return a completed <code>SendFuture</code>
+	 */
+	public static SendFuture succeeded() {
+		SendFuture future = new SendFuture();
+		future.setSucceeded();
+		return future;
+	}
+
+	/**
+	 * Gets a <code>SendFuture</code> that has already failed
+	 *
+	 * @param failure
+	 *            the reason for the failure
+	 * @return a completed <code>SendFuture</code>
+	 */
+	public static SendFuture failed(Throwable failure) {
+		SendFuture future = new SendFuture();
+		future.setFailed(failure);
+		return future;
+	}
+
+	/**
+	 * Gets a <code>SendFuture</code> that succeeds once all of
+	 * <code>futures</code> have succeeded, or fails with the first failure
+	 * among them
+	 *
+	 * @param futures
+	 *            the <code>SendFutures</code> to combine
+	 * @return a <code>SendFuture</code> tracking all of <code>futures</code>
+	 */
+	public static SendFuture allOf(Collection<SendFuture> futures) {
+		final SendFuture combined = new SendFuture();
+		if (futures.isEmpty()) {
+			combined.setSucceeded();
+			return combined;
+		}
+		final int[] remaining = { futures.size() };
+		Listener listener = new Listener() {
+
+			@Override
+			public void onComplete(SendFuture future) {
+				if (!future.isSuccessful()) {
+					Throwable failure = future.getFailure();
+					combined.setFailed(failure != null ? failure
+							: new CancellationException());
+					return;
+				}
+				synchronized (remaining) {
+					if (--remaining[0] > 0) {
+						return;
+					}
+				}
+				combined.setSucceeded();
+			}
+		};
+		for (SendFuture future : futures) {
+			future.addListener(listener);
+		}
+		return combined;
+	}
+
+	/**
+	 * Adds a listener to be called when this future completes. If it has
+	 * already completed, <code>listener</code> is called immediately on the
+	 * calling thread.
+	 *
+	 * @param listener
+	 *            the <code>Listener</code> to notify
+	 */
+	public void addListener(Listener listener) {
+		synchronized (this) {
+			if (mState <= WRITING) {
+				if (mListeners == null) {
+					mListeners = new ArrayList<Listener>(1);
+				}
+				mListeners.add(listener);
+				return;
+			}
+		}
+		listener.onComplete(this);
+	}
+
+	/**
+	 * Marks this future as being written. Once writing has begun the future
+	 * can no longer be cancelled.
+	 *
+	 * @return <code>true</code> if the message should be written,
+	 *         <code>false</code> if the future was already completed or
+	 *         cancelled
+	 */
+	public synchronized boolean setWriting() {
+		if (mState != PENDING) {
+			return false;
+		}
+		mState = WRITING;
+		return true;
+	}
+
+	/**
+	 * Completes this future successfully
+	 *
+	 * @return <code>true</code> if this call completed the future
+	 */
+	public boolean setSucceeded() {
+		return complete(SUCCEEDED, null, WRITING);
+	}
+
+	/**
+	 * Completes this future with a failure
+	 *
+	 * @param failure
+	 *            the reason for the failure
+	 * @return <code>true</code> if this call completed the future
+	 */
+	public boolean setFailed(Throwable failure) {
+		return complete(FAILED, failure, WRITING);
+	}
+
+	/**
+	 * Moves to <code>state</code> if the current state is no later than
+	 * <code>latest</code>
+	 */
+	private boolean complete(int state, Throwable failure, int latest) {
+		List<Listener> listeners;
+		synchronized (this) {
+			if (mState > latest) {
+				return false;
+			}
+			mState = state;
+			mFailure = failure;
+			listeners = mListeners;
+			mListeners = null;
+			notifyAll();
+		}
+		if (listeners != null) {
+			for (Listener listener : listeners) {
+				listener.onComplete(this);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Cancels the send if the message has not started being written yet
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return complete(CANCELLED, null, PENDING);
+	}
+
+	@Override
+	public synchronized boolean isCancelled() {
+		return mState == CANCELLED;
+	}
+
+	@Override
+	public synchronized boolean isDone() {
+		return mState > WRITING;
+	}
+
+	/**
+	 * Checks if the message was written successfully
+	 *
+	 * @return <code>true</code> iff the message has been written and flushed
+	 */
+	public synchronized boolean isSuccessful() {
+		return mState == SUCCEEDED;
+	}
+
+	/**
+	 * Gets the reason this future failed
+	 *
+	 * @return the failure, or <code>null</code> if this future has not failed
+	 */
+	public synchronized Throwable getFailure() {
+		return mFailure;
+	}
+
+	@Override
+	public synchronized Void get() throws InterruptedException,
+			ExecutionException {
+		while (mState <= WRITING) {
+			wait();
+		}
+		return report();
+	}
+
+	@Override
+	public synchronized Void get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (mState <= WRITING) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		return report();
+	}
+
+	private Void report() throws ExecutionException {
+		if (mState == CANCELLED) {
+			throw new CancellationException();
+		}
+		if (mState == FAILED) {
+			throw new ExecutionException(mFailure);
+		}
+		return null;
+	}
+}
@@ -2,9 +2,10 @@ package com.keyboardr.glassremote.common.sender;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.Charset;
 
 /**
- * Sends messages as <code>Strings</code>. Messages are separated by
+ * Sends messages as UTF-8 <code>Strings</code>. Messages are separated by
  * <code>'\n'</code> characters.
  * 
  * @author Joshua Brown
@@ -12,6 +13,8 @@ import java.io.OutputStream;
  */
 public class StringMessageSender implements MessageSender<String> {
 
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
 	private OutputStream mOutputStream;
 
 	/**
@@ -33,7 +36,7 @@ public class StringMessageSender implements MessageSender<String> {
 		}
 		message = message + "\n";
 		try {
-			mOutputStream.write(message.getBytes());
+			mOutputStream.write(message.getBytes(UTF_8));
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -0,0 +1,92 @@
+package com.keyboardr.glassremote.common.sync;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A single update to a keyed state map, exchanged between a
+ * {@link StatePublisher} and a {@link StateReplica}. A
+ * {@link #TYPE_SNAPSHOT snapshot} carries the whole map and replaces whatever
+ * the replica held; a {@link #TYPE_DELTA delta} carries only the keys that
+ * changed, with a <code>null</code> value for each key that was removed.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <V>
+ *            type of the state values
+ */
+public final class StateFrame<V> {
+
+	/**
+	 * The keys that changed since the previous frame. Keys mapped to
+	 * <code>null</code> were removed.
+	 */
+	public static final int TYPE_DELTA = 0;
+
+	/**
+	 * The complete state. Keys not in the frame are no longer present.
+	 */
+	public static final int TYPE_SNAPSHOT = 1;
+
+	private final int mType;
+	private final Map<String, V> mEntries;
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param type
+	 *            one of the <code>TYPE_</code> constants
+	 * @param entries
+	 *            the entries of the frame. The map is not copied and must not
+	 *            be modified afterwards.
+	 */
+	public StateFrame(int type, Map<String, V> entries) {
+		if (type != TYPE_DELTA && type != TYPE_SNAPSHOT) {
+			throw new IllegalArgumentException("Unknown frame type " + type);
+		}
+		mType = type;
+		mEntries = Collections.unmodifiableMap(entries);
+	}
+
+	public static <V> StateFrame<V> delta(Map<String, V> changes) {
+		return new StateFrame<V>(TYPE_DELTA, changes);
+	}
+
+	public static <V> StateFrame<V> snapshot(Map<String, V> state) {
+		return new StateFrame<V>(TYPE_SNAPSHOT, state);
+	}
+
+	/**
+	 * Gets the type of this frame
+	 * 
+	 * @return one of the <code>TYPE_</code> constants
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	/**
+	 * Checks if this frame replaces the whole state
+	 * 
+	 * @return <code>true</code> for {@link #TYPE_SNAPSHOT} frames
+	 */
+	public boolean isSnapshot() {
+		return mType == TYPE_SNAPSHOT;
+	}
+
+	/**
+	 * Gets the entries of this frame
+	 * 
+	 * @return an unmodifiable map of keys to values, where a <code>null</code>
+	 *         value in a delta means the key was removed
+	 */
+	public Map<String, V> getEntries() {
+		return mEntries;
+	}
+
+	@Override
+	public String toString() {
+		return "StateFrame[type=" + mType + ", entries=" + mEntries.size()
+				+ "]";
+	}
+}
@@ -0,0 +1,216 @@
+package com.keyboardr.glassremote.common.sync;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+
+import com.keyboardr.glassremote.common.receiver.BinaryMessageReader;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+
+/**
+ * Reads {@link StateFrame StateFrames} written by {@link StateFrameSender}.
+ * The wrapped <code>MessageReceiver</code> decodes each value from its own
+ * bytes, and must read exactly one message per call to
+ * {@link MessageReceiver#read(OnReceiveMessageListener) read()}. Only the
+ * values that changed are decoded, so the cost of reading a delta depends on
+ * the size of the change rather than the size of the state.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <V>
+ *            type of the state values
+ */
+public class StateFrameReader<V> implements MessageReceiver<StateFrame<V>> {
+
+	/**
+	 * Presents the bytes of the current value to the value receiver. The
+	 * same instance is refilled for every value so receivers that buffer
+	 * their input keep working.
+	 */
+	private static class ValueStream extends ByteArrayInputStream {
+		ValueStream() {
+			super(new byte[0]);
+		}
+
+		void setValue(byte[] frame, int offset, int length) {
+			buf = frame;
+			pos = offset;
+			count = offset + length;
+			mark = offset;
+		}
+	}
+
+	private final MessageReceiver<V> mValueReceiver;
+	private final BinaryMessageReader mFrameReader;
+	private final ValueStream mValueStream = new ValueStream();
+
+	private OnReceiveMessageListener<? super StateFrame<V>> mListener;
+	private boolean mCorrupt;
+	private boolean mHasValue;
+	private V mValue;
+
+	/**
+	 * Position of the next byte to parse in the current frame
+	 */
+	private int mPosition;
+
+	private final OnReceiveMessageListener<V> mValueListener = new OnReceiveMessageListener<V>() {
+
+		@Override
+		public void onReceiveMessage(V message) {
+			mValue = message;
+			mHasValue = true;
+		}
+	};
+
+	private final OnReceiveMessageListener<byte[]> mFrameListener = new OnReceiveMessageListener<byte[]>() {
+
+		@Override
+		public void onReceiveMessage(byte[] message) {
+			try {
+				onReceiveFrame(message);
+			} catch (IOException e) {
+				e.printStackTrace();
+				mCorrupt = true;
+			}
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param valueReceiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for decoding <code>V</code> values. It must not be used
+	 *            elsewhere.
+	 */
+	public StateFrameReader(MessageReceiver<V> valueReceiver) {
+		this(valueReceiver, BinaryMessageReader.DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param valueReceiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for decoding <code>V</code> values. It must not be used
+	 *            elsewhere.
+	 * @param maxFrameSize
+	 *            the largest frame, in bytes, that will be accepted
+	 */
+	public StateFrameReader(MessageReceiver<V> valueReceiver, int maxFrameSize) {
+		mValueReceiver = valueReceiver;
+		mFrameReader = new BinaryMessageReader(maxFrameSize);
+		mValueReceiver.setInputStream(mValueStream);
+	}
+
+	/**
+	 * Creates a <code>MessageReceiver.Factory</code> that wraps each receiver
+	 * created by <code>valueFactory</code> in a new
+	 * <code>StateFrameReader</code>
+	 * 
+	 * @param valueFactory
+	 *            creates the value <code>MessageReceivers</code>
+	 * @return a <code>MessageReceiver.Factory</code> for
+	 *         <code>StateFrameReaders</code>
+	 */
+	public static <V> MessageReceiver.Factory<StateFrame<V>> factory(
+			final MessageReceiver.Factory<V> valueFactory) {
+		return new MessageReceiver.Factory<StateFrame<V>>() {
+
+			@Override
+			public MessageReceiver<StateFrame<V>> newReceiver() {
+				return new StateFrameReader<V>(valueFactory.newReceiver());
+			}
+		};
+	}
+
+	@Override
+	public void setInputStream(InputStream input) {
+		mFrameReader.setInputStream(input);
+	}
+
+	@Override
+	public boolean read(
+			OnReceiveMessageListener<? super StateFrame<V>> listener) {
+		mListener = listener;
+		try {
+			return mFrameReader.read(mFrameListener) && !mCorrupt;
+		} finally {
+			mListener = null;
+		}
+	}
+
+	private void onReceiveFrame(byte[] frame) throws IOException {
+		if (frame.length < 2) {
+			throw new IOException("State frame too short");
+		}
+		int type = frame[0];
+		if (type != StateFrame.TYPE_DELTA && type != StateFrame.TYPE_SNAPSHOT) {
+			throw new IOException("Unknown state frame type " + type);
+		}
+		mPosition = 1;
+		int count = readVarint(frame);
+		LinkedHashMap<String, V> entries = new LinkedHashMap<String, V>(
+				Math.min(count, frame.length) * 4 / 3 + 1);
+		for (int i = 0; i < count; i++) {
+			int keyLength = readLength(frame);
+			String key = new String(frame, mPosition, keyLength,
+					StateFrameSender.UTF_8);
+			mPosition += keyLength;
+			int valueLength = readVarint(frame);
+			if (valueLength == 0) {
+				if (type == StateFrame.TYPE_SNAPSHOT) {
+					throw new IOException("Removed key in state snapshot");
+				}
+				entries.put(key, null);
+				continue;
+			}
+			valueLength--;
+			if (valueLength > frame.length - mPosition) {
+				throw new IOException("State value overruns frame");
+			}
+			mValueStream.setValue(frame, mPosition, valueLength);
+			mPosition += valueLength;
+			mHasValue = false;
+			mValue = null;
+			if (!mValueReceiver.read(mValueListener) || !mHasValue
+					|| mValue == null) {
+				throw new IOException("Could not decode state value");
+			}
+			entries.put(key, mValue);
+			mValue = null;
+		}
+		if (mPosition != frame.length) {
+			throw new IOException("Trailing bytes in state frame");
+		}
+		mListener.onReceiveMessage(new StateFrame<V>(type, entries));
+	}
+
+	private int readLength(byte[] frame) throws IOException {
+		int length = readVarint(frame);
+		if (length > frame.length - mPosition) {
+			throw new IOException("State key overruns frame");
+		}
+		return length;
+	}
+
+	private int readVarint(byte[] frame) throws IOException {
+		int value = 0;
+		for (int shift = 0;; shift += 7) {
+			if (mPosition == frame.length || shift >= 32) {
+				throw new IOException("Malformed state frame");
+			}
+			int b = frame[mPosition++];
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				break;
+			}
+		}
+		if (value < 0) {
+			throw new IOException("Malformed state frame");
+		}
+		return value;
+	}
+}
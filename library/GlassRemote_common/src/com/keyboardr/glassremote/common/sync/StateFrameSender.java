@@ -0,0 +1,115 @@
+package com.keyboardr.glassremote.common.sync;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+import com.keyboardr.glassremote.common.io.Varint;
+import com.keyboardr.glassremote.common.sender.BinaryMessageSender;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+
+/**
+ * Sends {@link StateFrame StateFrames}. Each frame is written as a
+ * {@link BinaryMessageSender} message holding the frame type and the entry
+ * count, then for each entry the UTF-8 key and the value encoded by the
+ * wrapped <code>MessageSender</code>, each prefixed with its length as a
+ * {@link Varint}. A removed key is written with a value length of zero and
+ * every other value length is stored plus one, so the receiver can decode
+ * each value on its own.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <V>
+ *            type of the state values
+ */
+public class StateFrameSender<V> implements MessageSender<StateFrame<V>> {
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * A <code>ByteArrayOutputStream</code> whose contents can be written
+	 * without copying them out first
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer() {
+			super(256);
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	private final MessageSender<V> mValueSender;
+	private final BinaryMessageSender mFrameSender = new BinaryMessageSender();
+	private final FrameBuffer mFrame = new FrameBuffer();
+	private final FrameBuffer mValue = new FrameBuffer();
+	private final byte[] mVarint = new byte[Varint.MAX_INT_BYTES];
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param valueSender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for encoding <code>V</code> values. It must not be used
+	 *            elsewhere.
+	 */
+	public StateFrameSender(MessageSender<V> valueSender) {
+		mValueSender = valueSender;
+		mValueSender.setOutputStream(mValue);
+	}
+
+	/**
+	 * Creates a <code>MessageSender.Factory</code> that wraps each sender
+	 * created by <code>valueFactory</code> in a new
+	 * <code>StateFrameSender</code>
+	 * 
+	 * @param valueFactory
+	 *            creates the value <code>MessageSenders</code>
+	 * @return a <code>MessageSender.Factory</code> for
+	 *         <code>StateFrameSenders</code>
+	 */
+	public static <V> MessageSender.Factory<StateFrame<V>> factory(
+			final MessageSender.Factory<V> valueFactory) {
+		return new MessageSender.Factory<StateFrame<V>>() {
+
+			@Override
+			public MessageSender<StateFrame<V>> newSender() {
+				return new StateFrameSender<V>(valueFactory.newSender());
+			}
+		};
+	}
+
+	@Override
+	public void setOutputStream(OutputStream output) {
+		mFrameSender.setOutputStream(output);
+	}
+
+	@Override
+	public void sendMessage(StateFrame<V> message) {
+		mFrame.reset();
+		Map<String, V> entries = message.getEntries();
+		mFrame.write(message.getType());
+		writeVarint(entries.size());
+		for (Map.Entry<String, V> entry : entries.entrySet()) {
+			byte[] key = entry.getKey().getBytes(UTF_8);
+			writeVarint(key.length);
+			mFrame.write(key, 0, key.length);
+			V value = entry.getValue();
+			if (value == null) {
+				writeVarint(0);
+				continue;
+			}
+			mValue.reset();
+			mValueSender.sendMessage(value);
+			writeVarint(mValue.size() + 1);
+			mFrame.write(mValue.getBuffer(), 0, mValue.size());
+		}
+		mFrameSender.sendMessage(mFrame.getBuffer(), 0, mFrame.size());
+	}
+
+	private void writeVarint(int value) {
+		mFrame.write(mVarint, 0, Varint.write(value, mVarint, 0));
+	}
+}
@@ -0,0 +1,335 @@
+package com.keyboardr.glassremote.common.sync;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.keyboardr.glassremote.common.IoEngine;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+
+/**
+ * Keeps a keyed state map and sends its changes to remote
+ * {@link StateReplica StateReplicas}. Only keys whose value actually changed
+ * are sent. Changes made within the coalescing window are sent together in
+ * one {@link StateFrame#TYPE_DELTA delta}, and a key changed several times in
+ * the window is only sent with its latest value, so the traffic depends on
+ * how fast the state changes rather than on how big it is or how often it is
+ * set.<br/>
+ * <br/>
+ * Deltas that cannot be sent because nothing is connected are dropped. The
+ * owner sends a {@link #sendSnapshot(FrameSink) snapshot} of the whole map to
+ * each peer when it connects, which brings the peer up to date.<br/>
+ * <br/>
+ * This class is thread-safe. Frames are sent in the order they are built.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <V>
+ *            type of the state values. Values should be immutable and
+ *            implement <code>equals()</code>.
+ */
+public class StatePublisher<V> {
+
+	/**
+	 * The coalescing window used until {@link #setCoalesceWindow(long)} is
+	 * called
+	 */
+	public static final long DEFAULT_COALESCE_MILLIS = 20;
+
+	/**
+	 * Sends frames on behalf of a <code>StatePublisher</code>
+	 * 
+	 * @param <V>
+	 *            type of the state values
+	 */
+	public static interface FrameSink<V> {
+		/**
+		 * Sends a frame to the remote peers
+		 * 
+		 * @param frame
+		 *            the frame to send
+		 * @return a <code>SendFuture</code> that completes once the frame has
+		 *         been written
+		 * @throws IllegalStateException
+		 *             if no peer is connected
+		 */
+		public SendFuture sendFrame(StateFrame<V> frame);
+	}
+
+	private final FrameSink<V> mSink;
+	private final ScheduledExecutorService mTimer;
+	private final Executor mSendExecutor;
+
+	/**
+	 * Held while a frame is built and sent, so frames go out in order
+	 */
+	private final Object mSendLock = new Object();
+
+	// Guarded by this
+	private final HashMap<String, V> mState = new HashMap<String, V>();
+	private LinkedHashMap<String, V> mDirty = new LinkedHashMap<String, V>();
+	private SendFuture mPending;
+	private boolean mFlushScheduled;
+	private long mCoalesceMillis = DEFAULT_COALESCE_MILLIS;
+
+	private final Runnable mSend = new Runnable() {
+
+		@Override
+		public void run() {
+			flush();
+		}
+	};
+
+	private final Runnable mFlush = new Runnable() {
+
+		@Override
+		public void run() {
+			if (mSendExecutor == null) {
+				flush();
+			} else {
+				mSendExecutor.execute(mSend);
+			}
+		}
+	};
+
+	/**
+	 * Class constructor. Coalescing windows are timed by the scheduler of the
+	 * shared {@link IoEngine}, and coalesced deltas are sent from its blocking
+	 * executor, since sending may wait for room in a send queue.
+	 * 
+	 * @param sink
+	 *            the <code>FrameSink</code> deltas are sent through
+	 */
+	public StatePublisher(FrameSink<V> sink) {
+		this(sink, IoEngine.getDefault().getScheduler(), IoEngine
+				.getDefault().getBlockingExecutor());
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param sink
+	 *            the <code>FrameSink</code> deltas are sent through
+	 * @param timer
+	 *            the <code>ScheduledExecutorService</code> coalesced deltas
+	 *            are sent from
+	 */
+	public StatePublisher(FrameSink<V> sink, ScheduledExecutorService timer) {
+		this(sink, timer, null);
+	}
+
+	private StatePublisher(FrameSink<V> sink, ScheduledExecutorService timer,
+			Executor sendExecutor) {
+		mSink = sink;
+		mTimer = timer;
+		mSendExecutor = sendExecutor;
+	}
+
+	/**
+	 * Sets how long changes are collected before being sent. A change is
+	 * sent at most this long after it was made.
+	 * 
+	 * @param windowMillis
+	 *            the coalescing window in milliseconds, or <code>0</code> to
+	 *            send every change immediately on the calling thread
+	 */
+	public void setCoalesceWindow(long windowMillis) {
+		if (windowMillis < 0) {
+			throw new IllegalArgumentException("windowMillis < 0");
+		}
+		synchronized (this) {
+			mCoalesceMillis = windowMillis;
+		}
+		if (windowMillis == 0) {
+			flush();
+		}
+	}
+
+	/**
+	 * Sets the value of a key
+	 * 
+	 * @param key
+	 *            the key to set
+	 * @param value
+	 *            the new value. Must not be <code>null</code>; use
+	 *            {@link #remove(String)} instead.
+	 * @return a <code>SendFuture</code> for the delta carrying the change. It
+	 *         has already succeeded if the value did not change, and fails if
+	 *         nothing was connected when the delta was due.
+	 */
+	public SendFuture put(String key, V value) {
+		if (value == null) {
+			throw new IllegalArgumentException("value == null");
+		}
+		return putAll(Collections.singletonMap(key, value));
+	}
+
+	/**
+	 * Removes a key
+	 * 
+	 * @param key
+	 *            the key to remove
+	 * @return a <code>SendFuture</code> for the delta carrying the change
+	 */
+	public SendFuture remove(String key) {
+		return putAll(Collections.<String, V> singletonMap(key, null));
+	}
+
+	/**
+	 * Applies several changes at once. They are sent in the same delta.
+	 * 
+	 * @param changes
+	 *            the new values by key, where a <code>null</code> value
+	 *            removes the key
+	 * @return a <code>SendFuture</code> for the delta carrying the changes
+	 */
+	public SendFuture putAll(Map<String, ? extends V> changes) {
+		SendFuture future;
+		boolean flushNow = false;
+		synchronized (this) {
+			for (Map.Entry<String, ? extends V> change : changes.entrySet()) {
+				String key = change.getKey();
+				if (key == null) {
+					throw new IllegalArgumentException("key == null");
+				}
+				V value = change.getValue();
+				if (value == null) {
+					if (mState.containsKey(key)) {
+						mState.remove(key);
+						mDirty.put(key, null);
+					}
+				} else if (!value.equals(mState.put(key, value))) {
+					mDirty.put(key, value);
+				}
+			}
+			if (mDirty.isEmpty()) {
+				return SendFuture.succeeded();
+			}
+			if (mPending == null) {
+				mPending = new SendFuture();
+			}
+			future = mPending;
+			if (mCoalesceMillis == 0) {
+				flushNow = true;
+			} else if (!mFlushScheduled) {
+				mFlushScheduled = true;
+				mTimer.schedule(mFlush, mCoalesceMillis,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+		if (flushNow) {
+			flush();
+		}
+		return future;
+	}
+
+	/**
+	 * Gets the current value of a key
+	 * 
+	 * @param key
+	 *            the key to look up
+	 * @return the value, or <code>null</code> if the key is not set
+	 */
+	public synchronized V get(String key) {
+		return mState.get(key);
+	}
+
+	/**
+	 * Gets a copy of the whole state
+	 * 
+	 * @return a new map of keys to values
+	 */
+	public synchronized Map<String, V> getState() {
+		return new HashMap<String, V>(mState);
+	}
+
+	/**
+	 * Sends any changes waiting for the coalescing window to close
+	 */
+	public void flush() {
+		synchronized (mSendLock) {
+			StateFrame<V> frame;
+			SendFuture future;
+			synchronized (this) {
+				mFlushScheduled = false;
+				if (mDirty.isEmpty()) {
+					return;
+				}
+				frame = StateFrame.delta(mDirty);
+				mDirty = new LinkedHashMap<String, V>();
+				future = mPending;
+				mPending = null;
+			}
+			send(mSink, frame, future);
+		}
+	}
+
+	/**
+	 * Sends the whole state through this publisher's own sink. Changes waiting
+	 * for the coalescing window are included and not sent again.
+	 * 
+	 * @return a <code>SendFuture</code> for the snapshot
+	 */
+	public SendFuture sendSnapshot() {
+		synchronized (mSendLock) {
+			StateFrame<V> frame;
+			SendFuture future;
+			synchronized (this) {
+				frame = StateFrame.snapshot(new HashMap<String, V>(mState));
+				mDirty = new LinkedHashMap<String, V>();
+				future = mPending == null ? new SendFuture() : mPending;
+				mPending = null;
+			}
+			send(mSink, frame, future);
+			return future;
+		}
+	}
+
+	/**
+	 * Sends the whole state to one newly connected peer. Waiting changes are
+	 * still sent to every peer when the coalescing window closes.
+	 * 
+	 * @param sink
+	 *            the <code>FrameSink</code> of the new peer
+	 * @return a <code>SendFuture</code> for the snapshot
+	 */
+	public SendFuture sendSnapshot(FrameSink<V> sink) {
+		synchronized (mSendLock) {
+			StateFrame<V> frame;
+			synchronized (this) {
+				frame = StateFrame.snapshot(new HashMap<String, V>(mState));
+			}
+			SendFuture future = new SendFuture();
+			send(sink, frame, future);
+			return future;
+		}
+	}
+
+	private static <V> void send(FrameSink<V> sink, StateFrame<V> frame,
+			final SendFuture future) {
+		SendFuture sent;
+		try {
+			sent = sink.sendFrame(frame);
+		} catch (IllegalStateException e) {
+			future.setFailed(e);
+			return;
+		}
+		sent.addListener(new SendFuture.Listener() {
+
+			@Override
+			public void onComplete(SendFuture sent) {
+				if (sent.isSuccessful()) {
+					future.setSucceeded();
+				} else if (sent.isCancelled()) {
+					future.cancel(false);
+				} else {
+					future.setFailed(sent.getFailure());
+				}
+			}
+		});
+	}
+}
@@ -0,0 +1,86 @@
+package com.keyboardr.glassremote.common.sync;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A copy of the state of a remote {@link StatePublisher}, kept up to date by
+ * applying the {@link StateFrame StateFrames} it sends.<br/>
+ * <br/>
+ * This class is thread-safe.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <V>
+ *            type of the state values
+ */
+public class StateReplica<V> {
+
+	private final HashMap<String, V> mState = new HashMap<String, V>();
+
+	/**
+	 * Applies a frame received from the remote publisher
+	 * 
+	 * @param frame
+	 *            the <code>StateFrame</code> to apply
+	 * @return the keys whose value changed, mapped to their new value or to
+	 *         <code>null</code> if they were removed. Empty if the frame
+	 *         changed nothing.
+	 */
+	public synchronized Map<String, V> apply(StateFrame<V> frame) {
+		Map<String, V> entries = frame.getEntries();
+		LinkedHashMap<String, V> changes = new LinkedHashMap<String, V>();
+		if (frame.isSnapshot()) {
+			Iterator<String> keys = mState.keySet().iterator();
+			while (keys.hasNext()) {
+				String key = keys.next();
+				if (!entries.containsKey(key)) {
+					keys.remove();
+					changes.put(key, null);
+				}
+			}
+		}
+		for (Map.Entry<String, V> entry : entries.entrySet()) {
+			String key = entry.getKey();
+			V value = entry.getValue();
+			if (value == null) {
+				if (mState.containsKey(key)) {
+					mState.remove(key);
+					changes.put(key, null);
+				}
+			} else if (!value.equals(mState.put(key, value))) {
+				changes.put(key, value);
+			}
+		}
+		return changes;
+	}
+
+	/**
+	 * Gets the value of a key
+	 * 
+	 * @param key
+	 *            the key to look up
+	 * @return the value, or <code>null</code> if the key is not set
+	 */
+	public synchronized V get(String key) {
+		return mState.get(key);
+	}
+
+	/**
+	 * Gets a copy of the whole state
+	 * 
+	 * @return a new map of keys to values
+	 */
+	public synchronized Map<String, V> getState() {
+		return new HashMap<String, V>(mState);
+	}
+
+	/**
+	 * Forgets the whole state
+	 */
+	public synchronized void clear() {
+		mState.clear();
+	}
+}
@@ -0,0 +1,87 @@
+package com.keyboardr.glassremote.common.topic;
+
+import java.io.InputStream;
+
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+
+/**
+ * A {@link MessageReceiver} that only passes on the messages a
+ * {@link Subscriptions} matches. Matching happens on the reader thread as
+ * each message is decoded, so a <code>RemoteMessenger</code> or
+ * <code>MessageService</code> reading through it never posts unwanted
+ * messages to its callback thread.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <R>
+ *            type of messages to receive
+ */
+public class FilteringMessageReceiver<R> implements MessageReceiver<R> {
+
+	private final MessageReceiver<R> mReceiver;
+	private final Subscriptions<? super R> mSubscriptions;
+
+	private OnReceiveMessageListener<? super R> mListener;
+
+	private final OnReceiveMessageListener<R> mFilter = new OnReceiveMessageListener<R>() {
+
+		@Override
+		public void onReceiveMessage(R message) {
+			if (mSubscriptions.matches(message)) {
+				mListener.onReceiveMessage(message);
+			}
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> that decodes messages
+	 * @param subscriptions
+	 *            the messages to pass on. May be shared between receivers.
+	 */
+	public FilteringMessageReceiver(MessageReceiver<R> receiver,
+			Subscriptions<? super R> subscriptions) {
+		mReceiver = receiver;
+		mSubscriptions = subscriptions;
+	}
+
+	/**
+	 * Creates a <code>MessageReceiver.Factory</code> whose receivers all
+	 * filter with the same <code>Subscriptions</code>, for services with
+	 * several clients
+	 * 
+	 * @param receiverFactory
+	 *            creates the receivers that decode messages
+	 * @param subscriptions
+	 *            the messages to pass on
+	 */
+	public static <R> MessageReceiver.Factory<R> factory(
+			final MessageReceiver.Factory<R> receiverFactory,
+			final Subscriptions<? super R> subscriptions) {
+		return new MessageReceiver.Factory<R>() {
+
+			@Override
+			public MessageReceiver<R> newReceiver() {
+				return new FilteringMessageReceiver<R>(
+						receiverFactory.newReceiver(), subscriptions);
+			}
+		};
+	}
+
+	@Override
+	public void setInputStream(InputStream input) {
+		mReceiver.setInputStream(input);
+	}
+
+	@Override
+	public boolean read(OnReceiveMessageListener<? super R> listener) {
+		mListener = listener;
+		try {
+			return mReceiver.read(mFilter);
+		} finally {
+			mListener = null;
+		}
+	}
+}
@@ -0,0 +1,308 @@
+package com.keyboardr.glassremote.common.topic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The topics, topic prefixes and predicates a receiver is interested in.
+ * Messages are matched on the connection's reader thread, so those nobody
+ * subscribed to are dropped before they are posted to the callback thread.
+ * Wrap a <code>MessageReceiver</code> in a {@link FilteringMessageReceiver}
+ * to apply a <code>Subscriptions</code> to it.<br/>
+ * <br/>
+ * Topics and prefixes are kept in a trie, so matching a message costs one
+ * walk over its topic however many subscriptions there are. Subscribing
+ * rebuilds the trie, and matching reads it without locking, so
+ * subscriptions may change at any time from any thread.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <M>
+ *            type of messages to match
+ */
+public class Subscriptions<M> {
+
+	/**
+	 * Picks the topic of a message
+	 * 
+	 * @param <M>
+	 *            type of messages
+	 */
+	public static interface TopicSelector<M> {
+		/**
+		 * Gets the topic of a message. Called on the reader thread.
+		 * 
+		 * @param message
+		 *            the received message
+		 * @return the topic, or <code>null</code> if the message has none
+		 */
+		public CharSequence getTopic(M message);
+	}
+
+	/**
+	 * Matches messages that topics cannot describe
+	 * 
+	 * @param <M>
+	 *            type of messages
+	 */
+	public static interface Predicate<M> {
+		/**
+		 * Checks if a message is wanted. Called on the reader thread.
+		 * 
+		 * @param message
+		 *            the received message
+		 * @return <code>true</code> to deliver the message
+		 */
+		public boolean matches(M message);
+	}
+
+	/**
+	 * A node of the topic trie. Children are kept sorted by character.
+	 */
+	static final class Node {
+		char[] keys = new char[0];
+		Node[] children = new Node[0];
+
+		/**
+		 * A topic ends at this node
+		 */
+		boolean exact;
+
+		/**
+		 * Every topic passing through this node matches
+		 */
+		boolean prefix;
+
+		Node child(char c) {
+			int index = Arrays.binarySearch(keys, c);
+			return index < 0 ? null : children[index];
+		}
+
+		Node addChild(char c) {
+			int index = Arrays.binarySearch(keys, c);
+			if (index >= 0) {
+				return children[index];
+			}
+			index = -index - 1;
+			Node child = new Node();
+			char[] newKeys = new char[keys.length + 1];
+			Node[] newChildren = new Node[children.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, index);
+			System.arraycopy(children, 0, newChildren, 0, index);
+			newKeys[index] = c;
+			newChildren[index] = child;
+			System.arraycopy(keys, index, newKeys, index + 1, keys.length
+					- index);
+			System.arraycopy(children, index, newChildren, index + 1,
+					children.length - index);
+			keys = newKeys;
+			children = newChildren;
+			return child;
+		}
+	}
+
+	/**
+	 * An immutable view of the subscriptions, replaced whenever they change
+	 */
+	static final class Index {
+		final Node root;
+		final Predicate<?>[] predicates;
+
+		Index(Node root, Predicate<?>[] predicates) {
+			this.root = root;
+			this.predicates = predicates;
+		}
+	}
+
+	private final TopicSelector<? super M> mSelector;
+
+	private final Set<String> mTopics = new HashSet<String>();
+	private final Set<String> mPrefixes = new HashSet<String>();
+	private final List<Predicate<? super M>> mPredicates = new ArrayList<Predicate<? super M>>();
+
+	private volatile Index mIndex = new Index(new Node(), new Predicate<?>[0]);
+
+	private final AtomicLong mDropped = new AtomicLong();
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param selector
+	 *            picks the topic of each message
+	 */
+	public Subscriptions(TopicSelector<? super M> selector) {
+		mSelector = selector;
+	}
+
+	/**
+	 * Subscribes to messages whose topic is exactly <code>topic</code>
+	 * 
+	 * @param topic
+	 *            the topic
+	 */
+	public synchronized void subscribe(String topic) {
+		if (mTopics.add(topic)) {
+			rebuild();
+		}
+	}
+
+	/**
+	 * Cancels {@link #subscribe(String)}
+	 * 
+	 * @param topic
+	 *            the topic
+	 */
+	public synchronized void unsubscribe(String topic) {
+		if (mTopics.remove(topic)) {
+			rebuild();
+		}
+	}
+
+	/**
+	 * Subscribes to messages whose topic starts with <code>prefix</code>
+	 * 
+	 * @param prefix
+	 *            the start of the topics to match. The empty string matches
+	 *            every message with a topic.
+	 */
+	public synchronized void subscribePrefix(String prefix) {
+		if (mPrefixes.add(prefix)) {
+			rebuild();
+		}
+	}
+
+	/**
+	 * Cancels {@link #subscribePrefix(String)}
+	 * 
+	 * @param prefix
+	 *            the prefix
+	 */
+	public synchronized void unsubscribePrefix(String prefix) {
+		if (mPrefixes.remove(prefix)) {
+			rebuild();
+		}
+	}
+
+	/**
+	 * Subscribes to messages <code>predicate</code> matches. Predicates are
+	 * only consulted for messages no topic or prefix matched.
+	 * 
+	 * @param predicate
+	 *            the <code>Predicate</code>
+	 */
+	public synchronized void subscribe(Predicate<? super M> predicate) {
+		mPredicates.add(predicate);
+		rebuild();
+	}
+
+	/**
+	 * Cancels {@link #subscribe(Predicate)}
+	 * 
+	 * @param predicate
+	 *            the <code>Predicate</code>
+	 */
+	public synchronized void unsubscribe(Predicate<? super M> predicate) {
+		if (mPredicates.remove(predicate)) {
+			rebuild();
+		}
+	}
+
+	/**
+	 * Removes every subscription, so no message matches
+	 */
+	public synchronized void clear() {
+		mTopics.clear();
+		mPrefixes.clear();
+		mPredicates.clear();
+		rebuild();
+	}
+
+	private void rebuild() {
+		Node root = new Node();
+		for (String topic : mTopics) {
+			insert(root, topic).exact = true;
+		}
+		for (String prefix : mPrefixes) {
+			insert(root, prefix).prefix = true;
+		}
+		mIndex = new Index(root, mPredicates.toArray(new Predicate<?>[0]));
+	}
+
+	private static Node insert(Node root, String topic) {
+		Node node = root;
+		for (int i = 0; i < topic.length(); i++) {
+			node = node.addChild(topic.charAt(i));
+		}
+		return node;
+	}
+
+	/**
+	 * Checks if a message is wanted. Counts it as dropped if not.
+	 * 
+	 * @param message
+	 *            the received message
+	 * @return <code>true</code> if a topic, prefix or predicate matches it
+	 */
+	public boolean matches(M message) {
+		Index index = mIndex;
+		CharSequence topic = mSelector.getTopic(message);
+		if (topic != null && matchesTopic(index.root, topic)) {
+			return true;
+		}
+		for (Predicate<?> predicate : index.predicates) {
+			@SuppressWarnings("unchecked")
+			Predicate<? super M> typed = (Predicate<? super M>) predicate;
+			if (typed.matches(message)) {
+				return true;
+			}
+		}
+		mDropped.incrementAndGet();
+		return false;
+	}
+
+	private static boolean matchesTopic(Node root, CharSequence topic) {
+		Node node = root;
+		if (node.prefix) {
+			return true;
+		}
+		int length = topic.length();
+		for (int i = 0; i < length; i++) {
+			node = node.child(topic.charAt(i));
+			if (node == null) {
+				return false;
+			}
+			if (node.prefix) {
+				return true;
+			}
+		}
+		return node.exact;
+	}
+
+	/**
+	 * Gets the current index. For subclasses that match messages before they
+	 * are decoded.
+	 */
+	Index getIndex() {
+		return mIndex;
+	}
+
+	/**
+	 * Counts a message dropped before it was decoded
+	 */
+	void onDropped() {
+		mDropped.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of messages that matched no subscription
+	 * 
+	 * @return the number of dropped messages
+	 */
+	public long getDroppedCount() {
+		return mDropped.get();
+	}
+}
@@ -0,0 +1,117 @@
+package com.keyboardr.glassremote.common.topic;
+
+import com.keyboardr.glassremote.common.receiver.Utf8LineReader;
+
+/**
+ * {@link Subscriptions} for text messages whose topic is everything before
+ * the first delimiter character, such as <code>"weather:"</code> in
+ * <code>"weather:sunny"</code>, or the whole message if it has none.<br/>
+ * <br/>
+ * Given to a {@link Utf8LineReader} as its
+ * {@link Utf8LineReader.LineFilter LineFilter}, unwanted lines are dropped
+ * straight from the read buffer, before they are decoded to characters.
+ * Only lines whose topic contains non-ASCII characters, or any line while a
+ * {@link Subscriptions.Predicate Predicate} is subscribed, are decoded to be
+ * matched.
+ * 
+ * @author Joshua Brown
+ */
+public class TextSubscriptions extends Subscriptions<CharSequence> implements
+		Utf8LineReader.LineFilter {
+
+	/**
+	 * The characters of a message before its delimiter
+	 */
+	private static final class Topic implements CharSequence {
+		private final CharSequence mText;
+		private final int mLength;
+
+		Topic(CharSequence text, int length) {
+			mText = text;
+			mLength = length;
+		}
+
+		@Override
+		public int length() {
+			return mLength;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return mText.charAt(index);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return mText.subSequence(start, end);
+		}
+
+		@Override
+		public String toString() {
+			return mText.subSequence(0, mLength).toString();
+		}
+	}
+
+	private final char mDelimiter;
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param delimiter
+	 *            the character that ends a message's topic. Must be ASCII.
+	 */
+	public TextSubscriptions(final char delimiter) {
+		super(new TopicSelector<CharSequence>() {
+
+			@Override
+			public CharSequence getTopic(CharSequence message) {
+				int length = message.length();
+				for (int i = 0; i < length; i++) {
+					if (message.charAt(i) == delimiter) {
+						return new Topic(message, i);
+					}
+				}
+				return message;
+			}
+		});
+		if (delimiter >= 0x80) {
+			throw new IllegalArgumentException("Delimiter must be ASCII");
+		}
+		mDelimiter = delimiter;
+	}
+
+	@Override
+	public boolean accept(byte[] line, int start, int end) {
+		Index index = getIndex();
+		if (index.predicates.length > 0) {
+			return true;
+		}
+		Node node = index.root;
+		if (node.prefix) {
+			return true;
+		}
+		for (int i = start; i < end; i++) {
+			int b = line[i];
+			if (b == mDelimiter) {
+				break;
+			}
+			if (b < 0) {
+				// Match the decoded characters instead
+				return true;
+			}
+			node = node.child((char) b);
+			if (node == null) {
+				onDropped();
+				return false;
+			}
+			if (node.prefix) {
+				return true;
+			}
+		}
+		if (!node.exact) {
+			onDropped();
+			return false;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,53 @@
+package com.keyboardr.glassremote.common.transfer;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A {@link TransferSource} that reads a file. Any position may be read, so a
+ * transfer of a file can resume from any offset.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class FileTransferSource implements TransferSource {
+
+	private final RandomAccessFile mFile;
+	private final long mLength;
+
+	/**
+	 * Class constructor. Opens the file.
+	 * 
+	 * @param file
+	 *            the file to send
+	 * @throws FileNotFoundException
+	 *             if the file could not be opened for reading
+	 */
+	public FileTransferSource(File file) throws FileNotFoundException {
+		mFile = new RandomAccessFile(file, "r");
+		mLength = file.length();
+	}
+
+	@Override
+	public long getLength() {
+		return mLength;
+	}
+
+	@Override
+	public synchronized int read(long position, byte[] buffer, int offset,
+			int length) throws IOException {
+		if (position >= mLength) {
+			return -1;
+		}
+		mFile.seek(position);
+		return mFile.read(buffer, offset,
+				(int) Math.min(length, mLength - position));
+	}
+
+	@Override
+	public void close() throws IOException {
+		mFile.close();
+	}
+}
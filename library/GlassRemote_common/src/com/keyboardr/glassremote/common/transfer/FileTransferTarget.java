@@ -0,0 +1,85 @@
+package com.keyboardr.glassremote.common.transfer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * A {@link TransferTarget} that writes a file. A target opened for resuming
+ * keeps what is already in the file and continues after it, so a transfer
+ * interrupted by a restart can be offered again and pick up where it
+ * stopped.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class FileTransferTarget implements TransferTarget {
+
+	private final File mFile;
+	private final boolean mResume;
+	private RandomAccessFile mOutput;
+
+	/**
+	 * Class constructor. The file is opened when the transfer starts.
+	 * 
+	 * @param file
+	 *            the file to write
+	 * @param resume
+	 *            <code>true</code> to continue after the existing contents of
+	 *            the file, <code>false</code> to overwrite them
+	 */
+	public FileTransferTarget(File file, boolean resume) {
+		mFile = file;
+		mResume = resume;
+	}
+
+	private RandomAccessFile getOutput() throws IOException {
+		if (mOutput == null) {
+			mOutput = new RandomAccessFile(mFile, "rw");
+			if (!mResume) {
+				mOutput.setLength(0);
+			}
+		}
+		return mOutput;
+	}
+
+	@Override
+	public long getResumeOffset() throws IOException {
+		return getOutput().length();
+	}
+
+	@Override
+	public void write(long position, byte[] buffer, int offset, int length)
+			throws IOException {
+		RandomAccessFile output = getOutput();
+		if (output.getFilePointer() != position) {
+			output.seek(position);
+		}
+		output.write(buffer, offset, length);
+	}
+
+	@Override
+	public void complete(long length) throws IOException {
+		RandomAccessFile output = getOutput();
+		try {
+			output.setLength(length);
+			output.getFD().sync();
+		} finally {
+			mOutput = null;
+			output.close();
+		}
+	}
+
+	@Override
+	public void abort(Throwable cause) {
+		if (mOutput == null) {
+			return;
+		}
+		try {
+			mOutput.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		mOutput = null;
+	}
+}
@@ -0,0 +1,116 @@
+package com.keyboardr.glassremote.common.transfer;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A {@link TransferSource} that reads an <code>InputStream</code> once. The
+ * most recent bytes read are retained so the transfer can go back to the
+ * last acknowledged offset, which is never more than the
+ * {@link TransferEndpoint#setWindowSize(int) window} behind. A transfer
+ * cannot resume from further back, such as after the sending side restarts.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class StreamTransferSource implements TransferSource {
+
+	private final InputStream mInput;
+	private final long mLength;
+	private final byte[] mHistory;
+
+	/**
+	 * The number of bytes read from the stream
+	 */
+	private long mPosition;
+
+	/**
+	 * Class constructor. Retains {@link TransferEndpoint#DEFAULT_WINDOW_BYTES}.
+	 * 
+	 * @param input
+	 *            the stream to send
+	 * @param length
+	 *            the number of bytes in the stream, or <code>-1</code> to send
+	 *            until it ends
+	 */
+	public StreamTransferSource(InputStream input, long length) {
+		this(input, length, TransferEndpoint.DEFAULT_WINDOW_BYTES);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param input
+	 *            the stream to send
+	 * @param length
+	 *            the number of bytes in the stream, or <code>-1</code> to send
+	 *            until it ends
+	 * @param retainBytes
+	 *            how many of the most recently read bytes to keep. Must be at
+	 *            least the window of the sending <code>TransferEndpoint</code>.
+	 */
+	public StreamTransferSource(InputStream input, long length, int retainBytes) {
+		mInput = input;
+		mLength = length;
+		mHistory = new byte[retainBytes];
+	}
+
+	@Override
+	public long getLength() {
+		return mLength;
+	}
+
+	@Override
+	public synchronized int read(long position, byte[] buffer, int offset,
+			int length) throws IOException {
+		long retained = Math.min(mPosition, mHistory.length);
+		if (position < mPosition - retained) {
+			throw new IOException("Cannot go back to offset " + position);
+		}
+		if (position < mPosition) {
+			// Replay from the history ring
+			int count = (int) Math.min(length, mPosition - position);
+			int start = (int) (position % mHistory.length);
+			int first = Math.min(count, mHistory.length - start);
+			System.arraycopy(mHistory, start, buffer, offset, first);
+			System.arraycopy(mHistory, 0, buffer, offset + first, count - first);
+			return count;
+		}
+		while (mPosition < position) {
+			int skip = (int) Math.min(length, position - mPosition);
+			if (readFromStream(buffer, offset, skip) < 0) {
+				return -1;
+			}
+		}
+		if (mLength >= 0) {
+			if (mPosition >= mLength) {
+				return -1;
+			}
+			length = (int) Math.min(length, mLength - mPosition);
+		}
+		return readFromStream(buffer, offset, length);
+	}
+
+	private int readFromStream(byte[] buffer, int offset, int length)
+			throws IOException {
+		int read = mInput.read(buffer, offset, length);
+		if (read <= 0) {
+			return read == 0 ? 0 : -1;
+		}
+		// Only the last mHistory.length bytes need to be kept
+		int keep = Math.min(read, mHistory.length);
+		int from = offset + read - keep;
+		long keepPosition = mPosition + read - keep;
+		int start = (int) (keepPosition % mHistory.length);
+		int first = Math.min(keep, mHistory.length - start);
+		System.arraycopy(buffer, from, mHistory, start, first);
+		System.arraycopy(buffer, from + first, mHistory, 0, keep - first);
+		mPosition += read;
+		return read;
+	}
+
+	@Override
+	public void close() throws IOException {
+		mInput.close();
+	}
+}
@@ -0,0 +1,145 @@
+package com.keyboardr.glassremote.common.transfer;
+
+import com.keyboardr.glassremote.common.sender.SendFuture;
+
+/**
+ * A bulk transfer in either direction. Tracks how much of the data the
+ * remote peer has acknowledged or this side has stored, and completes its
+ * {@link #getFuture() future} once the receiver has stored all of it.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public final class Transfer {
+
+	/**
+	 * Notified as a transfer makes progress
+	 */
+	public static interface ProgressListener {
+		/**
+		 * More of the data has been acknowledged by the receiver, or stored if
+		 * this is the receiving side. Called on the connection's reader
+		 * thread, so it must return quickly.
+		 * 
+		 * @param transfer
+		 *            the <code>Transfer</code> that progressed
+		 * @param bytes
+		 *            the number of bytes transferred so far
+		 */
+		public void onProgress(Transfer transfer, long bytes);
+	}
+
+	private final TransferEndpoint<?> mEndpoint;
+	private final long mId;
+	private final String mName;
+	private final boolean mIncoming;
+	private final SendFuture mFuture = new SendFuture();
+
+	private volatile long mLength;
+	private volatile long mBytes;
+	private volatile ProgressListener mListener;
+
+	Transfer(TransferEndpoint<?> endpoint, long id, String name, long length,
+			boolean incoming) {
+		mEndpoint = endpoint;
+		mId = id;
+		mName = name;
+		mLength = length;
+		mIncoming = incoming;
+	}
+
+	/**
+	 * Gets the id both sides know this transfer by
+	 * 
+	 * @return the transfer id
+	 */
+	public long getId() {
+		return mId;
+	}
+
+	/**
+	 * Gets the name the sender gave this transfer, such as a file name
+	 * 
+	 * @return the name, possibly empty
+	 */
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * Gets the total length of the data
+	 * 
+	 * @return the length in bytes, or <code>-1</code> until the end is
+	 *         reached if it was not known in advance
+	 */
+	public long getLength() {
+		return mLength;
+	}
+
+	/**
+	 * Checks which side of the transfer this is
+	 * 
+	 * @return <code>true</code> if the data is being received
+	 */
+	public boolean isIncoming() {
+		return mIncoming;
+	}
+
+	/**
+	 * Gets the number of bytes acknowledged by the receiver, or stored if this
+	 * is the receiving side. It may go back if the transfer resumes from an
+	 * earlier offset.
+	 * 
+	 * @return the number of bytes transferred so far
+	 */
+	public long getBytesTransferred() {
+		return mBytes;
+	}
+
+	/**
+	 * Gets the future that completes with the transfer
+	 * 
+	 * @return a <code>SendFuture</code> that succeeds once the receiver has
+	 *         stored all of the data, or fails if the transfer is cancelled
+	 *         or an error stops it
+	 */
+	public SendFuture getFuture() {
+		return mFuture;
+	}
+
+	/**
+	 * Sets the listener to notify as the transfer makes progress
+	 * 
+	 * @param listener
+	 *            the <code>ProgressListener</code>, or <code>null</code>
+	 */
+	public void setProgressListener(ProgressListener listener) {
+		mListener = listener;
+	}
+
+	/**
+	 * Cancels the transfer on both sides. Its future fails. Does nothing if
+	 * the transfer has already completed.
+	 */
+	public void cancel() {
+		mEndpoint.cancel(this);
+	}
+
+	void setLength(long length) {
+		mLength = length;
+	}
+
+	void onProgress(long bytes) {
+		mBytes = bytes;
+		ProgressListener listener = mListener;
+		if (listener != null) {
+			listener.onProgress(this, bytes);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Transfer[id=" + mId + ", name=" + mName + ", "
+				+ (mIncoming ? "incoming" : "outgoing") + "]";
+	}
+}
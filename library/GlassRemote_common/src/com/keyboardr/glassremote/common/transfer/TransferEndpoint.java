@@ -0,0 +1,819 @@
+package com.keyboardr.glassremote.common.transfer;
+
+import java.io.IOException;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.keyboardr.glassremote.common.IoEngine;
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.io.BufferPool;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+
+/**
+ * Bulk transfers over a message connection, alongside ordinary messages.
+ * Data is read from a {@link TransferSource} and sent in chunks, each with a
+ * CRC-32 the receiver checks before storing it in a {@link TransferTarget}.
+ * A chunk that fails its check is sent again.<br/>
+ * <br/>
+ * Flow control is credit based: the receiver acknowledges each chunk it has
+ * stored and advertises a window, and the sender keeps at most that many
+ * bytes past the last acknowledgement in flight. A receiver whose storage
+ * falls behind therefore slows the sender down rather than filling the send
+ * queue, and ordinary messages queued between chunks wait behind at most one
+ * window of data. Several transfers share the connection chunk by chunk.<br/>
+ * <br/>
+ * Transfers outlive the connection. When the link comes back the sender
+ * offers each unfinished transfer again and the receiver answers with the
+ * offset it has stored up to, so only the missing data is sent.<br/>
+ * <br/>
+ * An endpoint is symmetric: it both sends transfers and accepts the remote
+ * peer's through its {@link TransferHandler}. The owner calls
+ * {@link #onConnected()} and {@link #onDisconnected()} as the link comes and
+ * goes, and passes every received frame to
+ * {@link #onReceiveFrame(TransferFrame)} on the reader thread. Chunks are
+ * read and frames sent from the blocking executor of the shared
+ * {@link IoEngine}. This class is thread-safe.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            type of ordinary messages sent alongside the transfers
+ */
+public class TransferEndpoint<S> {
+
+	/**
+	 * The chunk size used until {@link #setChunkSize(int)} is called
+	 */
+	public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+	/**
+	 * The window used until {@link #setWindowSize(int)} is called
+	 */
+	public static final int DEFAULT_WINDOW_BYTES = 8 * DEFAULT_CHUNK_SIZE;
+
+	/**
+	 * How many finished transfers are remembered, so an offer repeated
+	 * because the final confirmation was lost is answered correctly
+	 */
+	private static final int RECENT_LIMIT = 64;
+
+	/**
+	 * Sends frames on behalf of a <code>TransferEndpoint</code>
+	 * 
+	 * @param <S>
+	 *            type of ordinary messages
+	 */
+	public static interface FrameSink<S> {
+		/**
+		 * Sends a frame to the remote peer
+		 * 
+		 * @param frame
+		 *            the frame to send
+		 * @return a <code>SendFuture</code> that completes once the frame has
+		 *         been written
+		 * @throws IllegalStateException
+		 *             if the connection is not open
+		 */
+		public SendFuture sendFrame(TransferFrame<S> frame);
+	}
+
+	/**
+	 * Accepts transfers offered by the remote peer
+	 */
+	public static interface TransferHandler {
+		/**
+		 * The remote peer has offered a transfer. Called on the connection's
+		 * reader thread.
+		 * 
+		 * @param transfer
+		 *            the incoming <code>Transfer</code>. A
+		 *            {@link Transfer.ProgressListener} may be set on it now.
+		 * @return the <code>TransferTarget</code> to store the data in, or
+		 *         <code>null</code> to refuse the transfer
+		 */
+		public TransferTarget onIncomingTransfer(Transfer transfer);
+	}
+
+	private static final class Outgoing {
+		final Transfer mTransfer;
+		final TransferSource mSource;
+
+		/**
+		 * The offer must be sent (again) before any data
+		 */
+		boolean mOfferPending = true;
+
+		/**
+		 * The receiver has answered the offer on this connection
+		 */
+		boolean mAccepted;
+		boolean mEndSent;
+		long mSendOffset;
+		long mAcked;
+		int mWindow;
+
+		/**
+		 * Changes whenever the send offset jumps, so a chunk read for the old
+		 * offset is discarded
+		 */
+		int mGeneration;
+
+		Outgoing(Transfer transfer, TransferSource source) {
+			mTransfer = transfer;
+			mSource = source;
+		}
+	}
+
+	private static final class Incoming {
+		final Transfer mTransfer;
+		final TransferTarget mTarget;
+		long mWritten;
+
+		/**
+		 * A resume has been sent and data before it arrives is ignored
+		 * quietly
+		 */
+		boolean mRewinding;
+
+		/**
+		 * Bytes ignored while rewinding. At most a window of data can have
+		 * been in flight before the resume, so more means the resumed data
+		 * went missing as well.
+		 */
+		long mIgnoredBytes;
+
+		Incoming(Transfer transfer, TransferTarget target, long written) {
+			mTransfer = transfer;
+			mTarget = target;
+			mWritten = written;
+		}
+	}
+
+	private final FrameSink<S> mSink;
+	private final KeyedExecutor mSendExecutor;
+	private final SecureRandom mRandom = new SecureRandom();
+	private final CRC32 mReceiveCrc = new CRC32();
+	private final CRC32 mSendCrc = new CRC32();
+
+	private volatile TransferHandler mHandler;
+
+	// Guarded by this
+	private int mChunkSize = DEFAULT_CHUNK_SIZE;
+	private int mWindowBytes = DEFAULT_WINDOW_BYTES;
+	private boolean mConnected;
+	private boolean mPumpScheduled;
+	private int mNextOutgoing;
+	private final ArrayList<Outgoing> mOutgoing = new ArrayList<Outgoing>();
+	private final HashMap<Long, Incoming> mIncoming = new HashMap<Long, Incoming>();
+	private final ArrayDeque<TransferFrame<S>> mControl = new ArrayDeque<TransferFrame<S>>();
+
+	/**
+	 * Recently finished incoming transfers, mapped to their length or to
+	 * <code>-1</code> if they were cancelled
+	 */
+	private final LinkedHashMap<Long, Long> mFinished = new LinkedHashMap<Long, Long>() {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+			return size() > RECENT_LIMIT;
+		}
+	};
+
+	private final Runnable mPump = new Runnable() {
+
+		@Override
+		public void run() {
+			pump();
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param sink
+	 *            the <code>FrameSink</code> frames are sent through
+	 */
+	public TransferEndpoint(FrameSink<S> sink) {
+		mSink = sink;
+		mSendExecutor = new KeyedExecutor(IoEngine.getDefault()
+				.getBlockingExecutor());
+	}
+
+	/**
+	 * Sets the handler for transfers offered by the remote peer. Offers are
+	 * refused while no handler is set.
+	 * 
+	 * @param handler
+	 *            the <code>TransferHandler</code>, or <code>null</code>
+	 */
+	public void setTransferHandler(TransferHandler handler) {
+		mHandler = handler;
+	}
+
+	/**
+	 * Sets the size of the chunks outgoing data is split into. Defaults to
+	 * {@link #DEFAULT_CHUNK_SIZE}.
+	 * 
+	 * @param chunkSize
+	 *            the chunk size in bytes
+	 */
+	public synchronized void setChunkSize(int chunkSize) {
+		if (chunkSize < 1) {
+			throw new IllegalArgumentException("chunkSize < 1");
+		}
+		mChunkSize = chunkSize;
+	}
+
+	/**
+	 * Sets how many bytes past the last acknowledgement may be in flight, both
+	 * as advertised to the remote sender and as the limit for outgoing
+	 * transfers. Defaults to {@link #DEFAULT_WINDOW_BYTES}. A
+	 * {@link StreamTransferSource} must retain at least this many bytes.
+	 * 
+	 * @param windowBytes
+	 *            the window in bytes
+	 */
+	public synchronized void setWindowSize(int windowBytes) {
+		if (windowBytes < 1) {
+			throw new IllegalArgumentException("windowBytes < 1");
+		}
+		mWindowBytes = windowBytes;
+		schedulePump();
+	}
+
+	/**
+	 * Starts sending a transfer. May be called while disconnected, in which
+	 * case the transfer is offered once the link is back.
+	 * 
+	 * @param name
+	 *            the name to give the transfer, such as a file name
+	 * @param source
+	 *            the data to send. It is closed when the transfer finishes.
+	 * @return the outgoing <code>Transfer</code>
+	 */
+	public Transfer send(String name, TransferSource source) {
+		long id;
+		do {
+			id = mRandom.nextLong() & Long.MAX_VALUE;
+		} while (id == 0);
+		Transfer transfer = new Transfer(this, id, name == null ? "" : name,
+				source.getLength(), false);
+		synchronized (this) {
+			mOutgoing.add(new Outgoing(transfer, source));
+			schedulePump();
+		}
+		return transfer;
+	}
+
+	/**
+	 * The link to the remote peer has been (re)established. Offers every
+	 * unfinished outgoing transfer again.
+	 */
+	public synchronized void onConnected() {
+		mConnected = true;
+		for (Outgoing outgoing : mOutgoing) {
+			outgoing.mOfferPending = true;
+			outgoing.mAccepted = false;
+			outgoing.mGeneration++;
+		}
+		schedulePump();
+	}
+
+	/**
+	 * The link to the remote peer has dropped. Transfers in both directions
+	 * are kept and continue after {@link #onConnected()}.
+	 */
+	public synchronized void onDisconnected() {
+		mConnected = false;
+		// The remote sender offers its transfers again, which is answered
+		// afresh; only cancellations still need to reach it
+		Iterator<TransferFrame<S>> pending = mControl.iterator();
+		while (pending.hasNext()) {
+			if (pending.next().getType() != TransferFrame.TYPE_CANCEL) {
+				pending.remove();
+			}
+		}
+	}
+
+	/**
+	 * Handles a frame received from the remote peer. Must be called on the
+	 * reader thread, in the order frames were received.
+	 * 
+	 * @param frame
+	 *            the received frame
+	 * @return <code>true</code> if the frame belonged to a transfer,
+	 *         <code>false</code> if it carries an ordinary message
+	 */
+	public boolean onReceiveFrame(TransferFrame<?> frame) {
+		switch (frame.getType()) {
+		case TransferFrame.TYPE_MESSAGE:
+			return false;
+		case TransferFrame.TYPE_OFFER:
+			onOffer(frame);
+			break;
+		case TransferFrame.TYPE_RESUME:
+			onResume(frame);
+			break;
+		case TransferFrame.TYPE_DATA:
+			onData(frame);
+			break;
+		case TransferFrame.TYPE_ACK:
+			onAck(frame);
+			break;
+		case TransferFrame.TYPE_END:
+			onEnd(frame);
+			break;
+		case TransferFrame.TYPE_CANCEL:
+			onCancel(frame);
+			break;
+		}
+		return true;
+	}
+
+	private void onOffer(TransferFrame<?> frame) {
+		long id = frame.getId();
+		synchronized (this) {
+			Incoming incoming = mIncoming.get(id);
+			if (incoming != null) {
+				// Offered again after reconnecting; continue where we are
+				rewind(incoming);
+				return;
+			}
+			Long finished = mFinished.get(id);
+			if (finished != null) {
+				queue(finished.longValue() < 0 ? TransferFrame.<S> cancel(id,
+						"Cancelled") : TransferFrame.<S> end(id,
+						finished.longValue()));
+				return;
+			}
+		}
+		Transfer transfer = new Transfer(this, id, frame.getText(),
+				frame.getLength(), true);
+		TransferHandler handler = mHandler;
+		TransferTarget target = handler == null ? null : handler
+				.onIncomingTransfer(transfer);
+		if (target == null) {
+			refuse(transfer, new IOException("Transfer refused"));
+			return;
+		}
+		long offset;
+		try {
+			offset = target.getResumeOffset();
+		} catch (IOException e) {
+			target.abort(e);
+			refuse(transfer, e);
+			return;
+		}
+		if (offset < 0 || (frame.getLength() >= 0 && offset > frame.getLength())) {
+			offset = 0;
+		}
+		synchronized (this) {
+			mIncoming.put(id, new Incoming(transfer, target, offset));
+			queue(TransferFrame.<S> resume(id, offset, mWindowBytes));
+		}
+		transfer.onProgress(offset);
+	}
+
+	/**
+	 * Asks the remote sender to continue from what has been stored. Must
+	 * hold the lock.
+	 */
+	private void rewind(Incoming incoming) {
+		incoming.mRewinding = true;
+		incoming.mIgnoredBytes = 0;
+		queue(TransferFrame.<S> resume(incoming.mTransfer.getId(),
+				incoming.mWritten, mWindowBytes));
+	}
+
+	private void refuse(Transfer transfer, IOException cause) {
+		synchronized (this) {
+			mFinished.put(transfer.getId(), Long.valueOf(-1));
+			queue(TransferFrame.<S> cancel(transfer.getId(), cause.getMessage()));
+		}
+		transfer.getFuture().setFailed(cause);
+	}
+
+	private void onResume(TransferFrame<?> frame) {
+		Outgoing outgoing;
+		long offset = frame.getOffset();
+		synchronized (this) {
+			outgoing = findOutgoing(frame.getId());
+			if (outgoing == null) {
+				queue(TransferFrame.<S> cancel(frame.getId(), "Unknown transfer"));
+				return;
+			}
+			outgoing.mAccepted = true;
+			outgoing.mEndSent = false;
+			outgoing.mSendOffset = offset;
+			outgoing.mAcked = offset;
+			outgoing.mWindow = frame.getWindow();
+			outgoing.mGeneration++;
+			schedulePump();
+		}
+		outgoing.mTransfer.onProgress(offset);
+	}
+
+	private void onAck(TransferFrame<?> frame) {
+		Outgoing outgoing;
+		long offset;
+		synchronized (this) {
+			outgoing = findOutgoing(frame.getId());
+			if (outgoing == null || !outgoing.mAccepted
+					|| frame.getOffset() <= outgoing.mAcked) {
+				return;
+			}
+			offset = Math.min(frame.getOffset(), outgoing.mSendOffset);
+			outgoing.mAcked = offset;
+			outgoing.mWindow = frame.getWindow();
+			schedulePump();
+		}
+		outgoing.mTransfer.onProgress(offset);
+	}
+
+	private void onData(TransferFrame<?> frame) {
+		Incoming incoming;
+		synchronized (this) {
+			incoming = mIncoming.get(frame.getId());
+			if (incoming == null) {
+				return;
+			}
+			if (frame.getOffset() != incoming.mWritten) {
+				if (frame.getOffset() > incoming.mWritten) {
+					incoming.mIgnoredBytes += frame.getDataLength();
+					if (!incoming.mRewinding
+							|| incoming.mIgnoredBytes > mWindowBytes) {
+						// A chunk went missing; go back for it
+						rewind(incoming);
+					}
+				}
+				return;
+			}
+		}
+		mReceiveCrc.reset();
+		mReceiveCrc.update(frame.getData(), frame.getDataOffset(),
+				frame.getDataLength());
+		if ((int) mReceiveCrc.getValue() != frame.getCrc()) {
+			synchronized (this) {
+				rewind(incoming);
+			}
+			return;
+		}
+		try {
+			incoming.mTarget.write(frame.getOffset(), frame.getData(),
+					frame.getDataOffset(), frame.getDataLength());
+		} catch (IOException e) {
+			abortIncoming(incoming, e, true);
+			return;
+		}
+		long written;
+		synchronized (this) {
+			incoming.mWritten += frame.getDataLength();
+			incoming.mRewinding = false;
+			incoming.mIgnoredBytes = 0;
+			written = incoming.mWritten;
+			queue(TransferFrame.<S> ack(frame.getId(), written, mWindowBytes));
+		}
+		incoming.mTransfer.onProgress(written);
+	}
+
+	private void onEnd(TransferFrame<?> frame) {
+		long id = frame.getId();
+		Outgoing outgoing;
+		Incoming incoming;
+		synchronized (this) {
+			outgoing = findOutgoing(id);
+			if (outgoing != null) {
+				// The receiver has stored everything
+				mOutgoing.remove(outgoing);
+			}
+			incoming = outgoing == null ? mIncoming.get(id) : null;
+			if (incoming != null && frame.getOffset() != incoming.mWritten) {
+				// Data is missing, whether or not a resume is under way
+				rewind(incoming);
+				return;
+			}
+		}
+		if (outgoing != null) {
+			closeSource(outgoing);
+			outgoing.mTransfer.setLength(frame.getOffset());
+			outgoing.mTransfer.onProgress(frame.getOffset());
+			outgoing.mTransfer.getFuture().setSucceeded();
+			return;
+		}
+		if (incoming == null) {
+			return;
+		}
+		long length = frame.getOffset();
+		try {
+			incoming.mTarget.complete(length);
+		} catch (IOException e) {
+			abortIncoming(incoming, e, true);
+			return;
+		}
+		synchronized (this) {
+			mIncoming.remove(id);
+			mFinished.put(id, Long.valueOf(length));
+			queue(TransferFrame.<S> end(id, length));
+		}
+		incoming.mTransfer.setLength(length);
+		incoming.mTransfer.getFuture().setSucceeded();
+	}
+
+	private void onCancel(TransferFrame<?> frame) {
+		IOException cause = new IOException("Cancelled by remote peer: "
+				+ frame.getText());
+		Outgoing outgoing;
+		Incoming incoming;
+		synchronized (this) {
+			outgoing = findOutgoing(frame.getId());
+			if (outgoing != null) {
+				mOutgoing.remove(outgoing);
+			}
+			incoming = mIncoming.remove(frame.getId());
+			if (incoming != null) {
+				mFinished.put(frame.getId(), Long.valueOf(-1));
+			}
+		}
+		if (outgoing != null) {
+			closeSource(outgoing);
+			outgoing.mTransfer.getFuture().setFailed(cause);
+		}
+		if (incoming != null) {
+			incoming.mTarget.abort(cause);
+			incoming.mTransfer.getFuture().setFailed(cause);
+		}
+	}
+
+	/**
+	 * Cancels a transfer on both sides
+	 */
+	void cancel(Transfer transfer) {
+		Outgoing outgoing;
+		Incoming incoming;
+		synchronized (this) {
+			outgoing = findOutgoing(transfer.getId());
+			if (outgoing != null) {
+				mOutgoing.remove(outgoing);
+			}
+			incoming = mIncoming.get(transfer.getId());
+			if (incoming != null && incoming.mTransfer != transfer) {
+				incoming = null;
+			}
+			if (outgoing == null && incoming == null) {
+				return;
+			}
+			queue(TransferFrame.<S> cancel(transfer.getId(), "Cancelled"));
+		}
+		IOException cause = new IOException("Transfer cancelled");
+		if (outgoing != null) {
+			closeSource(outgoing);
+			outgoing.mTransfer.getFuture().setFailed(cause);
+		}
+		if (incoming != null) {
+			abortIncoming(incoming, cause, false);
+		}
+	}
+
+	private void abortIncoming(Incoming incoming, IOException cause,
+			boolean notify) {
+		long id = incoming.mTransfer.getId();
+		synchronized (this) {
+			mIncoming.remove(id);
+			mFinished.put(id, Long.valueOf(-1));
+			if (notify) {
+				queue(TransferFrame.<S> cancel(id, cause.getMessage()));
+			}
+		}
+		incoming.mTarget.abort(cause);
+		incoming.mTransfer.getFuture().setFailed(cause);
+	}
+
+	/**
+	 * Fails every transfer in both directions, such as when the endpoint is
+	 * being discarded. The remote peer is not told.
+	 * 
+	 * @param failure
+	 *            the cause to fail the transfers with
+	 */
+	public void failAll(Throwable failure) {
+		List<Outgoing> outgoing;
+		List<Incoming> incoming;
+		synchronized (this) {
+			outgoing = new ArrayList<Outgoing>(mOutgoing);
+			incoming = new ArrayList<Incoming>(mIncoming.values());
+			mOutgoing.clear();
+			mIncoming.clear();
+			mControl.clear();
+		}
+		for (Outgoing transfer : outgoing) {
+			closeSource(transfer);
+			transfer.mTransfer.getFuture().setFailed(failure);
+		}
+		for (Incoming transfer : incoming) {
+			transfer.mTarget.abort(failure);
+			transfer.mTransfer.getFuture().setFailed(failure);
+		}
+	}
+
+	/**
+	 * Gets the number of transfers in progress in both directions
+	 * 
+	 * @return the number of unfinished transfers
+	 */
+	public synchronized int getActiveCount() {
+		return mOutgoing.size() + mIncoming.size();
+	}
+
+	private Outgoing findOutgoing(long id) {
+		for (Outgoing outgoing : mOutgoing) {
+			if (outgoing.mTransfer.getId() == id) {
+				return outgoing;
+			}
+		}
+		return null;
+	}
+
+	private static void closeSource(Outgoing outgoing) {
+		try {
+			outgoing.mSource.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Queues a control frame. Must hold the lock.
+	 */
+	private void queue(TransferFrame<S> frame) {
+		mControl.add(frame);
+		schedulePump();
+	}
+
+	/**
+	 * Schedules the frames that are due to be sent. Must hold the lock.
+	 */
+	private void schedulePump() {
+		if (!mPumpScheduled && mConnected) {
+			mPumpScheduled = true;
+			mSendExecutor.execute(mPump);
+		}
+	}
+
+	/**
+	 * Sends control frames first, then one chunk of each transfer with room
+	 * in its window in turn, until nothing is left to send
+	 */
+	private void pump() {
+		while (true) {
+			TransferFrame<S> frame;
+			Outgoing outgoing = null;
+			long offset = 0;
+			int length = 0;
+			int generation = 0;
+			synchronized (this) {
+				frame = mConnected ? mControl.poll() : null;
+				if (frame == null && mConnected) {
+					int count = mOutgoing.size();
+					for (int i = 0; i < count && frame == null
+							&& outgoing == null; i++) {
+						int index = (mNextOutgoing + i) % count;
+						Outgoing candidate = mOutgoing.get(index);
+						if (candidate.mOfferPending) {
+							candidate.mOfferPending = false;
+							frame = TransferFrame.offer(candidate.mTransfer
+									.getId(), candidate.mTransfer.getName(),
+									candidate.mSource.getLength());
+						} else if (candidate.mAccepted && !candidate.mEndSent) {
+							long total = candidate.mSource.getLength();
+							long limit = candidate.mAcked
+									+ Math.min(candidate.mWindow, mWindowBytes);
+							if (total >= 0 && candidate.mSendOffset >= total) {
+								candidate.mEndSent = true;
+								frame = TransferFrame.end(candidate.mTransfer
+										.getId(), total);
+							} else if (candidate.mSendOffset < limit) {
+								outgoing = candidate;
+								offset = candidate.mSendOffset;
+								length = (int) Math.min(mChunkSize, limit
+										- offset);
+								generation = candidate.mGeneration;
+							}
+						}
+						if (frame != null || outgoing != null) {
+							mNextOutgoing = index + 1;
+						}
+					}
+				}
+				if (frame == null && outgoing == null) {
+					mPumpScheduled = false;
+					return;
+				}
+			}
+			SendFuture future;
+			byte[] buffer = null;
+			if (outgoing != null) {
+				buffer = BufferPool.acquire(length);
+				frame = readChunk(outgoing, offset, buffer, length, generation);
+				if (frame == null) {
+					BufferPool.release(buffer);
+					continue;
+				}
+			}
+			try {
+				future = mSink.sendFrame(frame);
+			} catch (IllegalStateException e) {
+				// Disconnected; everything is offered again after reconnecting
+				BufferPool.release(buffer);
+				synchronized (this) {
+					mPumpScheduled = false;
+				}
+				return;
+			}
+			if (buffer != null && frame.getType() == TransferFrame.TYPE_DATA) {
+				final byte[] chunk = buffer;
+				final Outgoing sent = outgoing;
+				final long sentOffset = offset;
+				future.addListener(new SendFuture.Listener() {
+
+					@Override
+					public void onComplete(SendFuture future) {
+						BufferPool.release(chunk);
+						if (!future.isSuccessful()) {
+							onChunkFailed(sent, sentOffset);
+						}
+					}
+				});
+			} else {
+				BufferPool.release(buffer);
+			}
+		}
+	}
+
+	/**
+	 * A chunk could not be written, such as when the send queue dropped it.
+	 * Sends it again from there rather than waiting for an acknowledgement
+	 * that will not come.
+	 */
+	private synchronized void onChunkFailed(Outgoing outgoing, long offset) {
+		if (!mConnected || !outgoing.mAccepted
+				|| offset >= outgoing.mSendOffset
+				|| !mOutgoing.contains(outgoing)) {
+			return;
+		}
+		outgoing.mSendOffset = offset;
+		outgoing.mEndSent = false;
+		outgoing.mGeneration++;
+		schedulePump();
+	}
+
+	/**
+	 * Reads the chunk at <code>offset</code> and builds its frame, or the end
+	 * frame if the source is exhausted
+	 * 
+	 * @return the frame to send, or <code>null</code> if the transfer has
+	 *         moved on or failed meanwhile
+	 */
+	private TransferFrame<S> readChunk(Outgoing outgoing, long offset,
+			byte[] buffer, int length, int generation) {
+		int read;
+		try {
+			read = outgoing.mSource.read(offset, buffer, 0, length);
+		} catch (IOException e) {
+			synchronized (this) {
+				if (!mOutgoing.remove(outgoing)) {
+					return null;
+				}
+				queue(TransferFrame.<S> cancel(outgoing.mTransfer.getId(),
+						e.getMessage()));
+			}
+			closeSource(outgoing);
+			outgoing.mTransfer.getFuture().setFailed(e);
+			return null;
+		}
+		synchronized (this) {
+			if (generation != outgoing.mGeneration
+					|| !mOutgoing.contains(outgoing)) {
+				return null;
+			}
+			long id = outgoing.mTransfer.getId();
+			if (read < 0) {
+				outgoing.mEndSent = true;
+				outgoing.mTransfer.setLength(offset);
+				return TransferFrame.end(id, offset);
+			}
+			outgoing.mSendOffset = offset + read;
+			mSendCrc.reset();
+			mSendCrc.update(buffer, 0, read);
+			return TransferFrame.data(id, offset, (int) mSendCrc.getValue(),
+					buffer, 0, read);
+		}
+	}
+}
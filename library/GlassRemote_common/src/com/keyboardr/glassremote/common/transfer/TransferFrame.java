@@ -0,0 +1,245 @@
+package com.keyboardr.glassremote.common.transfer;
+
+/**
+ * A single frame exchanged by {@link TransferEndpoint TransferEndpoints}.
+ * Besides the frames of bulk transfers, a frame may carry an ordinary
+ * message, so transfers and messages share one connection and one send queue
+ * and are interleaved chunk by chunk.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of the message payload
+ */
+public final class TransferFrame<T> {
+
+	/**
+	 * An ordinary message that is not part of a transfer
+	 */
+	public static final int TYPE_MESSAGE = 0;
+
+	/**
+	 * Offers a transfer, or offers it again after reconnecting. Carries its
+	 * name and length.
+	 */
+	public static final int TYPE_OFFER = 1;
+
+	/**
+	 * Accepts an offer, or asks for the data to be sent again, starting at
+	 * the offset. Carries the receive window.
+	 */
+	public static final int TYPE_RESUME = 2;
+
+	/**
+	 * A chunk of data at the offset, with its CRC-32
+	 */
+	public static final int TYPE_DATA = 3;
+
+	/**
+	 * Acknowledges every byte before the offset. Carries the receive window.
+	 */
+	public static final int TYPE_ACK = 4;
+
+	/**
+	 * Sent by the sender after the last chunk, with the total length as the
+	 * offset, and echoed by the receiver once the data has been stored
+	 */
+	public static final int TYPE_END = 5;
+
+	/**
+	 * Abandons a transfer. Carries the reason.
+	 */
+	public static final int TYPE_CANCEL = 6;
+
+	private final int mType;
+	private final long mId;
+	private final long mOffset;
+	private final long mLength;
+	private final int mValue;
+	private final String mText;
+	private final byte[] mData;
+	private final int mDataOffset;
+	private final int mDataLength;
+	private final T mPayload;
+
+	private TransferFrame(int type, long id, long offset, long length,
+			int value, String text, byte[] data, int dataOffset,
+			int dataLength, T payload) {
+		mType = type;
+		mId = id;
+		mOffset = offset;
+		mLength = length;
+		mValue = value;
+		mText = text;
+		mData = data;
+		mDataOffset = dataOffset;
+		mDataLength = dataLength;
+		mPayload = payload;
+	}
+
+	public static <T> TransferFrame<T> message(T payload) {
+		return new TransferFrame<T>(TYPE_MESSAGE, 0, 0, 0, 0, null, null, 0,
+				0, payload);
+	}
+
+	/**
+	 * Creates an offer
+	 * 
+	 * @param id
+	 *            the transfer id
+	 * @param name
+	 *            the name of the transfer, such as a file name
+	 * @param length
+	 *            the total length in bytes, or <code>-1</code> if unknown
+	 */
+	public static <T> TransferFrame<T> offer(long id, String name, long length) {
+		return new TransferFrame<T>(TYPE_OFFER, id, 0, length, 0, name, null,
+				0, 0, null);
+	}
+
+	public static <T> TransferFrame<T> resume(long id, long offset, int window) {
+		return new TransferFrame<T>(TYPE_RESUME, id, offset, 0, window, null,
+				null, 0, 0, null);
+	}
+
+	/**
+	 * Creates a data chunk. The array is not copied and must not change until
+	 * the frame has been written.
+	 * 
+	 * @param id
+	 *            the transfer id
+	 * @param offset
+	 *            the position of the chunk in the transfer
+	 * @param crc
+	 *            the CRC-32 of the chunk
+	 * @param data
+	 *            the array holding the chunk
+	 * @param dataOffset
+	 *            the start of the chunk in <code>data</code>
+	 * @param dataLength
+	 *            the length of the chunk
+	 */
+	public static <T> TransferFrame<T> data(long id, long offset, int crc,
+			byte[] data, int dataOffset, int dataLength) {
+		return new TransferFrame<T>(TYPE_DATA, id, offset, 0, crc, null, data,
+				dataOffset, dataLength, null);
+	}
+
+	public static <T> TransferFrame<T> ack(long id, long offset, int window) {
+		return new TransferFrame<T>(TYPE_ACK, id, offset, 0, window, null,
+				null, 0, 0, null);
+	}
+
+	public static <T> TransferFrame<T> end(long id, long length) {
+		return new TransferFrame<T>(TYPE_END, id, length, 0, 0, null, null, 0,
+				0, null);
+	}
+
+	public static <T> TransferFrame<T> cancel(long id, String reason) {
+		return new TransferFrame<T>(TYPE_CANCEL, id, 0, 0, 0, reason, null, 0,
+				0, null);
+	}
+
+	/**
+	 * Gets the type of this frame
+	 * 
+	 * @return one of the <code>TYPE_</code> constants
+	 */
+	public int getType() {
+		return mType;
+	}
+
+	/**
+	 * Gets the id of the transfer this frame belongs to
+	 * 
+	 * @return the transfer id, or <code>0</code> for {@link #TYPE_MESSAGE}
+	 *         frames
+	 */
+	public long getId() {
+		return mId;
+	}
+
+	/**
+	 * Gets the position in the transfer this frame refers to
+	 * 
+	 * @return the offset in bytes
+	 */
+	public long getOffset() {
+		return mOffset;
+	}
+
+	/**
+	 * Gets the total length of an offered transfer
+	 * 
+	 * @return the length in bytes, or <code>-1</code> if unknown
+	 */
+	public long getLength() {
+		return mLength;
+	}
+
+	/**
+	 * Gets the receive window of a {@link #TYPE_RESUME} or {@link #TYPE_ACK}
+	 * frame: how many bytes past the offset may be sent
+	 * 
+	 * @return the window in bytes
+	 */
+	public int getWindow() {
+		return mValue;
+	}
+
+	/**
+	 * Gets the CRC-32 of a {@link #TYPE_DATA} frame's chunk
+	 * 
+	 * @return the checksum
+	 */
+	public int getCrc() {
+		return mValue;
+	}
+
+	/**
+	 * Gets the name of an offer or the reason of a cancellation
+	 * 
+	 * @return the text, or <code>null</code> for other frames
+	 */
+	public String getText() {
+		return mText;
+	}
+
+	public byte[] getData() {
+		return mData;
+	}
+
+	public int getDataOffset() {
+		return mDataOffset;
+	}
+
+	public int getDataLength() {
+		return mDataLength;
+	}
+
+	/**
+	 * Gets the payload of a {@link #TYPE_MESSAGE} frame
+	 * 
+	 * @return the payload, or <code>null</code> for other frames
+	 */
+	public T getPayload() {
+		return mPayload;
+	}
+
+	/**
+	 * Checks if this frame belongs to a transfer rather than carrying a
+	 * message. Such frames need no application code to handle and are
+	 * processed as soon as they are read.
+	 * 
+	 * @return <code>true</code> for every type but {@link #TYPE_MESSAGE}
+	 */
+	public boolean isControl() {
+		return mType != TYPE_MESSAGE;
+	}
+
+	@Override
+	public String toString() {
+		return "TransferFrame[type=" + mType + ", id=" + mId + ", offset="
+				+ mOffset + "]";
+	}
+}
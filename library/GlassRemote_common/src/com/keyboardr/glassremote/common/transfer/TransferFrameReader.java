@@ -0,0 +1,229 @@
+package com.keyboardr.glassremote.common.transfer;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.keyboardr.glassremote.common.receiver.BinaryMessageReader;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+
+/**
+ * Reads {@link TransferFrame TransferFrames} written by
+ * {@link TransferFrameSender}. The wrapped <code>MessageReceiver</code>
+ * decodes each message payload from the bytes of its frame, and must read
+ * exactly one message per call to
+ * {@link MessageReceiver#read(OnReceiveMessageListener) read()}. Data chunks
+ * refer to the bytes of their frame without copying them.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of the message payloads
+ */
+public class TransferFrameReader<T> implements
+		MessageReceiver<TransferFrame<T>> {
+
+	/**
+	 * Presents the payload of the current frame to the payload receiver. The
+	 * same instance is refilled for every frame so receivers that buffer
+	 * their input keep working.
+	 */
+	private static class PayloadStream extends ByteArrayInputStream {
+		PayloadStream() {
+			super(new byte[0]);
+		}
+
+		void setPayload(byte[] frame, int offset, int length) {
+			buf = frame;
+			pos = offset;
+			count = offset + length;
+			mark = offset;
+		}
+	}
+
+	private final MessageReceiver<T> mPayloadReceiver;
+	private final BinaryMessageReader mFrameReader;
+	private final PayloadStream mPayloadStream = new PayloadStream();
+
+	private OnReceiveMessageListener<? super TransferFrame<T>> mListener;
+	private boolean mCorrupt;
+	private boolean mHasPayload;
+	private T mPayload;
+
+	/**
+	 * Position in the frame being parsed
+	 */
+	private int mPosition;
+
+	private final OnReceiveMessageListener<T> mPayloadListener = new OnReceiveMessageListener<T>() {
+
+		@Override
+		public void onReceiveMessage(T message) {
+			mPayload = message;
+			mHasPayload = true;
+		}
+	};
+
+	private final OnReceiveMessageListener<byte[]> mFrameListener = new OnReceiveMessageListener<byte[]>() {
+
+		@Override
+		public void onReceiveMessage(byte[] message) {
+			try {
+				onReceiveFrame(message);
+			} catch (IOException e) {
+				e.printStackTrace();
+				mCorrupt = true;
+			}
+		}
+	};
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param payloadReceiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for decoding <code>T</code> payloads. It must not be used
+	 *            elsewhere.
+	 */
+	public TransferFrameReader(MessageReceiver<T> payloadReceiver) {
+		this(payloadReceiver, BinaryMessageReader.DEFAULT_MAX_MESSAGE_SIZE);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param payloadReceiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for decoding <code>T</code> payloads. It must not be used
+	 *            elsewhere.
+	 * @param maxFrameSize
+	 *            the largest frame, in bytes, that will be accepted
+	 */
+	public TransferFrameReader(MessageReceiver<T> payloadReceiver,
+			int maxFrameSize) {
+		mPayloadReceiver = payloadReceiver;
+		mFrameReader = new BinaryMessageReader(maxFrameSize);
+		mPayloadReceiver.setInputStream(mPayloadStream);
+	}
+
+	/**
+	 * Creates a <code>MessageReceiver.Factory</code> that wraps each receiver
+	 * created by <code>payloadFactory</code> in a new
+	 * <code>TransferFrameReader</code>
+	 * 
+	 * @param payloadFactory
+	 *            creates the payload <code>MessageReceivers</code>
+	 * @return a <code>MessageReceiver.Factory</code> for
+	 *         <code>TransferFrameReaders</code>
+	 */
+	public static <T> MessageReceiver.Factory<TransferFrame<T>> factory(
+			final MessageReceiver.Factory<T> payloadFactory) {
+		return new MessageReceiver.Factory<TransferFrame<T>>() {
+
+			@Override
+			public MessageReceiver<TransferFrame<T>> newReceiver() {
+				return new TransferFrameReader<T>(payloadFactory.newReceiver());
+			}
+		};
+	}
+
+	@Override
+	public void setInputStream(InputStream input) {
+		mFrameReader.setInputStream(input);
+	}
+
+	@Override
+	public boolean read(
+			OnReceiveMessageListener<? super TransferFrame<T>> listener) {
+		mListener = listener;
+		try {
+			return mFrameReader.read(mFrameListener) && !mCorrupt;
+		} finally {
+			mListener = null;
+		}
+	}
+
+	private void onReceiveFrame(byte[] frame) throws IOException {
+		if (frame.length < 1) {
+			throw new IOException("Transfer frame too short");
+		}
+		int type = frame[0];
+		if (type == TransferFrame.TYPE_MESSAGE) {
+			mPayloadStream.setPayload(frame, 1, frame.length - 1);
+			mHasPayload = false;
+			mPayload = null;
+			if (frame.length > 1
+					&& (!mPayloadReceiver.read(mPayloadListener) || !mHasPayload)) {
+				throw new IOException("Could not decode transfer message");
+			}
+			TransferFrame<T> message = TransferFrame.message(mPayload);
+			mPayload = null;
+			mListener.onReceiveMessage(message);
+			return;
+		}
+		if (frame.length < 9) {
+			throw new IOException("Transfer frame too short");
+		}
+		long id = ((long) readInt(frame, 1) << 32)
+				| (readInt(frame, 5) & 0xFFFFFFFFL);
+		mPosition = 9;
+		TransferFrame<T> transferFrame;
+		switch (type) {
+		case TransferFrame.TYPE_OFFER:
+			long length = readVarint(frame) - 1;
+			transferFrame = TransferFrame.offer(id, readText(frame), length);
+			break;
+		case TransferFrame.TYPE_RESUME:
+			transferFrame = TransferFrame.resume(id, readVarint(frame),
+					(int) readVarint(frame));
+			break;
+		case TransferFrame.TYPE_ACK:
+			transferFrame = TransferFrame.ack(id, readVarint(frame),
+					(int) readVarint(frame));
+			break;
+		case TransferFrame.TYPE_DATA:
+			long offset = readVarint(frame);
+			if (mPosition + 4 > frame.length) {
+				throw new IOException("Truncated transfer chunk");
+			}
+			int crc = readInt(frame, mPosition);
+			mPosition += 4;
+			transferFrame = TransferFrame.data(id, offset, crc, frame,
+					mPosition, frame.length - mPosition);
+			break;
+		case TransferFrame.TYPE_END:
+			transferFrame = TransferFrame.end(id, readVarint(frame));
+			break;
+		case TransferFrame.TYPE_CANCEL:
+			transferFrame = TransferFrame.cancel(id, readText(frame));
+			break;
+		default:
+			throw new IOException("Unknown transfer frame type " + type);
+		}
+		mListener.onReceiveMessage(transferFrame);
+	}
+
+	private long readVarint(byte[] frame) throws IOException {
+		long value = 0;
+		for (int shift = 0;; shift += 7) {
+			if (mPosition == frame.length || shift >= 64) {
+				throw new IOException("Malformed transfer frame");
+			}
+			int b = frame[mPosition++];
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+	}
+
+	private String readText(byte[] frame) {
+		return new String(frame, mPosition, frame.length - mPosition,
+				TransferFrameSender.UTF_8);
+	}
+
+	private static int readInt(byte[] frame, int offset) {
+		return (frame[offset] << 24) | ((frame[offset + 1] & 0xFF) << 16)
+				| ((frame[offset + 2] & 0xFF) << 8) | (frame[offset + 3] & 0xFF);
+	}
+}
@@ -0,0 +1,143 @@
+package com.keyboardr.glassremote.common.transfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+import com.keyboardr.glassremote.common.io.Varint;
+import com.keyboardr.glassremote.common.sender.BinaryMessageSender;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+
+/**
+ * Sends {@link TransferFrame TransferFrames}. Each frame is written as a
+ * {@link BinaryMessageSender} message starting with the frame type. Message
+ * frames continue with the payload encoded by the wrapped
+ * <code>MessageSender</code>; transfer frames continue with the 8-byte
+ * transfer id, offsets and windows as {@link Varint Varints}, and the raw
+ * chunk or UTF-8 text.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <T>
+ *            type of the message payloads
+ */
+public class TransferFrameSender<T> implements MessageSender<TransferFrame<T>> {
+
+	static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	/**
+	 * A <code>ByteArrayOutputStream</code> whose contents can be written
+	 * without copying them out first
+	 */
+	private static class FrameBuffer extends ByteArrayOutputStream {
+		FrameBuffer() {
+			super(256);
+		}
+
+		byte[] getBuffer() {
+			return buf;
+		}
+	}
+
+	private final MessageSender<T> mPayloadSender;
+	private final BinaryMessageSender mFrameSender = new BinaryMessageSender();
+	private final FrameBuffer mFrame = new FrameBuffer();
+	private final byte[] mHeader = new byte[1 + 8 + 2 * Varint.MAX_LONG_BYTES
+			+ 4];
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param payloadSender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for encoding <code>T</code> payloads. It must not be used
+	 *            elsewhere.
+	 */
+	public TransferFrameSender(MessageSender<T> payloadSender) {
+		mPayloadSender = payloadSender;
+		mPayloadSender.setOutputStream(mFrame);
+	}
+
+	/**
+	 * Creates a <code>MessageSender.Factory</code> that wraps each sender
+	 * created by <code>payloadFactory</code> in a new
+	 * <code>TransferFrameSender</code>
+	 * 
+	 * @param payloadFactory
+	 *            creates the payload <code>MessageSenders</code>
+	 * @return a <code>MessageSender.Factory</code> for
+	 *         <code>TransferFrameSenders</code>
+	 */
+	public static <T> MessageSender.Factory<TransferFrame<T>> factory(
+			final MessageSender.Factory<T> payloadFactory) {
+		return new MessageSender.Factory<TransferFrame<T>>() {
+
+			@Override
+			public MessageSender<TransferFrame<T>> newSender() {
+				return new TransferFrameSender<T>(payloadFactory.newSender());
+			}
+		};
+	}
+
+	@Override
+	public void setOutputStream(OutputStream output) {
+		mFrameSender.setOutputStream(output);
+	}
+
+	@Override
+	public void sendMessage(TransferFrame<T> message) {
+		mFrame.reset();
+		int type = message.getType();
+		mHeader[0] = (byte) type;
+		if (type == TransferFrame.TYPE_MESSAGE) {
+			mFrame.write(mHeader, 0, 1);
+			if (message.getPayload() != null) {
+				mPayloadSender.sendMessage(message.getPayload());
+			}
+			mFrameSender.sendMessage(mFrame.getBuffer(), 0, mFrame.size());
+			return;
+		}
+		int length = writeLong(message.getId(), 1);
+		switch (type) {
+		case TransferFrame.TYPE_OFFER:
+			length = Varint.write(message.getLength() + 1, mHeader, length);
+			break;
+		case TransferFrame.TYPE_RESUME:
+		case TransferFrame.TYPE_ACK:
+			length = Varint.write(message.getOffset(), mHeader, length);
+			length = Varint.write(message.getWindow(), mHeader, length);
+			break;
+		case TransferFrame.TYPE_DATA:
+			length = Varint.write(message.getOffset(), mHeader, length);
+			length = writeInt(message.getCrc(), length);
+			break;
+		case TransferFrame.TYPE_END:
+			length = Varint.write(message.getOffset(), mHeader, length);
+			break;
+		default:
+			break;
+		}
+		mFrame.write(mHeader, 0, length);
+		if (type == TransferFrame.TYPE_DATA) {
+			mFrame.write(message.getData(), message.getDataOffset(),
+					message.getDataLength());
+		} else if (message.getText() != null) {
+			byte[] text = message.getText().getBytes(UTF_8);
+			mFrame.write(text, 0, text.length);
+		}
+		mFrameSender.sendMessage(mFrame.getBuffer(), 0, mFrame.size());
+	}
+
+	private int writeLong(long value, int offset) {
+		offset = writeInt((int) (value >>> 32), offset);
+		return writeInt((int) value, offset);
+	}
+
+	private int writeInt(int value, int offset) {
+		mHeader[offset++] = (byte) (value >>> 24);
+		mHeader[offset++] = (byte) (value >>> 16);
+		mHeader[offset++] = (byte) (value >>> 8);
+		mHeader[offset++] = (byte) value;
+		return offset;
+	}
+}
@@ -0,0 +1,44 @@
+package com.keyboardr.glassremote.common.transfer;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * The data sent by an outgoing transfer. Reads name their position so a
+ * transfer can go back to the last acknowledged offset when a chunk arrives
+ * corrupted or the link drops.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public interface TransferSource extends Closeable {
+
+	/**
+	 * Gets the total length of the data
+	 * 
+	 * @return the length in bytes, or <code>-1</code> if it is not known in
+	 *         advance
+	 */
+	public long getLength();
+
+	/**
+	 * Reads data starting at a position. Called from one thread at a time,
+	 * usually with increasing positions, but after an error the position may
+	 * go back by up to the window of the {@link TransferEndpoint}.
+	 * 
+	 * @param position
+	 *            the offset in the data to read from
+	 * @param buffer
+	 *            the destination array
+	 * @param offset
+	 *            the index in <code>buffer</code> to start writing at
+	 * @param length
+	 *            the maximum number of bytes to read
+	 * @return the number of bytes read, or <code>-1</code> if
+	 *         <code>position</code> is at the end of the data
+	 * @throws IOException
+	 *             if the data could not be read
+	 */
+	public int read(long position, byte[] buffer, int offset, int length)
+			throws IOException;
+}
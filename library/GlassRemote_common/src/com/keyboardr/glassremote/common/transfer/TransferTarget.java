@@ -0,0 +1,64 @@
+package com.keyboardr.glassremote.common.transfer;
+
+import java.io.IOException;
+
+/**
+ * Stores the data received by an incoming transfer. Methods are called on
+ * the connection's reader thread, one at a time.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public interface TransferTarget {
+
+	/**
+	 * Gets how much of the data is already stored, such as from an earlier
+	 * attempt that was interrupted. The transfer starts at this offset.
+	 * 
+	 * @return the number of bytes already stored
+	 * @throws IOException
+	 *             if the stored data could not be inspected
+	 */
+	public long getResumeOffset() throws IOException;
+
+	/**
+	 * Stores a chunk. Chunks arrive in order, starting at
+	 * {@link #getResumeOffset()}, and have been checked against their
+	 * checksum.
+	 * 
+	 * @param position
+	 *            the offset of the chunk in the data
+	 * @param buffer
+	 *            the array holding the chunk. It must not be kept after this
+	 *            method returns.
+	 * @param offset
+	 *            the start of the chunk in <code>buffer</code>
+	 * @param length
+	 *            the length of the chunk
+	 * @throws IOException
+	 *             if the chunk could not be stored. The transfer is
+	 *             cancelled.
+	 */
+	public void write(long position, byte[] buffer, int offset, int length)
+			throws IOException;
+
+	/**
+	 * Every chunk has been stored
+	 * 
+	 * @param length
+	 *            the total length of the data
+	 * @throws IOException
+	 *             if the data could not be finished, such as by flushing it.
+	 *             The transfer fails.
+	 */
+	public void complete(long length) throws IOException;
+
+	/**
+	 * The transfer has been cancelled by either side or could not continue.
+	 * Data stored so far may be kept so a later transfer can resume from it.
+	 * 
+	 * @param cause
+	 *            why the transfer was abandoned
+	 */
+	public void abort(Throwable cause);
+}
@@ -0,0 +1,44 @@
+package com.keyboardr.glassremote.common.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A bidirectional byte stream to a remote peer, such as a connected
+ * <code>BluetoothSocket</code>. Closing the <code>Connection</code> must
+ * unblock any thread reading from its <code>InputStream</code>.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public interface Connection extends Closeable {
+	/**
+	 * Gets the stream of bytes sent by the remote peer
+	 * 
+	 * @return the <code>InputStream</code> for this <code>Connection</code>
+	 * @throws IOException
+	 *             if the stream could not be obtained
+	 */
+	public InputStream getInputStream() throws IOException;
+
+	/**
+	 * Gets the stream of bytes to send to the remote peer
+	 * 
+	 * @return the <code>OutputStream</code> for this <code>Connection</code>
+	 * @throws IOException
+	 *             if the stream could not be obtained
+	 */
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Gets an identifier for the remote peer, such as a Bluetooth MAC
+	 * address. Servers treat a new connection with the address of an open one
+	 * as that peer reconnecting, so transports that cannot tell peers apart
+	 * across connections should give each connection its own address.
+	 * 
+	 * @return the address of the remote peer
+	 */
+	public String getRemoteAddress();
+}
@@ -0,0 +1,24 @@
+package com.keyboardr.glassremote.common.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Accepts incoming {@link Connection Connections} on behalf of a server.
+ * Closing the <code>ConnectionAcceptor</code> must unblock any thread waiting
+ * in {@link #accept()}.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public interface ConnectionAcceptor extends Closeable {
+	/**
+	 * Waits for a remote client to connect
+	 * 
+	 * @return the newly established <code>Connection</code>
+	 * @throws IOException
+	 *             if this <code>ConnectionAcceptor</code> was closed or can no
+	 *             longer accept connections
+	 */
+	public Connection accept() throws IOException;
+}
@@ -0,0 +1,373 @@
+package com.keyboardr.glassremote.common.transport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.ParcelUuid;
+import android.os.Parcelable;
+import android.os.SystemClock;
+
+/**
+ * Remembers which bonded devices advertise which service <code>UUIDs</code>,
+ * so connecting does not need an SDP query on every bonded device each time.
+ * Entries come from SDP results, delivered asynchronously once the cache is
+ * {@link #register(Context) registered}, and from the UUIDs a device already
+ * reports. The device a service was last reached on is preferred over other
+ * devices advertising it. Entries expire after a time-to-live so a device
+ * that stopped advertising a service is eventually forgotten.<br/>
+ * <br/>
+ * This class is thread-safe.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class DeviceDiscoveryCache {
+
+	/**
+	 * Default time-to-live of an entry, in milliseconds
+	 */
+	public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000;
+
+	/**
+	 * Minimum time between two SDP sweeps started by {@link #refresh}, in
+	 * milliseconds
+	 */
+	private static final long MIN_REFRESH_INTERVAL_MILLIS = 10000;
+
+	private static DeviceDiscoveryCache sInstance;
+
+	/**
+	 * Learns about devices as they are found advertising a service
+	 */
+	public static interface Listener {
+		/**
+		 * <code>device</code> has reported that it advertises
+		 * <code>uuid</code>. Called on the thread that delivered the result,
+		 * which for SDP results is the main thread, so it must not block.
+		 * 
+		 * @param uuid
+		 *            the service <code>UUID</code>
+		 * @param device
+		 *            the advertising <code>BluetoothDevice</code>
+		 */
+		public void onAdvertiserFound(UUID uuid, BluetoothDevice device);
+	}
+
+	private static class Entry {
+		final BluetoothDevice device;
+		final long timestamp;
+
+		Entry(BluetoothDevice device, long timestamp) {
+			this.device = device;
+			this.timestamp = timestamp;
+		}
+	}
+
+	private final long mTtlMillis;
+
+	/**
+	 * Devices advertising each service, by address. Also the lock for all
+	 * other state.
+	 */
+	private final Map<UUID, Map<String, Entry>> mAdvertisers = new HashMap<UUID, Map<String, Entry>>();
+
+	/**
+	 * The device each service was last reached on
+	 */
+	private final Map<UUID, Entry> mLastConnected = new HashMap<UUID, Entry>();
+
+	private final Map<UUID, List<Listener>> mListeners = new HashMap<UUID, List<Listener>>();
+
+	private long mLastRefresh = -MIN_REFRESH_INTERVAL_MILLIS;
+	private Context mRegisteredContext;
+
+	private final BroadcastReceiver mUuidReceiver = new BroadcastReceiver() {
+
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			if (!BluetoothDevice.ACTION_UUID.equals(intent.getAction())) {
+				return;
+			}
+			BluetoothDevice device = intent
+					.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
+			if (device != null) {
+				onUuidsFetched(device,
+						intent.getParcelableArrayExtra(BluetoothDevice.EXTRA_UUID));
+			}
+		}
+	};
+
+	/**
+	 * Gets the cache shared by every {@link RfcommTransport} in this process
+	 * that was not given its own
+	 * 
+	 * @return the shared <code>DeviceDiscoveryCache</code>
+	 */
+	public static synchronized DeviceDiscoveryCache getInstance() {
+		if (sInstance == null) {
+			sInstance = new DeviceDiscoveryCache(DEFAULT_TTL_MILLIS);
+		}
+		return sInstance;
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param ttlMillis
+	 *            how long an entry stays valid after it was last confirmed, in
+	 *            milliseconds
+	 */
+	public DeviceDiscoveryCache(long ttlMillis) {
+		mTtlMillis = ttlMillis;
+	}
+
+	/**
+	 * Starts listening for SDP results. Until this is called the cache only
+	 * learns from the UUIDs devices already report and from successful
+	 * connections.
+	 * 
+	 * @param context
+	 *            any <code>Context</code>; its application context is used
+	 */
+	public void register(Context context) {
+		Context appContext = context.getApplicationContext();
+		if (appContext == null) {
+			appContext = context;
+		}
+		synchronized (mAdvertisers) {
+			if (mRegisteredContext != null) {
+				return;
+			}
+			mRegisteredContext = appContext;
+		}
+		appContext.registerReceiver(mUuidReceiver, new IntentFilter(
+				BluetoothDevice.ACTION_UUID));
+	}
+
+	/**
+	 * Stops listening for SDP results. Cached entries are kept.
+	 */
+	public void unregister() {
+		Context context;
+		synchronized (mAdvertisers) {
+			context = mRegisteredContext;
+			mRegisteredContext = null;
+		}
+		if (context != null) {
+			context.unregisterReceiver(mUuidReceiver);
+		}
+	}
+
+	/**
+	 * Starts an SDP query on every bonded device unless a sweep was started
+	 * recently. Results arrive asynchronously.
+	 * 
+	 * @param adapter
+	 *            the local <code>BluetoothAdapter</code>
+	 */
+	public void refresh(BluetoothAdapter adapter) {
+		long now = SystemClock.elapsedRealtime();
+		synchronized (mAdvertisers) {
+			if (now - mLastRefresh < MIN_REFRESH_INTERVAL_MILLIS) {
+				return;
+			}
+			mLastRefresh = now;
+		}
+		for (BluetoothDevice device : adapter.getBondedDevices()) {
+			device.fetchUuidsWithSdp();
+		}
+	}
+
+	/**
+	 * Records the service <code>UUIDs</code> a device advertises. Services the
+	 * device no longer advertises are forgotten for it.
+	 * 
+	 * @param device
+	 *            the <code>BluetoothDevice</code> that was queried
+	 * @param uuids
+	 *            the <code>ParcelUuids</code> it advertises, or
+	 *            <code>null</code> if unknown
+	 */
+	public void onUuidsFetched(BluetoothDevice device, Parcelable[] uuids) {
+		if (uuids == null) {
+			// The query failed; keep what we knew
+			return;
+		}
+		long now = SystemClock.elapsedRealtime();
+		String address = device.getAddress();
+		List<UUID> found = new ArrayList<UUID>();
+		List<Listener> notify = new ArrayList<Listener>();
+		synchronized (mAdvertisers) {
+			for (Map<String, Entry> advertisers : mAdvertisers.values()) {
+				advertisers.remove(address);
+			}
+			Entry entry = new Entry(device, now);
+			for (Parcelable uuid : uuids) {
+				UUID id = ((ParcelUuid) uuid).getUuid();
+				Map<String, Entry> advertisers = mAdvertisers.get(id);
+				if (advertisers == null) {
+					advertisers = new HashMap<String, Entry>();
+					mAdvertisers.put(id, advertisers);
+				}
+				advertisers.put(address, entry);
+				List<Listener> listeners = mListeners.get(id);
+				if (listeners != null) {
+					for (Listener listener : listeners) {
+						found.add(id);
+						notify.add(listener);
+					}
+				}
+			}
+		}
+		for (int i = 0; i < notify.size(); i++) {
+			notify.get(i).onAdvertiserFound(found.get(i), device);
+		}
+	}
+
+	/**
+	 * Starts telling <code>listener</code> about devices found advertising
+	 * service <code>uuid</code>
+	 * 
+	 * @param uuid
+	 *            the service <code>UUID</code>
+	 * @param listener
+	 *            the <code>Listener</code> to add
+	 */
+	public void addListener(UUID uuid, Listener listener) {
+		synchronized (mAdvertisers) {
+			List<Listener> listeners = mListeners.get(uuid);
+			if (listeners == null) {
+				listeners = new ArrayList<Listener>();
+				mListeners.put(uuid, listeners);
+			}
+			listeners.add(listener);
+		}
+	}
+
+	/**
+	 * Cancels {@link #addListener(UUID, Listener)}
+	 * 
+	 * @param uuid
+	 *            the service <code>UUID</code>
+	 * @param listener
+	 *            the <code>Listener</code> to remove
+	 */
+	public void removeListener(UUID uuid, Listener listener) {
+		synchronized (mAdvertisers) {
+			List<Listener> listeners = mListeners.get(uuid);
+			if (listeners != null && listeners.remove(listener)
+					&& listeners.isEmpty()) {
+				mListeners.remove(uuid);
+			}
+		}
+	}
+
+	/**
+	 * Records that service <code>uuid</code> was reached on
+	 * <code>device</code>, making it the preferred device for the service
+	 * 
+	 * @param uuid
+	 *            the service <code>UUID</code>
+	 * @param device
+	 *            the <code>BluetoothDevice</code> connected to
+	 */
+	public void onConnected(UUID uuid, BluetoothDevice device) {
+		synchronized (mAdvertisers) {
+			mLastConnected.put(uuid,
+					new Entry(device, SystemClock.elapsedRealtime()));
+		}
+	}
+
+	/**
+	 * Forgets that <code>device</code> offers service <code>uuid</code>,
+	 * typically after connecting to it failed
+	 * 
+	 * @param uuid
+	 *            the service <code>UUID</code>
+	 * @param device
+	 *            the <code>BluetoothDevice</code> to forget
+	 */
+	public void invalidate(UUID uuid, BluetoothDevice device) {
+		String address = device.getAddress();
+		synchronized (mAdvertisers) {
+			Entry last = mLastConnected.get(uuid);
+			if (last != null && sameAddress(last.device, address)) {
+				mLastConnected.remove(uuid);
+			}
+			Map<String, Entry> advertisers = mAdvertisers.get(uuid);
+			if (advertisers != null) {
+				advertisers.remove(address);
+			}
+		}
+	}
+
+	/**
+	 * Gets a device believed to offer service <code>uuid</code>. The device
+	 * the service was last reached on is returned if its entry is still valid,
+	 * otherwise the most recently confirmed advertiser.
+	 * 
+	 * @param uuid
+	 *            the service <code>UUID</code>
+	 * @param bondedDevices
+	 *            the currently bonded devices; devices no longer bonded are
+	 *            skipped
+	 * @return a <code>BluetoothDevice</code>, or <code>null</code> if none is
+	 *         cached
+	 */
+	public BluetoothDevice getDevice(UUID uuid,
+			Set<BluetoothDevice> bondedDevices) {
+		long now = SystemClock.elapsedRealtime();
+		synchronized (mAdvertisers) {
+			Entry last = mLastConnected.get(uuid);
+			if (last != null) {
+				if (now - last.timestamp < mTtlMillis
+						&& bondedDevices.contains(last.device)) {
+					return last.device;
+				}
+				mLastConnected.remove(uuid);
+			}
+			Map<String, Entry> advertisers = mAdvertisers.get(uuid);
+			if (advertisers == null) {
+				return null;
+			}
+			Entry best = null;
+			Iterator<Entry> iterator = advertisers.values().iterator();
+			while (iterator.hasNext()) {
+				Entry entry = iterator.next();
+				if (now - entry.timestamp >= mTtlMillis
+						|| !bondedDevices.contains(entry.device)) {
+					iterator.remove();
+				} else if (best == null || entry.timestamp > best.timestamp) {
+					best = entry;
+				}
+			}
+			return best == null ? null : best.device;
+		}
+	}
+
+	/**
+	 * Forgets every entry
+	 */
+	public void clear() {
+		synchronized (mAdvertisers) {
+			mAdvertisers.clear();
+			mLastConnected.clear();
+		}
+	}
+
+	private static boolean sameAddress(BluetoothDevice device, String address) {
+		String other = device.getAddress();
+		return other == null ? address == null : other.equals(address);
+	}
+}
@@ -0,0 +1,482 @@
+package com.keyboardr.glassremote.common.transport;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.keyboardr.glassremote.common.io.Varint;
+import com.keyboardr.glassremote.common.metrics.LatencyHistogram;
+
+/**
+ * A {@link Connection} from a {@link HeartbeatTransport}. Bytes written to it
+ * are sent in <code>DATA</code> frames, a type byte and a {@link Varint}
+ * length followed by the bytes, between which <code>PING</code> and
+ * <code>PONG</code> frames carrying a <code>Varint</code> timestamp are
+ * interleaved. A <code>PONG</code> echoes the timestamp of the
+ * <code>PING</code> it answers, so the pinging end can measure the round trip
+ * without the clocks of the two ends having to agree.<br/>
+ * <br/>
+ * Neither the reader thread nor the heartbeat timer ever blocks on a write:
+ * pings and pongs are sent by whichever thread next holds the write lock, or
+ * by a writer task if none does. A pong waits behind data already being
+ * written, so the round trip time is what a message sent now would see.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class HeartbeatConnection implements Connection {
+
+	static final int FRAME_DATA = 0;
+	static final int FRAME_PING = 1;
+	static final int FRAME_PONG = 2;
+
+	private static final int MAX_DATA_HEADER_SIZE = 1 + Varint.MAX_INT_BYTES;
+	private static final int MAX_CONTROL_SIZE = 1 + Varint.MAX_LONG_BYTES;
+
+	private final Connection mConnection;
+	private final HeartbeatTransport.Config mConfig;
+	private final HeartbeatTransport.Listener mListener;
+	private final Executor mWriter;
+	private final InputStream mIn;
+	private final OutputStream mOut;
+	private final long mCreatedNanos = System.nanoTime();
+
+	/**
+	 * Guards <code>mOut</code>, <code>mBuffer</code> and <code>mCount</code>
+	 */
+	private final ReentrantLock mWriteLock = new ReentrantLock();
+
+	/**
+	 * Data waiting to be sent, after room for the frame header
+	 */
+	private final byte[] mBuffer;
+	private int mCount;
+	private final byte[] mControl = new byte[2 * MAX_CONTROL_SIZE];
+
+	/**
+	 * Bytes left in the <code>DATA</code> frame being read. Only used by the
+	 * reader thread.
+	 */
+	private int mRemaining;
+
+	// Guarded by this
+	private boolean mPingPending;
+	private boolean mPongPending;
+	private long mPongValue;
+	private boolean mControlScheduled;
+	private long mLastRttMicros = -1;
+	private long mSmoothedRttMicros = -1;
+	private long mRttVarMicros = -1;
+	private ScheduledFuture<?> mTick;
+
+	private final LatencyHistogram mRttHistogram = new LatencyHistogram();
+
+	private volatile boolean mHeard;
+	private volatile int mMissedBeats;
+	private volatile boolean mClosed;
+	private volatile boolean mDead;
+
+	private final InputStream mInputStream = new InputStream() {
+		@Override
+		public int read() throws IOException {
+			byte[] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return readData(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return mRemaining == 0 ? 0 : Math.min(mRemaining, mIn.available());
+		}
+
+		@Override
+		public void close() throws IOException {
+			HeartbeatConnection.this.close();
+		}
+	};
+
+	private final OutputStream mOutputStream = new OutputStream() {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			writeData(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			flushData();
+		}
+
+		@Override
+		public void close() throws IOException {
+			HeartbeatConnection.this.close();
+		}
+	};
+
+	private final Runnable mBeat = new Runnable() {
+
+		@Override
+		public void run() {
+			beat();
+		}
+	};
+
+	private final Runnable mSendControl = new Runnable() {
+
+		@Override
+		public void run() {
+			mWriteLock.lock();
+			try {
+				synchronized (HeartbeatConnection.this) {
+					mControlScheduled = false;
+				}
+				writeControl();
+			} catch (IOException e) {
+				closeQuietly();
+			} finally {
+				mWriteLock.unlock();
+			}
+		}
+	};
+
+	HeartbeatConnection(Connection connection,
+			HeartbeatTransport.Config config,
+			HeartbeatTransport.Listener listener, Executor writer)
+			throws IOException {
+		mConnection = connection;
+		mConfig = config;
+		mListener = listener;
+		mWriter = writer;
+		mIn = new BufferedInputStream(connection.getInputStream());
+		mOut = connection.getOutputStream();
+		mBuffer = new byte[MAX_DATA_HEADER_SIZE + config.getBufferSize()];
+	}
+
+	synchronized void start(ScheduledExecutorService timer) {
+		long interval = mConfig.getIntervalMillis();
+		mTick = timer.scheduleAtFixedRate(mBeat, interval, interval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Gets the <code>Connection</code> the heartbeats are sent over
+	 * 
+	 * @return the underlying <code>Connection</code>
+	 */
+	public Connection getConnection() {
+		return mConnection;
+	}
+
+	@Override
+	public InputStream getInputStream() {
+		return mInputStream;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return mOutputStream;
+	}
+
+	@Override
+	public String getRemoteAddress() {
+		return mConnection.getRemoteAddress();
+	}
+
+	/**
+	 * Gets the round trip time of the most recent ping
+	 * 
+	 * @return the round trip time in microseconds, or <code>-1</code> if no
+	 *         pong has been received
+	 */
+	public synchronized long getLastRttMicros() {
+		return mLastRttMicros;
+	}
+
+	/**
+	 * Gets the smoothed round trip time. Each new sample moves it an eighth
+	 * of the way towards the sample, as for TCP.
+	 * 
+	 * @return the smoothed round trip time in microseconds, or <code>-1</code>
+	 *         if no pong has been received
+	 */
+	public synchronized long getSmoothedRttMicros() {
+		return mSmoothedRttMicros;
+	}
+
+	/**
+	 * Gets the jitter of the round trip time, as the smoothed mean deviation
+	 * of the samples from the smoothed round trip time
+	 * 
+	 * @return the jitter in microseconds, or <code>-1</code> if no pong has
+	 *         been received
+	 */
+	public synchronized long getRttJitterMicros() {
+		return mRttVarMicros;
+	}
+
+	/**
+	 * Gets the distribution of all round trip times measured
+	 * 
+	 * @return a snapshot of the round trip time histogram
+	 */
+	public LatencyHistogram.Snapshot getRttHistogram() {
+		return mRttHistogram.snapshot();
+	}
+
+	/**
+	 * Gets the number of heartbeat intervals in a row in which nothing was
+	 * received from the peer
+	 * 
+	 * @return the current number of missed beats
+	 */
+	public int getMissedBeats() {
+		return mMissedBeats;
+	}
+
+	/**
+	 * Checks whether this connection was closed because too many beats were
+	 * missed
+	 * 
+	 * @return <code>true</code> if the link was declared dead
+	 */
+	public boolean isLinkDead() {
+		return mDead;
+	}
+
+	@Override
+	public void close() throws IOException {
+		synchronized (this) {
+			mClosed = true;
+			if (mTick != null) {
+				mTick.cancel(false);
+			}
+		}
+		mConnection.close();
+	}
+
+	private void closeQuietly() {
+		try {
+			close();
+		} catch (IOException ignored) {
+		}
+	}
+
+	private int readData(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		while (mRemaining == 0) {
+			if (!readFrame()) {
+				return -1;
+			}
+		}
+		int read = mIn.read(b, off, Math.min(len, mRemaining));
+		if (read < 0) {
+			throw new EOFException("Connection ended within a frame");
+		}
+		mHeard = true;
+		mRemaining -= read;
+		return read;
+	}
+
+	/**
+	 * Reads one frame header, handling <code>PING</code> and
+	 * <code>PONG</code> frames completely
+	 * 
+	 * @return <code>false</code> if the connection ended cleanly
+	 */
+	private boolean readFrame() throws IOException {
+		int type = mIn.read();
+		if (type < 0) {
+			return false;
+		}
+		mHeard = true;
+		switch (type) {
+		case FRAME_DATA:
+			mRemaining = Varint.readInt(mIn);
+			if (mRemaining < 0) {
+				throw new EOFException("Connection ended within a frame");
+			}
+			break;
+		case FRAME_PING:
+			long ping = Varint.readLong(mIn);
+			synchronized (this) {
+				mPongPending = true;
+				mPongValue = ping;
+			}
+			requestControl();
+			break;
+		case FRAME_PONG:
+			onPong(Varint.readLong(mIn));
+			break;
+		default:
+			throw new IOException("Unknown heartbeat frame type " + type);
+		}
+		return true;
+	}
+
+	private void onPong(long sentNanos) {
+		long rttNanos = System.nanoTime() - mCreatedNanos - sentNanos;
+		if (sentNanos < 0 || rttNanos < 0) {
+			return;
+		}
+		long rtt = rttNanos / 1000;
+		synchronized (this) {
+			if (mSmoothedRttMicros < 0) {
+				mSmoothedRttMicros = rtt;
+				mRttVarMicros = rtt / 2;
+			} else {
+				mRttVarMicros = (3 * mRttVarMicros + Math.abs(mSmoothedRttMicros
+						- rtt)) / 4;
+				mSmoothedRttMicros = (7 * mSmoothedRttMicros + rtt) / 8;
+			}
+			mLastRttMicros = rtt;
+		}
+		mRttHistogram.record(rttNanos);
+		if (mListener != null) {
+			mListener.onRoundTrip(this, rtt);
+		}
+	}
+
+	/**
+	 * Runs once per interval on the timer thread
+	 */
+	private void beat() {
+		if (mClosed) {
+			return;
+		}
+		if (mHeard) {
+			mHeard = false;
+			mMissedBeats = 0;
+		} else if (++mMissedBeats >= mConfig.getMissedBeats()) {
+			mDead = true;
+			closeQuietly();
+			if (mListener != null) {
+				mListener.onLinkDead(this);
+			}
+			return;
+		}
+		synchronized (this) {
+			mPingPending = true;
+		}
+		requestControl();
+	}
+
+	/**
+	 * Makes sure pending control frames are sent soon without blocking the
+	 * calling thread
+	 */
+	private void requestControl() {
+		synchronized (this) {
+			if (mControlScheduled || mClosed) {
+				return;
+			}
+			mControlScheduled = true;
+		}
+		try {
+			mWriter.execute(mSendControl);
+		} catch (RejectedExecutionException e) {
+			synchronized (this) {
+				mControlScheduled = false;
+			}
+		}
+	}
+
+	/**
+	 * Sends any pending <code>PING</code> and <code>PONG</code>. Must hold the
+	 * write lock.
+	 */
+	private void writeControl() throws IOException {
+		int length = 0;
+		synchronized (this) {
+			if (mPongPending) {
+				mControl[length++] = FRAME_PONG;
+				length = Varint.write(mPongValue, mControl, length);
+				mPongPending = false;
+			}
+			if (mPingPending) {
+				mControl[length++] = FRAME_PING;
+				length = Varint.write(System.nanoTime() - mCreatedNanos,
+						mControl, length);
+				mPingPending = false;
+			}
+		}
+		if (length > 0) {
+			mOut.write(mControl, 0, length);
+			mOut.flush();
+		}
+	}
+
+	private void writeData(byte[] b, int off, int len) throws IOException {
+		mWriteLock.lock();
+		try {
+			if (mClosed) {
+				throw new IOException("Connection closed");
+			}
+			int bufferSize = mBuffer.length - MAX_DATA_HEADER_SIZE;
+			if (mCount + len > bufferSize) {
+				sendBuffer();
+			}
+			if (len >= bufferSize) {
+				int header = writeHeader(len, mControl, 0);
+				mOut.write(mControl, 0, header);
+				mOut.write(b, off, len);
+			} else {
+				System.arraycopy(b, off, mBuffer, MAX_DATA_HEADER_SIZE + mCount,
+						len);
+				mCount += len;
+				if (mCount == bufferSize) {
+					sendBuffer();
+				}
+			}
+			writeControl();
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	private void flushData() throws IOException {
+		mWriteLock.lock();
+		try {
+			sendBuffer();
+			writeControl();
+			mOut.flush();
+		} finally {
+			mWriteLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends the buffered data as one frame. Must hold the write lock.
+	 */
+	private void sendBuffer() throws IOException {
+		if (mCount == 0) {
+			return;
+		}
+		int start = MAX_DATA_HEADER_SIZE - 1 - Varint.sizeOf(mCount);
+		writeHeader(mCount, mBuffer, start);
+		mOut.write(mBuffer, start, MAX_DATA_HEADER_SIZE - start + mCount);
+		mCount = 0;
+	}
+
+	private static int writeHeader(int length, byte[] buffer, int offset) {
+		buffer[offset] = FRAME_DATA;
+		return Varint.write(length, buffer, offset + 1);
+	}
+}
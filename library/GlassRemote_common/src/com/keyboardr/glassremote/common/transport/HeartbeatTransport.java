@@ -0,0 +1,220 @@
+package com.keyboardr.glassremote.common.transport;
+
+import java.io.IOException;
+
+import com.keyboardr.glassremote.common.IoEngine;
+
+/**
+ * Wraps the connections of another {@link Transport} with a ping/pong
+ * heartbeat, so a link that has silently died is detected within a few
+ * heartbeat intervals rather than when a write finally fails. A half-open
+ * RFCOMM link can otherwise look connected for a long time while everything
+ * sent over it is lost.<br/>
+ * <br/>
+ * Each {@link HeartbeatConnection} pings its peer once per interval and
+ * measures the round trip time of the answers. A beat is missed when a whole
+ * interval passes without anything arriving from the peer; after
+ * {@link Config#setMissedBeats(int) too many} in a row the underlying
+ * connection is closed. Whatever is reading from it, such as a
+ * <code>MessageConnection</code>, then sees the connection end and can
+ * reconnect.<br/>
+ * <br/>
+ * Both ends must wrap their <code>Transport</code> in a
+ * <code>HeartbeatTransport</code>, and must keep reading from their
+ * connections, since pings are only answered as they are read.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class HeartbeatTransport implements Transport {
+
+	/**
+	 * Tuning parameters for a <code>HeartbeatTransport</code>
+	 */
+	public static class Config {
+		private long mIntervalMillis = 1000;
+		private int mMissedBeats = 3;
+		private int mBufferSize = 8 * 1024;
+
+		/**
+		 * Class constructor. Creates a configuration with the default values.
+		 */
+		public Config() {
+		}
+
+		/**
+		 * Sets the time between pings. Defaults to one second.
+		 * 
+		 * @param intervalMillis
+		 *            the heartbeat interval in milliseconds
+		 * @return this <code>Config</code>
+		 */
+		public Config setIntervalMillis(long intervalMillis) {
+			if (intervalMillis < 1) {
+				throw new IllegalArgumentException("intervalMillis < 1");
+			}
+			mIntervalMillis = intervalMillis;
+			return this;
+		}
+
+		/**
+		 * Sets how many intervals in a row may pass without hearing from the
+		 * peer before the link is declared dead. Defaults to 3.
+		 * 
+		 * @param missedBeats
+		 *            the number of missed beats
+		 * @return this <code>Config</code>
+		 */
+		public Config setMissedBeats(int missedBeats) {
+			if (missedBeats < 1) {
+				throw new IllegalArgumentException("missedBeats < 1");
+			}
+			mMissedBeats = missedBeats;
+			return this;
+		}
+
+		/**
+		 * Sets how many bytes written to a connection are collected into one
+		 * frame before it is sent. Writes are also sent on
+		 * <code>flush()</code>. Defaults to 8KB.
+		 * 
+		 * @param bufferSize
+		 *            the write buffer size in bytes
+		 * @return this <code>Config</code>
+		 */
+		public Config setBufferSize(int bufferSize) {
+			if (bufferSize < 1) {
+				throw new IllegalArgumentException("bufferSize < 1");
+			}
+			mBufferSize = bufferSize;
+			return this;
+		}
+
+		public long getIntervalMillis() {
+			return mIntervalMillis;
+		}
+
+		public int getMissedBeats() {
+			return mMissedBeats;
+		}
+
+		public int getBufferSize() {
+			return mBufferSize;
+		}
+	}
+
+	/**
+	 * Receives the state of the links of a <code>HeartbeatTransport</code>.
+	 * Methods are called on the connection's reader or heartbeat thread and
+	 * must return quickly.
+	 */
+	public static interface Listener {
+		/**
+		 * A pong was received
+		 * 
+		 * @param connection
+		 *            the <code>HeartbeatConnection</code>, whose smoothed
+		 *            round trip time and jitter include the new sample
+		 * @param rttMicros
+		 *            the round trip time of this ping in microseconds
+		 */
+		public void onRoundTrip(HeartbeatConnection connection, long rttMicros);
+
+		/**
+		 * Too many beats were missed. The connection has been closed.
+		 * 
+		 * @param connection
+		 *            the dead <code>HeartbeatConnection</code>
+		 */
+		public void onLinkDead(HeartbeatConnection connection);
+	}
+
+	private static class HeartbeatAcceptor implements ConnectionAcceptor {
+		private final HeartbeatTransport mTransport;
+		private final ConnectionAcceptor mAcceptor;
+
+		HeartbeatAcceptor(HeartbeatTransport transport,
+				ConnectionAcceptor acceptor) {
+			mTransport = transport;
+			mAcceptor = acceptor;
+		}
+
+		@Override
+		public Connection accept() throws IOException {
+			return mTransport.wrap(mAcceptor.accept());
+		}
+
+		@Override
+		public void close() throws IOException {
+			mAcceptor.close();
+		}
+	}
+
+	private final Transport mTransport;
+	private final Config mConfig;
+	private final Listener mListener;
+
+	/**
+	 * Class constructor. Uses the default {@link Config}.
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> to add heartbeats to
+	 */
+	public HeartbeatTransport(Transport transport) {
+		this(transport, null, null);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> to add heartbeats to
+	 * @param config
+	 *            the <code>Config</code> to use, or <code>null</code> for the
+	 *            defaults
+	 * @param listener
+	 *            the <code>Listener</code> to notify of round trips and dead
+	 *            links, or <code>null</code>
+	 */
+	public HeartbeatTransport(Transport transport, Config config,
+			Listener listener) {
+		mTransport = transport;
+		mConfig = config == null ? new Config() : config;
+		mListener = listener;
+	}
+
+	/**
+	 * Gets the <code>Transport</code> the heartbeats are added to
+	 * 
+	 * @return the underlying <code>Transport</code>
+	 */
+	public Transport getTransport() {
+		return mTransport;
+	}
+
+	@Override
+	public HeartbeatConnection connect() throws IOException {
+		return wrap(mTransport.connect());
+	}
+
+	@Override
+	public ConnectionAcceptor listen() throws IOException {
+		return new HeartbeatAcceptor(this, mTransport.listen());
+	}
+
+	private HeartbeatConnection wrap(Connection connection) throws IOException {
+		HeartbeatConnection heartbeat;
+		try {
+			heartbeat = new HeartbeatConnection(connection, mConfig, mListener,
+					IoEngine.getDefault().getBlockingExecutor());
+		} catch (IOException e) {
+			try {
+				connection.close();
+			} catch (IOException ignored) {
+			}
+			throw e;
+		}
+		heartbeat.start(IoEngine.getDefault().getScheduler());
+		return heartbeat;
+	}
+}
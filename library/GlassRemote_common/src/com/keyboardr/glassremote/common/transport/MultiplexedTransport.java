@@ -0,0 +1,455 @@
+package com.keyboardr.glassremote.common.transport;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.keyboardr.glassremote.common.IoEngine;
+
+/**
+ * Carries several logical channels over a single connection of another
+ * {@link Transport}. Each channel is itself a <code>Transport</code>, so a
+ * client can run one <code>RemoteMessenger</code> and a server one
+ * <code>MessageService</code> per channel, each with its own message types,
+ * while sharing one Bluetooth socket.<br/>
+ * <br/>
+ * Outgoing data is split into chunks and the chunks of all channels are
+ * interleaved by priority, so a small message on a high priority channel goes
+ * out after at most one chunk of a large transfer on a lower priority one,
+ * rather than after the whole transfer. Each channel has its own flow control
+ * window, so a channel whose reader falls behind does not hold up the
+ * others.<br/>
+ * <br/>
+ * Both ends must wrap the same kind of <code>Transport</code> in a
+ * <code>MultiplexedTransport</code> and agree on the channel ids. All
+ * channels of one end must come from the same instance, for example:
+ * 
+ * <pre>
+ * MultiplexedTransport mux = new MultiplexedTransport(rfcommTransport);
+ * Transport control = mux.getChannel(0, MultiplexedTransport.PRIORITY_HIGH);
+ * Transport images = mux.getChannel(1, MultiplexedTransport.PRIORITY_LOW);
+ * </pre>
+ * 
+ * A client connects the underlying <code>Transport</code> when the first
+ * channel connects and closes it once every channel is closed. A server
+ * listens on it while any channel is listening, and refuses channels nothing
+ * is listening on.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class MultiplexedTransport {
+
+	/**
+	 * Priority for latency-critical traffic such as input events
+	 */
+	public static final int PRIORITY_HIGH = 2;
+
+	/**
+	 * Priority for ordinary messages
+	 */
+	public static final int PRIORITY_NORMAL = 1;
+
+	/**
+	 * Priority for bulk transfers such as images
+	 */
+	public static final int PRIORITY_LOW = 0;
+
+	/**
+	 * Tuning parameters for a <code>MultiplexedTransport</code>
+	 */
+	public static class Config {
+		private int mChunkSize = 1024;
+		private int mWindowSize = 64 * 1024;
+		private int mSendBufferSize = 64 * 1024;
+
+		/**
+		 * Class constructor. Creates a configuration with the default values.
+		 */
+		public Config() {
+		}
+
+		/**
+		 * Sets the largest number of bytes of one channel sent before other
+		 * channels get a turn. Smaller chunks let high priority data through
+		 * sooner at the cost of more framing. Defaults to 1KB.
+		 * 
+		 * @param chunkSize
+		 *            the chunk size in bytes
+		 * @return this <code>Config</code>
+		 */
+		public Config setChunkSize(int chunkSize) {
+			if (chunkSize < 1) {
+				throw new IllegalArgumentException("chunkSize < 1");
+			}
+			mChunkSize = chunkSize;
+			return this;
+		}
+
+		/**
+		 * Sets how many received bytes each channel buffers before the peer
+		 * must wait for them to be read. Defaults to 64KB.
+		 * 
+		 * @param windowSize
+		 *            the receive window in bytes
+		 * @return this <code>Config</code>
+		 */
+		public Config setWindowSize(int windowSize) {
+			if (windowSize < 2) {
+				throw new IllegalArgumentException("windowSize < 2");
+			}
+			mWindowSize = windowSize;
+			return this;
+		}
+
+		/**
+		 * Sets how many bytes each channel buffers for sending before writes
+		 * to it block. Defaults to 64KB.
+		 * 
+		 * @param sendBufferSize
+		 *            the send buffer size in bytes
+		 * @return this <code>Config</code>
+		 */
+		public Config setSendBufferSize(int sendBufferSize) {
+			if (sendBufferSize < 1) {
+				throw new IllegalArgumentException("sendBufferSize < 1");
+			}
+			mSendBufferSize = sendBufferSize;
+			return this;
+		}
+
+		public int getChunkSize() {
+			return mChunkSize;
+		}
+
+		public int getWindowSize() {
+			return mWindowSize;
+		}
+
+		public int getSendBufferSize() {
+			return mSendBufferSize;
+		}
+	}
+
+	/**
+	 * The <code>Transport</code> for one channel
+	 */
+	private class ChannelTransport implements Transport {
+		final int mId;
+		final int mPriority;
+
+		/**
+		 * Incoming channels waiting to be accepted, or <code>null</code> if
+		 * not listening. Guarded by the <code>MultiplexedTransport</code>.
+		 */
+		ArrayDeque<Connection> mPending;
+
+		ChannelTransport(int id, int priority) {
+			mId = id;
+			mPriority = priority;
+		}
+
+		@Override
+		public Connection connect() throws IOException {
+			return connectChannel(this);
+		}
+
+		@Override
+		public ConnectionAcceptor listen() throws IOException {
+			return listenChannel(this);
+		}
+	}
+
+	private final Transport mTransport;
+	private final Config mConfig;
+	private final Map<Integer, ChannelTransport> mChannels = new HashMap<Integer, ChannelTransport>();
+	private final List<MuxSession> mServerSessions = new ArrayList<MuxSession>();
+
+	private MuxSession mClientSession;
+	private ConnectionAcceptor mAcceptor;
+	private int mListeningCount;
+
+	/**
+	 * Class constructor. Uses the default {@link Config}.
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> to carry the channels over
+	 */
+	public MultiplexedTransport(Transport transport) {
+		this(transport, null);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> to carry the channels over
+	 * @param config
+	 *            the <code>Config</code> to use, or <code>null</code> for the
+	 *            defaults
+	 */
+	public MultiplexedTransport(Transport transport, Config config) {
+		mTransport = transport;
+		mConfig = config == null ? new Config() : config;
+	}
+
+	/**
+	 * Gets the <code>Transport</code> for a channel, creating it the first
+	 * time
+	 * 
+	 * @param id
+	 *            the channel id, agreed with the remote peer. Must not be
+	 *            negative.
+	 * @param priority
+	 *            the priority of data sent on the channel, such as
+	 *            {@link #PRIORITY_HIGH}. Higher values are sent first.
+	 * @return the channel's <code>Transport</code>
+	 * @throws IllegalArgumentException
+	 *             if the channel was already created with a different
+	 *             priority
+	 */
+	public synchronized Transport getChannel(int id, int priority) {
+		if (id < 0) {
+			throw new IllegalArgumentException("id < 0");
+		}
+		ChannelTransport channel = mChannels.get(id);
+		if (channel == null) {
+			channel = new ChannelTransport(id, priority);
+			mChannels.put(id, channel);
+		} else if (channel.mPriority != priority) {
+			throw new IllegalArgumentException("Channel " + id
+					+ " already has priority " + channel.mPriority);
+		}
+		return channel;
+	}
+
+	/**
+	 * Gets the <code>Transport</code> the channels are carried over
+	 * 
+	 * @return the underlying <code>Transport</code>
+	 */
+	public Transport getTransport() {
+		return mTransport;
+	}
+
+	Config getConfig() {
+		return mConfig;
+	}
+
+	synchronized int getPriority(int id) {
+		ChannelTransport channel = mChannels.get(id);
+		return channel == null ? PRIORITY_NORMAL : channel.mPriority;
+	}
+
+	/**
+	 * Hands a channel opened by the peer to whoever is listening on it
+	 * 
+	 * @return <code>false</code> if nothing is listening on the channel
+	 */
+	synchronized boolean offerChannel(MuxSession.Channel channel) {
+		ChannelTransport transport = mChannels.get(channel.mId);
+		if (transport == null || transport.mPending == null) {
+			return false;
+		}
+		transport.mPending.addLast(channel);
+		notifyAll();
+		return true;
+	}
+
+	synchronized void onSessionClosed(MuxSession session) {
+		if (mClientSession == session) {
+			mClientSession = null;
+		}
+		mServerSessions.remove(session);
+	}
+
+	private Connection connectChannel(ChannelTransport transport)
+			throws IOException {
+		while (true) {
+			MuxSession session;
+			synchronized (this) {
+				session = mClientSession;
+			}
+			if (session == null || session.isClosed()) {
+				// Connected without the lock, which the sessions' readers and
+				// listening channels need meanwhile
+				MuxSession started = new MuxSession(mTransport.connect(), this,
+						true);
+				started.start();
+				synchronized (this) {
+					session = mClientSession;
+					if (session == null || session.isClosed()) {
+						mClientSession = started;
+						session = started;
+					}
+				}
+				if (session != started) {
+					// Another channel connected first; share its session
+					started.close();
+				}
+			}
+			try {
+				return session.openChannel(transport.mId, transport.mPriority);
+			} catch (IOException e) {
+				if (!session.isClosed()) {
+					throw e;
+				}
+				// The session went idle as we joined it; start another
+				synchronized (this) {
+					if (mClientSession == session) {
+						mClientSession = null;
+					}
+				}
+			}
+		}
+	}
+
+	private ConnectionAcceptor listenChannel(final ChannelTransport transport)
+			throws IOException {
+		synchronized (this) {
+			if (transport.mPending != null) {
+				throw new IOException("Channel " + transport.mId
+						+ " already listening");
+			}
+			if (mAcceptor == null) {
+				mAcceptor = mTransport.listen();
+				final ConnectionAcceptor acceptor = mAcceptor;
+				IoEngine.getDefault().startLoop(
+						"MultiplexedTransport-acceptor", new Runnable() {
+
+							@Override
+							public void run() {
+								acceptLoop(acceptor);
+							}
+						});
+			}
+			transport.mPending = new ArrayDeque<Connection>();
+			mListeningCount++;
+		}
+		return new ConnectionAcceptor() {
+
+			@Override
+			public Connection accept() throws IOException {
+				synchronized (MultiplexedTransport.this) {
+					while (transport.mPending != null
+							&& transport.mPending.isEmpty()) {
+						try {
+							MultiplexedTransport.this.wait();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException();
+						}
+					}
+					if (transport.mPending == null) {
+						throw new IOException("Acceptor closed");
+					}
+					return transport.mPending.pollFirst();
+				}
+			}
+
+			@Override
+			public void close() {
+				stopListening(transport);
+			}
+		};
+	}
+
+	private void acceptLoop(ConnectionAcceptor acceptor) {
+		while (true) {
+			Connection connection;
+			try {
+				connection = acceptor.accept();
+			} catch (IOException e) {
+				synchronized (this) {
+					if (mAcceptor != acceptor) {
+						// Closed because nothing is listening any more
+						return;
+					}
+				}
+				e.printStackTrace();
+				stopAll(acceptor);
+				return;
+			}
+			MuxSession session = new MuxSession(connection, this, false);
+			synchronized (this) {
+				if (mAcceptor != acceptor) {
+					session = null;
+				} else {
+					mServerSessions.add(session);
+				}
+			}
+			if (session == null) {
+				closeQuietly(connection);
+				return;
+			}
+			try {
+				session.start();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private void stopListening(ChannelTransport transport) {
+		ArrayDeque<Connection> unaccepted;
+		ConnectionAcceptor acceptor = null;
+		List<MuxSession> sessions = null;
+		synchronized (this) {
+			unaccepted = transport.mPending;
+			if (unaccepted == null) {
+				return;
+			}
+			transport.mPending = null;
+			if (--mListeningCount == 0) {
+				acceptor = mAcceptor;
+				mAcceptor = null;
+				sessions = new ArrayList<MuxSession>(mServerSessions);
+			}
+			notifyAll();
+		}
+		for (Connection connection : unaccepted) {
+			closeQuietly(connection);
+		}
+		if (acceptor != null) {
+			closeQuietly(acceptor);
+		}
+		if (sessions != null) {
+			for (MuxSession session : sessions) {
+				session.close();
+			}
+		}
+	}
+
+	/**
+	 * Stops every channel from listening after the underlying acceptor failed
+	 */
+	private void stopAll(ConnectionAcceptor acceptor) {
+		List<ChannelTransport> listening = new ArrayList<ChannelTransport>();
+		synchronized (this) {
+			if (mAcceptor != acceptor) {
+				return;
+			}
+			for (ChannelTransport transport : mChannels.values()) {
+				if (transport.mPending != null) {
+					listening.add(transport);
+				}
+			}
+		}
+		for (ChannelTransport transport : listening) {
+			stopListening(transport);
+		}
+	}
+
+	private static void closeQuietly(Closeable closeable) {
+		try {
+			closeable.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
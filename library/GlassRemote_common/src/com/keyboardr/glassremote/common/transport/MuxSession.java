@@ -0,0 +1,652 @@
+package com.keyboardr.glassremote.common.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.keyboardr.glassremote.common.IoEngine;
+import com.keyboardr.glassremote.common.io.Varint;
+
+/**
+ * Carries the channels of a {@link MultiplexedTransport} over one physical
+ * {@link Connection}. Every frame is a type byte, the channel id and a value,
+ * both as {@link Varint Varints}; <code>DATA</code> frames are followed by
+ * <code>value</code> bytes of the channel's stream.<br/>
+ * <br/>
+ * A channel is opened by sending <code>OPEN</code> with the sender's receive
+ * window as the value. The peer answers with its own <code>OPEN</code>, or with
+ * <code>CLOSE</code> if nothing is listening on the channel. A sender never
+ * has more bytes in flight than the peer's window; the peer grants more with
+ * <code>WINDOW</code> frames as the bytes are consumed, so a slow channel
+ * never stalls the reader thread. A channel is gone once each side has both
+ * sent and received <code>CLOSE</code>, and only then may its id be reused.<br/>
+ * <br/>
+ * The writer thread sends control frames first, then at most one chunk from
+ * the highest priority channel with data and window, taking turns between
+ * channels of equal priority.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+class MuxSession {
+
+	static final int FRAME_DATA = 0;
+	static final int FRAME_WINDOW = 1;
+	static final int FRAME_OPEN = 2;
+	static final int FRAME_CLOSE = 3;
+
+	private static final int MAX_HEADER_SIZE = 1 + 2 * Varint.MAX_INT_BYTES;
+
+	/**
+	 * One end of a logical channel. All state is guarded by the session.
+	 */
+	class Channel implements Connection {
+		final int mId;
+		final int mPriority;
+
+		/**
+		 * Bytes written locally and not yet sent, as a ring buffer
+		 */
+		final byte[] mOut;
+		int mOutStart;
+		int mOutCount;
+
+		/**
+		 * Bytes received and not yet read, as a ring buffer the size of the
+		 * receive window
+		 */
+		final byte[] mIn;
+		int mInStart;
+		int mInCount;
+
+		/**
+		 * Bytes read since the peer was last granted window
+		 */
+		int mUnacked;
+
+		/**
+		 * Bytes the peer is ready to receive
+		 */
+		int mCredit;
+
+		boolean mOpen;
+		boolean mRefused;
+		boolean mLocalClosed;
+		boolean mRemoteClosed;
+		boolean mCloseSent;
+
+		/**
+		 * When this channel was last given a turn by the writer
+		 */
+		long mLastServed;
+
+		private final InputStream mInputStream = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				return readChannel(Channel.this, b, off, len);
+			}
+
+			@Override
+			public int available() {
+				synchronized (MuxSession.this) {
+					return mInCount;
+				}
+			}
+
+			@Override
+			public void close() {
+				Channel.this.close();
+			}
+		};
+
+		private final OutputStream mOutputStream = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				writeChannel(Channel.this, b, off, len);
+			}
+
+			@Override
+			public void close() {
+				Channel.this.close();
+			}
+		};
+
+		Channel(int id, int priority) {
+			mId = id;
+			mPriority = priority;
+			mOut = new byte[mConfig.getSendBufferSize()];
+			mIn = new byte[mConfig.getWindowSize()];
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return mInputStream;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return mOutputStream;
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return mConnection.getRemoteAddress();
+		}
+
+		/**
+		 * Closes this channel. Bytes already written are still sent, followed
+		 * by <code>CLOSE</code>. Other channels are not affected.
+		 */
+		@Override
+		public void close() {
+			synchronized (MuxSession.this) {
+				if (mLocalClosed) {
+					return;
+				}
+				mLocalClosed = true;
+				mInCount = 0;
+				MuxSession.this.notifyAll();
+			}
+		}
+
+		/**
+		 * Gets the physical connection this channel is carried over
+		 * 
+		 * @return the shared <code>Connection</code>
+		 */
+		Connection getPhysicalConnection() {
+			return mConnection;
+		}
+
+		boolean isFinished() {
+			return mCloseSent && mRemoteClosed;
+		}
+	}
+
+	private static class ControlFrame {
+		final int type;
+		final int channel;
+		final int value;
+
+		ControlFrame(int type, int channel, int value) {
+			this.type = type;
+			this.channel = channel;
+			this.value = value;
+		}
+	}
+
+	private final Connection mConnection;
+	private final MultiplexedTransport mTransport;
+	private final MultiplexedTransport.Config mConfig;
+	private final boolean mCloseWhenIdle;
+
+	private final Map<Integer, Channel> mChannels = new HashMap<Integer, Channel>();
+	private final ArrayDeque<ControlFrame> mControl = new ArrayDeque<ControlFrame>();
+	private final byte[] mFrame;
+	private final byte[] mReadBuffer;
+
+	private long mServeCount;
+	private boolean mClosed;
+	private boolean mUsed;
+
+	private InputStream mInput;
+	private OutputStream mOutput;
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param connection
+	 *            the physical <code>Connection</code>
+	 * @param transport
+	 *            the <code>MultiplexedTransport</code> that offers incoming
+	 *            channels to its acceptors
+	 * @param closeWhenIdle
+	 *            <code>true</code> to close the physical connection once the
+	 *            last channel is gone, as a client does
+	 */
+	MuxSession(Connection connection, MultiplexedTransport transport,
+			boolean closeWhenIdle) {
+		mConnection = connection;
+		mTransport = transport;
+		mConfig = transport.getConfig();
+		mCloseWhenIdle = closeWhenIdle;
+		mFrame = new byte[MAX_HEADER_SIZE + mConfig.getChunkSize()];
+		mReadBuffer = new byte[mConfig.getChunkSize()];
+	}
+
+	/**
+	 * Starts the reader and writer loops
+	 * 
+	 * @throws IOException
+	 *             if the physical connection's streams could not be obtained.
+	 *             The session is closed in this case.
+	 */
+	void start() throws IOException {
+		try {
+			mInput = new BufferedInputStream(mConnection.getInputStream(),
+					mFrame.length);
+			mOutput = new BufferedOutputStream(mConnection.getOutputStream(),
+					mFrame.length);
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		IoEngine engine = IoEngine.getDefault();
+		engine.startLoop("MuxSession-reader", new Runnable() {
+
+			@Override
+			public void run() {
+				readLoop();
+			}
+		});
+		engine.startLoop("MuxSession-writer", new Runnable() {
+
+			@Override
+			public void run() {
+				writeLoop();
+			}
+		});
+	}
+
+	synchronized boolean isClosed() {
+		return mClosed;
+	}
+
+	/**
+	 * Opens a channel and waits for the peer to accept it
+	 * 
+	 * @param id
+	 *            the channel id
+	 * @param priority
+	 *            the priority of the channel's outgoing data
+	 * @return the open <code>Channel</code>
+	 * @throws IOException
+	 *             if the channel is already open, the peer refused it, or the
+	 *             session closed
+	 */
+	Channel openChannel(int id, int priority) throws IOException {
+		synchronized (this) {
+			Channel existing;
+			while ((existing = mChannels.get(id)) != null && !mClosed) {
+				if (!existing.mLocalClosed && !existing.mRemoteClosed) {
+					throw new IOException("Channel " + id + " already open");
+				}
+				// Wait for the previous use of the id to finish closing
+				await();
+			}
+			if (mClosed) {
+				throw new IOException("Session closed");
+			}
+			Channel channel = new Channel(id, priority);
+			mChannels.put(id, channel);
+			mUsed = true;
+			mControl.addLast(new ControlFrame(FRAME_OPEN, id, channel.mIn.length));
+			notifyAll();
+			while (!channel.mOpen && !channel.mRefused && !mClosed) {
+				await();
+			}
+			if (channel.mRefused) {
+				throw new IOException("Channel " + id + " refused by peer");
+			}
+			if (!channel.mOpen) {
+				throw new IOException("Session closed");
+			}
+			return channel;
+		}
+	}
+
+	/**
+	 * Closes the physical connection and every channel on it
+	 */
+	void close() {
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			mClosed = true;
+			notifyAll();
+		}
+		try {
+			mConnection.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		mTransport.onSessionClosed(this);
+	}
+
+	private int readChannel(Channel channel, byte[] b, int off, int len)
+			throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		synchronized (this) {
+			while (channel.mInCount == 0) {
+				if (channel.mLocalClosed || channel.mRemoteClosed || mClosed) {
+					return -1;
+				}
+				await();
+			}
+			byte[] in = channel.mIn;
+			int count = Math.min(len, channel.mInCount);
+			int first = Math.min(count, in.length - channel.mInStart);
+			System.arraycopy(in, channel.mInStart, b, off, first);
+			System.arraycopy(in, 0, b, off + first, count - first);
+			channel.mInStart = (channel.mInStart + count) % in.length;
+			channel.mInCount -= count;
+			channel.mUnacked += count;
+			if (channel.mUnacked >= in.length / 2 && !channel.mRemoteClosed) {
+				mControl.addLast(new ControlFrame(FRAME_WINDOW, channel.mId,
+						channel.mUnacked));
+				channel.mUnacked = 0;
+				notifyAll();
+			}
+			return count;
+		}
+	}
+
+	private void writeChannel(Channel channel, byte[] b, int off, int len)
+			throws IOException {
+		synchronized (this) {
+			byte[] out = channel.mOut;
+			while (len > 0) {
+				if (channel.mLocalClosed || channel.mRemoteClosed || mClosed) {
+					throw new IOException("Channel closed");
+				}
+				if (channel.mOutCount == out.length) {
+					await();
+					continue;
+				}
+				int writeIndex = (channel.mOutStart + channel.mOutCount)
+						% out.length;
+				int count = Math.min(len, out.length - channel.mOutCount);
+				int first = Math.min(count, out.length - writeIndex);
+				System.arraycopy(b, off, out, writeIndex, first);
+				System.arraycopy(b, off + first, out, 0, count - first);
+				channel.mOutCount += count;
+				off += count;
+				len -= count;
+				notifyAll();
+			}
+		}
+	}
+
+	private void writeLoop() {
+		try {
+			while (true) {
+				int length;
+				synchronized (this) {
+					length = mClosed ? -1 : nextFrame();
+				}
+				if (length == 0) {
+					// Nothing more is ready; send what has been written
+					mOutput.flush();
+					synchronized (this) {
+						while (!mClosed && (length = nextFrame()) == 0) {
+							if (isIdle()) {
+								return;
+							}
+							await();
+						}
+					}
+				}
+				if (length < 0) {
+					return;
+				}
+				mOutput.write(mFrame, 0, length);
+			}
+		} catch (IOException e) {
+			if (!isClosed()) {
+				e.printStackTrace();
+			}
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Encodes the next frame to send into <code>mFrame</code>
+	 * 
+	 * @return the length of the frame, <code>0</code> if there is nothing to
+	 *         send, or <code>-1</code> if the session closed
+	 */
+	private int nextFrame() {
+		if (mClosed) {
+			return -1;
+		}
+		ControlFrame control = mControl.pollFirst();
+		if (control != null) {
+			return encodeHeader(control.type, control.channel, control.value);
+		}
+		Channel next = null;
+		List<Channel> finished = null;
+		for (Channel channel : mChannels.values()) {
+			if (!channel.mOpen || channel.mCloseSent) {
+				continue;
+			}
+			if (channel.mRemoteClosed) {
+				// Nothing more will be read, so unsent bytes are dropped
+				channel.mOutCount = 0;
+			}
+			if ((channel.mLocalClosed || channel.mRemoteClosed)
+					&& channel.mOutCount == 0) {
+				channel.mCloseSent = true;
+				mControl.addLast(new ControlFrame(FRAME_CLOSE, channel.mId, 0));
+				if (channel.isFinished()) {
+					if (finished == null) {
+						finished = new ArrayList<Channel>();
+					}
+					finished.add(channel);
+				}
+				continue;
+			}
+			if (channel.mOutCount == 0 || channel.mCredit == 0) {
+				continue;
+			}
+			if (next == null
+					|| channel.mPriority > next.mPriority
+					|| (channel.mPriority == next.mPriority && channel.mLastServed < next.mLastServed)) {
+				next = channel;
+			}
+		}
+		if (finished != null) {
+			for (Channel channel : finished) {
+				remove(channel);
+			}
+		}
+		control = mControl.pollFirst();
+		if (control != null) {
+			return encodeHeader(control.type, control.channel, control.value);
+		}
+		if (next == null) {
+			return 0;
+		}
+		int count = Math.min(mConfig.getChunkSize(),
+				Math.min(next.mOutCount, next.mCredit));
+		int position = encodeHeader(FRAME_DATA, next.mId, count);
+		byte[] out = next.mOut;
+		int first = Math.min(count, out.length - next.mOutStart);
+		System.arraycopy(out, next.mOutStart, mFrame, position, first);
+		System.arraycopy(out, 0, mFrame, position + first, count - first);
+		next.mOutStart = (next.mOutStart + count) % out.length;
+		next.mOutCount -= count;
+		next.mCredit -= count;
+		next.mLastServed = ++mServeCount;
+		// Wake writers blocked on a full send buffer
+		notifyAll();
+		return position + count;
+	}
+
+	private int encodeHeader(int type, int channel, int value) {
+		mFrame[0] = (byte) type;
+		int position = Varint.write(channel, mFrame, 1);
+		return Varint.write(value, mFrame, position);
+	}
+
+	private void readLoop() {
+		try {
+			while (true) {
+				int type = mInput.read();
+				if (type < 0) {
+					return;
+				}
+				int id = Varint.readInt(mInput);
+				int value = Varint.readInt(mInput);
+				switch (type) {
+				case FRAME_DATA:
+					readData(id, value);
+					break;
+				case FRAME_WINDOW:
+					onWindow(id, value);
+					break;
+				case FRAME_OPEN:
+					onOpen(id, value);
+					break;
+				case FRAME_CLOSE:
+					onClose(id);
+					break;
+				default:
+					throw new IOException("Unknown frame type " + type);
+				}
+			}
+		} catch (IOException e) {
+			if (!isClosed()) {
+				e.printStackTrace();
+			}
+		} finally {
+			close();
+		}
+	}
+
+	private void readData(int id, int length) throws IOException {
+		while (length > 0) {
+			int read = mInput.read(mReadBuffer, 0,
+					Math.min(length, mReadBuffer.length));
+			if (read < 0) {
+				throw new EOFException();
+			}
+			length -= read;
+			synchronized (this) {
+				Channel channel = mChannels.get(id);
+				if (channel == null || !channel.mOpen || channel.mLocalClosed) {
+					// Sent before the peer learned the channel was closed
+					continue;
+				}
+				byte[] in = channel.mIn;
+				if (read > in.length - channel.mInCount) {
+					throw new IOException("Peer exceeded window on channel "
+							+ id);
+				}
+				int writeIndex = (channel.mInStart + channel.mInCount)
+						% in.length;
+				int first = Math.min(read, in.length - writeIndex);
+				System.arraycopy(mReadBuffer, 0, in, writeIndex, first);
+				System.arraycopy(mReadBuffer, first, in, 0, read - first);
+				channel.mInCount += read;
+				notifyAll();
+			}
+		}
+	}
+
+	private synchronized void onWindow(int id, int delta) {
+		Channel channel = mChannels.get(id);
+		if (channel != null) {
+			channel.mCredit += delta;
+			notifyAll();
+		}
+	}
+
+	private void onOpen(int id, int window) throws IOException {
+		int priority = mTransport.getPriority(id);
+		Channel channel;
+		synchronized (this) {
+			channel = mChannels.get(id);
+			if (channel != null) {
+				if (channel.mOpen) {
+					throw new IOException("Channel " + id + " opened twice");
+				}
+				// The peer accepted our request
+				channel.mOpen = true;
+				channel.mCredit = window;
+				notifyAll();
+				return;
+			}
+			channel = new Channel(id, priority);
+			channel.mOpen = true;
+			channel.mCredit = window;
+			mChannels.put(id, channel);
+			mUsed = true;
+		}
+		boolean accepted = mTransport.offerChannel(channel);
+		synchronized (this) {
+			if (accepted) {
+				mControl.addLast(new ControlFrame(FRAME_OPEN, id,
+						channel.mIn.length));
+			} else {
+				mChannels.remove(id);
+				mControl.addLast(new ControlFrame(FRAME_CLOSE, id, 0));
+			}
+			notifyAll();
+		}
+	}
+
+	private synchronized void onClose(int id) {
+		Channel channel = mChannels.get(id);
+		if (channel == null) {
+			return;
+		}
+		if (!channel.mOpen) {
+			channel.mRefused = true;
+		} else {
+			channel.mRemoteClosed = true;
+			if (!channel.isFinished()) {
+				notifyAll();
+				return;
+			}
+		}
+		remove(channel);
+	}
+
+	private void remove(Channel channel) {
+		mChannels.remove(channel.mId);
+		// A channel id may only be reused once it is gone
+		notifyAll();
+	}
+
+	/**
+	 * Checks if the session should end because its last channel is gone. The
+	 * writer only does this once its final <code>CLOSE</code> was flushed.
+	 */
+	private boolean isIdle() {
+		return mCloseWhenIdle && mUsed && mChannels.isEmpty()
+				&& mControl.isEmpty();
+	}
+
+	private void await() throws InterruptedIOException {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+}
@@ -0,0 +1,270 @@
+package com.keyboardr.glassremote.common.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+
+/**
+ * An in-memory {@link Transport}. Each {@link #connect()} creates a pair of
+ * bounded byte pipes and hands the server end to {@link #listen()}'s
+ * acceptor, so a client and server in the same process can exchange messages
+ * with no sockets involved. Each {@link #connect()} is seen by the server as
+ * a new client; {@link #connect(String)} lets a client keep its address
+ * across connections.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class PipedTransport implements Transport {
+
+	/**
+	 * Prefix of the addresses given to clients that connect without their
+	 * own, followed by a number unique to the transport
+	 */
+	public static final String DEFAULT_CLIENT_ADDRESS = "pipe-client-";
+
+	/**
+	 * The address the server has on the client's end of every connection
+	 */
+	public static final String SERVER_ADDRESS = "pipe-server";
+
+	/**
+	 * A bounded, blocking, single-producer single-consumer byte buffer
+	 */
+	private static class Pipe {
+		private final byte[] mBuffer;
+		private int mReadIndex;
+		private int mCount;
+		private boolean mClosed;
+
+		Pipe(int size) {
+			mBuffer = new byte[size];
+		}
+
+		final InputStream in = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (len == 0) {
+					return 0;
+				}
+				synchronized (Pipe.this) {
+					while (mCount == 0) {
+						if (mClosed) {
+							return -1;
+						}
+						await();
+					}
+					int count = Math.min(len, mCount);
+					int first = Math.min(count, mBuffer.length - mReadIndex);
+					System.arraycopy(mBuffer, mReadIndex, b, off, first);
+					System.arraycopy(mBuffer, 0, b, off + first, count - first);
+					mReadIndex = (mReadIndex + count) % mBuffer.length;
+					mCount -= count;
+					Pipe.this.notifyAll();
+					return count;
+				}
+			}
+
+			@Override
+			public int available() {
+				synchronized (Pipe.this) {
+					return mCount;
+				}
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		final OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				synchronized (Pipe.this) {
+					while (len > 0) {
+						if (mClosed) {
+							throw new IOException("Pipe closed");
+						}
+						if (mCount == mBuffer.length) {
+							await();
+							continue;
+						}
+						int writeIndex = (mReadIndex + mCount) % mBuffer.length;
+						int count = Math.min(len, mBuffer.length - mCount);
+						int first = Math.min(count, mBuffer.length - writeIndex);
+						System.arraycopy(b, off, mBuffer, writeIndex, first);
+						System.arraycopy(b, off + first, mBuffer, 0, count
+								- first);
+						mCount += count;
+						off += count;
+						len -= count;
+						Pipe.this.notifyAll();
+					}
+				}
+			}
+
+			@Override
+			public void close() {
+				Pipe.this.close();
+			}
+		};
+
+		synchronized void close() {
+			mClosed = true;
+			notifyAll();
+		}
+
+		private void await() throws InterruptedIOException {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	private static class PipedConnection implements Connection {
+		private final Pipe mIn;
+		private final Pipe mOut;
+		private final String mRemoteAddress;
+
+		PipedConnection(Pipe in, Pipe out, String remoteAddress) {
+			mIn = in;
+			mOut = out;
+			mRemoteAddress = remoteAddress;
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return mIn.in;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return mOut.out;
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return mRemoteAddress;
+		}
+
+		@Override
+		public void close() {
+			mIn.close();
+			mOut.close();
+		}
+	}
+
+	private final int mBufferSize;
+	private final ArrayDeque<PipedConnection> mPending = new ArrayDeque<PipedConnection>();
+	private boolean mListening;
+	private int mConnectionCount;
+
+	/**
+	 * Class constructor. Uses 64KB pipes.
+	 */
+	public PipedTransport() {
+		this(64 * 1024);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param bufferSize
+	 *            the capacity of each direction of a connection, in bytes
+	 */
+	public PipedTransport(int bufferSize) {
+		mBufferSize = bufferSize;
+	}
+
+	/**
+	 * Connects as a new client, addressed {@link #DEFAULT_CLIENT_ADDRESS}
+	 * followed by a number no other connection of this transport has had
+	 */
+	@Override
+	public synchronized Connection connect() throws IOException {
+		return connect(DEFAULT_CLIENT_ADDRESS + ++mConnectionCount);
+	}
+
+	/**
+	 * Connects as a particular client. Connecting again with the same address
+	 * is seen by the server as the same client reconnecting.
+	 * 
+	 * @param clientAddress
+	 *            the address the server sees for this client
+	 * @return the client end of the new <code>Connection</code>
+	 * @throws IOException
+	 *             if nothing is listening
+	 */
+	public synchronized Connection connect(String clientAddress)
+			throws IOException {
+		if (!mListening) {
+			throw new IOException("No server listening");
+		}
+		Pipe toServer = new Pipe(mBufferSize);
+		Pipe toClient = new Pipe(mBufferSize);
+		mPending.addLast(new PipedConnection(toServer, toClient, clientAddress));
+		notifyAll();
+		return new PipedConnection(toClient, toServer, SERVER_ADDRESS);
+	}
+
+	@Override
+	public synchronized ConnectionAcceptor listen() throws IOException {
+		if (mListening) {
+			throw new IOException("Already listening");
+		}
+		mListening = true;
+		return new ConnectionAcceptor() {
+
+			@Override
+			public Connection accept() throws IOException {
+				synchronized (PipedTransport.this) {
+					while (mPending.isEmpty()) {
+						if (!mListening) {
+							throw new IOException("Acceptor closed");
+						}
+						try {
+							PipedTransport.this.wait();
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException();
+						}
+					}
+					return mPending.pollFirst();
+				}
+			}
+
+			/**
+			 * Stops listening. Connections not yet accepted are closed, so
+			 * their clients see the end of the stream.
+			 */
+			@Override
+			public void close() {
+				synchronized (PipedTransport.this) {
+					mListening = false;
+					PipedConnection pending;
+					while ((pending = mPending.pollFirst()) != null) {
+						pending.close();
+					}
+					PipedTransport.this.notifyAll();
+				}
+			}
+		};
+	}
+}
@@ -0,0 +1,582 @@
+package com.keyboardr.glassremote.common.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import android.os.ParcelUuid;
+
+import com.keyboardr.glassremote.common.IoEngine;
+
+/**
+ * A {@link Transport} over Bluetooth RFCOMM sockets. Servers register an SDP
+ * record for the service <code>UUID</code> and clients connect to a bonded
+ * device advertising it. Clients look the device up in a
+ * {@link DeviceDiscoveryCache} first, preferring the device they last
+ * connected to, and only scan the bonded devices on a miss.<br/>
+ * <br/>
+ * When several bonded devices advertise the service,
+ * {@link #setMaxParallelConnects(int)} lets clients try them at once and keep
+ * whichever answers first. {@link #prewarm()} starts the SDP sweep early, so
+ * the first {@link #connect()} goes to a device known to advertise the
+ * service rather than one a stale cache remembers.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class RfcommTransport implements Transport {
+
+	/**
+	 * A <code>Connection</code> backed by a <code>BluetoothSocket</code>
+	 */
+	public static class RfcommConnection implements Connection {
+		private final BluetoothSocket mSocket;
+
+		/**
+		 * Class constructor
+		 * 
+		 * @param socket
+		 *            a connected <code>BluetoothSocket</code>
+		 */
+		public RfcommConnection(BluetoothSocket socket) {
+			mSocket = socket;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return mSocket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return mSocket.getOutputStream();
+		}
+
+		@Override
+		public String getRemoteAddress() {
+			return mSocket.getRemoteDevice().getAddress();
+		}
+
+		/**
+		 * Gets the device at the other end of this connection
+		 * 
+		 * @return the remote <code>BluetoothDevice</code>
+		 */
+		public BluetoothDevice getRemoteDevice() {
+			return mSocket.getRemoteDevice();
+		}
+
+		@Override
+		public void close() throws IOException {
+			mSocket.close();
+		}
+	}
+
+	private final BluetoothAdapter mBluetoothAdapter;
+	private final String mName;
+	private final UUID mUuid;
+	private final DeviceDiscoveryCache mDiscoveryCache;
+
+	private volatile int mMaxParallelConnects = 1;
+
+	/**
+	 * Sockets created by {@link #prewarm()} and not yet connected, by device
+	 * address. Also the lock for {@link #mPrewarming}.
+	 */
+	private final Map<String, BluetoothSocket> mPrepared = new HashMap<String, BluetoothSocket>();
+
+	private boolean mPrewarming;
+
+	private final DeviceDiscoveryCache.Listener mPrewarmListener = new DeviceDiscoveryCache.Listener() {
+
+		@Override
+		public void onAdvertiserFound(UUID uuid, BluetoothDevice device) {
+			prepare(device);
+		}
+	};
+
+	/**
+	 * Class constructor. Uses the shared
+	 * {@link DeviceDiscoveryCache#getInstance() DeviceDiscoveryCache}.
+	 * 
+	 * @param adapter
+	 *            the local <code>BluetoothAdapter</code>
+	 * @param name
+	 *            service name for the SDP record. Only needed to
+	 *            {@link #listen()}.
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and
+	 *            server
+	 */
+	public RfcommTransport(BluetoothAdapter adapter, String name, UUID uuid) {
+		this(adapter, name, uuid, DeviceDiscoveryCache.getInstance());
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param adapter
+	 *            the local <code>BluetoothAdapter</code>
+	 * @param name
+	 *            service name for the SDP record. Only needed to
+	 *            {@link #listen()}.
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and
+	 *            server
+	 * @param discoveryCache
+	 *            the <code>DeviceDiscoveryCache</code> used to find the remote
+	 *            server
+	 */
+	public RfcommTransport(BluetoothAdapter adapter, String name, UUID uuid,
+			DeviceDiscoveryCache discoveryCache) {
+		mBluetoothAdapter = adapter;
+		mName = name;
+		mUuid = uuid;
+		mDiscoveryCache = discoveryCache;
+	}
+
+	/**
+	 * Gets the <code>BluetoothDevice</code> at the other end of
+	 * <code>connection</code>
+	 * 
+	 * @param connection
+	 *            a <code>Connection</code> from any <code>Transport</code>
+	 * @return the remote <code>BluetoothDevice</code>, or <code>null</code> if
+	 *         <code>connection</code> is not an RFCOMM connection
+	 */
+	public static BluetoothDevice getRemoteDevice(Connection connection) {
+		while (true) {
+			if (connection instanceof MuxSession.Channel) {
+				connection = ((MuxSession.Channel) connection)
+						.getPhysicalConnection();
+			} else if (connection instanceof HeartbeatConnection) {
+				connection = ((HeartbeatConnection) connection).getConnection();
+			} else {
+				break;
+			}
+		}
+		if (connection instanceof RfcommConnection) {
+			return ((RfcommConnection) connection).getRemoteDevice();
+		}
+		return null;
+	}
+
+	/**
+	 * Gets the service <code>UUID</code>
+	 * 
+	 * @return the <code>UUID</code> this transport connects and listens on
+	 */
+	public UUID getUuid() {
+		return mUuid;
+	}
+
+	/**
+	 * Gets the cache used to find the remote server
+	 * 
+	 * @return the <code>DeviceDiscoveryCache</code>
+	 */
+	public DeviceDiscoveryCache getDiscoveryCache() {
+		return mDiscoveryCache;
+	}
+
+	/**
+	 * Starts an SDP query on every bonded device so their advertised UUIDs are
+	 * up to date by the time {@link #connect()} is called. Does nothing if a
+	 * query was started recently.
+	 */
+	public void fetchUuids() {
+		mDiscoveryCache.refresh(mBluetoothAdapter);
+	}
+
+	/**
+	 * Finds a bonded device advertising the service <code>UUID</code>. On a
+	 * cache miss the UUIDs each bonded device last reported are checked and a
+	 * fresh SDP sweep is started in the background for next time. Those UUIDs
+	 * may be long out of date, so they are not added to the cache; only SDP
+	 * results are.
+	 * 
+	 * @return a matching <code>BluetoothDevice</code>, or <code>null</code> if
+	 *         none was found
+	 */
+	protected BluetoothDevice findDevice() {
+		Set<BluetoothDevice> bondedDevices = mBluetoothAdapter
+				.getBondedDevices();
+		BluetoothDevice device = mDiscoveryCache.getDevice(mUuid,
+				bondedDevices);
+		if (device != null) {
+			return device;
+		}
+		fetchUuids();
+		for (BluetoothDevice bonded : bondedDevices) {
+			ParcelUuid[] uuids = bonded.getUuids();
+			if (uuids == null) {
+				continue;
+			}
+			for (ParcelUuid id : uuids) {
+				if (id.getUuid().equals(mUuid)) {
+					return bonded;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Finds up to <code>max</code> bonded devices advertising the service
+	 * <code>UUID</code>, the one {@link #findDevice()} would pick first
+	 * 
+	 * @param max
+	 *            the most devices to return
+	 * @return the matching devices, which may be empty
+	 */
+	protected List<BluetoothDevice> findDevices(int max) {
+		List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+		BluetoothDevice first = findDevice();
+		if (first == null) {
+			return devices;
+		}
+		devices.add(first);
+		for (BluetoothDevice bonded : mBluetoothAdapter.getBondedDevices()) {
+			if (devices.size() >= max) {
+				break;
+			}
+			if (bonded.equals(first)) {
+				continue;
+			}
+			ParcelUuid[] uuids = bonded.getUuids();
+			if (uuids == null) {
+				continue;
+			}
+			for (ParcelUuid id : uuids) {
+				if (id.getUuid().equals(mUuid)) {
+					devices.add(bonded);
+					break;
+				}
+			}
+		}
+		return devices;
+	}
+
+	/**
+	 * Sets how many devices {@link #connect()} tries at once. When more than
+	 * one bonded device advertises the service, each gets its own attempt and
+	 * the first to connect is kept; the others are abandoned and closed.
+	 * 
+	 * @param maxParallel
+	 *            the most devices to try at once. Defaults to <code>1</code>,
+	 *            which only tries the device {@link #findDevice()} picks.
+	 */
+	public void setMaxParallelConnects(int maxParallel) {
+		if (maxParallel < 1) {
+			throw new IllegalArgumentException("maxParallel < 1");
+		}
+		mMaxParallelConnects = maxParallel;
+	}
+
+	/**
+	 * Gets how many devices {@link #connect()} tries at once
+	 * 
+	 * @return the most parallel connection attempts
+	 */
+	public int getMaxParallelConnects() {
+		return mMaxParallelConnects;
+	}
+
+	/**
+	 * Prepares for {@link #connect()} by starting an SDP sweep of the bonded
+	 * devices now rather than when connecting. As devices report advertising
+	 * the service, through a
+	 * {@link DeviceDiscoveryCache#register(android.content.Context)
+	 * registered} <code>DeviceDiscoveryCache</code>, a socket is created for
+	 * each, up to {@link #getMaxParallelConnects()}. The SDP lookup of the
+	 * RFCOMM channel still happens when the socket is opened; what is saved
+	 * is connecting to a device that no longer offers the service. Stops once
+	 * a connection is made or {@link #stopPrewarming()} is called.
+	 */
+	public void prewarm() {
+		synchronized (mPrepared) {
+			if (!mPrewarming) {
+				mPrewarming = true;
+				mDiscoveryCache.addListener(mUuid, mPrewarmListener);
+			}
+		}
+		BluetoothDevice known = mDiscoveryCache.getDevice(mUuid,
+				mBluetoothAdapter.getBondedDevices());
+		if (known != null) {
+			prepare(known);
+		}
+		fetchUuids();
+	}
+
+	/**
+	 * Creates a socket for <code>device</code> unless one is prepared or
+	 * enough are
+	 */
+	private void prepare(BluetoothDevice device) {
+		String address = device.getAddress();
+		synchronized (mPrepared) {
+			if (!mPrewarming || mPrepared.containsKey(address)
+					|| mPrepared.size() >= mMaxParallelConnects) {
+				return;
+			}
+		}
+		BluetoothSocket socket;
+		try {
+			socket = device.createRfcommSocketToServiceRecord(mUuid);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		synchronized (mPrepared) {
+			if (mPrewarming && !mPrepared.containsKey(address)) {
+				mPrepared.put(address, socket);
+				return;
+			}
+		}
+		closeQuietly(socket);
+	}
+
+	/**
+	 * Records a successful connection and ends prewarming
+	 */
+	private void onConnected(BluetoothDevice device) {
+		mDiscoveryCache.onConnected(mUuid, device);
+		stopPrewarming();
+	}
+
+	/**
+	 * Ends {@link #prewarm() prewarming}: stops listening to the
+	 * <code>DeviceDiscoveryCache</code> and closes any sockets prepared but
+	 * not connected. Call this when giving up on connecting, since the cache
+	 * outlives this <code>RfcommTransport</code>. Does nothing if not
+	 * prewarming.
+	 */
+	public void stopPrewarming() {
+		List<BluetoothSocket> unused;
+		synchronized (mPrepared) {
+			if (!mPrewarming) {
+				return;
+			}
+			mPrewarming = false;
+			unused = new ArrayList<BluetoothSocket>(mPrepared.values());
+			mPrepared.clear();
+		}
+		mDiscoveryCache.removeListener(mUuid, mPrewarmListener);
+		for (BluetoothSocket socket : unused) {
+			closeQuietly(socket);
+		}
+	}
+
+	/**
+	 * Takes the socket {@link #prewarm()} prepared for <code>device</code>, or
+	 * creates one
+	 */
+	private BluetoothSocket takeSocket(BluetoothDevice device)
+			throws IOException {
+		BluetoothSocket socket;
+		synchronized (mPrepared) {
+			socket = mPrepared.remove(device.getAddress());
+		}
+		if (socket != null) {
+			return socket;
+		}
+		return device.createRfcommSocketToServiceRecord(mUuid);
+	}
+
+	/**
+	 * Opens <code>socket</code>, closing it if that fails
+	 */
+	private static RfcommConnection open(BluetoothSocket socket)
+			throws IOException {
+		try {
+			socket.connect();
+		} catch (IOException e) {
+			closeQuietly(socket);
+			throw e;
+		}
+		return new RfcommConnection(socket);
+	}
+
+	private static void closeQuietly(BluetoothSocket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Connects to <code>device</code>
+	 * 
+	 * @param device
+	 *            the <code>BluetoothDevice</code> to connect to
+	 * @return the established <code>Connection</code>
+	 * @throws IOException
+	 *             if the connection failed
+	 */
+	public RfcommConnection connect(BluetoothDevice device) throws IOException {
+		mBluetoothAdapter.cancelDiscovery();
+		RfcommConnection connection;
+		try {
+			connection = open(takeSocket(device));
+		} catch (IOException e) {
+			mDiscoveryCache.invalidate(mUuid, device);
+			throw e;
+		}
+		onConnected(device);
+		return connection;
+	}
+
+	@Override
+	public Connection connect() throws IOException {
+		List<BluetoothDevice> devices = findDevices(mMaxParallelConnects);
+		if (devices.isEmpty()) {
+			throw new IOException("No bonded device advertises " + mUuid);
+		}
+		if (devices.size() == 1) {
+			return connect(devices.get(0));
+		}
+		mBluetoothAdapter.cancelDiscovery();
+		return new Race(devices.size()).run(devices);
+	}
+
+	/**
+	 * Connects to several devices at once and keeps the first to succeed
+	 */
+	private class Race {
+		private final int mAttempts;
+
+		// Guarded by this
+		private final List<BluetoothSocket> mSockets = new ArrayList<BluetoothSocket>();
+		private RfcommConnection mWinner;
+		private IOException mFailure;
+		private int mFailed;
+		private boolean mDone;
+
+		Race(int attempts) {
+			mAttempts = attempts;
+		}
+
+		RfcommConnection run(List<BluetoothDevice> devices) throws IOException {
+			Executor executor = IoEngine.getDefault().getBlockingExecutor();
+			for (final BluetoothDevice device : devices) {
+				executor.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						attempt(device);
+					}
+				});
+			}
+			synchronized (this) {
+				try {
+					while (mWinner == null && mFailed < mAttempts) {
+						wait();
+					}
+				} catch (InterruptedException e) {
+					finish();
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Connect interrupted");
+				}
+				if (mWinner == null) {
+					throw mFailure;
+				}
+				return mWinner;
+			}
+		}
+
+		private void attempt(BluetoothDevice device) {
+			BluetoothSocket socket;
+			try {
+				socket = takeSocket(device);
+			} catch (IOException e) {
+				onFailed(device, e);
+				return;
+			}
+			synchronized (this) {
+				if (mDone) {
+					closeQuietly(socket);
+					return;
+				}
+				mSockets.add(socket);
+			}
+			RfcommConnection connection;
+			try {
+				connection = open(socket);
+			} catch (IOException e) {
+				onFailed(device, e);
+				return;
+			}
+			synchronized (this) {
+				if (!mDone) {
+					mWinner = connection;
+					mSockets.remove(socket);
+					finish();
+					notifyAll();
+					onConnected(device);
+					return;
+				}
+			}
+			closeQuietly(socket);
+		}
+
+		/**
+		 * Counts a failed attempt. Attempts aborted because another device
+		 * won do not count against their device.
+		 */
+		private synchronized void onFailed(BluetoothDevice device,
+				IOException e) {
+			if (mDone) {
+				return;
+			}
+			mDiscoveryCache.invalidate(mUuid, device);
+			mFailure = e;
+			if (++mFailed == mAttempts) {
+				mDone = true;
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Ends the race, aborting the attempts still connecting. Must hold
+		 * <code>this</code>.
+		 */
+		private void finish() {
+			mDone = true;
+			for (BluetoothSocket socket : mSockets) {
+				closeQuietly(socket);
+			}
+			mSockets.clear();
+		}
+	}
+
+	@Override
+	public ConnectionAcceptor listen() throws IOException {
+		final BluetoothServerSocket serverSocket = mBluetoothAdapter
+				.listenUsingRfcommWithServiceRecord(mName, mUuid);
+		return new ConnectionAcceptor() {
+
+			@Override
+			public Connection accept() throws IOException {
+				return new RfcommConnection(serverSocket.accept());
+			}
+
+			@Override
+			public void close() throws IOException {
+				serverSocket.close();
+			}
+		};
+	}
+}
@@ -0,0 +1,154 @@
+package com.keyboardr.glassremote.common.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+/**
+ * A {@link Transport} over TCP sockets. Intended for running the messaging
+ * stack on a desktop JVM for testing and benchmarking; by default the server
+ * only listens on the loopback interface.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public class TcpTransport implements Transport {
+
+	/**
+	 * A <code>Connection</code> backed by a TCP <code>Socket</code>
+	 */
+	public static class SocketConnection implements Connection {
+		private final Socket mSocket;
+
+		/**
+		 * Class constructor
+		 * 
+		 * @param socket
+		 *            a connected <code>Socket</code>
+		 */
+		public SocketConnection(Socket socket) {
+			mSocket = socket;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return mSocket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return mSocket.getOutputStream();
+		}
+
+		/**
+		 * Gets the IP address and port of the peer, as
+		 * <code>address:port</code>. A client's port changes with every
+		 * connection, so each connection is seen as a new client, and
+		 * clients on the same host are told apart.
+		 */
+		@Override
+		public String getRemoteAddress() {
+			InetAddress address = mSocket.getInetAddress();
+			return address == null ? null : address.getHostAddress() + ":"
+					+ mSocket.getPort();
+		}
+
+		@Override
+		public void close() throws IOException {
+			mSocket.close();
+		}
+	}
+
+	/**
+	 * A <code>ConnectionAcceptor</code> backed by a <code>ServerSocket</code>
+	 */
+	public static class SocketAcceptor implements ConnectionAcceptor {
+		private final ServerSocket mServerSocket;
+
+		SocketAcceptor(ServerSocket serverSocket) {
+			mServerSocket = serverSocket;
+		}
+
+		/**
+		 * Gets the port the server is listening on. Useful when the
+		 * <code>TcpTransport</code> was created with port 0.
+		 * 
+		 * @return the local port
+		 */
+		public int getLocalPort() {
+			return mServerSocket.getLocalPort();
+		}
+
+		@Override
+		public Connection accept() throws IOException {
+			Socket socket = mServerSocket.accept();
+			socket.setTcpNoDelay(true);
+			return new SocketConnection(socket);
+		}
+
+		@Override
+		public void close() throws IOException {
+			mServerSocket.close();
+		}
+	}
+
+	private final InetAddress mAddress;
+	private final int mPort;
+
+	/**
+	 * Class constructor. Connects to and listens on the loopback interface.
+	 * 
+	 * @param port
+	 *            the TCP port, or 0 to listen on an ephemeral port
+	 */
+	public TcpTransport(int port) {
+		this(loopbackAddress(), port);
+	}
+
+	/**
+	 * Class constructor
+	 * 
+	 * @param address
+	 *            the address to connect to and listen on
+	 * @param port
+	 *            the TCP port, or 0 to listen on an ephemeral port
+	 */
+	public TcpTransport(InetAddress address, int port) {
+		mAddress = address;
+		mPort = port;
+	}
+
+	private static InetAddress loopbackAddress() {
+		try {
+			return InetAddress.getByName(null);
+		} catch (UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public Connection connect() throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.setTcpNoDelay(true);
+			socket.connect(new InetSocketAddress(mAddress, mPort));
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		return new SocketConnection(socket);
+	}
+
+	@Override
+	public SocketAcceptor listen() throws IOException {
+		ServerSocket serverSocket = new ServerSocket();
+		serverSocket.setReuseAddress(true);
+		serverSocket.bind(new InetSocketAddress(mAddress, mPort));
+		return new SocketAcceptor(serverSocket);
+	}
+}
@@ -0,0 +1,34 @@
+package com.keyboardr.glassremote.common.transport;
+
+import java.io.IOException;
+
+/**
+ * Creates {@link Connection Connections} between a client and a server. The
+ * messaging code only deals with <code>Transports</code>, so the same senders,
+ * receivers and dispatch logic can run over Bluetooth RFCOMM, TCP, or an
+ * in-memory pipe.
+ * 
+ * @author Joshua Brown
+ * 
+ */
+public interface Transport {
+	/**
+	 * Connects to a remote server. Blocks until the connection is established
+	 * or fails.
+	 * 
+	 * @return the established <code>Connection</code>
+	 * @throws IOException
+	 *             if no connection could be made
+	 */
+	public Connection connect() throws IOException;
+
+	/**
+	 * Starts listening for remote clients
+	 * 
+	 * @return a <code>ConnectionAcceptor</code> that accepts connections made
+	 *         by clients calling {@link #connect()}
+	 * @throws IOException
+	 *             if the server could not start listening
+	 */
+	public ConnectionAcceptor listen() throws IOException;
+}
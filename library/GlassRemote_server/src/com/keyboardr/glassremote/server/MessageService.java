@@ -1,28 +1,48 @@
 package com.keyboardr.glassremote.server;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
+import com.keyboardr.glassremote.common.HandlerExecutor;
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.MessageBatcher;
+import com.keyboardr.glassremote.common.MessageConnection;
+import com.keyboardr.glassremote.common.metrics.MessageMetrics;
+import com.keyboardr.glassremote.common.metrics.MetricsReporter;
+import com.keyboardr.glassremote.common.metrics.MetricsSnapshot;
 import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.sender.CoalescingSender;
 import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.transport.Connection;
+import com.keyboardr.glassremote.common.transport.ConnectionAcceptor;
+import com.keyboardr.glassremote.common.transport.RfcommTransport;
+import com.keyboardr.glassremote.common.transport.Transport;
 
 /**
- * Sends and receives messages with a remote client. This service must be
- * running in order for a remote client to connect.
+ * Sends and receives messages with remote clients. This service must be
+ * running in order for a remote client to connect. It keeps listening while
+ * clients are connected, up to a maximum number of simultaneous clients; each
+ * client gets its own <code>MessageSender</code> and
+ * <code>MessageReceiver</code>.
  * 
  * @author Joshua Brown
  * 
@@ -35,128 +55,173 @@ import com.keyboardr.glassremote.common.sender.MessageSender;
 // of abstraction
 @SuppressWarnings("hiding")
 public abstract class MessageService<S, R> extends Service {
-	private BluetoothAdapter mBluetoothAdapter;
+	private Transport mTransport;
 	private AcceptThread mAcceptThread;
-	private ConnectedThread mConnectedThread;
+	private boolean mDestroyed;
+
+	/**
+	 * Open connections keyed by remote address. Also used as the lock that the
+	 * accept thread waits on when the service is at capacity.
+	 */
+	private final Map<String, MessageConnection<S, R>> mConnections = new LinkedHashMap<String, MessageConnection<S, R>>();
 
 	private final String NAME;
 	private final UUID MY_UUID;
-	private final MessageReceiver<R> mReader;
-	private final MessageSender<S> mSender;
+	private final MessageReceiver.Factory<R> mReceiverFactory;
+	private final MessageSender.Factory<S> mSenderFactory;
+	private final int mMaxConnections;
+	private final MessageWriter.Config mWriterConfig;
+
+	/**
+	 * Whether every connection uses the one sender and receiver passed to the
+	 * constructor, and the connection last given them. Guarded by
+	 * <code>mConnections</code>.
+	 */
+	private final boolean mSharedCodecs;
+	private MessageConnection<S, R> mCodecHolder;
+
+	/**
+	 * Batch window for received messages, or negative to post each message on
+	 * its own
+	 */
+	private volatile long mDeliveryWindowMillis = -1;
+	private final ConcurrentHashMap<MessageConnection<S, R>, MessageBatcher<R>> mBatchers = new ConcurrentHashMap<MessageConnection<S, R>, MessageBatcher<R>>();
 
 	private class AcceptThread extends Thread {
-		private BluetoothServerSocket mServerSocket;
+		private volatile ConnectionAcceptor mAcceptor;
 		public volatile boolean isRunning;
 
 		@Override
 		public void run() {
 			isRunning = true;
 
-			BluetoothServerSocket tmp = null;
-			try {
-				tmp = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(
-						NAME, MY_UUID);
-			} catch (IOException e) {
-				e.printStackTrace();
-			}
-			mServerSocket = tmp;
-			BluetoothSocket socket = null;
-			while (true) {
+			while (isRunning) {
+				if (!awaitCapacity()) {
+					break;
+				}
 				try {
-					Log.d(getClass().getSimpleName(), "Accepting");
-					socket = mServerSocket.accept();
-					Log.d(getClass().getSimpleName(), "Accepted");
+					mAcceptor = mTransport.listen();
 				} catch (IOException e) {
 					e.printStackTrace();
 					break;
 				}
-
-				if (socket != null) {
-					manageConnectedSocket(socket);
-					try {
-						mServerSocket.close();
-					} catch (IOException e) {
-						e.printStackTrace();
-					}
-					break;
-				}
+				acceptWhileCapacity();
+				// Stop advertising while full so further clients fail fast
+				// rather than waiting in the backlog
+				closeAcceptor();
 			}
 
 			isRunning = false;
 		}
 
-		public void cancel() {
-			try {
-				mServerSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+		private boolean awaitCapacity() {
+			synchronized (mConnections) {
+				while (isRunning && mConnections.size() >= mMaxConnections) {
+					try {
+						mConnections.wait();
+					} catch (InterruptedException e) {
+						return false;
+					}
+				}
 			}
-			isRunning = false;
+			return isRunning;
 		}
-	}
-
-	private class ConnectedThread extends Thread implements
-			MessageReceiver.OnReceiveMessageListener<R> {
-		private final BluetoothSocket mSocket;
-		private final InputStream mInputStream;
-		private final OutputStream mOutputStream;
 
-		public ConnectedThread(BluetoothSocket socket) {
-			mSocket = socket;
-			InputStream tmpIn = null;
-			OutputStream tmpOut = null;
-
-			try {
-				tmpIn = mSocket.getInputStream();
-				tmpOut = mSocket.getOutputStream();
-			} catch (IOException e) {
-				e.printStackTrace();
+		private void acceptWhileCapacity() {
+			while (isRunning) {
+				Connection connection;
+				try {
+					Log.d(getClass().getSimpleName(), "Accepting");
+					connection = mAcceptor.accept();
+					Log.d(getClass().getSimpleName(), "Accepted");
+				} catch (IOException e) {
+					if (isRunning) {
+						e.printStackTrace();
+					}
+					isRunning = false;
+					return;
+				}
+				if (connection != null && manageConnection(connection)) {
+					synchronized (mConnections) {
+						if (mConnections.size() >= mMaxConnections) {
+							return;
+						}
+					}
+				}
 			}
-
-			mInputStream = tmpIn;
-			mOutputStream = tmpOut;
-
-			mSender.setOutputStream(mOutputStream);
-
 		}
 
-		@Override
-		public void run() {
-			mReader.setInputStream(mInputStream);
-
-			while (mReader.read(this)) {
+		private void closeAcceptor() {
+			ConnectionAcceptor acceptor = mAcceptor;
+			mAcceptor = null;
+			if (acceptor == null) {
+				return;
 			}
 			try {
-				mSocket.close();
+				acceptor.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-			connectionLost(mSocket);
 		}
 
 		public void cancel() {
-			try {
-				mSocket.close();
-			} catch (IOException e) {
-				e.printStackTrace();
+			isRunning = false;
+			closeAcceptor();
+			synchronized (mConnections) {
+				mConnections.notifyAll();
 			}
 		}
+	}
+
+	private final MessageConnection.Listener<S, R> mConnectionListener = new MessageConnection.Listener<S, R>() {
 
 		@Override
-		public void onReceiveMessage(final R message) {
-			mHandler.post(new Runnable() {
+		public void onReceiveMessage(MessageConnection<S, R> connection,
+				final R message) {
+			final String address = connection.getConnection()
+					.getRemoteAddress();
+			final BluetoothDevice device = RfcommTransport
+					.getRemoteDevice(connection.getConnection());
+			if (onInterceptMessage(address, device, message)) {
+				return;
+			}
+			final long receivedNanos = connection.getReceiveTimestamp();
+			KeyedExecutor executor = mCallbackExecutor;
+			if (executor == null && mDeliveryWindowMillis >= 0) {
+				getBatcher(connection, address, device).add(message,
+						receivedNanos);
+				return;
+			}
+			Runnable delivery = new Runnable() {
 
 				@Override
 				public void run() {
-					MessageService.this.onReceiveMessage(message);
+					mMetrics.onDispatched(receivedNanos);
+					dispatchMessage(address, device, message);
 				}
-			});
+			};
+			if (executor == null) {
+				mHandler.post(delivery);
+				return;
+			}
+			KeyedExecutor.KeySelector<? super R> keySelector = mKeySelector;
+			Object key = keySelector == null ? null : keySelector
+					.getKey(message);
+			executor.execute(key == null ? connection : key, delivery);
 		}
-	}
+
+		@Override
+		public void onClosed(MessageConnection<S, R> connection) {
+			connectionLost(connection);
+		}
+	};
 
 	/**
 	 * Class constructor. Concrete implementations must have a zero-argument
-	 * constructor.
+	 * constructor. Since <code>sender</code> and <code>receiver</code> are
+	 * single instances, only one client may be connected at a time, and a new
+	 * client is only served once the last connection has stopped using them.
+	 * The constructors taking factories give each connection its own.
 	 * 
 	 * @param name
 	 *            service name for SDP record
@@ -175,10 +240,161 @@ public abstract class MessageService<S, R> extends Service {
 	 */
 	protected MessageService(String name, UUID uuid, MessageSender<S> sender,
 			MessageReceiver<R> receiver) {
+		this(name, uuid, sender, receiver, null);
+	}
+
+	/**
+	 * Class constructor. Concrete implementations must have a zero-argument
+	 * constructor. Since <code>sender</code> and <code>receiver</code> are
+	 * single instances, only one client may be connected at a time, and a new
+	 * client is only served once the last connection has stopped using them.
+	 * The constructors taking factories give each connection its own.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server. UUIDs can be obtained at <a
+	 *            href="http://www.uuidgenerator.net/">http
+	 *            ://www.uuidgenerator.net/</a> and instantiated using
+	 *            {@link UUID#fromString(String)}.
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> messages
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> messages
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected MessageService(String name, UUID uuid, MessageSender<S> sender,
+			MessageReceiver<R> receiver, MessageWriter.Config writerConfig) {
+		this(null, name, uuid, singleSender(sender), singleReceiver(receiver),
+				1, writerConfig, true);
+	}
+
+	/**
+	 * Class constructor for a service that accepts clients over an arbitrary
+	 * {@link Transport} rather than Bluetooth RFCOMM. Concrete implementations
+	 * must have a zero-argument constructor. Since <code>sender</code> and
+	 * <code>receiver</code> are single instances, only one client may be
+	 * connected at a time, and a new client is only served once the last
+	 * connection has stopped using them. The constructors taking factories
+	 * give each connection its own.
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> to listen on
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> messages
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> messages
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected MessageService(Transport transport, MessageSender<S> sender,
+			MessageReceiver<R> receiver, MessageWriter.Config writerConfig) {
+		this(transport, null, null, singleSender(sender),
+				singleReceiver(receiver), 1, writerConfig, true);
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once.
+	 * Concrete implementations must have a zero-argument constructor.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server. UUIDs can be obtained at <a
+	 *            href="http://www.uuidgenerator.net/">http
+	 *            ://www.uuidgenerator.net/</a> and instantiated using
+	 *            {@link UUID#fromString(String)}.
+	 * @param senderFactory
+	 *            creates a <code>MessageSender</code> for each client
+	 * @param receiverFactory
+	 *            creates a <code>MessageReceiver</code> for each client
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once. While at
+	 *            capacity the service stops listening.
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected MessageService(String name, UUID uuid,
+			MessageSender.Factory<S> senderFactory,
+			MessageReceiver.Factory<R> receiverFactory, int maxConnections,
+			MessageWriter.Config writerConfig) {
+		this(null, name, uuid, senderFactory, receiverFactory, maxConnections,
+				writerConfig, false);
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once
+	 * over an arbitrary {@link Transport}. Concrete implementations must have
+	 * a zero-argument constructor.
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> to listen on
+	 * @param senderFactory
+	 *            creates a <code>MessageSender</code> for each client
+	 * @param receiverFactory
+	 *            creates a <code>MessageReceiver</code> for each client
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once. While at
+	 *            capacity the service stops listening.
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected MessageService(Transport transport,
+			MessageSender.Factory<S> senderFactory,
+			MessageReceiver.Factory<R> receiverFactory, int maxConnections,
+			MessageWriter.Config writerConfig) {
+		this(transport, null, null, senderFactory, receiverFactory,
+				maxConnections, writerConfig, false);
+	}
+
+	private MessageService(Transport transport, String name, UUID uuid,
+			MessageSender.Factory<S> senderFactory,
+			MessageReceiver.Factory<R> receiverFactory, int maxConnections,
+			MessageWriter.Config writerConfig, boolean sharedCodecs) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("maxConnections < 1");
+		}
+		mTransport = transport;
 		NAME = name;
 		MY_UUID = uuid;
-		mSender = sender;
-		mReader = receiver;
+		mSenderFactory = senderFactory;
+		mReceiverFactory = receiverFactory;
+		mMaxConnections = maxConnections;
+		mWriterConfig = writerConfig;
+		mSharedCodecs = sharedCodecs;
+	}
+
+	private static <S> MessageSender.Factory<S> singleSender(
+			final MessageSender<S> sender) {
+		return new MessageSender.Factory<S>() {
+
+			@Override
+			public MessageSender<S> newSender() {
+				return sender;
+			}
+		};
+	}
+
+	private static <R> MessageReceiver.Factory<R> singleReceiver(
+			final MessageReceiver<R> receiver) {
+		return new MessageReceiver.Factory<R>() {
+
+			@Override
+			public MessageReceiver<R> newReceiver() {
+				return receiver;
+			}
+		};
 	}
 
 	@Override
@@ -190,9 +406,11 @@ public abstract class MessageService<S, R> extends Service {
 	@Override
 	public void onCreate() {
 		super.onCreate();
-		mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-		mAcceptThread = new AcceptThread();
-		mAcceptThread.start();
+		if (mTransport == null) {
+			mTransport = new RfcommTransport(
+					BluetoothAdapter.getDefaultAdapter(), NAME, MY_UUID);
+		}
+		startListening();
 		startForeground(
 				0,
 				new Notification.Builder(this).setContentIntent(
@@ -202,41 +420,405 @@ public abstract class MessageService<S, R> extends Service {
 
 	@Override
 	public void onDestroy() {
-		if (mConnectedThread != null && mConnectedThread.isAlive()) {
-			mConnectedThread.cancel();
+		synchronized (mConnections) {
+			mDestroyed = true;
 		}
 		if (mAcceptThread != null && mAcceptThread.isAlive()
 				&& mAcceptThread.isRunning) {
 			mAcceptThread.cancel();
 		}
+		for (MessageConnection<S, R> connection : getConnections()) {
+			connection.close();
+		}
+		mMetricsReporter.setListener(null, 0);
 		super.onDestroy();
 	}
 
-	private void manageConnectedSocket(final BluetoothSocket socket) {
-		mConnectedThread = new ConnectedThread(socket);
-		mConnectedThread.start();
-		mHandler.post(new Runnable() {
+	private void startListening() {
+		synchronized (mConnections) {
+			if (mDestroyed
+					|| (mAcceptThread != null && mAcceptThread.isAlive() && mAcceptThread.isRunning)) {
+				return;
+			}
+			mAcceptThread = new AcceptThread();
+			mAcceptThread.start();
+		}
+	}
+
+	private boolean manageConnection(final Connection connection) {
+		if (mSharedCodecs && !awaitSharedCodecs()) {
+			try {
+				connection.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			return false;
+		}
+		MessageConnection<S, R> messageConnection = new MessageConnection<S, R>(
+				connection, mSenderFactory.newSender(),
+				mReceiverFactory.newReceiver(), mWriterConfig,
+				mConnectionListener, mMetrics);
+		MessageConnection<S, R> replaced;
+		synchronized (mConnections) {
+			replaced = mConnections.put(connection.getRemoteAddress(),
+					messageConnection);
+			if (mSharedCodecs) {
+				mCodecHolder = messageConnection;
+			}
+		}
+		if (replaced != null) {
+			// The same device reconnected before its old link timed out
+			replaced.close();
+		}
+		try {
+			messageConnection.start();
+		} catch (IOException e) {
+			e.printStackTrace();
+			mMetrics.onConnectFailed();
+			removeConnection(messageConnection);
+			return false;
+		}
+		mMetrics.onAccepted();
+		onConnectionOpened(messageConnection);
+		runCallback(messageConnection, new Runnable() {
 
 			@Override
 			public void run() {
-				onConnected(socket.getRemoteDevice());
+				onConnected(RfcommTransport.getRemoteDevice(connection));
 			}
 		});
+		return true;
 	}
 
-	private void connectionLost(final BluetoothSocket socket) {
-		mHandler.post(new Runnable() {
+	/**
+	 * Waits for the last connection to stop using the single sender and
+	 * receiver passed to the constructor, so no two connections use them at
+	 * once
+	 * 
+	 * @return <code>false</code> if interrupted while waiting
+	 */
+	private boolean awaitSharedCodecs() {
+		MessageConnection<S, R> previous;
+		synchronized (mConnections) {
+			previous = mCodecHolder;
+		}
+		if (previous == null) {
+			return true;
+		}
+		// Normally closed already, since only one client is served at a time
+		previous.close();
+		try {
+			previous.awaitStopped();
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private MessageBatcher<R> getBatcher(MessageConnection<S, R> connection,
+			final String address, final BluetoothDevice device) {
+		MessageBatcher<R> batcher = mBatchers.get(connection);
+		if (batcher != null) {
+			return batcher;
+		}
+		batcher = new MessageBatcher<R>(mHandler, mDeliveryWindowMillis,
+				new MessageBatcher.Sink<R>() {
+
+					@Override
+					public void onDeliver(List<R> messages) {
+						dispatchMessages(address, device, messages);
+					}
+				}, mMetrics);
+		MessageBatcher<R> existing = mBatchers.putIfAbsent(connection, batcher);
+		return existing != null ? existing : batcher;
+	}
+
+	private boolean removeConnection(MessageConnection<S, R> connection) {
+		synchronized (mConnections) {
+			String address = connection.getConnection().getRemoteAddress();
+			if (mConnections.get(address) != connection) {
+				return false;
+			}
+			mConnections.remove(address);
+			mConnections.notifyAll();
+			return true;
+		}
+	}
+
+	private void connectionLost(MessageConnection<S, R> connection) {
+		mMetrics.onDisconnected();
+		boolean current = removeConnection(connection);
+		final Connection lost = connection.getConnection();
+		if (current) {
+			onConnectionClosed(lost.getRemoteAddress(),
+					RfcommTransport.getRemoteDevice(lost));
+		}
+		MessageBatcher<R> batcher = mBatchers.remove(connection);
+		if (batcher != null) {
+			// Deliver what is left before onDisconnected
+			batcher.flush();
+		}
+		if (!current) {
+			// Replaced by a newer connection from the same device, which
+			// still owns the device's state
+			return;
+		}
+		runCallback(connection, new Runnable() {
 
 			@Override
 			public void run() {
-				onDisconnected(socket.getRemoteDevice());
+				onDisconnected(RfcommTransport.getRemoteDevice(lost));
 			}
 		});
-		mAcceptThread = new AcceptThread();
-		mAcceptThread.start();
+		// Restart listening in case the accept thread stopped on an error
+		startListening();
+	}
+
+	private List<MessageConnection<S, R>> getConnections() {
+		synchronized (mConnections) {
+			return new ArrayList<MessageConnection<S, R>>(
+					mConnections.values());
+		}
+	}
+
+	private MessageConnection<S, R> getConnection(String address) {
+		synchronized (mConnections) {
+			return mConnections.get(address);
+		}
+	}
+
+	/**
+	 * Sees each received message on the connection's reader thread, before it
+	 * is posted to the main thread. Used by subclasses in this package that
+	 * must not wait for the main thread.
+	 * 
+	 * @param address
+	 *            the remote address of the connection
+	 * @return <code>true</code> if the message has been handled and should
+	 *         not be passed to {@link #onReceiveMessage(BluetoothDevice, Object)}
+	 */
+	boolean onInterceptMessage(String address, BluetoothDevice remoteDevice,
+			R message) {
+		return false;
 	}
 
-	private final Handler mHandler = new Handler();
+	/**
+	 * Delivers a received message on the callback thread. Subclasses in this
+	 * package that keep state per client override this, since
+	 * <code>remoteDevice</code> alone does not tell apart the clients of a
+	 * non-Bluetooth <code>Transport</code>.
+	 * 
+	 * @param address
+	 *            the remote address of the connection
+	 */
+	void dispatchMessage(String address, BluetoothDevice remoteDevice,
+			R message) {
+		onReceiveMessage(remoteDevice, message);
+	}
+
+	/**
+	 * Delivers a batch of received messages on the callback thread
+	 * 
+	 * @param address
+	 *            the remote address of the connection
+	 * @see #dispatchMessage(String, BluetoothDevice, Object)
+	 */
+	void dispatchMessages(String address, BluetoothDevice remoteDevice,
+			List<R> messages) {
+		onReceiveMessages(remoteDevice, messages);
+	}
+
+	/**
+	 * Called on the accepting thread when a connection has started, before
+	 * {@link #onConnected(BluetoothDevice)} is posted
+	 */
+	void onConnectionOpened(MessageConnection<S, R> connection) {
+	}
+
+	/**
+	 * Called when a connection closes, on its reader thread or on the thread
+	 * that closed it, before {@link #onDisconnected(BluetoothDevice)} is
+	 * posted. Not called for a connection that was replaced by a newer one
+	 * from the same device.
+	 * 
+	 * @param address
+	 *            the remote address of the connection
+	 */
+	void onConnectionClosed(String address, BluetoothDevice remoteDevice) {
+	}
+
+	/**
+	 * Per-client state kept by a subclass in this package, such as the
+	 * endpoint of a protocol layered on the messages. Clients are told apart
+	 * by the remote address of their connection, so a Bluetooth device keeps
+	 * its state when it reconnects, while each connection of a TCP or piped
+	 * <code>Transport</code> has its own.
+	 * 
+	 * @param <E>
+	 *            type of the state kept for each client
+	 */
+	abstract class EndpointMap<E> {
+		private final ConcurrentHashMap<String, E> mEndpoints = new ConcurrentHashMap<String, E>();
+
+		/**
+		 * Creates the state of a new client. Frames for the client should be
+		 * sent with {@link MessageService#sendMessage(String, Object)}, so
+		 * they reach only that client.
+		 * 
+		 * @param address
+		 *            the remote address of the client's connection
+		 * @param remoteDevice
+		 *            the client, or <code>null</code> if the
+		 *            <code>Transport</code> is not Bluetooth
+		 */
+		abstract E create(String address, BluetoothDevice remoteDevice);
+
+		/**
+		 * Gets the state of a client, creating it if needed
+		 */
+		E get(String address, BluetoothDevice remoteDevice) {
+			E endpoint = mEndpoints.get(address);
+			if (endpoint != null) {
+				return endpoint;
+			}
+			endpoint = create(address, remoteDevice);
+			E existing = mEndpoints.putIfAbsent(address, endpoint);
+			return existing != null ? existing : endpoint;
+		}
+
+		/**
+		 * Gets the state of a client, creating it if needed
+		 * 
+		 * @param remoteDevice
+		 *            the client, or <code>null</code> for the only client of
+		 *            a non-Bluetooth <code>Transport</code>
+		 * @throws IllegalStateException
+		 *             if <code>remoteDevice</code> is <code>null</code> and
+		 *             there is not exactly one client connected
+		 */
+		E get(BluetoothDevice remoteDevice) {
+			String address = getClientAddress(remoteDevice);
+			if (address == null) {
+				throw new IllegalStateException(
+						"No single client to address without a device");
+			}
+			return get(address, remoteDevice);
+		}
+
+		E peek(String address) {
+			return mEndpoints.get(address);
+		}
+
+		/**
+		 * Gets the state of a client if it has any
+		 * 
+		 * @param remoteDevice
+		 *            the client, or <code>null</code> for the only client of
+		 *            a non-Bluetooth <code>Transport</code>
+		 * @return the state, or <code>null</code>
+		 */
+		E peek(BluetoothDevice remoteDevice) {
+			String address = getClientAddress(remoteDevice);
+			return address == null ? null : mEndpoints.get(address);
+		}
+
+		E remove(String address) {
+			return mEndpoints.remove(address);
+		}
+
+		/**
+		 * Removes the state of a client
+		 * 
+		 * @param remoteDevice
+		 *            the client, or <code>null</code> for the only client of
+		 *            a non-Bluetooth <code>Transport</code>
+		 * @return the removed state, or <code>null</code>
+		 */
+		E remove(BluetoothDevice remoteDevice) {
+			String address = getClientAddress(remoteDevice);
+			return address == null ? null : mEndpoints.remove(address);
+		}
+	}
+
+	/**
+	 * Gets the address that identifies a client's connection
+	 * 
+	 * @param remoteDevice
+	 *            the client, or <code>null</code> for the only client of a
+	 *            non-Bluetooth <code>Transport</code>
+	 * @return the address, or <code>null</code> if <code>remoteDevice</code>
+	 *         is <code>null</code> and there is not exactly one client
+	 *         connected
+	 */
+	String getClientAddress(BluetoothDevice remoteDevice) {
+		if (remoteDevice != null) {
+			return remoteDevice.getAddress();
+		}
+		synchronized (mConnections) {
+			return mConnections.size() == 1 ? mConnections.keySet().iterator()
+					.next() : null;
+		}
+	}
+
+	/**
+	 * Sends a <code>S</code> message to the client connected from
+	 * <code>address</code>
+	 * 
+	 * @param address
+	 *            the remote address of the client's connection, or
+	 *            <code>null</code>
+	 * @param message
+	 *            the <code>S</code> message to send
+	 * @return a <code>SendFuture</code> that completes once the message has
+	 *         been written
+	 * @throws IllegalStateException
+	 *             If no client is connected from <code>address</code>
+	 */
+	SendFuture sendMessage(String address, S message) {
+		MessageConnection<S, R> connection = address == null ? null
+				: getConnection(address);
+		if (connection == null || !connection.isOpen()) {
+			throw new IllegalStateException("Not connected to " + address);
+		}
+		return connection.sendMessage(message);
+	}
+
+	/**
+	 * Runs a connection event on the callback thread, in order with the
+	 * unkeyed messages of that connection
+	 */
+	private void runCallback(MessageConnection<S, R> connection,
+			Runnable callback) {
+		KeyedExecutor executor = mCallbackExecutor;
+		if (executor == null) {
+			mHandler.post(callback);
+		} else {
+			executor.execute(connection, callback);
+		}
+	}
+
+	/**
+	 * Runs callbacks when no other <code>Executor</code> is set
+	 */
+	private volatile Handler mHandler = new Handler();
+
+	/**
+	 * Runs callbacks when set through {@link #setCallbackExecutor}, otherwise
+	 * <code>null</code>
+	 */
+	private volatile KeyedExecutor mCallbackExecutor;
+	private volatile KeyedExecutor.KeySelector<? super R> mKeySelector;
+
+	private final MessageMetrics mMetrics = new MessageMetrics();
+	private final MetricsReporter mMetricsReporter = new MetricsReporter(
+			new Handler(Looper.getMainLooper()), new MetricsReporter.Source() {
+
+				@Override
+				public MetricsSnapshot getMetrics() {
+					return MessageService.this.getMetrics();
+				}
+			});
 
 	// Accessible methods begin here
 
@@ -246,17 +828,23 @@ public abstract class MessageService<S, R> extends Service {
 	 * 
 	 * @param remoteDevice
 	 *            the <code>BluetoothDevice</code> this
-	 *            <code>MessageService</code> has connected to
+	 *            <code>MessageService</code> has connected to, or
+	 *            <code>null</code> if the <code>Transport</code> is not
+	 *            Bluetooth
 	 */
 	protected abstract void onConnected(BluetoothDevice remoteDevice);
 
 	/**
 	 * A remote client has disconnected from this service and is no longer able
-	 * to send and receive messages
+	 * to send and receive messages. Not called when a client reconnects before
+	 * its old link was seen to close; it gets a second
+	 * {@link #onConnected(BluetoothDevice)} instead.
 	 * 
 	 * @param remoteDevice
 	 *            the <code>BluetoothDevice</code> this
-	 *            <code>MessageService</code> has disconnected from
+	 *            <code>MessageService</code> has disconnected from, or
+	 *            <code>null</code> if the <code>Transport</code> is not
+	 *            Bluetooth
 	 */
 	protected abstract void onDisconnected(BluetoothDevice remoteDevice);
 
@@ -270,29 +858,312 @@ public abstract class MessageService<S, R> extends Service {
 	protected abstract void onReceiveMessage(R message);
 
 	/**
-	 * Checks if this <code>MessageService</code> is connected to a client
+	 * This <code>MessageService</code> has received a message from a remote
+	 * client. Services with several clients may override this to find out
+	 * which client sent the message; the default implementation calls
+	 * {@link #onReceiveMessage(Object)}.
+	 * 
+	 * @param remoteDevice
+	 *            the <code>BluetoothDevice</code> that sent the message, or
+	 *            <code>null</code> if the <code>Transport</code> is not
+	 *            Bluetooth
+	 * @param message
+	 *            the <code>M</code> message received from the remote client
+	 */
+	protected void onReceiveMessage(BluetoothDevice remoteDevice, R message) {
+		onReceiveMessage(message);
+	}
+
+	/**
+	 * This <code>MessageService</code> has received a batch of messages from a
+	 * remote client. Only called when batched delivery is on; see
+	 * {@link #setDeliveryWindow(long)}. The default implementation calls
+	 * {@link #onReceiveMessage(BluetoothDevice, Object)} for each message.
+	 * 
+	 * @param remoteDevice
+	 *            the <code>BluetoothDevice</code> that sent the messages, or
+	 *            <code>null</code> if the <code>Transport</code> is not
+	 *            Bluetooth
+	 * @param messages
+	 *            the <code>R</code> messages received from the remote client,
+	 *            oldest first
+	 */
+	protected void onReceiveMessages(BluetoothDevice remoteDevice,
+			List<R> messages) {
+		for (R message : messages) {
+			onReceiveMessage(remoteDevice, message);
+		}
+	}
+
+	/**
+	 * Sets where callbacks run. By default they run on the main thread. Each
+	 * client's callbacks still run one at a time and in order, while different
+	 * clients may be served in parallel by a thread pool. Pass
+	 * {@link KeyedExecutor#DIRECT} to run callbacks on the connection's reader
+	 * thread, or a {@link HandlerExecutor} to run them on another
+	 * <code>Looper</code>. Batched delivery only applies when callbacks run on
+	 * a <code>Looper</code>.
+	 * 
+	 * @param executor
+	 *            the <code>Executor</code> to run callbacks on, or
+	 *            <code>null</code> for the main thread
+	 */
+	protected void setCallbackExecutor(Executor executor) {
+		setCallbackExecutor(executor, null);
+	}
+
+	/**
+	 * Sets where callbacks run, processing received messages in parallel.
+	 * Messages whose keys are equal are delivered one at a time in the order
+	 * they arrived; messages with different keys may be delivered
+	 * concurrently, so the callbacks must be thread-safe. Messages keyed
+	 * <code>null</code> share their client's key and stay ordered with its
+	 * connection events.
+	 * 
+	 * @param executor
+	 *            the <code>Executor</code> to run callbacks on, or
+	 *            <code>null</code> for the main thread
+	 * @param keySelector
+	 *            chooses the ordering key of each received message, or
+	 *            <code>null</code> to order by client only
+	 */
+	protected void setCallbackExecutor(Executor executor,
+			KeyedExecutor.KeySelector<? super R> keySelector) {
+		if (executor == null
+				|| (executor instanceof HandlerExecutor && keySelector == null)) {
+			// Post to the Looper directly; cheaper, and batching still works
+			mHandler = executor == null ? new Handler(Looper.getMainLooper())
+					: new Handler(((HandlerExecutor) executor).getLooper());
+			mCallbackExecutor = null;
+			mKeySelector = null;
+		} else {
+			mKeySelector = keySelector;
+			mCallbackExecutor = new KeyedExecutor(executor);
+		}
+		setDeliveryWindow(mDeliveryWindowMillis);
+	}
+
+	/**
+	 * Sets how received messages are delivered to the callback thread. By
+	 * default each message is posted on its own. With batched delivery,
+	 * messages are queued on the reader thread and delivered together to
+	 * {@link #onReceiveMessages(BluetoothDevice, List)} in one dispatch per
+	 * client. Messages queued before a client disconnects are
+	 * delivered before {@link #onDisconnected(BluetoothDevice)}. Only applies
+	 * when callbacks run on a <code>Looper</code>.
+	 * 
+	 * @param windowMillis
+	 *            how long to collect messages after the first of a batch
+	 *            arrives; <code>0</code> to deliver them on the next turn of
+	 *            the looper, or a negative value to deliver each message
+	 *            on its own
+	 */
+	protected void setDeliveryWindow(long windowMillis) {
+		mDeliveryWindowMillis = windowMillis;
+		// Flush batchers made for the old window; new ones are made on demand
+		for (MessageConnection<S, R> connection : mBatchers.keySet()) {
+			MessageBatcher<R> batcher = mBatchers.remove(connection);
+			if (batcher != null) {
+				batcher.flush();
+			}
+		}
+	}
+
+	/**
+	 * Gets the traffic, latency and connection counters of this
+	 * <code>MessageService</code>, summed over all clients, since it was
+	 * created
+	 * 
+	 * @return a <code>MetricsSnapshot</code>
+	 */
+	protected MetricsSnapshot getMetrics() {
+		int depth = 0;
+		for (MessageConnection<S, R> connection : getConnections()) {
+			depth += connection.getSendQueueDepth();
+		}
+		return mMetrics.snapshot(depth);
+	}
+
+	/**
+	 * Starts or stops passing a {@link #getMetrics() snapshot} to
+	 * <code>listener</code> at a fixed interval, on the main thread. Use
+	 * {@link MetricsReporter#LOG} to write them to the log.
+	 * 
+	 * @param listener
+	 *            the <code>Listener</code> to report to, or <code>null</code>
+	 *            to stop reporting
+	 * @param intervalMillis
+	 *            the time between reports in milliseconds
+	 */
+	protected void setMetricsListener(MetricsReporter.Listener listener,
+			long intervalMillis) {
+		mMetricsReporter.setListener(listener, intervalMillis);
+	}
+
+	/**
+	 * Checks if this <code>MessageService</code> is connected to any client
 	 * 
 	 * @return <code>true</code> iff this <code>MessageService</code> can send
 	 *         and receive messages from a remote client
 	 */
 	protected boolean isConnected() {
-		return mConnectedThread != null && mConnectedThread.isAlive();
+		for (MessageConnection<S, R> connection : getConnections()) {
+			if (connection.isOpen()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if this <code>MessageService</code> is connected to
+	 * <code>remoteDevice</code>
+	 * 
+	 * @param remoteDevice
+	 *            the client to check
+	 * @return <code>true</code> iff this <code>MessageService</code> can send
+	 *         and receive messages from <code>remoteDevice</code>
+	 */
+	protected boolean isConnected(BluetoothDevice remoteDevice) {
+		MessageConnection<S, R> connection = getConnection(remoteDevice
+				.getAddress());
+		return connection != null && connection.isOpen();
 	}
 
 	/**
-	 * Sends a <code>S</code> message to the remote client. May be called from
-	 * the main thread
+	 * Gets the Bluetooth clients that are currently connected
+	 * 
+	 * @return the connected <code>BluetoothDevices</code>
+	 */
+	protected List<BluetoothDevice> getConnectedDevices() {
+		List<BluetoothDevice> devices = new ArrayList<BluetoothDevice>();
+		for (MessageConnection<S, R> connection : getConnections()) {
+			BluetoothDevice device = RfcommTransport.getRemoteDevice(connection
+					.getConnection());
+			if (device != null && connection.isOpen()) {
+				devices.add(device);
+			}
+		}
+		return devices;
+	}
+
+	/**
+	 * Disconnects from <code>remoteDevice</code>. Calls
+	 * {@link #onDisconnected(BluetoothDevice)} when finished.
+	 * 
+	 * @param remoteDevice
+	 *            the client to disconnect
+	 */
+	protected void disconnect(BluetoothDevice remoteDevice) {
+		MessageConnection<S, R> connection = getConnection(remoteDevice
+				.getAddress());
+		if (connection != null) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Sends a <code>S</code> message to every connected client. May be called
+	 * from the main thread. The message is queued and written for each
+	 * connection on a background thread, so this method returns without
+	 * waiting for the write.
 	 * 
 	 * @param message
 	 *            the <code>S</code> message to send
+	 * @return a <code>SendFuture</code> that completes once the message has
+	 *         been written to every client
 	 * @throws IllegalStateException
 	 *             If the <code>MessageService</code> is not connected
 	 */
-	protected void sendMessage(S message) {
-		if (!isConnected()) {
+	protected SendFuture sendMessage(S message) {
+		return broadcastMessage(message);
+	}
+
+	/**
+	 * Sends a <code>S</code> message to a single client. May be called from
+	 * the main thread.
+	 * 
+	 * @param remoteDevice
+	 *            the client to send to
+	 * @param message
+	 *            the <code>S</code> message to send
+	 * @return a <code>SendFuture</code> that completes once the message has
+	 *         been written to <code>remoteDevice</code>
+	 * @throws IllegalStateException
+	 *             If the <code>MessageService</code> is not connected to
+	 *             <code>remoteDevice</code>
+	 */
+	protected SendFuture sendMessage(BluetoothDevice remoteDevice, S message) {
+		return sendMessage(remoteDevice.getAddress(), message);
+	}
+
+	/**
+	 * Creates a {@link CoalescingSender} that broadcasts to every connected
+	 * client, keeping only the newest pending message of each key. Use it for
+	 * high-frequency updates where only the latest value matters.
+	 * 
+	 * @param keySelector
+	 *            picks the key of each message. Messages with equal keys
+	 *            replace each other.
+	 * @return a new <code>CoalescingSender</code>
+	 */
+	protected CoalescingSender<S> createCoalescingSender(
+			KeyedExecutor.KeySelector<? super S> keySelector) {
+		return new CoalescingSender<S>(new CoalescingSender.Sink<S>() {
+
+			@Override
+			public SendFuture send(S message) {
+				return sendMessage(message);
+			}
+		}, keySelector);
+	}
+
+	/**
+	 * Creates a {@link CoalescingSender} that sends to a single client,
+	 * keeping only the newest pending message of each key
+	 * 
+	 * @param remoteDevice
+	 *            the client to send to
+	 * @param keySelector
+	 *            picks the key of each message. Messages with equal keys
+	 *            replace each other.
+	 * @return a new <code>CoalescingSender</code>
+	 */
+	protected CoalescingSender<S> createCoalescingSender(
+			final BluetoothDevice remoteDevice,
+			KeyedExecutor.KeySelector<? super S> keySelector) {
+		return new CoalescingSender<S>(new CoalescingSender.Sink<S>() {
+
+			@Override
+			public SendFuture send(S message) {
+				return sendMessage(remoteDevice, message);
+			}
+		}, keySelector);
+	}
+
+	/**
+	 * Sends a <code>S</code> message to every connected client. May be called
+	 * from the main thread.
+	 * 
+	 * @param message
+	 *            the <code>S</code> message to send
+	 * @return a <code>SendFuture</code> that completes once the message has
+	 *         been written to every client, or fails if any write fails
+	 * @throws IllegalStateException
+	 *             If the <code>MessageService</code> is not connected
+	 */
+	protected SendFuture broadcastMessage(S message) {
+		List<SendFuture> futures = new ArrayList<SendFuture>();
+		for (MessageConnection<S, R> connection : getConnections()) {
+			if (connection.isOpen()) {
+				futures.add(connection.sendMessage(message));
+			}
+		}
+		if (futures.isEmpty()) {
 			throw new IllegalStateException("Not connected");
 		}
-		mSender.sendMessage(message);
+		return futures.size() == 1 ? futures.get(0) : SendFuture
+				.allOf(futures);
 	}
 
 }
@@ -0,0 +1,286 @@
+package com.keyboardr.glassremote.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.keyboardr.glassremote.common.KeyedExecutor;
+import com.keyboardr.glassremote.common.MessageConnection;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.reliable.ReliableChannel;
+import com.keyboardr.glassremote.common.reliable.ReliableFrame;
+import com.keyboardr.glassremote.common.reliable.ReliableFrameReader;
+import com.keyboardr.glassremote.common.reliable.ReliableFrameSender;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.transport.RfcommTransport;
+import com.keyboardr.glassremote.common.transport.Transport;
+
+/**
+ * A {@link MessageService} that delivers every message once and in order
+ * even when the link to a client drops. Each client has its own
+ * {@link ReliableChannel}, which outlives the connection: messages sent to a
+ * client that are unacknowledged when it disconnects, or that are sent while
+ * it is away, are delivered once it reconnects. Clients are recognized by
+ * their remote address, so over TCP each connection is a new client. The
+ * remote clients should use a
+ * <code>ReliableRemoteMessenger&lt;R, S></code>.<br/>
+ * <br/>
+ * Messages are delivered to {@link #onMessage(BluetoothDevice, Object)} on
+ * the callback thread, which is the main thread unless
+ * {@link #setCallbackExecutor(Executor) setCallbackExecutor()} chose
+ * another. They are always delivered one at a time and in order, so a key
+ * selector passed to
+ * {@link #setCallbackExecutor(Executor, KeyedExecutor.KeySelector)} is
+ * ignored.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            type of messages to send to remote clients
+ * @param <R>
+ *            type of messages to receive from remote clients
+ */
+// Ignore warning since access to the R class shouldn't be needed at this level
+// of abstraction
+@SuppressWarnings("hiding")
+public abstract class ReliableMessageService<S, R> extends
+		MessageService<ReliableFrame<S>, ReliableFrame<R>> {
+
+	private final EndpointMap<ReliableChannel<S, R>> mChannels = new EndpointMap<ReliableChannel<S, R>>() {
+
+		@Override
+		ReliableChannel<S, R> create(final String address,
+				BluetoothDevice remoteDevice) {
+			return new ReliableChannel<S, R>(
+					new ReliableChannel.FrameSink<S>() {
+
+						@Override
+						public SendFuture sendFrame(ReliableFrame<S> frame) {
+							return sendMessage(address, frame);
+						}
+					});
+		}
+	};
+
+	/**
+	 * Class constructor for a service with one client at a time. Concrete
+	 * implementations must have a zero-argument constructor.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server. UUIDs can be obtained at <a
+	 *            href="http://www.uuidgenerator.net/">http
+	 *            ://www.uuidgenerator.net/</a> and instantiated using
+	 *            {@link UUID#fromString(String)}.
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> messages
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> messages
+	 */
+	protected ReliableMessageService(String name, UUID uuid,
+			MessageSender<S> sender, MessageReceiver<R> receiver) {
+		super(name, uuid, new ReliableFrameSender<S>(sender),
+				new ReliableFrameReader<R>(receiver));
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once.
+	 * Concrete implementations must have a zero-argument constructor.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server
+	 * @param senderFactory
+	 *            creates a message <code>MessageSender</code> for each client
+	 * @param receiverFactory
+	 *            creates a message <code>MessageReceiver</code> for each client
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing frames, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected ReliableMessageService(String name, UUID uuid,
+			MessageSender.Factory<S> senderFactory,
+			MessageReceiver.Factory<R> receiverFactory, int maxConnections,
+			MessageWriter.Config writerConfig) {
+		super(name, uuid, ReliableFrameSender.factory(senderFactory),
+				ReliableFrameReader.factory(receiverFactory), maxConnections,
+				writerConfig);
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once
+	 * over an arbitrary {@link Transport}. Concrete implementations must have
+	 * a zero-argument constructor.
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> to listen on
+	 * @param senderFactory
+	 *            creates a message <code>MessageSender</code> for each client
+	 * @param receiverFactory
+	 *            creates a message <code>MessageReceiver</code> for each client
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing frames, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected ReliableMessageService(Transport transport,
+			MessageSender.Factory<S> senderFactory,
+			MessageReceiver.Factory<R> receiverFactory, int maxConnections,
+			MessageWriter.Config writerConfig) {
+		super(transport, ReliableFrameSender.factory(senderFactory),
+				ReliableFrameReader.factory(receiverFactory), maxConnections,
+				writerConfig);
+	}
+
+	@Override
+	void onConnectionOpened(
+			MessageConnection<ReliableFrame<S>, ReliableFrame<R>> connection) {
+		mChannels.get(connection.getConnection().getRemoteAddress(),
+				RfcommTransport.getRemoteDevice(connection.getConnection()))
+				.onConnected();
+	}
+
+	@Override
+	void onConnectionClosed(String address, BluetoothDevice remoteDevice) {
+		ReliableChannel<S, R> channel = mChannels.peek(address);
+		if (channel != null) {
+			channel.onDisconnected();
+		}
+	}
+
+	@Override
+	boolean onInterceptMessage(String address, BluetoothDevice remoteDevice,
+			ReliableFrame<R> message) {
+		if (!message.isControl()) {
+			// Hellos and data must be handled in order on the callback thread
+			return false;
+		}
+		mChannels.get(address, remoteDevice).onReceiveFrame(message);
+		return true;
+	}
+
+	@Override
+	void dispatchMessage(String address, BluetoothDevice remoteDevice,
+			ReliableFrame<R> message) {
+		for (R received : mChannels.get(address, remoteDevice).onReceiveFrame(
+				message)) {
+			onMessage(remoteDevice, received);
+		}
+	}
+
+	@Override
+	void dispatchMessages(String address, BluetoothDevice remoteDevice,
+			List<ReliableFrame<R>> messages) {
+		ReliableChannel<S, R> channel = mChannels.get(address, remoteDevice);
+		List<R> received = new ArrayList<R>(messages.size());
+		for (ReliableFrame<R> message : messages) {
+			received.addAll(channel.onReceiveFrame(message));
+		}
+		for (R message : received) {
+			onMessage(remoteDevice, message);
+		}
+	}
+
+	@Override
+	protected final void onReceiveMessage(BluetoothDevice remoteDevice,
+			ReliableFrame<R> message) {
+		// Frames are dispatched by dispatchMessage()
+	}
+
+	@Override
+	protected final void onReceiveMessages(BluetoothDevice remoteDevice,
+			List<ReliableFrame<R>> messages) {
+		// Frames are dispatched by dispatchMessages()
+	}
+
+	@Override
+	protected final void onReceiveMessage(ReliableFrame<R> message) {
+		// Frames are dispatched by dispatchMessage()
+	}
+
+	@Override
+	protected void setCallbackExecutor(Executor executor,
+			KeyedExecutor.KeySelector<? super ReliableFrame<R>> keySelector) {
+		// Frames must reach the channel in order, so they are never keyed
+		super.setCallbackExecutor(executor, null);
+	}
+
+	/**
+	 * A remote client has sent a message. Called on the callback thread, once
+	 * per message and in the order they were sent.
+	 * 
+	 * @param remoteDevice
+	 *            the client that sent the message, or <code>null</code> if
+	 *            the <code>Transport</code> is not Bluetooth
+	 * @param message
+	 *            the <code>R</code> message
+	 */
+	protected abstract void onMessage(BluetoothDevice remoteDevice, R message);
+
+	/**
+	 * Sends a message to a remote client. May be called from the main thread,
+	 * and while the client is not connected, in which case the message is
+	 * sent once it connects.
+	 * 
+	 * @param remoteDevice
+	 *            the client to send to, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>, which
+	 *            must be connected
+	 * @param message
+	 *            the <code>S</code> message
+	 * @return a <code>SendFuture</code> that succeeds once the client has
+	 *         acknowledged the message
+	 * @throws IllegalStateException
+	 *             If <code>remoteDevice</code> is <code>null</code> and there
+	 *             is not exactly one client connected
+	 */
+	protected SendFuture send(BluetoothDevice remoteDevice, S message) {
+		return mChannels.get(remoteDevice).send(message);
+	}
+
+	/**
+	 * Gets the number of messages sent to <code>remoteDevice</code> that it
+	 * has not acknowledged
+	 * 
+	 * @param remoteDevice
+	 *            the client to check, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 * @return the number of unacknowledged messages
+	 */
+	protected int getUnackedCount(BluetoothDevice remoteDevice) {
+		ReliableChannel<S, R> channel = mChannels.peek(remoteDevice);
+		return channel == null ? 0 : channel.getUnackedCount();
+	}
+
+	/**
+	 * Discards the channel of a client that is not expected back. Messages it
+	 * has not acknowledged fail, and if it does connect again it is treated
+	 * as a new client.
+	 * 
+	 * @param remoteDevice
+	 *            the client to forget, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 */
+	protected void forgetClient(BluetoothDevice remoteDevice) {
+		ReliableChannel<S, R> channel = mChannels.remove(remoteDevice);
+		if (channel != null) {
+			channel.onDisconnected();
+			channel.failAll(new IOException("Client forgotten"));
+		}
+	}
+}
@@ -0,0 +1,303 @@
+package com.keyboardr.glassremote.server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.rpc.RpcEndpoint;
+import com.keyboardr.glassremote.common.rpc.RpcFrame;
+import com.keyboardr.glassremote.common.rpc.RpcFrameReader;
+import com.keyboardr.glassremote.common.rpc.RpcFrameSender;
+import com.keyboardr.glassremote.common.rpc.RpcFuture;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.transport.Transport;
+
+/**
+ * A {@link MessageService} that answers request/response calls from remote
+ * clients and can make calls of its own. Each client has its own
+ * {@link RpcEndpoint}, so calls are matched per connection and fail when that
+ * client disconnects. One-way messages are still exchanged alongside the
+ * calls.<br/>
+ * <br/>
+ * Requests and messages are delivered on the callback thread, which is the
+ * main thread unless {@link #setCallbackExecutor(java.util.concurrent.Executor)
+ * setCallbackExecutor()} chose another. Responses to calls made by this
+ * service complete their {@link RpcFuture} on the connection's reader thread.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            type of responses and messages to send to remote clients
+ * @param <R>
+ *            type of requests and messages to receive from remote clients
+ */
+// Ignore warning since access to the R class shouldn't be needed at this level
+// of abstraction
+@SuppressWarnings("hiding")
+public abstract class RpcMessageService<S, R> extends
+		MessageService<RpcFrame<S>, RpcFrame<R>> {
+
+	private final EndpointMap<RpcEndpoint<S, R>> mEndpoints = new EndpointMap<RpcEndpoint<S, R>>() {
+
+		@Override
+		RpcEndpoint<S, R> create(final String address,
+				final BluetoothDevice remoteDevice) {
+			RpcEndpoint<S, R> endpoint = new RpcEndpoint<S, R>(
+					new RpcEndpoint.FrameSink<S>() {
+
+						@Override
+						public SendFuture sendFrame(RpcFrame<S> frame) {
+							return sendMessage(address, frame);
+						}
+					});
+			endpoint.setRequestHandler(new RpcEndpoint.RequestHandler<S, R>() {
+
+				@Override
+				public void onRequest(R request,
+						RpcEndpoint.Responder<S> responder) {
+					RpcMessageService.this.onRequest(remoteDevice, request,
+							responder);
+				}
+			});
+			return endpoint;
+		}
+	};
+
+	/**
+	 * Class constructor for a service with one client at a time. Concrete
+	 * implementations must have a zero-argument constructor.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server. UUIDs can be obtained at <a
+	 *            href="http://www.uuidgenerator.net/">http
+	 *            ://www.uuidgenerator.net/</a> and instantiated using
+	 *            {@link UUID#fromString(String)}.
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> payloads
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> payloads
+	 */
+	protected RpcMessageService(String name, UUID uuid,
+			MessageSender<S> sender, MessageReceiver<R> receiver) {
+		super(name, uuid, new RpcFrameSender<S>(sender),
+				new RpcFrameReader<R>(receiver));
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once.
+	 * Concrete implementations must have a zero-argument constructor.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server
+	 * @param senderFactory
+	 *            creates a payload <code>MessageSender</code> for each client
+	 * @param receiverFactory
+	 *            creates a payload <code>MessageReceiver</code> for each client
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected RpcMessageService(String name, UUID uuid,
+			MessageSender.Factory<S> senderFactory,
+			MessageReceiver.Factory<R> receiverFactory, int maxConnections,
+			MessageWriter.Config writerConfig) {
+		super(name, uuid, RpcFrameSender.factory(senderFactory), RpcFrameReader
+				.factory(receiverFactory), maxConnections, writerConfig);
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once
+	 * over an arbitrary {@link Transport}. Concrete implementations must have
+	 * a zero-argument constructor.
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> to listen on
+	 * @param senderFactory
+	 *            creates a payload <code>MessageSender</code> for each client
+	 * @param receiverFactory
+	 *            creates a payload <code>MessageReceiver</code> for each client
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing messages, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected RpcMessageService(Transport transport,
+			MessageSender.Factory<S> senderFactory,
+			MessageReceiver.Factory<R> receiverFactory, int maxConnections,
+			MessageWriter.Config writerConfig) {
+		super(transport, RpcFrameSender.factory(senderFactory), RpcFrameReader
+				.factory(receiverFactory), maxConnections, writerConfig);
+	}
+
+	@Override
+	boolean onInterceptMessage(String address, BluetoothDevice remoteDevice,
+			RpcFrame<R> message) {
+		if (!message.isControl()) {
+			return false;
+		}
+		mEndpoints.get(address, remoteDevice).onReceiveFrame(message);
+		return true;
+	}
+
+	@Override
+	void onConnectionClosed(String address, BluetoothDevice remoteDevice) {
+		RpcEndpoint<S, R> endpoint = mEndpoints.remove(address);
+		if (endpoint != null) {
+			endpoint.failAll(new IOException("Connection closed"));
+		}
+	}
+
+	@Override
+	void dispatchMessage(String address, BluetoothDevice remoteDevice,
+			RpcFrame<R> message) {
+		if (!mEndpoints.get(address, remoteDevice).onReceiveFrame(message)) {
+			onMessage(remoteDevice, message.getPayload());
+		}
+	}
+
+	@Override
+	void dispatchMessages(String address, BluetoothDevice remoteDevice,
+			List<RpcFrame<R>> messages) {
+		for (RpcFrame<R> message : messages) {
+			dispatchMessage(address, remoteDevice, message);
+		}
+	}
+
+	@Override
+	protected final void onReceiveMessage(BluetoothDevice remoteDevice,
+			RpcFrame<R> message) {
+		// Frames are dispatched by dispatchMessage()
+	}
+
+	@Override
+	protected final void onReceiveMessage(RpcFrame<R> message) {
+		// Frames are dispatched by dispatchMessage()
+	}
+
+	/**
+	 * A remote client has made a request. Called on the callback thread. The
+	 * request must eventually be answered through <code>responder</code>,
+	 * either before returning or later from any thread.
+	 * 
+	 * @param remoteDevice
+	 *            the client that made the request, or <code>null</code> if the
+	 *            <code>Transport</code> is not Bluetooth
+	 * @param request
+	 *            the <code>R</code> request
+	 * @param responder
+	 *            the <code>Responder</code> for this request
+	 */
+	protected abstract void onRequest(BluetoothDevice remoteDevice, R request,
+			RpcEndpoint.Responder<S> responder);
+
+	/**
+	 * A remote client has sent a one-way message. Called on the callback
+	 * thread.
+	 * 
+	 * @param remoteDevice
+	 *            the client that sent the message, or <code>null</code> if the
+	 *            <code>Transport</code> is not Bluetooth
+	 * @param message
+	 *            the <code>R</code> message
+	 */
+	protected abstract void onMessage(BluetoothDevice remoteDevice, R message);
+
+	/**
+	 * Sends a request to a remote client with a timeout of
+	 * {@link RpcEndpoint#DEFAULT_TIMEOUT_MILLIS}. May be called from the main
+	 * thread.
+	 * 
+	 * @param remoteDevice
+	 *            the client to call, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 * @param request
+	 *            the <code>S</code> request
+	 * @return an <code>RpcFuture</code> for the response
+	 * @throws IllegalStateException
+	 *             If <code>remoteDevice</code> is <code>null</code> and there
+	 *             is not exactly one client connected
+	 */
+	protected RpcFuture<R> call(BluetoothDevice remoteDevice, S request) {
+		return mEndpoints.get(remoteDevice).call(request);
+	}
+
+	/**
+	 * Sends a request to a remote client. May be called from the main thread.
+	 * 
+	 * @param remoteDevice
+	 *            the client to call, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 * @param request
+	 *            the <code>S</code> request
+	 * @param timeoutMillis
+	 *            how long to wait for the response, or <code>0</code> to wait
+	 *            until the client disconnects
+	 * @return an <code>RpcFuture</code> for the response
+	 * @throws IllegalStateException
+	 *             If <code>remoteDevice</code> is <code>null</code> and there
+	 *             is not exactly one client connected
+	 */
+	protected RpcFuture<R> call(BluetoothDevice remoteDevice, S request,
+			long timeoutMillis) {
+		return mEndpoints.get(remoteDevice).call(request, timeoutMillis);
+	}
+
+	/**
+	 * Sends a one-way message to a remote client
+	 * 
+	 * @param remoteDevice
+	 *            the client to send to, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 * @param message
+	 *            the <code>S</code> message
+	 * @return a <code>SendFuture</code> for the message
+	 * @throws IllegalStateException
+	 *             If the service is not connected to <code>remoteDevice</code>
+	 */
+	protected SendFuture send(BluetoothDevice remoteDevice, S message) {
+		return mEndpoints.get(remoteDevice).send(message);
+	}
+
+	/**
+	 * Sends a one-way message to every connected client
+	 * 
+	 * @param message
+	 *            the <code>S</code> message
+	 * @return a <code>SendFuture</code> for the message
+	 * @throws IllegalStateException
+	 *             If the service is not connected
+	 */
+	protected SendFuture broadcast(S message) {
+		return broadcastMessage(RpcFrame.message(message));
+	}
+
+	/**
+	 * Gets the number of calls to <code>remoteDevice</code> waiting for a
+	 * response
+	 * 
+	 * @param remoteDevice
+	 *            the client to check, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 * @return the number of calls in flight
+	 */
+	protected int getPendingCallCount(BluetoothDevice remoteDevice) {
+		RpcEndpoint<S, R> endpoint = mEndpoints.peek(remoteDevice);
+		return endpoint == null ? 0 : endpoint.getPendingCount();
+	}
+}
@@ -0,0 +1,298 @@
+package com.keyboardr.glassremote.server;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.keyboardr.glassremote.common.MessageConnection;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.sync.StateFrame;
+import com.keyboardr.glassremote.common.sync.StateFrameReader;
+import com.keyboardr.glassremote.common.sync.StateFrameSender;
+import com.keyboardr.glassremote.common.sync.StatePublisher;
+import com.keyboardr.glassremote.common.sync.StateReplica;
+import com.keyboardr.glassremote.common.transport.Transport;
+
+/**
+ * A {@link MessageService} that keeps a keyed state map in sync with its
+ * remote clients rather than exchanging individual messages. Suited to state
+ * that is updated many times a second but changes only a little each time,
+ * such as what a companion device should display.<br/>
+ * <br/>
+ * The service publishes one state to every client and holds a copy of each
+ * client's own state. Only keys whose value changed are sent, changes made
+ * within the {@link #setCoalesceWindow(long) coalescing window} are sent
+ * together, and each client is sent the whole state as soon as it connects.
+ * The remote clients should use a <code>StateRemoteMessenger&lt;V></code>.<br/>
+ * <br/>
+ * Changes to the state of a client are delivered to
+ * {@link #onRemoteStateChanged(BluetoothDevice, Map)} on the callback thread,
+ * which is the main thread unless
+ * {@link #setCallbackExecutor(java.util.concurrent.Executor)
+ * setCallbackExecutor()} chose another.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <V>
+ *            type of the state values. Values should be immutable and
+ *            implement <code>equals()</code>.
+ */
+public abstract class StateMessageService<V> extends
+		MessageService<StateFrame<V>, StateFrame<V>> {
+
+	private final EndpointMap<StateReplica<V>> mReplicas = new EndpointMap<StateReplica<V>>() {
+
+		@Override
+		StateReplica<V> create(String address, BluetoothDevice remoteDevice) {
+			return new StateReplica<V>();
+		}
+	};
+
+	private final StatePublisher<V> mPublisher = new StatePublisher<V>(
+			new StatePublisher.FrameSink<V>() {
+
+				@Override
+				public SendFuture sendFrame(StateFrame<V> frame) {
+					return broadcastMessage(frame);
+				}
+			});
+
+	/**
+	 * Class constructor for a service with one client at a time. Concrete
+	 * implementations must have a zero-argument constructor.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server. UUIDs can be obtained at <a
+	 *            href="http://www.uuidgenerator.net/">http
+	 *            ://www.uuidgenerator.net/</a> and instantiated using
+	 *            {@link UUID#fromString(String)}.
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>V</code> values
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>V</code> values
+	 */
+	protected StateMessageService(String name, UUID uuid,
+			MessageSender<V> sender, MessageReceiver<V> receiver) {
+		super(name, uuid, new StateFrameSender<V>(sender),
+				new StateFrameReader<V>(receiver));
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once.
+	 * Concrete implementations must have a zero-argument constructor.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server
+	 * @param senderFactory
+	 *            creates a value <code>MessageSender</code> for each client
+	 * @param receiverFactory
+	 *            creates a value <code>MessageReceiver</code> for each client
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing frames, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected StateMessageService(String name, UUID uuid,
+			MessageSender.Factory<V> senderFactory,
+			MessageReceiver.Factory<V> receiverFactory, int maxConnections,
+			MessageWriter.Config writerConfig) {
+		super(name, uuid, StateFrameSender.factory(senderFactory),
+				StateFrameReader.factory(receiverFactory), maxConnections,
+				writerConfig);
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once
+	 * over an arbitrary {@link Transport}. Concrete implementations must have
+	 * a zero-argument constructor.
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> to listen on
+	 * @param senderFactory
+	 *            creates a value <code>MessageSender</code> for each client
+	 * @param receiverFactory
+	 *            creates a value <code>MessageReceiver</code> for each client
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing frames, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected StateMessageService(Transport transport,
+			MessageSender.Factory<V> senderFactory,
+			MessageReceiver.Factory<V> receiverFactory, int maxConnections,
+			MessageWriter.Config writerConfig) {
+		super(transport, StateFrameSender.factory(senderFactory),
+				StateFrameReader.factory(receiverFactory), maxConnections,
+				writerConfig);
+	}
+
+	@Override
+	void onConnectionOpened(
+			final MessageConnection<StateFrame<V>, StateFrame<V>> connection) {
+		mPublisher.sendSnapshot(new StatePublisher.FrameSink<V>() {
+
+			@Override
+			public SendFuture sendFrame(StateFrame<V> frame) {
+				return connection.sendMessage(frame);
+			}
+		});
+	}
+
+	@Override
+	void onConnectionClosed(String address, BluetoothDevice remoteDevice) {
+		mReplicas.remove(address);
+	}
+
+	@Override
+	void dispatchMessage(String address, BluetoothDevice remoteDevice,
+			StateFrame<V> message) {
+		Map<String, V> changes = mReplicas.get(address, remoteDevice).apply(
+				message);
+		if (!changes.isEmpty()) {
+			onRemoteStateChanged(remoteDevice, changes);
+		}
+	}
+
+	@Override
+	void dispatchMessages(String address, BluetoothDevice remoteDevice,
+			List<StateFrame<V>> messages) {
+		StateReplica<V> replica = mReplicas.get(address, remoteDevice);
+		Map<String, V> changes = new LinkedHashMap<String, V>();
+		for (StateFrame<V> message : messages) {
+			changes.putAll(replica.apply(message));
+		}
+		if (!changes.isEmpty()) {
+			onRemoteStateChanged(remoteDevice, changes);
+		}
+	}
+
+	@Override
+	protected final void onReceiveMessage(BluetoothDevice remoteDevice,
+			StateFrame<V> message) {
+		// Frames are applied by dispatchMessage()
+	}
+
+	@Override
+	protected final void onReceiveMessages(BluetoothDevice remoteDevice,
+			List<StateFrame<V>> messages) {
+		// Frames are applied by dispatchMessages()
+	}
+
+	@Override
+	protected final void onReceiveMessage(StateFrame<V> message) {
+		// Frames are applied by dispatchMessage()
+	}
+
+	/**
+	 * The state of a remote client has changed. Called on the callback
+	 * thread. Changes that arrived together are merged into one call.
+	 * 
+	 * @param remoteDevice
+	 *            the client whose state changed, or <code>null</code> if the
+	 *            <code>Transport</code> is not Bluetooth
+	 * @param changes
+	 *            the keys that changed, mapped to their new value or to
+	 *            <code>null</code> if they were removed
+	 */
+	protected abstract void onRemoteStateChanged(BluetoothDevice remoteDevice,
+			Map<String, V> changes);
+
+	/**
+	 * Sets the value of a key in the state published to every client. May be
+	 * called from the main thread, and while no client is connected.
+	 * 
+	 * @param key
+	 *            the key to set
+	 * @param value
+	 *            the new value, not <code>null</code>
+	 * @return a <code>SendFuture</code> for the delta carrying the change. It
+	 *         fails if no client was connected when the delta was due; each
+	 *         client still receives the change when it connects.
+	 */
+	protected SendFuture putState(String key, V value) {
+		return mPublisher.put(key, value);
+	}
+
+	/**
+	 * Applies several changes to the published state at once
+	 * 
+	 * @param changes
+	 *            the new values by key, where a <code>null</code> value
+	 *            removes the key
+	 * @return a <code>SendFuture</code> for the delta carrying the changes
+	 */
+	protected SendFuture putAllState(Map<String, ? extends V> changes) {
+		return mPublisher.putAll(changes);
+	}
+
+	/**
+	 * Removes a key from the published state
+	 * 
+	 * @param key
+	 *            the key to remove
+	 * @return a <code>SendFuture</code> for the delta carrying the change
+	 */
+	protected SendFuture removeState(String key) {
+		return mPublisher.remove(key);
+	}
+
+	/**
+	 * Gets a copy of the published state
+	 * 
+	 * @return a new map of keys to values
+	 */
+	protected Map<String, V> getState() {
+		return mPublisher.getState();
+	}
+
+	/**
+	 * Gets a copy of the state of a remote client
+	 * 
+	 * @param remoteDevice
+	 *            the client, or <code>null</code> for the only client of a
+	 *            non-Bluetooth <code>Transport</code>
+	 * @return a new map of keys to values, empty if the client is not
+	 *         connected
+	 */
+	protected Map<String, V> getRemoteState(BluetoothDevice remoteDevice) {
+		StateReplica<V> replica = mReplicas.peek(remoteDevice);
+		return replica == null ? new LinkedHashMap<String, V>() : replica
+				.getState();
+	}
+
+	/**
+	 * Sets how long changes to the published state are collected before being
+	 * sent. Defaults to {@link StatePublisher#DEFAULT_COALESCE_MILLIS}.
+	 * 
+	 * @param windowMillis
+	 *            the coalescing window in milliseconds, or <code>0</code> to
+	 *            send every change immediately
+	 */
+	protected void setCoalesceWindow(long windowMillis) {
+		mPublisher.setCoalesceWindow(windowMillis);
+	}
+
+	/**
+	 * Sends changes to the published state waiting for the coalescing window
+	 * to close
+	 */
+	protected void flushState() {
+		mPublisher.flush();
+	}
+}
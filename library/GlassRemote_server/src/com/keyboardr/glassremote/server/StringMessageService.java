@@ -2,8 +2,12 @@ package com.keyboardr.glassremote.server;
 
 import java.util.UUID;
 
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
 import com.keyboardr.glassremote.common.receiver.StringMessageReader;
+import com.keyboardr.glassremote.common.receiver.Utf8LineReader;
+import com.keyboardr.glassremote.common.sender.MessageSender;
 import com.keyboardr.glassremote.common.sender.StringMessageSender;
+import com.keyboardr.glassremote.common.topic.TextSubscriptions;
 
 /**
  * Sends and receives <code>String</code> messages with a remote client. This
@@ -18,8 +22,8 @@ public abstract class StringMessageService extends
 		MessageService<String, String> {
 
 	/**
-	 * Class constructor. Concrete implementations must have a zero-argument
-	 * constructor.
+	 * Class constructor for a service with one client at a time. Concrete
+	 * implementations must have a zero-argument constructor.
 	 * 
 	 * @param name
 	 *            service name for SDP record
@@ -31,7 +35,75 @@ public abstract class StringMessageService extends
 	 *            {@link UUID#fromString(String)}.
 	 */
 	protected StringMessageService(String name, UUID uuid) {
-		super(name, uuid, new StringMessageSender(), new StringMessageReader());
+		this(name, uuid, 1);
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once.
+	 * Concrete implementations must have a zero-argument constructor.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server. UUIDs can be obtained at <a
+	 *            href="http://www.uuidgenerator.net/">http
+	 *            ://www.uuidgenerator.net/</a> and instantiated using
+	 *            {@link UUID#fromString(String)}.
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once
+	 */
+	protected StringMessageService(String name, UUID uuid, int maxConnections) {
+		super(name, uuid, new MessageSender.Factory<String>() {
+
+			@Override
+			public MessageSender<String> newSender() {
+				return new StringMessageSender();
+			}
+		}, new MessageReceiver.Factory<String>() {
+
+			@Override
+			public MessageReceiver<String> newReceiver() {
+				return new StringMessageReader();
+			}
+		}, maxConnections, null);
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once
+	 * and only receives subscribed messages. Messages are matched on each
+	 * connection's reader thread, and most unwanted messages are dropped
+	 * before they are decoded. Concrete implementations must have a
+	 * zero-argument constructor.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once
+	 * @param subscriptions
+	 *            the topics to receive from every client. May be changed at
+	 *            any time.
+	 */
+	protected StringMessageService(String name, UUID uuid,
+			int maxConnections, final TextSubscriptions subscriptions) {
+		super(name, uuid, new MessageSender.Factory<String>() {
+
+			@Override
+			public MessageSender<String> newSender() {
+				return new StringMessageSender();
+			}
+		}, new MessageReceiver.Factory<String>() {
+
+			@Override
+			public MessageReceiver<String> newReceiver() {
+				return new StringMessageReader(
+						StringMessageReader.DEFAULT_INTERN_CACHE_SIZE,
+						Utf8LineReader.DEFAULT_MAX_LINE_LENGTH, subscriptions);
+			}
+		}, maxConnections, null);
 	}
 
 }
@@ -0,0 +1,332 @@
+package com.keyboardr.glassremote.server;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.UUID;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.keyboardr.glassremote.common.MessageConnection;
+import com.keyboardr.glassremote.common.receiver.MessageReceiver;
+import com.keyboardr.glassremote.common.sender.MessageSender;
+import com.keyboardr.glassremote.common.sender.MessageWriter;
+import com.keyboardr.glassremote.common.sender.SendFuture;
+import com.keyboardr.glassremote.common.transfer.FileTransferSource;
+import com.keyboardr.glassremote.common.transfer.StreamTransferSource;
+import com.keyboardr.glassremote.common.transfer.Transfer;
+import com.keyboardr.glassremote.common.transfer.TransferEndpoint;
+import com.keyboardr.glassremote.common.transfer.TransferFrame;
+import com.keyboardr.glassremote.common.transfer.TransferFrameReader;
+import com.keyboardr.glassremote.common.transfer.TransferFrameSender;
+import com.keyboardr.glassremote.common.transfer.TransferSource;
+import com.keyboardr.glassremote.common.transfer.TransferTarget;
+import com.keyboardr.glassremote.common.transport.RfcommTransport;
+import com.keyboardr.glassremote.common.transport.Transport;
+
+/**
+ * A {@link MessageService} that streams files and other bulk data to and
+ * from remote clients alongside ordinary messages. Each client has its own
+ * {@link TransferEndpoint}, which outlives the connection: a transfer
+ * interrupted by a dropped link resumes from the last acknowledged offset
+ * once the client reconnects. Clients are recognized by their remote
+ * address, so over TCP each connection is a new client. The remote clients
+ * should use a <code>TransferRemoteMessenger&lt;R, S></code>.<br/>
+ * <br/>
+ * Messages are delivered to {@link #onMessage(BluetoothDevice, Object)} on
+ * the callback thread. Transfers offered by a client are passed to
+ * {@link #onIncomingTransfer(BluetoothDevice, Transfer)}, and their data
+ * written to its <code>TransferTarget</code>, on the connection's reader
+ * thread.
+ * 
+ * @author Joshua Brown
+ * 
+ * @param <S>
+ *            type of messages to send to remote clients
+ * @param <R>
+ *            type of messages to receive from remote clients
+ */
+// Ignore warning since access to the R class shouldn't be needed at this level
+// of abstraction
+@SuppressWarnings("hiding")
+public abstract class TransferMessageService<S, R> extends
+		MessageService<TransferFrame<S>, TransferFrame<R>> {
+
+	private final EndpointMap<TransferEndpoint<S>> mEndpoints = new EndpointMap<TransferEndpoint<S>>() {
+
+		@Override
+		TransferEndpoint<S> create(final String address,
+				final BluetoothDevice remoteDevice) {
+			TransferEndpoint<S> endpoint = new TransferEndpoint<S>(
+					new TransferEndpoint.FrameSink<S>() {
+
+						@Override
+						public SendFuture sendFrame(TransferFrame<S> frame) {
+							return sendMessage(address, frame);
+						}
+					});
+			endpoint.setTransferHandler(new TransferEndpoint.TransferHandler() {
+
+				@Override
+				public TransferTarget onIncomingTransfer(Transfer transfer) {
+					return TransferMessageService.this.onIncomingTransfer(
+							remoteDevice, transfer);
+				}
+			});
+			return endpoint;
+		}
+	};
+
+	/**
+	 * Class constructor for a service with one client at a time. Concrete
+	 * implementations must have a zero-argument constructor.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server. UUIDs can be obtained at <a
+	 *            href="http://www.uuidgenerator.net/">http
+	 *            ://www.uuidgenerator.net/</a> and instantiated using
+	 *            {@link UUID#fromString(String)}.
+	 * @param sender
+	 *            the <code>MessageSender</code> providing the implementation
+	 *            for sending <code>S</code> messages
+	 * @param receiver
+	 *            the <code>MessageReceiver</code> providing the implementation
+	 *            for receiving <code>R</code> messages
+	 */
+	protected TransferMessageService(String name, UUID uuid,
+			MessageSender<S> sender, MessageReceiver<R> receiver) {
+		super(name, uuid, new TransferFrameSender<S>(sender),
+				new TransferFrameReader<R>(receiver));
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once.
+	 * Concrete implementations must have a zero-argument constructor.
+	 * 
+	 * @param name
+	 *            service name for SDP record
+	 * @param uuid
+	 *            a <code>UUID</code> shared between the remote client and this
+	 *            server
+	 * @param senderFactory
+	 *            creates a message <code>MessageSender</code> for each client
+	 * @param receiverFactory
+	 *            creates a message <code>MessageReceiver</code> for each client
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing frames, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected TransferMessageService(String name, UUID uuid,
+			MessageSender.Factory<S> senderFactory,
+			MessageReceiver.Factory<R> receiverFactory, int maxConnections,
+			MessageWriter.Config writerConfig) {
+		super(name, uuid, TransferFrameSender.factory(senderFactory),
+				TransferFrameReader.factory(receiverFactory), maxConnections,
+				writerConfig);
+	}
+
+	/**
+	 * Class constructor for a service that may serve several clients at once
+	 * over an arbitrary {@link Transport}. Concrete implementations must have
+	 * a zero-argument constructor.
+	 * 
+	 * @param transport
+	 *            the <code>Transport</code> to listen on
+	 * @param senderFactory
+	 *            creates a message <code>MessageSender</code> for each client
+	 * @param receiverFactory
+	 *            creates a message <code>MessageReceiver</code> for each client
+	 * @param maxConnections
+	 *            the maximum number of clients connected at once
+	 * @param writerConfig
+	 *            queueing and batching parameters for outgoing frames, or
+	 *            <code>null</code> for the defaults
+	 */
+	protected TransferMessageService(Transport transport,
+			MessageSender.Factory<S> senderFactory,
+			MessageReceiver.Factory<R> receiverFactory, int maxConnections,
+			MessageWriter.Config writerConfig) {
+		super(transport, TransferFrameSender.factory(senderFactory),
+				TransferFrameReader.factory(receiverFactory), maxConnections,
+				writerConfig);
+	}
+
+	@Override
+	void onConnectionOpened(
+			MessageConnection<TransferFrame<S>, TransferFrame<R>> connection) {
+		mEndpoints.get(connection.getConnection().getRemoteAddress(),
+				RfcommTransport.getRemoteDevice(connection.getConnection()))
+				.onConnected();
+	}
+
+	@Override
+	void onConnectionClosed(String address, BluetoothDevice remoteDevice) {
+		TransferEndpoint<S> endpoint = mEndpoints.peek(address);
+		if (endpoint != null) {
+			endpoint.onDisconnected();
+		}
+	}
+
+	@Override
+	boolean onInterceptMessage(String address, BluetoothDevice remoteDevice,
+			TransferFrame<R> message) {
+		return mEndpoints.get(address, remoteDevice).onReceiveFrame(message);
+	}
+
+	@Override
+	protected final void onReceiveMessage(BluetoothDevice remoteDevice,
+			TransferFrame<R> message) {
+		onMessage(remoteDevice, message.getPayload());
+	}
+
+	@Override
+	protected final void onReceiveMessage(TransferFrame<R> message) {
+		// Frames are dispatched by onReceiveMessage(BluetoothDevice,
+		// TransferFrame)
+	}
+
+	/**
+	 * A remote client has sent a message. Called on the callback thread.
+	 * 
+	 * @param remoteDevice
+	 *            the client that sent the message, or <code>null</code> if
+	 *            the <code>Transport</code> is not Bluetooth
+	 * @param message
+	 *            the <code>R</code> message
+	 */
+	protected abstract void onMessage(BluetoothDevice remoteDevice, R message);
+
+	/**
+	 * A remote client has offered a transfer. Called on the connection's
+	 * reader thread. The default implementation refuses every transfer.
+	 * 
+	 * @param remoteDevice
+	 *            the client offering the transfer, or <code>null</code> if the
+	 *            <code>Transport</code> is not Bluetooth
+	 * @param transfer
+	 *            the incoming <code>Transfer</code>
+	 * @return where to store the transfer's data, or <code>null</code> to
+	 *         refuse it
+	 */
+	protected TransferTarget onIncomingTransfer(BluetoothDevice remoteDevice,
+			Transfer transfer) {
+		return null;
+	}
+
+	/**
+	 * Sends a message to a remote client. May be called from the main thread.
+	 * Messages share the connection with transfers to the same client and are
+	 * written between their chunks.
+	 * 
+	 * @param remoteDevice
+	 *            the client to send to, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 * @param message
+	 *            the <code>S</code> message
+	 * @return a <code>SendFuture</code> that completes once the message has
+	 *         been written
+	 * @throws IllegalStateException
+	 *             If the <code>MessageService</code> is not connected to
+	 *             <code>remoteDevice</code>
+	 */
+	protected SendFuture send(BluetoothDevice remoteDevice, S message) {
+		return sendMessage(getClientAddress(remoteDevice),
+				TransferFrame.message(message));
+	}
+
+	/**
+	 * Sends a file to a remote client. May be called from the main thread, and
+	 * while the client is not connected, in which case the transfer starts
+	 * once it connects.
+	 * 
+	 * @param remoteDevice
+	 *            the client to send to, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 * @param file
+	 *            the file to send. Its name is used as the transfer name.
+	 * @return the outgoing <code>Transfer</code>
+	 * @throws FileNotFoundException
+	 *             if the file could not be opened
+	 */
+	protected Transfer sendFile(BluetoothDevice remoteDevice, File file)
+			throws FileNotFoundException {
+		return mEndpoints.get(remoteDevice).send(file.getName(),
+				new FileTransferSource(file));
+	}
+
+	/**
+	 * Sends the contents of a stream to a remote client. The stream is read as
+	 * the transfer proceeds and closed when it finishes.
+	 * 
+	 * @param remoteDevice
+	 *            the client to send to, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 * @param name
+	 *            the name to give the transfer
+	 * @param input
+	 *            the data to send
+	 * @param length
+	 *            the number of bytes to send, or <code>-1</code> to send until
+	 *            the stream ends
+	 * @return the outgoing <code>Transfer</code>
+	 */
+	protected Transfer sendStream(BluetoothDevice remoteDevice, String name,
+			InputStream input, long length) {
+		return mEndpoints.get(remoteDevice).send(name,
+				new StreamTransferSource(input, length));
+	}
+
+	/**
+	 * Sends data from any <code>TransferSource</code> to a remote client
+	 * 
+	 * @param remoteDevice
+	 *            the client to send to, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 * @param name
+	 *            the name to give the transfer
+	 * @param source
+	 *            the data to send. It is closed when the transfer finishes.
+	 * @return the outgoing <code>Transfer</code>
+	 */
+	protected Transfer sendTransfer(BluetoothDevice remoteDevice, String name,
+			TransferSource source) {
+		return mEndpoints.get(remoteDevice).send(name, source);
+	}
+
+	/**
+	 * Gets the number of transfers in progress with <code>remoteDevice</code>
+	 * in either direction
+	 * 
+	 * @param remoteDevice
+	 *            the client to check, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 * @return the number of unfinished transfers
+	 */
+	protected int getActiveTransferCount(BluetoothDevice remoteDevice) {
+		TransferEndpoint<S> endpoint = mEndpoints.peek(remoteDevice);
+		return endpoint == null ? 0 : endpoint.getActiveCount();
+	}
+
+	/**
+	 * Discards the endpoint of a client that is not expected back. Its
+	 * unfinished transfers fail, and partial incoming data is left in their
+	 * targets.
+	 * 
+	 * @param remoteDevice
+	 *            the client to forget, or <code>null</code> for the only
+	 *            client of a non-Bluetooth <code>Transport</code>
+	 */
+	protected void forgetClient(BluetoothDevice remoteDevice) {
+		TransferEndpoint<S> endpoint = mEndpoints.remove(remoteDevice);
+		if (endpoint != null) {
+			endpoint.onDisconnected();
+			endpoint.failAll(new IOException("Client forgotten"));
+		}
+	}
+}